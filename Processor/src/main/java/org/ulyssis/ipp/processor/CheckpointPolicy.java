@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.SnapshotStore;
+import org.ulyssis.ipp.snapshot.StoreTransaction;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * = Snapshot checkpointing
+ *
+ * Decides which snapshots are stored in the snapshot store. Instead of storing
+ * the snapshot after every event, a snapshot (a checkpoint) is stored
+ * every so many events, or when a certain amount of time (in event time,
+ * so that replaying the same events yields the same checkpoints) has passed
+ * since the last checkpoint. The states in between are rebuilt on demand by
+ * replaying the events after the closest checkpoint, see Snapshot.loadLatest.
+ *
+ * The policy keeps track of the number of events since the last checkpoint,
+ * and is not threadsafe.
+ */
+public final class CheckpointPolicy {
+    /**
+     * The state of the policy at some point, used to go back to that
+     * point when a transaction is rolled back.
+     */
+    public static final class Mark {
+        private final int eventsSinceCheckpoint;
+        private final Instant lastCheckpointTime;
+
+        private Mark(int eventsSinceCheckpoint, Instant lastCheckpointTime) {
+            this.eventsSinceCheckpoint = eventsSinceCheckpoint;
+            this.lastCheckpointTime = lastCheckpointTime;
+        }
+    }
+
+    private final SnapshotStore store;
+    private final int everyEvents;
+    private final Duration interval;
+
+    private int eventsSinceCheckpoint = 0;
+    private Instant lastCheckpointTime = Instant.EPOCH;
+
+    private long checkpointsStored = 0L;
+    private long nanosStoring = 0L;
+
+    /**
+     * @param store
+     *        The store to store the checkpoints in
+     * @param everyEvents
+     *        Store a checkpoint every this many events, 0 to disable
+     * @param interval
+     *        Store a checkpoint when this much time has passed since the last one,
+     *        Duration.ZERO to disable
+     */
+    public CheckpointPolicy(SnapshotStore store, int everyEvents, Duration interval) {
+        assert everyEvents >= 0 && !interval.isNegative();
+        assert everyEvents > 0 || !interval.isZero();
+        this.store = store;
+        this.everyEvents = everyEvents;
+        this.interval = interval;
+    }
+
+    /**
+     * Start counting from the given snapshot, which is either a checkpoint,
+     * or the empty snapshot we start from when there are no checkpoints.
+     */
+    public void reset(Snapshot checkpoint) {
+        eventsSinceCheckpoint = 0;
+        lastCheckpointTime = checkpoint.getSnapshotTime();
+    }
+
+    public Mark mark() {
+        return new Mark(eventsSinceCheckpoint, lastCheckpointTime);
+    }
+
+    public void reset(Mark mark) {
+        eventsSinceCheckpoint = mark.eventsSinceCheckpoint;
+        lastCheckpointTime = mark.lastCheckpointTime;
+    }
+
+    /**
+     * Apply the event to the given snapshot, and store the resulting
+     * snapshot if a checkpoint is due.
+     */
+    public Snapshot apply(StoreTransaction tx, Snapshot before, Event event) throws IOException {
+        return record(tx, event.apply(before));
+    }
+
+    /**
+     * Count a snapshot that resulted from applying an event, and store it
+     * if a checkpoint is due.
+     */
+    public Snapshot record(StoreTransaction tx, Snapshot result) throws IOException {
+        eventsSinceCheckpoint++;
+        if (isDue(result)) {
+            long start = System.nanoTime();
+            store.save(tx, result);
+            nanosStoring += System.nanoTime() - start;
+            checkpointsStored++;
+            eventsSinceCheckpoint = 0;
+            lastCheckpointTime = result.getSnapshotTime();
+        }
+        return result;
+    }
+
+    /**
+     * The number of checkpoints this policy stored, including the ones that were rolled back
+     */
+    public long getCheckpointsStored() {
+        return checkpointsStored;
+    }
+
+    /**
+     * The total time spent storing checkpoints, in nanoseconds
+     */
+    public long getNanosStoring() {
+        return nanosStoring;
+    }
+
+    private boolean isDue(Snapshot snapshot) {
+        if (everyEvents > 0 && eventsSinceCheckpoint >= everyEvents) {
+            return true;
+        }
+        return !interval.isZero() &&
+                Duration.between(lastCheckpointTime, snapshot.getSnapshotTime()).compareTo(interval) >= 0;
+    }
+}
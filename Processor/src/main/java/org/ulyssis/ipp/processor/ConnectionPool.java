@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded pool of JDBC connections.
+ *
+ * Connections handed out by the pool are proxies: closing them returns the
+ * underlying connection to the pool (after rolling back anything that was
+ * not committed, and restoring the auto-commit mode, read-only mode and
+ * transaction isolation if they were changed) instead of closing it. Idle connections are validated
+ * before they are handed out again if they have been idle for a while, and
+ * connections that have been idle for too long are closed.
+ *
+ * Prepared statements are cached per connection, by their SQL (and the
+ * other arguments to prepareStatement). Closing a statement returns it to
+ * the cache, so preparing the same SQL again, in the same or a later
+ * transaction, reuses it instead of preparing it on the server again.
+ *
+ * The pool is threadsafe.
+ */
+public final class ConnectionPool {
+    private static final Logger LOG = LogManager.getLogger(ConnectionPool.class);
+
+    @FunctionalInterface
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * The maximum number of prepared statements cached per connection
+     */
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private static final class PooledConnection {
+        final Connection connection;
+        final StatementCache statements;
+        long idleSince;
+
+        PooledConnection(Connection connection, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+            this.idleSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * An immutable view on the usage of a pool at some point in time.
+     */
+    public static final class Statistics {
+        private final String name;
+        private final int maxSize;
+        private final int inUse;
+        private final int idle;
+        private final long acquired;
+        private final long created;
+        private final long closed;
+        private final long timeouts;
+        private final long validationFailures;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long statementCacheHits;
+        private final long statementCacheMisses;
+
+        private Statistics(String name, int maxSize, int inUse, int idle, long acquired, long created, long closed,
+                           long timeouts, long validationFailures, long totalWaitNanos, long maxWaitNanos,
+                           long statementCacheHits, long statementCacheMisses) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.inUse = inUse;
+            this.idle = idle;
+            this.acquired = acquired;
+            this.created = created;
+            this.closed = closed;
+            this.timeouts = timeouts;
+            this.validationFailures = validationFailures;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.statementCacheHits = statementCacheHits;
+            this.statementCacheMisses = statementCacheMisses;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * The number of connections that are currently handed out.
+         */
+        public int getInUse() {
+            return inUse;
+        }
+
+        /**
+         * The number of open connections that are waiting to be reused.
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * The number of times a connection was handed out.
+         */
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * The number of physical connections that were opened.
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * The number of physical connections that were closed.
+         */
+        public long getClosed() {
+            return closed;
+        }
+
+        /**
+         * The number of times no connection became available in time.
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * The number of idle connections that turned out to be broken.
+         */
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        /**
+         * The mean time in ms spent waiting for a free slot in the pool.
+         */
+        public double getMeanWaitMillis() {
+            return acquired == 0 ? 0D : totalWaitNanos / 1e6D / acquired;
+        }
+
+        /**
+         * The longest time in ms spent waiting for a free slot in the pool.
+         */
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1e6D;
+        }
+
+        /**
+         * The number of times a prepared statement was reused from the cache.
+         */
+        public long getStatementCacheHits() {
+            return statementCacheHits;
+        }
+
+        /**
+         * The number of times a statement had to be prepared.
+         */
+        public long getStatementCacheMisses() {
+            return statementCacheMisses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d/%d in use, %d idle, %d acquired, %d created, %d closed, " +
+                            "%d timeouts, %d validation failures, wait mean %.3f ms, max %.3f ms, " +
+                            "statement cache %d hits, %d misses",
+                    name, inUse, maxSize, idle, acquired, created, closed,
+                    timeouts, validationFailures, getMeanWaitMillis(), getMaxWaitMillis(),
+                    statementCacheHits, statementCacheMisses);
+        }
+    }
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validateAfterNanos;
+    private final long maxIdleNanos;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong closedConnections = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    /**
+     * Incremented to throw away all cached statements, see invalidateStatements
+     */
+    private final AtomicLong statementGeneration = new AtomicLong();
+
+    /**
+     * Create a new pool.
+     *
+     * @param name
+     *        The name of the pool, used for logging and statistics.
+     * @param factory
+     *        Opens a new physical connection, fully configured.
+     * @param maxSize
+     *        The maximum number of connections that can be handed out at the same time.
+     * @param acquireTimeoutMillis
+     *        How long to wait for a free connection before giving up.
+     * @param validateAfterMillis
+     *        Idle connections that have been idle for longer than this are validated
+     *        before they are handed out.
+     * @param maxIdleMillis
+     *        Idle connections that have been idle for longer than this are closed.
+     */
+    ConnectionPool(String name, ConnectionFactory factory, int maxSize, long acquireTimeoutMillis,
+                   long validateAfterMillis, long maxIdleMillis) {
+        assert maxSize > 0;
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Get a connection from the pool, opening a new one if there is no idle one.
+     *
+     * The returned connection must be closed to return it to the pool.
+     */
+    Connection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out waiting for a connection from pool " + name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from pool " + name, e);
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        try {
+            PooledConnection connection = takeIdle();
+            if (connection == null) {
+                connection = new PooledConnection(factory.create(), new StatementCache());
+                created.incrementAndGet();
+            }
+            acquired.incrementAndGet();
+            return wrap(connection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("Connection pool " + name + " is closed");
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) return null;
+            long idleFor = System.nanoTime() - pooled.idleSince;
+            if (idleFor > maxIdleNanos) {
+                closeQuietly(pooled.connection);
+            } else if (idleFor > validateAfterNanos && !isValid(pooled.connection)) {
+                validationFailures.incrementAndGet();
+                LOG.warn("Discarding broken connection from pool {}", name);
+                closeQuietly(pooled.connection);
+            } else {
+                return pooled;
+            }
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled, Handle handle) {
+        Connection connection = pooled.connection;
+        try {
+            boolean reusable = !connection.isClosed();
+            if (reusable) {
+                pooled.statements.dropInUse();
+            }
+            if (reusable) {
+                try {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                    }
+                    handle.restoreState(connection);
+                } catch (SQLException e) {
+                    LOG.warn("Resetting connection failed when returning it to pool {}, discarding it", name, e);
+                    reusable = false;
+                }
+            }
+            synchronized (this) {
+                if (reusable && !closed) {
+                    pooled.idleSince = System.nanoTime();
+                    idle.addFirst(pooled);
+                    evictIdle();
+                    return;
+                }
+            }
+            closeQuietly(connection);
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close connections at the end of the idle queue that have been idle for too long.
+     *
+     * Must be called while holding the lock.
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        while (!idle.isEmpty() && now - idle.peekLast().idleSince > maxIdleNanos) {
+            closeQuietly(idle.pollLast().connection);
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        closedConnections.incrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.debug("Error while closing connection from pool {}", name, e);
+        }
+    }
+
+    /**
+     * Close all idle connections, and make sure that connections that are
+     * currently in use are closed when they are returned.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.pollFirst().connection);
+            }
+        }
+    }
+
+    /**
+     * Throw away all cached statements, for instance because the tables they
+     * use have been dropped and created again. Statements that are in use
+     * are closed when they're returned.
+     */
+    void invalidateStatements() {
+        statementGeneration.incrementAndGet();
+    }
+
+    Statistics getStatistics() {
+        int idleCount;
+        synchronized (this) {
+            idleCount = idle.size();
+        }
+        return new Statistics(name, maxSize, maxSize - permits.availablePermits(), idleCount,
+                acquired.get(), created.get(), closedConnections.get(), timeouts.get(),
+                validationFailures.get(), totalWaitNanos.get(), maxWaitNanos.get(),
+                statementCacheHits.get(), statementCacheMisses.get());
+    }
+
+    private Connection wrap(PooledConnection connection) {
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Handle(connection));
+    }
+
+    /**
+     * The prepared statements of one physical connection, least recently
+     * used first. Only used by the thread that has the connection.
+     */
+    private final class StatementCache {
+        private final LinkedHashMap<List<Object>, CachedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true);
+        private long generation = statementGeneration.get();
+
+        PreparedStatement prepare(Connection proxy, Connection connection, Method method, Object[] args)
+                throws Throwable {
+            if (generation != statementGeneration.get()) {
+                generation = statementGeneration.get();
+                for (CachedStatement cached : statements.values()) {
+                    cached.evict();
+                }
+                statements.clear();
+            }
+            List<Object> key = Arrays.asList(args);
+            CachedStatement cached = statements.get(key);
+            if (cached != null && !cached.inUse) {
+                statementCacheHits.incrementAndGet();
+                return cached.checkOut(proxy);
+            }
+            statementCacheMisses.incrementAndGet();
+            PreparedStatement statement = (PreparedStatement) forward(connection, method, args);
+            if (cached != null) {
+                // The same statement is still in use, this one isn't cached
+                return statement;
+            }
+            cached = new CachedStatement(statement);
+            statements.put(key, cached);
+            if (statements.size() > STATEMENT_CACHE_SIZE) {
+                Iterator<CachedStatement> eldest = statements.values().iterator();
+                eldest.next().evict();
+                eldest.remove();
+            }
+            return cached.checkOut(proxy);
+        }
+
+        /**
+         * Close the statements that weren't closed before the connection was
+         * returned, so they don't take up a place in the cache forever.
+         */
+        void dropInUse() throws SQLException {
+            Iterator<CachedStatement> it = statements.values().iterator();
+            while (it.hasNext()) {
+                CachedStatement cached = it.next();
+                if (cached.inUse) {
+                    it.remove();
+                    cached.inUse = false;
+                    cached.evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached statement. It's handed out as a proxy, closing the proxy
+     * returns the statement to the cache.
+     */
+    private static final class CachedStatement {
+        final PreparedStatement statement;
+        boolean inUse = false;
+        boolean evicted = false;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement checkOut(Connection connection) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new StatementHandle(this, connection));
+        }
+
+        void checkIn() throws SQLException {
+            inUse = false;
+            if (evicted) {
+                statement.close();
+                return;
+            }
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+
+        void evict() throws SQLException {
+            evicted = true;
+            if (!inUse) {
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * Forwards everything to a cached statement, except for close(), which
+     * returns the statement to the cache.
+     */
+    private static final class StatementHandle implements InvocationHandler {
+        private CachedStatement cached;
+        private final Connection connection;
+
+        StatementHandle(CachedStatement cached, Connection connection) {
+            this.cached = cached;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (cached != null) {
+                        CachedStatement c = cached;
+                        cached = null;
+                        c.checkIn();
+                    }
+                    return null;
+                case "isClosed":
+                    return cached == null || cached.statement.isClosed();
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return cached == null ? "Cached(closed)" : cached.statement.toString();
+                default:
+                    if (cached == null) {
+                        throw new SQLException("Statement has already been closed");
+                    }
+                    return forward(cached.statement, method, args);
+            }
+        }
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Forwards everything to the physical connection, except for close(),
+     * which returns the connection to the pool, and prepareStatement(), which
+     * goes through the statement cache.
+     *
+     * The first time the auto-commit mode, read-only mode or transaction
+     * isolation is changed, the old value is kept, so it can be restored
+     * when the connection is returned. The next user then gets the
+     * connection as the factory configured it.
+     */
+    private final class Handle implements InvocationHandler {
+        private PooledConnection connection;
+        private Boolean autoCommit = null;
+        private Boolean readOnly = null;
+        private Integer isolation = null;
+
+        Handle(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        private void saveState(String setter) throws SQLException {
+            Connection c = connection.connection;
+            switch (setter) {
+                case "setAutoCommit":
+                    if (autoCommit == null) autoCommit = c.getAutoCommit();
+                    break;
+                case "setReadOnly":
+                    if (readOnly == null) readOnly = c.isReadOnly();
+                    break;
+                case "setTransactionIsolation":
+                    if (isolation == null) isolation = c.getTransactionIsolation();
+                    break;
+            }
+        }
+
+        /**
+         * Must be called outside of a transaction, after the rollback.
+         */
+        void restoreState(Connection connection) throws SQLException {
+            if (autoCommit != null && connection.getAutoCommit() != autoCommit) {
+                connection.setAutoCommit(autoCommit);
+            }
+            if (readOnly != null && connection.isReadOnly() != readOnly) {
+                connection.setReadOnly(readOnly);
+            }
+            if (isolation != null && connection.getTransactionIsolation() != isolation) {
+                connection.setTransactionIsolation(isolation);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (connection != null) {
+                        PooledConnection c = connection;
+                        connection = null;
+                        release(c, this);
+                    }
+                    return null;
+                case "setAutoCommit":
+                case "setReadOnly":
+                case "setTransactionIsolation":
+                    checkOpen();
+                    saveState(method.getName());
+                    return forward(connection.connection, method, args);
+                case "isClosed":
+                    return connection == null || connection.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled(" + name + ", " + (connection == null ? null : connection.connection) + ")";
+                case "prepareStatement":
+                    checkOpen();
+                    return connection.statements.prepare((Connection) proxy, connection.connection, method, args);
+                default:
+                    checkOpen();
+                    return forward(connection.connection, method, args);
+            }
+        }
+
+        private void checkOpen() throws SQLException {
+            if (connection == null) {
+                throw new SQLException("Connection has already been returned to pool " + name);
+            }
+        }
+    }
+}
@@ -17,12 +17,19 @@
  */
 package org.ulyssis.ipp.processor;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.net.URI;
 import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 public final class Database {
     private static final Logger LOG = LogManager.getLogger(Database.class);
@@ -35,26 +42,135 @@ public final class Database {
         READ_ONLY
     }
 
+    /**
+     * The default maximum number of connections in each pool, see setPoolLimits
+     */
+    public static final int DEFAULT_MAX_POOL_SIZE = 8;
+    /**
+     * The default time to wait for a free connection, see setPoolLimits
+     */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 30000L;
+    /**
+     * Connections that were idle for longer than this are validated before they are handed out
+     */
+    private static final long VALIDATE_AFTER_IDLE_MS = 10000L;
+    /**
+     * Connections that were idle for longer than this are closed
+     */
+    private static final long MAX_IDLE_MS = 600000L;
+
+    private static volatile int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private static volatile long acquireTimeoutMs = DEFAULT_ACQUIRE_TIMEOUT_MS;
+
     private static URI databaseURI = null;
+    private static volatile boolean perTeamSnapshotStorage = false;
+    private static volatile boolean partitionedStorage = false;
+    /**
+     * Whether the tables in the database are partitioned, decided by initDb
+     */
+    private static volatile boolean partitioned = false;
+    /**
+     * The hours for which partitions are known to exist
+     */
+    private static final Set<LocalDateTime> partitions = ConcurrentHashMap.newKeySet();
+    /**
+     * The hours for which ensurePartition created partitions in transactions
+     * that may not have been committed yet, see createPartitions
+     */
+    private static final Set<LocalDateTime> uncommittedPartitions = ConcurrentHashMap.newKeySet();
+    private static final Map<ConnectionFlags, ConnectionPool> pools = new EnumMap<>(ConnectionFlags.class);
 
     public static void setDatabaseURI(URI uri) {
-        databaseURI = uri;
+        synchronized (pools) {
+            if (Objects.equals(uri, databaseURI)) return;
+            databaseURI = uri;
+            pools.values().forEach(ConnectionPool::close);
+            pools.clear();
+        }
+    }
+
+    /**
+     * Set the size of each connection pool, and how long to wait for a
+     * connection when all of them are in use. Pools that exist already
+     * are closed, new ones are created with these limits.
+     */
+    public static void setPoolLimits(int maxSize, long acquireTimeoutMillis) {
+        synchronized (pools) {
+            maxPoolSize = maxSize;
+            acquireTimeoutMs = acquireTimeoutMillis;
+            pools.values().forEach(ConnectionPool::close);
+            pools.clear();
+        }
+    }
+
+    /**
+     * Whether to store snapshots per team: the team states and tags are then
+     * stored in the teamStates table, one row for every team that changed,
+     * instead of storing the whole snapshot in one row of the snapshots table.
+     *
+     * Both layouts can be read, regardless of this setting.
+     */
+    public static void setPerTeamSnapshotStorage(boolean perTeam) {
+        perTeamSnapshotStorage = perTeam;
+    }
+
+    public static boolean isPerTeamSnapshotStorage() {
+        return perTeamSnapshotStorage;
     }
 
+    /**
+     * Whether to partition the events and snapshots tables by hour, when
+     * creating them. Only supported on PostgreSQL 11 or later, other
+     * databases, and tables that already exist, keep the regular layout.
+     */
+    public static void setPartitionedStorage(boolean partitioned) {
+        partitionedStorage = partitioned;
+    }
+
+    /**
+     * Get a connection to the database. The connection comes from a pool
+     * (one pool for read-only connections, one for read-write connections),
+     * closing it returns it to the pool. Anything that was not committed
+     * when the connection is closed is rolled back.
+     */
     public static Connection createConnection(EnumSet<ConnectionFlags> flags) throws SQLException {
         assert flags.contains(ConnectionFlags.READ_ONLY) != /* XOR */ flags.contains(ConnectionFlags.READ_WRITE);
         assert databaseURI != null;
-        boolean readOnly = flags.contains(ConnectionFlags.READ_ONLY);
+        ConnectionFlags flag = flags.contains(ConnectionFlags.READ_ONLY) ? ConnectionFlags.READ_ONLY : ConnectionFlags.READ_WRITE;
+        ConnectionPool pool;
+        synchronized (pools) {
+            pool = pools.get(flag);
+            if (pool == null) {
+                final URI uri = databaseURI;
+                final boolean readOnly = flag == ConnectionFlags.READ_ONLY;
+                pool = new ConnectionPool(flag.name(), () -> openConnection(uri, readOnly),
+                        maxPoolSize, acquireTimeoutMs, VALIDATE_AFTER_IDLE_MS, MAX_IDLE_MS);
+                pools.put(flag, pool);
+            }
+        }
+        return pool.acquire();
+    }
+
+    /**
+     * Get usage statistics (wait times, connections in use,...) of the connection pools.
+     */
+    public static List<ConnectionPool.Statistics> getPoolStatistics() {
+        synchronized (pools) {
+            return pools.values().stream().map(ConnectionPool::getStatistics).collect(Collectors.toList());
+        }
+    }
+
+    private static Connection openConnection(URI uri, boolean readOnly) throws SQLException {
         Properties props = new Properties();
         props.setProperty("readOnly", readOnly ? "true" : "false");
         Connection connection = null;
         try {
-            if (databaseURI.toString().startsWith("jdbc:h2")) {
+            if (uri.toString().startsWith("jdbc:h2")) {
                 Class.forName("org.h2.Driver");
-                connection = DriverManager.getConnection(databaseURI.toString());
+                connection = DriverManager.getConnection(uri.toString());
             } else {
                 Class.forName("org.postgresql.Driver");
-                connection = DriverManager.getConnection(databaseURI.toString(), props);
+                connection = DriverManager.getConnection(uri.toString(), props);
             }
             connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
             connection.setAutoCommit(false);
@@ -63,7 +179,7 @@ public final class Database {
             LOG.fatal("Couldn't load driver!", e);
             throw new IllegalStateException(e);
         } catch (SQLException e) {
-            if (connection != null) connection.rollback();
+            if (connection != null) connection.close();
             throw e;
         }
     }
@@ -72,7 +188,9 @@ public final class Database {
         List<String> statements = Arrays.asList(
                 "DROP TABLE IF EXISTS \"events\" CASCADE",
                 "DROP TABLE IF EXISTS \"tagSeenEvents\" CASCADE",
-                "DROP TABLE IF EXISTS \"snapshots\" CASCADE"
+                "DROP TABLE IF EXISTS \"snapshots\" CASCADE",
+                "DROP TABLE IF EXISTS \"teamStates\" CASCADE",
+                "DROP TABLE IF EXISTS \"walCheckpoint\" CASCADE"
         );
         for (String statement : statements) {
             try (Statement stmt = connection.createStatement()) {
@@ -80,6 +198,183 @@ public final class Database {
                 stmt.execute(statement);
             }
         }
+        // The tables are gone, so are the statements that were prepared for them
+        synchronized (pools) {
+            pools.values().forEach(ConnectionPool::invalidateStatements);
+        }
+        partitions.clear();
+        uncommittedPartitions.clear();
+    }
+
+    /**
+     * Whether the events and snapshots tables are partitioned. There are no
+     * foreign keys then, so the team rows of deleted snapshots aren't deleted
+     * by a cascade.
+     */
+    public static boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * Whether trying again can't help: the error, or one of its causes, is a
+     * constraint violation (SQLSTATE class 23), like a duplicate read, or the
+     * data couldn't be serialized. Anything else, like a lost connection or a
+     * timeout, may go away.
+     */
+    public static boolean isPermanentFailure(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof JsonProcessingException) {
+                return true;
+            }
+            if (e instanceof SQLException) {
+                for (SQLException sqlE = (SQLException) e; sqlE != null; sqlE = sqlE.getNextException()) {
+                    if (sqlE.getSQLState() != null && sqlE.getSQLState().startsWith("23")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPostgres(Connection connection) throws SQLException {
+        return "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName());
+    }
+
+    /**
+     * Make sure the events and snapshots tables have a partition for the
+     * hour of the given time, if they are partitioned, before inserting into
+     * them on the given connection.
+     *
+     * The partitions are normally created ahead of time, see createPartitions.
+     * A missing one is created on the given connection, in the transaction
+     * that is about to insert into it, rather than on a connection of its
+     * own: on PostgreSQL 11, attaching a partition locks the whole table, so
+     * it would wait for the lock that this transaction already holds on it.
+     * If the transaction is rolled back, so is the partition, so it's only
+     * remembered once createPartitions sees that it was committed.
+     *
+     * The partition is named after, and covers, the hour of the time as it is
+     * stored: a timestamp without time zone, in the local time zone.
+     */
+    public static void ensurePartition(Connection connection, Instant time) throws SQLException {
+        if (!partitioned) return;
+        LocalDateTime hour = Timestamp.from(time).toLocalDateTime().truncatedTo(ChronoUnit.HOURS);
+        if (partitions.contains(hour)) return;
+        if (createPartition(connection, hour)) {
+            uncommittedPartitions.add(hour);
+        } else if (!uncommittedPartitions.contains(hour)) {
+            partitions.add(hour);
+        }
+    }
+
+    /**
+     * Create the partitions of the events and snapshots tables for the hours
+     * from the first time up to and including the hour of the second one, if
+     * the tables are partitioned, each hour in a transaction of its own.
+     *
+     * This is meant to run ahead of time, next to the processing, so it gives
+     * up (with an SQLException) rather than waiting for more than a second
+     * for the lock on a table. It leaves the hours that ensurePartition
+     * created alone, and remembers them once they have been committed.
+     */
+    public static void createPartitions(Instant from, Instant to) throws SQLException {
+        if (!partitioned) return;
+        LocalDateTime first = Timestamp.from(from).toLocalDateTime().truncatedTo(ChronoUnit.HOURS);
+        LocalDateTime last = Timestamp.from(to).toLocalDateTime().truncatedTo(ChronoUnit.HOURS);
+        try (Connection connection = createConnection(EnumSet.of(ConnectionFlags.READ_WRITE))) {
+            for (LocalDateTime hour : uncommittedPartitions) {
+                if (partitionExists(connection, "events", hour) && partitionExists(connection, "snapshots", hour)) {
+                    partitions.add(hour);
+                    uncommittedPartitions.remove(hour);
+                }
+            }
+            connection.commit();
+            for (LocalDateTime hour = first; !hour.isAfter(last); hour = hour.plusHours(1L)) {
+                // A transaction that is still running may be creating it
+                if (partitions.contains(hour) || uncommittedPartitions.contains(hour)) continue;
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("SET LOCAL lock_timeout = '1s'");
+                }
+                if (createPartition(connection, hour)) {
+                    LOG.info("Created the partitions for {}", hour);
+                }
+                connection.commit();
+                partitions.add(hour);
+                uncommittedPartitions.remove(hour);
+            }
+        }
+    }
+
+    /**
+     * Create the partitions of the events and snapshots tables for the given
+     * hour on the given connection, if they don't exist yet. A partition is
+     * created, and then attached to the table, instead of being created as a
+     * partition, which locks the whole table on PostgreSQL 12 and later too.
+     *
+     * @return Whether any partition was created
+     */
+    private static boolean createPartition(Connection connection, LocalDateTime hour) throws SQLException {
+        String suffix = hour.format(DateTimeFormatter.ofPattern("yyyyMMddHH"));
+        String from = hour.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        String to = hour.plusHours(1L).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        boolean created = false;
+        for (String table : Arrays.asList("events", "snapshots")) {
+            if (partitionExists(connection, table, hour)) continue;
+            String partition = table + "_" + suffix;
+            List<String> statements = Arrays.asList(
+                    "CREATE TABLE \"" + partition + "\" (LIKE \"" + table + "\" INCLUDING DEFAULTS)",
+                    "ALTER TABLE \"" + table + "\" ATTACH PARTITION \"" + partition + "\" " +
+                            "FOR VALUES FROM ('" + from + "') TO ('" + to + "')");
+            for (String statement : statements) {
+                try (Statement stmt = connection.createStatement()) {
+                    LOG.debug("Executing statement: {}", statement);
+                    stmt.execute(statement);
+                }
+            }
+            created = true;
+        }
+        return created;
+    }
+
+    /**
+     * Whether the partition of the given table for the given hour exists.
+     * This looks the name up in the catalog as it is now, so in a serializable
+     * transaction, it also sees partitions that were committed after the
+     * transaction started.
+     */
+    private static boolean partitionExists(Connection connection, String table, LocalDateTime hour)
+            throws SQLException {
+        String partition = table + "_" + hour.format(DateTimeFormatter.ofPattern("yyyyMMddHH"));
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            stmt.setString(1, "\"" + partition + "\"");
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getBoolean(1);
+        }
+    }
+
+    /**
+     * Reclaim the space of deleted rows in the given tables, and update their
+     * statistics. Only does something on PostgreSQL, where VACUUM can't run
+     * in a transaction, so the connection is switched to autocommit for it.
+     */
+    public static void vacuum(Connection connection, String... tables) throws SQLException {
+        if (!isPostgres(connection)) {
+            return;
+        }
+        connection.setAutoCommit(true);
+        try {
+            for (String table : tables) {
+                String statement = "VACUUM ANALYZE \"" + table + "\"";
+                try (Statement stmt = connection.createStatement()) {
+                    LOG.debug("Executing statement: {}", statement);
+                    stmt.execute(statement);
+                }
+            }
+        } finally {
+            connection.setAutoCommit(false);
+        }
     }
 
     private static class TableDescription {
@@ -92,8 +387,25 @@ public final class Database {
         }
     }
 
+    /**
+     * The LSNs of the events from the write-ahead log that have been stored, see EventLog
+     */
+    private static final TableDescription WAL_CHECKPOINT = new TableDescription(
+            "walCheckpoint",
+            Collections.singletonList(
+                "CREATE TABLE \"walCheckpoint\" (" +
+                    "\"lsn\" bigint PRIMARY KEY NOT NULL" +
+                ")"
+            )
+    );
+
     public static void initDb(Connection connection) throws SQLException {
-        List<TableDescription> descriptions = Arrays.asList(
+        boolean canPartition = isPostgres(connection) && connection.getMetaData().getDatabaseMajorVersion() >= 11;
+        if (partitionedStorage && !canPartition) {
+            LOG.warn("Partitioning is only supported on PostgreSQL 11 or later, using the regular layout");
+        }
+        boolean partition = partitionedStorage && canPartition && !tableExists(connection, "events");
+        List<TableDescription> descriptions = partition ? partitionedDescriptions() : Arrays.asList(
                 new TableDescription(
                         "events",
                         Arrays.asList(
@@ -132,23 +444,118 @@ public final class Database {
                             ")",
                             "CREATE INDEX ON \"snapshots\" (\"time\" DESC)"
                         )
-                )
+                ),
+                new TableDescription(
+                        "teamStates",
+                        Arrays.asList(
+                            "CREATE TABLE \"teamStates\" (" +
+                                "\"snapshot\" bigint NOT NULL," +
+                                "\"teamNb\" integer NOT NULL," +
+                                "\"data\" text NOT NULL," +
+                                "PRIMARY KEY (\"snapshot\", \"teamNb\")," +
+                                "FOREIGN KEY (\"snapshot\") REFERENCES \"snapshots\" (\"id\") ON DELETE CASCADE" +
+                            ")",
+                            "CREATE INDEX ON \"teamStates\" (\"teamNb\", \"snapshot\" DESC)"
+                        )
+                ),
+                WAL_CHECKPOINT
         );
         for (TableDescription desc : descriptions) {
-            String existsCheck = "SELECT 1 FROM information_schema.tables WHERE table_name = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(existsCheck)) {
-                stmt.setString(1, desc.tableName);
-                ResultSet rs = stmt.executeQuery();
-                if (!rs.next()) {
-                    // Exists check failed
-                    for (String createString : desc.createStrings) {
-                        try (Statement createStmt = connection.createStatement()) {
-                            LOG.debug("Executing statement: {}", createString);
-                            createStmt.execute(createString);
-                        }
+            if (!tableExists(connection, desc.tableName)) {
+                for (String createString : desc.createStrings) {
+                    try (Statement createStmt = connection.createStatement()) {
+                        LOG.debug("Executing statement: {}", createString);
+                        createStmt.execute(createString);
                     }
                 }
             }
         }
+        partitioned = isPostgres(connection) && isPartitioned(connection, "events");
+        if (partitionedStorage && canPartition && !partitioned) {
+            LOG.warn("The events table already exists, and isn't partitioned, using the regular layout");
+        }
+    }
+
+    private static boolean tableExists(Connection connection, String tableName) throws SQLException {
+        String existsCheck = "SELECT 1 FROM information_schema.tables WHERE table_name = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(existsCheck)) {
+            stmt.setString(1, tableName);
+            return stmt.executeQuery().next();
+        }
+    }
+
+    private static boolean isPartitioned(Connection connection, String tableName) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT 1 FROM pg_class WHERE relname = ? AND relkind = 'p'")) {
+            stmt.setString(1, tableName);
+            return stmt.executeQuery().next();
+        }
+    }
+
+    /**
+     * The layout with the events and snapshots tables partitioned by the hour,
+     * see ensurePartition. This needs PostgreSQL 11, the first version with
+     * primary keys on partitioned tables. The primary key of a partitioned table has to
+     * include the time, so nothing can refer to the events or snapshots by
+     * their id alone: there are no foreign keys to them, and the team rows of
+     * a snapshot are deleted explicitly instead of by a cascade. The
+     * tagSeenEvents table has no time, and isn't partitioned, so its unique
+     * index still covers all reads.
+     */
+    private static List<TableDescription> partitionedDescriptions() {
+        return Arrays.asList(
+                new TableDescription(
+                        "events",
+                        Arrays.asList(
+                            "CREATE TABLE \"events\" (" +
+                                "\"id\" bigserial NOT NULL," +
+                                "\"type\" VARCHAR(255) NOT NULL," +
+                                "\"time\" timestamp NOT NULL," +
+                                "\"data\" text NOT NULL," +
+                                "\"removed\" boolean NOT NULL," +
+                                "PRIMARY KEY (\"time\", \"id\")" +
+                            ") PARTITION BY RANGE (\"time\")",
+                            "CREATE INDEX ON \"events\" (\"id\")",
+                            "CREATE INDEX ON \"events\" (\"type\", \"removed\")"
+                        )
+                ),
+                new TableDescription(
+                        "tagSeenEvents",
+                        Arrays.asList(
+                            "CREATE TABLE \"tagSeenEvents\" (" +
+                                "\"id\" bigint PRIMARY KEY NOT NULL," +
+                                "\"readerId\" integer NOT NULL," +
+                                "\"updateCount\" bigint NOT NULL" +
+                            ")",
+                            "CREATE UNIQUE INDEX ON \"tagSeenEvents\" (\"readerId\", \"updateCount\" DESC)"
+                        )
+                ),
+                new TableDescription(
+                        "snapshots",
+                        Arrays.asList(
+                            "CREATE TABLE \"snapshots\" (" +
+                                "\"id\" bigserial NOT NULL," +
+                                "\"time\" timestamp NOT NULL," +
+                                "\"data\" text NOT NULL," +
+                                "\"event\" bigint NOT NULL," +
+                                "PRIMARY KEY (\"time\", \"id\")" +
+                            ") PARTITION BY RANGE (\"time\")",
+                            "CREATE INDEX ON \"snapshots\" (\"id\")"
+                        )
+                ),
+                new TableDescription(
+                        "teamStates",
+                        Arrays.asList(
+                            "CREATE TABLE \"teamStates\" (" +
+                                "\"snapshot\" bigint NOT NULL," +
+                                "\"teamNb\" integer NOT NULL," +
+                                "\"data\" text NOT NULL," +
+                                "PRIMARY KEY (\"snapshot\", \"teamNb\")" +
+                            ")",
+                            "CREATE INDEX ON \"teamStates\" (\"teamNb\", \"snapshot\" DESC)"
+                        )
+                ),
+                WAL_CHECKPOINT
+        );
     }
 }
@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * = Local write-ahead log for events
+ *
+ * An event is only durable once the transaction that processes it commits,
+ * so without this log a slow database holds up every reader listener and
+ * command that is waiting for it. With the log, an event is appended to a
+ * local file and synced to disk first, after which it counts as accepted.
+ * The processing thread still stores it in the database, in a batch with
+ * the events that came in while the previous batch was being stored.
+ *
+ * The log is a sequence of memory mapped segment files in a directory,
+ * named after the log sequence number (LSN) of their first record. Every
+ * record is framed as
+ *
+ *   [int length][int CRC-32 of the LSN and the payload][long LSN][payload]
+ *
+ * with the event as JSON for a payload. The unused part of a segment is
+ * zeroes, so the log ends at the first frame with length 0, or at the first
+ * frame that doesn't check out, which is where a crash tore a write.
+ *
+ * The LSNs of the stored events are inserted into the walCheckpoint table,
+ * in the same transaction as the events themselves. Every LSN up to the
+ * lowest LSN in that table has been stored, so the table only keeps that
+ * lowest LSN and the ones after it, and segments with only stored events
+ * are deleted. When the processor starts, the events in the log that
+ * aren't in the table are stored again, see recover.
+ *
+ * An event that was logged counts as accepted, so when storing it fails,
+ * it stays pending and the processor tries again later, see failed. Only
+ * events that can never be stored are dropped.
+ *
+ * Threadsafe, appends come from the reader listeners and the command
+ * processor, the rest from the processing thread.
+ */
+final class EventLog implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(EventLog.class);
+
+    /**
+     * The size of a segment file
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * How long to wait before storing an event again, after the first
+     * failure, doubling with every failure after it up to the maximum
+     */
+    static final long RETRY_MIN_MILLIS = 100L;
+    static final long RETRY_MAX_MILLIS = 30000L;
+
+    private static final int HEADER_SIZE = 16;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private static final String INSERT_CHECKPOINT = "INSERT INTO \"walCheckpoint\" (\"lsn\") VALUES (?)";
+    private static final String DELETE_CHECKPOINTS = "DELETE FROM \"walCheckpoint\" WHERE \"lsn\" < ?";
+    private static final String SELECT_CHECKPOINTS = "SELECT \"lsn\" FROM \"walCheckpoint\"";
+
+    /**
+     * The update count of a read isn't part of its JSON in the database,
+     * it's stored in the tagSeenEvents table, but it is needed here.
+     */
+    private static abstract class TagSeenEventMixIn {
+        @JsonIgnore(false)
+        @JsonProperty("updateCount")
+        abstract long getUpdateCount();
+    }
+
+    private static final ObjectMapper mapper =
+            Serialization.getJsonMapper().copy().addMixIn(TagSeenEvent.class, TagSeenEventMixIn.class);
+
+    private static final class Segment {
+        final Path path;
+        final long firstLsn;
+        MappedByteBuffer buffer;
+
+        Segment(Path path, long firstLsn, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstLsn = firstLsn;
+            this.buffer = buffer;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long lsn, byte[] payload) throws IOException;
+    }
+
+    /**
+     * The bookkeeping of a transaction that stores logged events, to be
+     * passed to afterCommit once the transaction has been committed.
+     */
+    static final class Commit {
+        private final Collection<Long> lsns;
+        private final List<Long> inserted;
+        private final long watermark;
+
+        private Commit(Collection<Long> lsns, List<Long> inserted, long watermark) {
+            this.lsns = lsns;
+            this.inserted = inserted;
+            this.watermark = watermark;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    /**
+     * The segments, in LSN order, the last one is appended to
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextLsn = 1L;
+    /**
+     * The LSNs of the events that have been logged, but not stored yet
+     */
+    private final TreeSet<Long> pending = new TreeSet<>();
+    /**
+     * The LSNs in the walCheckpoint table
+     */
+    private final Set<Long> recorded = new HashSet<>();
+    /**
+     * Every LSN up to this one has been stored
+     */
+    private long watermark = 0L;
+    /**
+     * The LSNs of the pending events that failed to be stored, mapped to
+     * how long to wait before trying again
+     */
+    private final Map<Long, Long> retryDelays = new HashMap<>();
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    /**
+     * Open the log in the given directory, creating it if needed.
+     */
+    EventLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    EventLog(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring {} in the write-ahead log directory", name);
+                }
+            }
+        }
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            Segment segment = new Segment(file.getValue(), file.getKey(), map(file.getValue(), segmentSize));
+            if (!segments.isEmpty() && segment.firstLsn != nextLsn) {
+                LOG.error("Segment {} doesn't follow the end of the log, deleting it", segment.path);
+                Files.delete(segment.path);
+                continue;
+            }
+            segments.add(segment);
+            int end = scan(segment, (lsn, payload) -> {});
+            nextLsn = segment.firstLsn + count(segment, end);
+            if (end + 4 <= segment.buffer.capacity() && segment.buffer.getInt(end) != 0) {
+                LOG.warn("The write-ahead log ends in a torn record in {} at {}, truncating it", segment.path, end);
+                for (int i = end; i < segment.buffer.capacity(); i++) {
+                    segment.buffer.put(i, (byte) 0);
+                }
+                segment.buffer.force();
+            }
+            segment.buffer.position(end);
+        }
+        if (segments.isEmpty()) {
+            addSegment(nextLsn);
+        }
+    }
+
+    private MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+    }
+
+    private void addSegment(long firstLsn) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+        segments.add(new Segment(path, firstLsn, map(path, segmentSize)));
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOG.debug("Couldn't sync the write-ahead log directory", e);
+        }
+    }
+
+    /**
+     * Visit the valid records of the given segment.
+     *
+     * @return The position after the last valid record
+     */
+    private static int scan(Segment segment, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        long expected = segment.firstLsn;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE ||
+                    buffer.getLong(position + 8) != expected) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + 8);
+            byte[] lsnBytes = new byte[8];
+            buffer.get(lsnBytes);
+            buffer.get(payload);
+            crc.reset();
+            crc.update(lsnBytes);
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            visitor.visit(expected, payload);
+            expected++;
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * The number of records in the given segment before the given position
+     */
+    private static long count(Segment segment, int end) {
+        long result = 0L;
+        for (int position = 0; position < end; position += HEADER_SIZE + segment.buffer.getInt(position)) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Append the event to the log and sync it to disk.
+     *
+     * @return The LSN of the event, to be passed to prepareCommit or dropped
+     */
+    synchronized long append(Event event) throws IOException {
+        byte[] payload = mapper.writeValueAsBytes(event);
+        if (payload.length > segmentSize - HEADER_SIZE) {
+            throw new IOException("Event of " + payload.length + " bytes doesn't fit in a segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.buffer.remaining() < HEADER_SIZE + payload.length) {
+            addSegment(nextLsn);
+            segment = segments.get(segments.size() - 1);
+        }
+        long lsn = nextLsn;
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(lsn).array());
+        crc.update(payload);
+        int position = segment.buffer.position();
+        segment.buffer.position(position + 4);
+        segment.buffer.putInt((int) crc.getValue());
+        segment.buffer.putLong(lsn);
+        segment.buffer.put(payload);
+        // The length goes last, so the record only counts once all of it is there
+        segment.buffer.putInt(position, payload.length);
+        long start = System.nanoTime();
+        segment.buffer.force();
+        syncNanos.addAndGet(System.nanoTime() - start);
+        nextLsn++;
+        pending.add(lsn);
+        appended.incrementAndGet();
+        return lsn;
+    }
+
+    /**
+     * Find the events in the log that haven't been stored. They count as
+     * pending, so they have to be stored or dropped like appended events.
+     *
+     * @return The LSNs of the events, mapped to the events, in LSN order
+     */
+    synchronized TreeMap<Long, Event> recover(Connection connection) throws SQLException, IOException {
+        recorded.clear();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_CHECKPOINTS)) {
+            while (rs.next()) {
+                recorded.add(rs.getLong(1));
+            }
+        }
+        watermark = recorded.isEmpty() ? 0L : Collections.min(recorded);
+        TreeMap<Long, Event> result = new TreeMap<>();
+        for (Segment segment : segments) {
+            scan(segment, (lsn, payload) -> {
+                if (lsn > watermark && !recorded.contains(lsn)) {
+                    result.put(lsn, mapper.readValue(payload, Event.class));
+                }
+            });
+        }
+        pending.addAll(result.keySet());
+        replayed.addAndGet(result.size());
+        long highest = recorded.isEmpty() ? 0L : Collections.max(recorded);
+        if (highest >= nextLsn) {
+            LOG.warn("The write-ahead log ends at {}, but {} has been stored, continuing after it", nextLsn - 1L,
+                    highest);
+            nextLsn = highest + 1L;
+            Segment last = segments.get(segments.size() - 1);
+            if (last.buffer.position() == 0) {
+                segments.remove(segments.size() - 1);
+                Files.delete(last.path);
+            }
+            addSegment(nextLsn);
+        }
+        if (!result.isEmpty()) {
+            LOG.info("Recovered {} events from the write-ahead log", result.size());
+        }
+        return result;
+    }
+
+    /**
+     * Record that the events with the given LSNs are stored by the transaction
+     * of the given connection. Has to be called right before the commit.
+     */
+    Commit prepareCommit(Connection connection, Collection<Long> lsns) throws SQLException {
+        List<Long> inserted = new ArrayList<>(lsns);
+        long oldWatermark;
+        long newWatermark;
+        synchronized (this) {
+            oldWatermark = watermark;
+            Long firstOther = null;
+            for (Long lsn : pending) {
+                if (!lsns.contains(lsn)) {
+                    firstOther = lsn;
+                    break;
+                }
+            }
+            newWatermark = firstOther != null ? firstOther - 1L : nextLsn - 1L;
+            // The watermark has to stay in the table, even if its event was dropped
+            if (newWatermark > 0L && !recorded.contains(newWatermark) && !lsns.contains(newWatermark)) {
+                inserted.add(newWatermark);
+            }
+        }
+        if (!inserted.isEmpty()) {
+            try (PreparedStatement stmt = connection.prepareStatement(INSERT_CHECKPOINT)) {
+                for (Long lsn : inserted) {
+                    stmt.setLong(1, lsn);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+        if (newWatermark > oldWatermark) {
+            try (PreparedStatement stmt = connection.prepareStatement(DELETE_CHECKPOINTS)) {
+                stmt.setLong(1, newWatermark);
+                stmt.executeUpdate();
+            }
+        }
+        return new Commit(lsns, inserted, newWatermark);
+    }
+
+    /**
+     * Mark the events of a committed transaction as stored, and delete the
+     * segments that only hold stored events.
+     */
+    synchronized void afterCommit(Commit commit) {
+        pending.removeAll(commit.lsns);
+        retryDelays.keySet().removeAll(commit.lsns);
+        recorded.addAll(commit.inserted);
+        if (commit.watermark > watermark) {
+            watermark = commit.watermark;
+            recorded.removeIf(lsn -> lsn < watermark);
+        }
+        while (segments.size() > 1 && segments.get(1).firstLsn <= watermark + 1L) {
+            Segment segment = segments.remove(0);
+            try {
+                Files.delete(segment.path);
+            } catch (IOException e) {
+                LOG.error("Couldn't delete segment {} of the write-ahead log", segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Record that storing the event with the given LSN failed. It stays
+     * pending, so it is recovered if the processor stops before it's stored.
+     *
+     * @return How long to wait before storing it again, in milliseconds
+     */
+    synchronized long failed(long lsn) {
+        return retryDelays.merge(lsn, RETRY_MIN_MILLIS, (delay, min) -> Math.min(2L * delay, RETRY_MAX_MILLIS));
+    }
+
+    /**
+     * Give up on storing the event with the given LSN, because it can never
+     * be stored. It won't be stored again when the log is recovered, unless
+     * the processor stops before another transaction is committed.
+     */
+    synchronized void dropped(long lsn) {
+        pending.remove(lsn);
+        retryDelays.remove(lsn);
+    }
+
+    /**
+     * Delete the whole log, when the database is cleared.
+     */
+    synchronized void reset() throws IOException {
+        for (Segment segment : segments) {
+            Files.delete(segment.path);
+        }
+        segments.clear();
+        pending.clear();
+        retryDelays.clear();
+        recorded.clear();
+        watermark = 0L;
+        nextLsn = 1L;
+        addSegment(nextLsn);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * The number of events that were appended
+     */
+    long getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * The number of events that were recovered from the log
+     */
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * The number of events that have been logged, but not stored yet
+     */
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * The number of segment files
+     */
+    synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * The total time spent syncing appended events to disk
+     */
+    long getSyncNanos() {
+        return syncNanos.get();
+    }
+}
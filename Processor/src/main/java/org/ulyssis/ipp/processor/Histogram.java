@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * = A histogram of non-negative values
+ *
+ * Values are counted in buckets: one bucket per value below 16, and above
+ * that eight buckets for every power of two, so a bucket is at most 12.5%
+ * wide. Recording a value only increments one counter, so it's cheap enough
+ * for every event.
+ *
+ * Values can be recorded on one thread while the counts are read on another.
+ */
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int NB_BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    /**
+     * The counts of a histogram at some point in time, see Histogram.counts()
+     */
+    static final class Counts {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+
+        private Counts(long[] buckets, long sum) {
+            long count = 0L;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * The values that were recorded after the given earlier counts.
+         */
+        Counts since(Counts earlier) {
+            long[] result = new long[NB_BUCKETS];
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                result[i] = buckets[i] - earlier.buckets[i];
+            }
+            return new Counts(result, sum - earlier.sum);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        double getMean() {
+            return count == 0L ? Double.NaN : (double) sum / count;
+        }
+
+        /**
+         * The upper bound of the bucket the given fraction (0 to 1) of values is in, 0 if there are no values.
+         */
+        long getPercentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0L;
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0L) {
+                    return upperBound(i);
+                }
+            }
+            return 0L;
+        }
+
+        long getMax() {
+            for (int i = NB_BUCKETS - 1; i >= 0; i--) {
+                if (buckets[i] != 0L) {
+                    return upperBound(i);
+                }
+            }
+            return 0L;
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+    private volatile long sum = 0L;
+
+    static int bucketFor(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) Math.max(0L, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1L;
+    }
+
+    /**
+     * Record a value. Only to be called from one thread at a time.
+     */
+    void record(long value) {
+        buckets.incrementAndGet(bucketFor(value));
+        sum += value;
+    }
+
+    Counts counts() {
+        long[] result = new long[NB_BUCKETS];
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            result[i] = buckets.get(i);
+        }
+        return new Counts(result, sum);
+    }
+
+    static Counts empty() {
+        return new Counts(new long[NB_BUCKETS], 0L);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * = Serves the latest metrics report over HTTP
+ *
+ * A minimal HTTP server on the loopback interface, which answers GET
+ * /metrics with the latest report of the processor's metrics, as JSON.
+ * The report is only computed by the processor, every metrics interval,
+ * so a request doesn't cost the processor anything.
+ */
+final class MetricsServer {
+    private static final Logger LOG = LogManager.getLogger(MetricsServer.class);
+
+    private final HttpServer server;
+    private volatile byte[] latest = "{}".getBytes(StandardCharsets.UTF_8);
+
+    MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    void start() {
+        server.start();
+        LOG.info("Serving metrics on http://{}:{}/metrics",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void setLatest(String report) {
+        latest = report.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1L);
+                return;
+            }
+            byte[] body = latest;
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.status.StatusMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * = Reports reads that are marked as outlier
+ *
+ * Applying a read must not wait for Redis, so outliers are handed to this
+ * reporter, which broadcasts them on its own thread, over the processor's
+ * status reporter (one connection, instead of one per outlier).
+ *
+ * A misbehaving tag can cause an outlier for almost every read, and the
+ * same read is marked again every time it's reapplied after a rewind. So
+ * all outliers of a tag that arrive within the coalescing delay are
+ * reported as one message. At most a fixed number of tags can be waiting
+ * to be reported, outliers of other tags are dropped (and logged) when that
+ * limit is reached, so a flood of outliers can't take up the processor's
+ * memory.
+ *
+ * report() is threadsafe, and never blocks.
+ */
+final class OutlierReporter implements Runnable {
+    private static final Logger LOG = LogManager.getLogger(OutlierReporter.class);
+
+    /**
+     * The default maximum number of tags waiting to be reported
+     */
+    static final int DEFAULT_MAX_PENDING = 100;
+    /**
+     * The default time to wait for more outliers of the same tag, before reporting it
+     */
+    static final long DEFAULT_COALESCE_MILLIS = 5000L;
+
+    private static final class Pending {
+        final long firstNanos;
+        TagSeenEvent latest;
+        int count = 1;
+
+        Pending(TagSeenEvent event, long firstNanos) {
+            this.latest = event;
+            this.firstNanos = firstNanos;
+        }
+    }
+
+    private final Predicate<StatusMessage> broadcast;
+    private final int maxPending;
+    private final long coalesceNanos;
+    private final ConcurrentMap<TagId, Pending> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<TagId> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong reported = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param broadcast
+     *        Broadcasts a status message, returns whether it succeeded
+     */
+    OutlierReporter(Predicate<StatusMessage> broadcast) {
+        this(broadcast, DEFAULT_MAX_PENDING, DEFAULT_COALESCE_MILLIS);
+    }
+
+    OutlierReporter(Predicate<StatusMessage> broadcast, int maxPending, long coalesceMillis) {
+        this.broadcast = broadcast;
+        this.maxPending = maxPending;
+        this.coalesceNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+    }
+
+    /**
+     * Queue an outlier to be reported.
+     */
+    void report(TagSeenEvent event) {
+        // Written in compute, which runs on this thread
+        Pending[] added = new Pending[1];
+        boolean[] merged = new boolean[1];
+        pending.compute(event.getTag(), (tag, existing) -> {
+            if (existing != null) {
+                existing.latest = event;
+                existing.count++;
+                merged[0] = true;
+                return existing;
+            }
+            if (pending.size() >= maxPending) {
+                return null;
+            }
+            added[0] = new Pending(event, System.nanoTime());
+            return added[0];
+        });
+        if (added[0] != null) {
+            queue.add(event.getTag());
+        } else if (merged[0]) {
+            coalesced.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+            LOG.warn("Too many outliers waiting to be reported, dropped the outlier for tag {}", event.getTag());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TagId first = queue.take();
+                Pending firstPending = pending.get(first);
+                long waitNanos = firstPending.firstNanos + coalesceNanos - System.nanoTime();
+                if (waitNanos > 0L) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                // Report the tags that arrived in the meantime along with it
+                List<TagId> tags = new ArrayList<>();
+                tags.add(first);
+                queue.drainTo(tags);
+                for (TagId tag : tags) {
+                    broadcast(tag, pending.remove(tag));
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Broadcast the outliers of a tag, after taking them out of the pending
+     * map, so that they can't change anymore.
+     */
+    private void broadcast(TagId tag, Pending outlier) {
+        TagSeenEvent event = outlier.latest;
+        int count = outlier.count;
+        StringBuilder details = new StringBuilder();
+        details.append("Tag ").append(tag).append(" at reader ").append(event.getReaderId())
+                .append(" (event id ").append(event.getId().map(String::valueOf).orElse("unknown")).append(")");
+        if (count > 1) {
+            details.append(", ").append(count).append(" outliers for this tag");
+        }
+        if (broadcast.test(new StatusMessage(StatusMessage.MessageType.READ_OUTLIER, details.toString()))) {
+            reported.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * The number of outlier messages that were broadcast
+     */
+    long getReported() {
+        return reported.get();
+    }
+
+    /**
+     * The number of outliers that were merged into the message of an earlier outlier of the same tag
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * The number of outliers that were dropped because too many tags were waiting to be reported
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The number of outlier messages that couldn't be broadcast
+     */
+    long getFailed() {
+        return failed.get();
+    }
+}
@@ -18,6 +18,7 @@
 package org.ulyssis.ipp.processor;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.config.Config;
@@ -39,10 +40,21 @@ import org.ulyssis.ipp.snapshot.AddTagEvent;
 import org.ulyssis.ipp.snapshot.CorrectionEvent;
 import org.ulyssis.ipp.snapshot.EndEvent;
 import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.EventCursor;
+import org.ulyssis.ipp.snapshot.JdbcStorage;
 import org.ulyssis.ipp.snapshot.MessageEvent;
+import org.ulyssis.ipp.snapshot.ParallelReplay;
 import org.ulyssis.ipp.snapshot.RemoveTagEvent;
+import org.ulyssis.ipp.snapshot.SegmentStorage;
+import org.ulyssis.ipp.snapshot.SnapshotCache;
+import org.ulyssis.ipp.snapshot.SnapshotDelta;
 import org.ulyssis.ipp.snapshot.StartEvent;
 import org.ulyssis.ipp.snapshot.StatusChangeEvent;
+import org.ulyssis.ipp.snapshot.Storage;
+import org.ulyssis.ipp.snapshot.StoreTransaction;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.snapshot.TeamEvent;
+import org.ulyssis.ipp.snapshot.TeamState;
 import org.ulyssis.ipp.snapshot.UpdateFrequencyChangeEvent;
 import org.ulyssis.ipp.status.StatusMessage;
 import org.ulyssis.ipp.status.StatusReporter;
@@ -53,8 +65,12 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.*;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
@@ -62,12 +78,15 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_ONLY;
 import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
 
 /**
@@ -79,12 +98,62 @@ import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
 public final class Processor implements Runnable {
     private static final Logger LOG = LogManager.getLogger(Processor.class);
 
+    /**
+     * The number of events that are replayed at once when rebuilding in parallel
+     */
+    private static final int REBUILD_CHUNK_SIZE = 10000;
+
+    /**
+     * The number of events the reorder buffer holds at most
+     */
+    private static final int REORDER_MAX_SIZE = 10000;
+
+    /**
+     * The tick and the number of buckets of the timer wheel for deferred events
+     */
+    private static final long DEFER_TICK_MILLIS = 10L;
+    private static final int DEFER_WHEEL_SIZE = 64;
+    /**
+     * How long to wait before applying a deferred event again, when applying it failed
+     */
+    private static final long DEFER_RETRY_MILLIS = 1000L;
+
+    /**
+     * The order in which events are applied
+     */
+    private static final Comparator<Event> EVENT_ORDER =
+            Comparator.comparing(Event::getTime).thenComparing(event -> event.getId().get());
+
+    /**
+     * How far ahead the partitions are created, with --partitioned
+     */
+    private static final Duration PARTITIONS_AHEAD = Duration.ofHours(2L);
+
+    /**
+     * The key of the lease in Redis, with --standby
+     */
+    private static final String LEASE_KEY = "processor:lease";
+
     private final BlockingQueue<Event> eventQueue;
     private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
     private final ConcurrentMap<Event, Consumer<Boolean> > eventCallbacks;
 
     private final StatusReporter statusReporter;
+    private final OutlierReporter outlierReporter;
+    /**
+     * The Redis instance of the processor
+     */
+    private final URI redisUri;
+    /**
+     * The db-local channel where the snapshot deltas are published
+     */
+    private final byte[] deltaChannel;
+    /**
+     * The version of the snapshot that was broadcast last, which is also the
+     * sequence number of its delta, -1 until it was loaded from Redis
+     */
+    private long snapshotVersion = -1L;
     private final CommandProcessor commandProcessor;
     private final List<Consumer<Processor>> onStartedCallbacks;
 
@@ -95,19 +164,133 @@ public final class Processor implements Runnable {
 
     private final List<Thread> threads;
 
+    /**
+     * Where the events and snapshots are stored
+     */
+    private final Storage storage;
+
+    /**
+     * The maximum number of events to process in a single transaction
+     */
+    private final int batchSize;
+    /**
+     * How long to wait for more events when filling up a batch
+     */
+    private final long batchWaitMillis;
+
+    /**
+     * Decides which snapshots are stored in the database
+     */
+    private final CheckpointPolicy checkpointPolicy;
+
+    /**
+     * Recently applied events, to handle late events without going to the database
+     */
+    private final SnapshotWindow window;
+
+    /**
+     * Puts reads that arrive slightly out of order back in order
+     */
+    private final ReorderBuffer reorderBuffer;
+
+    /**
+     * The updates that have been seen for each reader, to drop duplicate reads
+     */
+    private final UpdateIndex updateIndex = new UpdateIndex();
+
+    /**
+     * Events in the future: they are stored when they come in, but only
+     * applied when their time comes, so that the snapshot doesn't jump ahead
+     * of the reads (and every read doesn't cause a rewind).
+     */
+    private final TimerWheel<Event> deferredEvents =
+            new TimerWheel<>(DEFER_TICK_MILLIS, DEFER_WHEEL_SIZE, System.currentTimeMillis());
+    /**
+     * The timers of the deferred events that haven't been applied yet, by
+     * event id, including the ones that were released from the wheel, but
+     * are still waiting in the reorder buffer
+     */
+    private final ConcurrentMap<Long, TimerWheel.Timer<Event>> deferredTimers = new ConcurrentHashMap<>();
+
+    /**
+     * Held while processing a batch, so that the snapshots aren't compacted at the same time.
+     * It's fair, so that the compactor can't take it again before a waiting batch gets its turn.
+     */
+    private final Lock snapshotLock = new ReentrantLock(true);
+    /**
+     * Thins out old snapshots, or null
+     */
+    private final SnapshotCompactor snapshotCompactor;
+
+    /**
+     * Logs the events before they're processed, or null
+     */
+    private final EventLog eventLog;
+    /**
+     * The LSNs of the logged events that haven't been processed yet
+     */
+    private final ConcurrentMap<Event, Long> eventLsns = new ConcurrentHashMap<>();
+
+    private final ProcessorMetrics metrics = new ProcessorMetrics();
+    /**
+     * How often to publish the metrics, in seconds, 0 to not publish them
+     */
+    private final long metricsInterval;
+    /**
+     * Serves the latest metrics, or null
+     */
+    private final MetricsServer metricsServer;
+    /**
+     * The time spent applying events in the current batch, in nanoseconds
+     */
+    private long batchApplyNanos = 0L;
+
+    /**
+     * The pool for rebuilding the state from the whole event log, or null to
+     * rebuild one event at a time
+     */
+    private final ForkJoinPool rebuildPool;
+
+    /**
+     * The number of events to fetch at once when replaying events from the database
+     */
+    private final int fetchSize;
+
+    /**
+     * The lease that is held while processing, or null if there's only one processor
+     */
+    private final RedisLease lease;
+    /**
+     * Renews the lease, on a thread of its own so that a slow task on the
+     * executorService can't delay it, or null if there's no lease
+     */
+    private final ScheduledExecutorService leaseRenewer;
+    /**
+     * How often to look for new events and try to take the lease while in standby
+     */
+    private final long standbyPollMillis;
+    /**
+     * The thread that runs the processor, to stop it when the lease is lost
+     */
+    private volatile Thread processingThread;
+
     private Snapshot snapshot;
 
     public Processor(final ProcessorOptions options) {
-        Database.setDatabaseURI(options.getDatabaseUri());
+        if (options.getStoreDirectory().isPresent()) {
+            this.storage = new SegmentStorage(options.getStoreDirectory().get());
+        } else {
+            Database.setPoolLimits(options.getDbPoolSize(), options.getDbAcquireTimeoutMillis());
+            Database.setDatabaseURI(options.getDatabaseUri());
+            Database.setPerTeamSnapshotStorage(options.usePerTeamSnapshots());
+            Database.setPartitionedStorage(options.usePartitionedTables());
+            this.storage = new JdbcStorage();
+        }
         StatusReporter.setRedisURI(options.getRedisUri());
-        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
-            if (options.shouldClearDb()) {
-                Database.clearDb(connection);
-            }
-            Database.initDb(connection);
-            connection.commit();
-        } catch (SQLException e) {
-            LOG.fatal("Error initializing database!", e);
+        try {
+            storage.init(options.shouldClearDb());
+        } catch (IOException e) {
+            LOG.fatal("Error initializing storage!", e);
         }
         URI uri = options.getRedisUri();
         this.eventQueue = new LinkedBlockingQueue<>();
@@ -115,15 +298,94 @@ public final class Processor implements Runnable {
         this.onStartedCallbacks = new CopyOnWriteArrayList<>();
         this.readerListeners = new ArrayList<>();
         this.threads = new ArrayList<>();
+        this.batchSize = options.getBatchSize();
+        this.batchWaitMillis = options.getBatchWaitMillis();
+        this.reorderBuffer = new ReorderBuffer(options.getReorderDelayMillis(), REORDER_MAX_SIZE);
+        this.rebuildPool = options.getRebuildThreads() > 0 ? new ForkJoinPool(options.getRebuildThreads()) : null;
+        this.fetchSize = options.getFetchSize();
+        this.metricsInterval = options.getMetricsInterval();
+        this.metricsServer = createMetricsServer(options.getMetricsPort());
+        this.snapshotCompactor = options.getCompactInterval() > 0L ?
+                new SnapshotCompactor(storage, snapshotLock, Duration.ofSeconds(options.getCompactRetention()),
+                        Duration.ofSeconds(options.getCompactInterval())) : null;
+        this.checkpointPolicy = new CheckpointPolicy(storage, options.getCheckpointEvents(),
+                Duration.ofSeconds(options.getCheckpointInterval()));
         // TODO: Move status reporting and processing of commands to ZeroMQ?
         // Also: post some stuff to a log in the db?
         this.statusReporter = new StatusReporter(uri, Config.getCurrentConfig().getStatusChannel());
+        this.redisUri = uri;
+        this.deltaChannel = JedisHelper.dbLocalChannel(Config.getCurrentConfig().getDeltaChannel(), uri)
+                .getBytes(StandardCharsets.UTF_8);
+        this.outlierReporter = new OutlierReporter(statusReporter::broadcast);
+        TeamState.setOutlierHandler(outlierReporter::report);
         this.commandProcessor = new CommandProcessor(uri, Config.getCurrentConfig().getControlChannel(), statusReporter);
         initCommandProcessor();
+        this.lease = options.isStandby() ?
+                new RedisLease(uri, LEASE_KEY, leaseOwner(), options.getLeaseTtlMillis()) : null;
+        this.leaseRenewer = lease != null ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.standbyPollMillis = options.getStandbyPollMillis();
         snapshot = new Snapshot(Instant.EPOCH);
-        if (!restoreFromDb()) {
+        // In standby, the state is restored once the lease is taken
+        if (lease == null && !restoreFromDb()) {
             registerInitialTags();
         }
+        this.window = new SnapshotWindow(options.getRewindWindow(), snapshot, checkpointPolicy.mark());
+        this.eventLog = options.getWalDirectory().isPresent() ?
+                openEventLog(options.getWalDirectory().get(), options.shouldClearDb()) : null;
+    }
+
+    /**
+     * Open the write-ahead log, and queue the events in it that weren't
+     * stored before the processor stopped.
+     *
+     * @return The log, or null if it couldn't be opened
+     */
+    private EventLog openEventLog(Path directory, boolean clear) {
+        EventLog log = null;
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            log = new EventLog(directory);
+            if (clear) {
+                log.reset();
+            }
+            TreeMap<Long, Event> recovered = log.recover(connection);
+            connection.commit();
+            for (Map.Entry<Long, Event> entry : recovered.entrySet()) {
+                Event event = entry.getValue();
+                if (event instanceof TagSeenEvent && !updateIndex.markSeen((TagSeenEvent) event)) {
+                    log.dropped(entry.getKey());
+                } else {
+                    eventLsns.put(event, entry.getKey());
+                    eventQueue.add(event);
+                }
+            }
+            return log;
+        } catch (SQLException | IOException e) {
+            LOG.error("Couldn't open the write-ahead log in {}, waiting for the database instead", directory, e);
+            if (log != null) {
+                log.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An id for this processor that is unique within the group: the process
+     * and host, to know who holds the lease, and a random part.
+     */
+    private static String leaseOwner() {
+        return ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    }
+
+    private static MetricsServer createMetricsServer(int port) {
+        if (port == 0) {
+            return null;
+        }
+        try {
+            return new MetricsServer(port);
+        } catch (IOException e) {
+            LOG.error("Couldn't serve metrics on port {}", port, e);
+            return null;
+        }
     }
 
     /**
@@ -132,82 +394,107 @@ public final class Processor implements Runnable {
      * @return Whether we could restore from db, if false, we're starting from a clean slate
      */
     private boolean restoreFromDb() {
-        Connection connection = null;
+        StoreTransaction tx = null;
         Snapshot oldSnapshot = this.snapshot;
+        CheckpointPolicy.Mark oldMark = checkpointPolicy.mark();
+        Instant now = Instant.now();
         try {
-            connection = Database.createConnection(EnumSet.of(READ_WRITE));
-            Optional<Snapshot> snapshot = Snapshot.loadLatest(connection);
+            tx = storage.begin();
+            List<Event> future = loadFutureEvents(tx, now);
+            Optional<Snapshot> snapshot = storage.loadLatestCheckpoint(tx);
             if (snapshot.isPresent()) {
                 this.snapshot = snapshot.get();
-                connection.commit();
-                return true;
-            } else {
-                List<Event> events = Event.loadAll(connection);
-                Snapshot snapshotBefore = this.snapshot;
-                // Instant now = Instant.now(); // TODO: Handle future events later!
-                for (Event event : events) {
-                    if (!event.isRemoved()/* && event.getTime().isBefore(now)*/) { // TODO: Future events later!
-                        this.snapshot = event.apply(this.snapshot);
-                        this.snapshot.save(connection);
+            }
+            Snapshot snapshotBefore = this.snapshot;
+            checkpointPolicy.reset(this.snapshot);
+            try (EventCursor events = cursorAfter(tx, this.snapshot)) {
+                if (!snapshot.isPresent() && rebuildPool != null) {
+                    this.snapshot = rebuild(tx, this.snapshot, events, event -> event.getTime().isAfter(now));
+                } else {
+                    while (events.next()) {
+                        Event event = events.get();
+                        if (!event.isRemoved() && !event.getTime().isAfter(now)) {
+                            this.snapshot = checkpointPolicy.apply(tx, this.snapshot, event);
+                        }
                     }
                 }
-                connection.commit();
-                return !Objects.equals(this.snapshot, snapshotBefore);
+                LOG.info("Restored from storage, replayed {} events", events.getCount());
             }
-        } catch (SQLException | IOException e) {
-            LOG.error("An error occurred when restoring from database!", e);
+            tx.commit();
+            future.forEach(this::defer);
+            if (!future.isEmpty()) {
+                LOG.info("Deferred {} events that are in the future", future.size());
+            }
+            return snapshot.isPresent() || !Objects.equals(this.snapshot, snapshotBefore);
+        } catch (IOException e) {
+            LOG.error("An error occurred when restoring from storage!", e);
             this.snapshot = oldSnapshot;
+            checkpointPolicy.reset(oldMark);
             try {
-                if (connection != null) {
-                    connection.rollback();
+                if (tx != null) {
+                    tx.rollback();
                 }
-            } catch (SQLException e2) {
+            } catch (IOException e2) {
                 LOG.error("Error in rollback after previous error", e2);
             }
             return false;
         } finally {
-            if (connection != null) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    LOG.error("Error while closing connection", e);
+            closeTransaction(tx);
+        }
+    }
+
+    /**
+     * Load the events after the given time, that have to be deferred.
+     */
+    private List<Event> loadFutureEvents(StoreTransaction tx, Instant now) throws IOException {
+        List<Event> result = new ArrayList<>();
+        try (EventCursor events = storage.cursorAfter(tx, now, Long.MAX_VALUE, fetchSize)) {
+            while (events.next()) {
+                if (!events.get().isRemoved()) {
+                    result.add(events.get());
                 }
             }
         }
+        return result;
+    }
+
+    private static void closeTransaction(StoreTransaction tx) {
+        if (tx != null) {
+            try {
+                tx.close();
+            } catch (IOException e) {
+                LOG.error("Error while closing transaction", e);
+            }
+        }
     }
 
     private void registerInitialTags() {
         Snapshot oldSnapshot = this.snapshot;
-        Connection connection = null;
+        CheckpointPolicy.Mark oldMark = checkpointPolicy.mark();
+        StoreTransaction tx = null;
         try {
-            connection = Database.createConnection(EnumSet.of(READ_WRITE));
+            tx = storage.begin();
             for (Team team : Config.getCurrentConfig().getTeams()) {
                 for (TagId tag : team.getTags()) {
                     AddTagEvent e = new AddTagEvent(Instant.EPOCH, tag, team.getTeamNb());
-                    e.save(connection);
-                    this.snapshot = e.apply(this.snapshot);
-                    this.snapshot.save(connection);
+                    storage.save(tx, Collections.singletonList(e));
+                    this.snapshot = checkpointPolicy.apply(tx, this.snapshot, e);
                 }
             }
-            connection.commit();
-        } catch (SQLException e) {
+            tx.commit();
+        } catch (IOException e) {
             LOG.error("An error occurred when registering initial tags!", e);
             this.snapshot = oldSnapshot;
+            checkpointPolicy.reset(oldMark);
             try {
-                if (connection != null) {
-                    connection.rollback();
+                if (tx != null) {
+                    tx.rollback();
                 }
-            } catch (SQLException e2) {
+            } catch (IOException e2) {
                 LOG.error("Error in rollback after previous error", e2);
             }
         } finally {
-            if (connection != null) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    LOG.error("Error while closing connection", e);
-                }
-            }
+            closeTransaction(tx);
         }
     }
 
@@ -245,6 +532,18 @@ public final class Processor implements Runnable {
      */
     @Override
     public void run() {
+        processingThread = Thread.currentThread();
+        if (lease != null && !takeOver()) {
+            LOG.info("Stopped in standby!");
+            executorService.shutdownNow();
+            leaseRenewer.shutdownNow();
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            lease.close();
+            storage.close();
+            return;
+        }
         LOG.info("Spinning up processor!");
         List<ReaderConfig> readers = Config.getCurrentConfig().getReaders();
         for (int i = 0; i < readers.size(); i++) {
@@ -253,17 +552,49 @@ public final class Processor implements Runnable {
         Thread commandThread = new Thread(commandProcessor);
         threads.add(commandThread);
         commandThread.start();
+        Thread outlierThread = new Thread(outlierReporter);
+        threads.add(outlierThread);
+        outlierThread.start();
+        if (snapshotCompactor != null) {
+            Thread compactorThread = new Thread(snapshotCompactor);
+            threads.add(compactorThread);
+            compactorThread.start();
+        }
+        executorService.scheduleAtFixedRate(this::logStatistics, 1L, 1L, TimeUnit.MINUTES);
+        if (Database.isPartitioned()) {
+            executorService.scheduleAtFixedRate(this::createPartitions, 0L, 10L, TimeUnit.MINUTES);
+        }
+        if (metricsInterval > 0L) {
+            executorService.scheduleAtFixedRate(this::publishMetrics, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+        // The snapshot in the cache may be from before the database was cleared, or older than the
+        // one that was restored, replace it before readers get to it
+        broadcastNewSnapshot(snapshot);
         notifyStarted();
         try {
             while (!Thread.currentThread().isInterrupted()) {
-                Event event = eventQueue.take();
-                processEvent(event);
-                // TODO(Roel): Do deferred event processing later!
+                List<Event> batch = takeBatch();
+                if (lease != null && !lease.isHeld()) {
+                    LOG.fatal("Lost the lease, stopping so that another processor can take over");
+                    break;
+                }
+                snapshotLock.lock();
+                try {
+                    processEvents(batch);
+                } finally {
+                    snapshotLock.unlock();
+                }
             }
         } catch (InterruptedException ignored) {
         }
         LOG.info("Stopping processor!");
         executorService.shutdownNow();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         commandProcessor.stop();
         readerListeners.stream().forEach(listener -> {
             try {
@@ -278,20 +609,58 @@ public final class Processor implements Runnable {
             } catch (InterruptedException ignored) {
             }
         });
+        if (eventLog != null) {
+            eventLog.close();
+        }
+        if (lease != null) {
+            leaseRenewer.shutdownNow();
+            lease.release();
+            lease.close();
+        }
+        storage.close();
         LOG.info("Bye bye!");
     }
 
-    private Optional<Long> getLastUpdateForReader(Connection connection, int readerId) throws SQLException {
-        String statement = "SELECT \"updateCount\" FROM \"tagSeenEvents\" WHERE \"readerId\" = ? " +
-                "ORDER BY \"updateCount\" DESC FETCH FIRST ROW ONLY";
-        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
-            stmt.setInt(1, readerId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(rs.getLong("updateCount"));
-            } else {
-                return Optional.empty();
+    /**
+     * Follow the events that the processor holding the lease stores, until
+     * the lease can be taken, then continue from the state that was followed,
+     * see Standby.
+     *
+     * @return Whether the lease was taken, false if we were interrupted first
+     */
+    private boolean takeOver() {
+        LOG.info("Waiting for the lease, following the events in the database in the meantime");
+        Standby standby = new Standby(fetchSize);
+        boolean upToDate;
+        try {
+            upToDate = standby.followUntilAcquired(lease, standbyPollMillis);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        long start = System.nanoTime();
+        if (upToDate) {
+            this.snapshot = standby.getSnapshot();
+            checkpointPolicy.reset(this.snapshot);
+            window.reset(this.snapshot, checkpointPolicy.mark());
+            standby.getFuture().forEach(this::defer);
+            if (!standby.hasEvents()) {
+                registerInitialTags();
             }
+        } else if (!restoreFromDb()) {
+            registerInitialTags();
+        }
+        long period = Math.max(1L, lease.getTtlMillis() / 3L);
+        leaseRenewer.scheduleAtFixedRate(this::renewLease, period, period, TimeUnit.MILLISECONDS);
+        LOG.info("Took the lease, took over in {} ms (events applied in standby: {}, rebuilds: {})",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), standby.getApplied(),
+                standby.getRebuilds());
+        return true;
+    }
+
+    private void renewLease() {
+        if (!lease.renew()) {
+            LOG.fatal("Lost the lease, stopping so that another processor can take over");
+            processingThread.interrupt();
         }
     }
 
@@ -300,20 +669,9 @@ public final class Processor implements Runnable {
         String updateChannel = JedisHelper.dbLocalChannel(Config.getCurrentConfig().getUpdateChannel(), uri);
         try {
             Optional<Long> lastUpdate;
-            {
-                Connection connection = null;
-                try {
-                    connection = Database.createConnection(EnumSet.of(READ_ONLY));
-                    lastUpdate = getLastUpdateForReader(connection, readerId);
-                    connection.commit();
-                } catch (SQLException e) {
-                    if (connection != null) connection.rollback();
-                    throw e;
-                } finally {
-                    if (connection != null) {
-                        connection.close();
-                    }
-                }
+            try (StoreTransaction tx = storage.beginReadOnly()) {
+                lastUpdate = updateIndex.seed(storage, tx, readerId, fetchSize);
+                tx.commit();
             }
             Jedis subJedis = JedisHelper.get(uri);
             ReaderListener listener = new ReaderListener(readerId, this::queueEvent, lastUpdate);
@@ -330,8 +688,8 @@ public final class Processor implements Runnable {
             });
             threads.add(thread);
             thread.start();
-        } catch (SQLException e) {
-            LOG.error("Error fetching last update for reader {} from database, scheduling retry", readerId, e);
+        } catch (IOException e) {
+            LOG.error("Error fetching last update for reader {} from storage, scheduling retry", readerId, e);
             executorService.schedule(() -> trySpawnReaderListener(readerId), 5L, TimeUnit.SECONDS);
         } catch (JedisConnectionException e) {
             LOG.error("Couldn't connect to reader {}, uri {}, scheduling reconnect", readerId, uri, e);
@@ -343,72 +701,603 @@ public final class Processor implements Runnable {
         executorService.submit(() -> trySpawnReaderListener(readerId));
     }
 
-    private void processEvent(Event event) {
-        logProcessEvent(event);
-        Connection connection = null;
+    /**
+     * Take the next batch of events from the queue.
+     *
+     * Blocks until at least one event is available, then takes up to
+     * batchSize events, waiting at most batchWaitMillis for more events
+     * to arrive.
+     */
+    private List<Event> takeBatch() throws InterruptedException {
+        List<Event> batch = new ArrayList<>();
+        batch.add(nextEvent(-1L));
+        if (batchSize > 1) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+            while (batch.size() < batchSize) {
+                Event event = nextEvent(Math.max(0L, deadline - System.nanoTime()));
+                if (event == null) break;
+                batch.add(event);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Get the next event to process from the reorder buffer, moving
+     * events that arrive in the meantime into the buffer.
+     *
+     * @param timeoutNanos
+     *        How long to wait for an event, negative to wait forever
+     * @return The event, or null if there was none in time
+     */
+    private Event nextEvent(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            releaseDeferredEvents();
+            long now = System.nanoTime();
+            Event ready = reorderBuffer.poll(now);
+            if (ready != null) {
+                return ready;
+            }
+            long wait = Math.min(reorderBuffer.nanosUntilNext(now), nanosUntilDeferredEvent());
+            if (timeoutNanos >= 0L) {
+                wait = Math.min(wait, deadline - now);
+            }
+            Event event;
+            if (wait == Long.MAX_VALUE) {
+                event = eventQueue.take();
+            } else if (wait <= 0L) {
+                event = eventQueue.poll();
+            } else {
+                event = eventQueue.poll(wait, TimeUnit.NANOSECONDS);
+            }
+            if (event != null) {
+                // Other events go through the buffer as well, so that they can't overtake earlier reads
+                reorderBuffer.add(event, System.nanoTime());
+            } else if (timeoutNanos >= 0L && System.nanoTime() - deadline >= 0L) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Move the deferred events that are due to the reorder buffer. They stay
+     * in deferredTimers until they are applied.
+     */
+    private void releaseDeferredEvents() {
+        deferredEvents.advance(System.currentTimeMillis(), event -> reorderBuffer.add(event, System.nanoTime()));
+    }
+
+    /**
+     * The time until the next deferred event can be released, Long.MAX_VALUE if there are none.
+     */
+    private long nanosUntilDeferredEvent() {
+        long next = deferredEvents.nextMillis();
+        if (next == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0L, next - System.currentTimeMillis()));
+    }
+
+    /**
+     * Schedule an event that is stored, but in the future.
+     */
+    private void defer(Event event) {
+        Instant time = event.getTime();
+        // Rounded up, so that it's never applied before its time
+        long dueMillis = time.toEpochMilli() + (time.getNano() % 1000000 != 0 ? 1L : 0L);
+        deferredTimers.put(event.getId().get(), deferredEvents.schedule(event, dueMillis));
+        metrics.eventsDeferred.incrementAndGet();
+    }
+
+    /**
+     * Save the given event, taking care of unique events. The ids of the
+     * events that are removed because of this are added to removedEvents,
+     * the timers of those that were deferred are added to cancelled.
+     *
+     * @return The unique event that is replaced, if it may have been applied already
+     */
+    private Optional<Event> saveEvent(StoreTransaction tx, Event event, Set<Long> removedEvents,
+                                      List<TimerWheel.Timer<Event>> cancelled, Instant now) throws IOException {
+        Optional<Event> replaced = Optional.empty();
+        if (event.isUnique()) {
+            Optional<Event> other = storage.loadUnique(tx, event.getClass());
+            if (other.isPresent()) {
+                long id = other.get().getId().get();
+                storage.setRemoved(tx, other.get(), true);
+                removedEvents.add(id);
+                TimerWheel.Timer<Event> timer = deferredTimers.get(id);
+                if (timer != null) {
+                    // Rescheduled before it was applied, no need to go back in time
+                    cancelled.add(timer);
+                } else if (!other.get().getTime().isAfter(now)) {
+                    replaced = other;
+                }
+            }
+        }
+        storage.save(tx, Collections.singletonList(event));
+        return replaced;
+    }
+
+    /**
+     * Process a batch of events in a single transaction.
+     *
+     * The events are saved in time order, after which the snapshot is updated
+     * (rewinding once, to the earliest event in the batch, if necessary).
+     * Events in the future are saved, but deferred instead of applied, and the
+     * deferred events that are due come through here again to be applied. The
+     * transaction is committed once, and one NEW_SNAPSHOT message is broadcast
+     * for the whole batch. If processing the batch fails, every event is retried
+     * on its own, so that a single bad event doesn't take the others down with it.
+     */
+    private void processEvents(List<Event> batch) {
+        if (batch.size() > 1) {
+            batch.sort(Comparator.comparing(Event::getTime));
+        }
+        batch.forEach(this::logProcessEvent);
+        StoreTransaction tx = null;
         Snapshot oldSnapshot = this.snapshot;
+        CheckpointPolicy.Mark oldMark = checkpointPolicy.mark();
+        boolean retrySeparately = false;
+        long start = System.nanoTime();
+        long checkpointsBefore = checkpointPolicy.getCheckpointsStored();
+        long nanosStoringBefore = checkpointPolicy.getNanosStoring();
+        batchApplyNanos = 0L;
+        Instant now = Instant.now();
+        // The deferred events that are due are stored already, the others are new
+        List<Event> newEvents = new ArrayList<>();
+        Set<Event> isNew = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Long> dueIds = new HashSet<>();
+        for (Event event : batch) {
+            if (!event.getId().isPresent()) {
+                newEvents.add(event);
+                isNew.add(event);
+            } else if (deferredTimers.containsKey(event.getId().get())) {
+                dueIds.add(event.getId().get());
+            }
+        }
+        List<TimerWheel.Timer<Event>> cancelled = new ArrayList<>();
+        List<Event> deferred = new ArrayList<>();
         try {
-            connection = Database.createConnection(EnumSet.of(READ_WRITE));
-            Event firstEvent = event;
-            if (event.isUnique()) {
-                Optional<Event> other = Event.loadUnique(connection, event.getClass());
-                if (other.isPresent()) {
-                    other.get().setRemoved(connection, true);
-                    if (!other.get().getTime().isAfter(event.getTime())) {
-                        firstEvent = other.get();
+            tx = storage.begin();
+            Event firstEvent = null;
+            Set<Long> removedEvents = new HashSet<>();
+            if (newEvents.size() > 1 && newEvents.stream().noneMatch(Event::isUnique)) {
+                storage.save(tx, newEvents);
+            } else {
+                for (Event event : newEvents) {
+                    Optional<Event> replaced = saveEvent(tx, event, removedEvents, cancelled, now);
+                    if (replaced.isPresent() &&
+                            (firstEvent == null || EVENT_ORDER.compare(replaced.get(), firstEvent) < 0)) {
+                        firstEvent = replaced.get();
+                    }
+                }
+            }
+            List<Event> due = new ArrayList<>();
+            for (Event event : batch) {
+                if (dueIds.contains(event.getId().get())) {
+                    due.add(event);
+                } else if (isNew.contains(event)) {
+                    if (event.getTime().isAfter(now)) {
+                        deferred.add(event);
+                    } else {
+                        due.add(event);
                     }
                 }
+                // Otherwise it's a deferred event that was replaced after it was released, drop it
             }
-            event.save(connection);
+            due.sort(EVENT_ORDER);
+            if (!due.isEmpty() && (firstEvent == null || EVENT_ORDER.compare(due.get(0), firstEvent) < 0)) {
+                firstEvent = due.get(0);
+            }
+            // Events that aren't applied when replaying from storage
+            Predicate<Event> skip = event -> removedEvents.contains(event.getId().get()) ||
+                    event.getTime().isAfter(now) ||
+                    (deferredTimers.containsKey(event.getId().get()) && !dueIds.contains(event.getId().get()));
+            long saved = System.nanoTime();
             Snapshot snapshotToUpdateFrom = this.snapshot;
-            if (!firstEvent.getTime().isAfter(this.snapshot.getSnapshotTime())) {
+            List<Event> events;
+            Map<Event, Snapshot> earlierResults = Collections.emptyMap();
+            Instant snapshotTime = this.snapshot.getSnapshotTime();
+            if (firstEvent == null) {
+                // Only deferred events, nothing to apply
+                events = Collections.emptyList();
+            } else if (firstEvent.getTime().isAfter(snapshotTime) || (firstEvent.getTime().equals(snapshotTime) &&
+                    firstEvent.getId().get() > this.snapshot.getEventId().orElse(-1L))) {
+                events = due;
+            } else if (window.covers(firstEvent.getTime())) {
+                LOG.debug("Event before current snapshot, rewinding in memory");
+                metrics.memoryRewinds.incrementAndGet();
+                List<SnapshotWindow.Entry> rewound = window.rewind(firstEvent.getTime());
+                snapshotToUpdateFrom = window.getLatest();
+                checkpointPolicy.reset(window.getLatestMark());
+                storage.deleteAfter(tx, snapshotToUpdateFrom);
+                events = new ArrayList<>();
+                for (SnapshotWindow.Entry entry : rewound) {
+                    events.add(entry.event);
+                }
+                metrics.replayedPerRewind.record(rewound.size());
+                events.addAll(due);
+                events.sort(EVENT_ORDER);
+                earlierResults = findEarlierResults(snapshotToUpdateFrom, rewound, due);
+                if (!earlierResults.isEmpty()) {
+                    metrics.teamScopedRewinds.incrementAndGet();
+                }
+            } else {
                 LOG.debug("Event before current snapshot, loading snapshot before");
-                Optional<Snapshot> s = Snapshot.loadBefore(connection, firstEvent.getTime());
+                metrics.databaseRewinds.incrementAndGet();
+                Optional<Snapshot> s = storage.loadBefore(tx, firstEvent.getTime());
                 if (s.isPresent()) snapshotToUpdateFrom = s.get();
                 else snapshotToUpdateFrom = new Snapshot(Instant.EPOCH);
-            }
-            List<Event> events;
-            Snapshot.deleteAfter(connection, snapshotToUpdateFrom);
-            LOG.debug("Updating from snapshot: {}", snapshotToUpdateFrom.getId());
-            if (snapshotToUpdateFrom.getId().isPresent()) {
-                assert snapshotToUpdateFrom.getEventId().isPresent();
-                events = Event.loadAfter(connection, snapshotToUpdateFrom.getSnapshotTime(), snapshotToUpdateFrom.getEventId().get());
-            } else {
-                events = Event.loadAll(connection);
+                checkpointPolicy.reset(snapshotToUpdateFrom);
+                window.reset(snapshotToUpdateFrom, checkpointPolicy.mark());
+                storage.deleteAfter(tx, snapshotToUpdateFrom);
+                LOG.debug("Updating from snapshot for event: {}", snapshotToUpdateFrom.getEventId());
+                try (EventCursor cursor = cursorAfter(tx, snapshotToUpdateFrom)) {
+                    if (!snapshotToUpdateFrom.getEventId().isPresent() && rebuildPool != null) {
+                        snapshotToUpdateFrom = rebuild(tx, snapshotToUpdateFrom, cursor, skip);
+                        window.reset(snapshotToUpdateFrom, checkpointPolicy.mark());
+                    } else {
+                        while (cursor.next()) {
+                            if (!skip.test(cursor.get())) {
+                                snapshotToUpdateFrom = applyEvent(tx, snapshotToUpdateFrom, cursor.get(),
+                                        removedEvents, earlierResults);
+                            }
+                        }
+                    }
+                    metrics.replayedPerRewind.record(cursor.getCount());
+                }
+                events = Collections.emptyList();
             }
             for (Event e : events) {
-                if (!e.isRemoved()) {
-                    snapshotToUpdateFrom = e.apply(snapshotToUpdateFrom);
-                    snapshotToUpdateFrom.save(connection);
-                }
+                snapshotToUpdateFrom = applyEvent(tx, snapshotToUpdateFrom, e, removedEvents, earlierResults);
             }
-            LOG.debug("Updated up to snapshot: {}", snapshotToUpdateFrom.getId().get());
+            LOG.debug("Updated up to event: {}", snapshotToUpdateFrom.getEventId());
             this.snapshot = snapshotToUpdateFrom;
-            connection.commit();
-            // TODO: Provide a sensible message for NEW_SNAPSHOT?
-            statusReporter.broadcast(new StatusMessage(StatusMessage.MessageType.NEW_SNAPSHOT, "New snapshot!"));
-            if (eventCallbacks.containsKey(event)) {
-                eventCallbacks.get(event).accept(true);
-                eventCallbacks.remove(event);
+            long applied = System.nanoTime();
+            if (lease != null && !lease.isHeldFor(lease.getTtlMillis() / 3L)) {
+                // A standby may take over before this commits, and store events of its own in the meantime.
+                // Closing the transaction rolls it back.
+                LOG.fatal("The lease is about to expire, rolling back and stopping so that another processor can take over");
+                this.snapshot = oldSnapshot;
+                checkpointPolicy.reset(oldMark);
+                window.reset(oldSnapshot, oldMark);
+                completeCallbacks(batch, false);
+                processingThread.interrupt();
+                return;
+            }
+            EventLog.Commit logCommit = prepareLogCommit(tx, batch);
+            tx.commit();
+            if (logCommit != null) {
+                eventLog.afterCommit(logCommit);
+                batch.forEach(eventLsns::remove);
+            }
+            dueIds.forEach(deferredTimers::remove);
+            for (TimerWheel.Timer<Event> timer : cancelled) {
+                deferredEvents.cancel(timer);
+                deferredTimers.remove(timer.item.getId().get());
+                metrics.deferredCancelled.incrementAndGet();
+            }
+            deferred.forEach(this::defer);
+            long committed = System.nanoTime();
+            recordBatch(batch.size(), start, saved, applied, committed, checkpointsBefore, nanosStoringBefore);
+            if (this.snapshot != oldSnapshot) {
+                broadcastNewSnapshot(oldSnapshot);
             }
+            completeCallbacks(batch, true);
         } catch (SQLException | IOException e) {
-            LOG.error("Error when handling event!", e);
             this.snapshot = oldSnapshot;
+            checkpointPolicy.reset(oldMark);
+            window.reset(oldSnapshot, oldMark);
             try {
-                if (connection != null) connection.rollback();
-            } catch (SQLException e2) {
+                if (tx != null) tx.rollback();
+            } catch (IOException e2) {
                 LOG.error("Error in rollback after previous error!", e2);
             }
-            // TODO(Roel): Reschedule event!
+            if (batch.size() > 1) {
+                LOG.error("Error when handling batch of {} events, retrying them one by one", batch.size(), e);
+                retrySeparately = true;
+            } else {
+                LOG.error("Error when handling event!", e);
+                boolean permanent = Database.isPermanentFailure(e);
+                completeCallbacks(batch, false);
+                for (Event event : batch) {
+                    if (event.getId().isPresent() && deferredTimers.containsKey(event.getId().get())) {
+                        // It's stored and it's due, apply it again shortly
+                        deferredTimers.put(event.getId().get(), deferredEvents.schedule(event,
+                                System.currentTimeMillis() + DEFER_RETRY_MILLIS));
+                        continue;
+                    }
+                    Long lsn = eventLsns.get(event);
+                    if (lsn != null && !permanent) {
+                        // It was accepted when it was logged, so it has to be stored
+                        retryLater(event, isNew.contains(event), eventLog.failed(lsn));
+                        continue;
+                    }
+                    if (event instanceof TagSeenEvent) {
+                        // It wasn't stored, so it's not a duplicate if it comes in again
+                        updateIndex.forget((TagSeenEvent) event);
+                    }
+                    if (lsn != null) {
+                        eventLsns.remove(event);
+                        eventLog.dropped(lsn);
+                    }
+                }
+            }
         } finally {
-            if (connection != null) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    LOG.error("Error while closing connection", e);
+            closeTransaction(tx);
+        }
+        if (retrySeparately) {
+            for (Event event : batch) {
+                if (isNew.contains(event)) {
+                    event.resetId();
                 }
+                processEvents(new ArrayList<>(Collections.singletonList(event)));
+            }
+        }
+    }
+
+    /**
+     * Queue a logged event again after the given delay, when storing it
+     * failed. If the processor stops first, it is recovered from the log.
+     */
+    private void retryLater(Event event, boolean isNew, long delayMillis) {
+        if (isNew) {
+            event.resetId();
+        }
+        LOG.warn("Storing event {} of the write-ahead log again in {} ms", eventLsns.get(event), delayMillis);
+        metrics.eventsRetried.incrementAndGet();
+        executorService.schedule(() -> eventQueue.add(event), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Broadcast NEW_SNAPSHOT, storing the snapshot in the cache and
+     * publishing what changed since the previous one on the delta channel,
+     * in the same transaction.
+     */
+    private void broadcastNewSnapshot(Snapshot previous) {
+        // TODO: Provide a sensible message for NEW_SNAPSHOT?
+        StatusMessage message = new StatusMessage(StatusMessage.MessageType.NEW_SNAPSHOT, "New snapshot!");
+        Snapshot snapshot = this.snapshot;
+        try {
+            if (snapshotVersion < 0L) {
+                // Skip a sequence number: we don't know what readers got from before we started,
+                // so they have to start over from the cache
+                snapshotVersion = SnapshotCache.loadVersion(redisUri) + 1L;
+            }
+            long version = ++snapshotVersion;
+            byte[] encoded = SnapshotCache.encode(snapshot);
+            byte[] delta = Serialization.getJsonMapper().writeValueAsBytes(
+                    SnapshotDelta.between(previous, snapshot, version));
+            statusReporter.broadcast(message, transaction -> {
+                SnapshotCache.store(transaction, encoded, snapshot, version);
+                transaction.publish(deltaChannel, delta);
+            });
+        } catch (JedisConnectionException e) {
+            LOG.error("Couldn't load the version of the snapshot in Redis", e);
+            statusReporter.broadcast(message);
+        } catch (IOException e) {
+            LOG.error("Couldn't encode the snapshot for the cache", e);
+            statusReporter.broadcast(message);
+        }
+        metrics.newSnapshotBroadcasts.incrementAndGet();
+    }
+
+    /**
+     * Record the LSNs of the logged events in the batch in the transaction,
+     * see EventLog.prepareCommit. The log is only used with a database, so the
+     * transaction is a JdbcStorage one.
+     *
+     * @return The bookkeeping to pass to EventLog.afterCommit, or null if there's no log
+     */
+    private EventLog.Commit prepareLogCommit(StoreTransaction tx, List<Event> batch) throws SQLException {
+        if (eventLog == null) {
+            return null;
+        }
+        Set<Long> lsns = new HashSet<>();
+        for (Event event : batch) {
+            Long lsn = eventLsns.get(event);
+            if (lsn != null) {
+                lsns.add(lsn);
             }
         }
+        return eventLog.prepareCommit(JdbcStorage.connection(tx), lsns);
+    }
+
+    /**
+     * Record the metrics of a batch that was committed.
+     */
+    private void recordBatch(int size, long start, long saved, long applied, long committed,
+                             long checkpointsBefore, long nanosStoringBefore) {
+        long nanosStoring = checkpointPolicy.getNanosStoring() - nanosStoringBefore;
+        metrics.saveNanos.record(saved - start + nanosStoring);
+        metrics.applyNanos.record(batchApplyNanos - nanosStoring);
+        metrics.loadNanos.record(applied - saved - batchApplyNanos);
+        metrics.commitNanos.record(committed - applied);
+        metrics.totalNanos.record(committed - start);
+        metrics.batchSizes.record(size);
+        metrics.eventsProcessed.addAndGet(size);
+        metrics.snapshotsWritten.addAndGet(checkpointPolicy.getCheckpointsStored() - checkpointsBefore);
+        metrics.setLatestEventTime(snapshot.getSnapshotTime());
+    }
+
+    private void completeCallbacks(List<Event> events, boolean result) {
+        for (Event event : events) {
+            Consumer<Boolean> callback = eventCallbacks.remove(event);
+            if (callback != null) {
+                callback.accept(result);
+            }
+        }
+    }
+
+    /**
+     * Apply an event that is replayed, unless it has been removed, and add
+     * it to the window.
+     *
+     * @param earlierResults
+     *        Earlier results of events that only need their team state carried
+     *        over, see findEarlierResults
+     */
+    private Snapshot applyEvent(StoreTransaction tx, Snapshot before, Event event, Set<Long> removedEvents,
+                                Map<Event, Snapshot> earlierResults) throws IOException {
+        if (event.isRemoved() || removedEvents.contains(event.getId().get())) {
+            return before;
+        }
+        long start = System.nanoTime();
+        Snapshot result;
+        Snapshot earlierResult = earlierResults.get(event);
+        if (earlierResult != null) {
+            result = checkpointPolicy.record(tx, ((TeamEvent) event).reapply(before, earlierResult));
+        } else {
+            result = checkpointPolicy.apply(tx, before, event);
+        }
+        window.add(event, result, checkpointPolicy.mark());
+        batchApplyNanos += System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Open a cursor over the events after the given snapshot, or all events
+     * if the snapshot isn't the result of an event.
+     */
+    private EventCursor cursorAfter(StoreTransaction tx, Snapshot snapshot) throws IOException {
+        if (snapshot.getEventId().isPresent()) {
+            return storage.cursorAfter(tx, snapshot.getSnapshotTime(), snapshot.getEventId().get(), fetchSize);
+        } else {
+            return storage.cursorAll(tx, fetchSize);
+        }
+    }
+
+    /**
+     * Rebuild the state by replaying the events from the given cursor on the
+     * rebuild pool, and store the result as a checkpoint. The snapshots in
+     * between are not stored, loading one of those replays from the start.
+     *
+     * The events are replayed in chunks, so that they don't all have to be
+     * in memory at the same time.
+     */
+    private Snapshot rebuild(StoreTransaction tx, Snapshot before, EventCursor events,
+                             Predicate<Event> skip) throws IOException {
+        long start = System.nanoTime();
+        Snapshot result = before;
+        List<Event> chunk = new ArrayList<>();
+        long count = 0L;
+        while (events.next()) {
+            Event event = events.get();
+            if (!event.isRemoved() && !skip.test(event)) {
+                chunk.add(event);
+            }
+            if (chunk.size() >= REBUILD_CHUNK_SIZE) {
+                result = ParallelReplay.replay(result, chunk, rebuildPool);
+                count += chunk.size();
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            result = ParallelReplay.replay(result, chunk, rebuildPool);
+            count += chunk.size();
+        }
+        if (count == 0L) {
+            return before;
+        }
+        storage.save(tx, result);
+        metrics.snapshotsWritten.incrementAndGet();
+        checkpointPolicy.reset(result);
+        LOG.info("Rebuilt the state from {} events in {} ms", count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    /**
+     * When a rewind only replays events of single teams (reads and corrections),
+     * the rest of the snapshot stays the same, and teams that none of the new
+     * events belong to go through exactly the same states as before. Their
+     * states can be carried over from the snapshots in the window, instead of
+     * being computed again.
+     *
+     * @param before
+     *        The snapshot that is replayed from
+     * @param rewound
+     *        The events that were removed from the window, with the snapshots after them
+     * @param batch
+     *        The new events
+     * @return The earlier results of the rewound events whose team state can be
+     *         carried over, empty if there are events in the replay that aren't team scoped
+     */
+    private static Map<Event, Snapshot> findEarlierResults(Snapshot before, List<SnapshotWindow.Entry> rewound,
+                                                           List<Event> batch) {
+        Set<Integer> affectedTeams = new HashSet<>();
+        for (Event event : batch) {
+            if (!(event instanceof TeamEvent)) {
+                return Collections.emptyMap();
+            }
+            ((TeamEvent) event).affectedTeam(before).ifPresent(affectedTeams::add);
+        }
+        for (SnapshotWindow.Entry entry : rewound) {
+            if (!(entry.event instanceof TeamEvent)) {
+                return Collections.emptyMap();
+            }
+        }
+        // Nothing but team states changes during the replay, so the teams are the same for every snapshot
+        Map<Event, Snapshot> result = new IdentityHashMap<>();
+        for (SnapshotWindow.Entry entry : rewound) {
+            Optional<Integer> teamNb = ((TeamEvent) entry.event).affectedTeam(before);
+            if (teamNb.isPresent() && !affectedTeams.contains(teamNb.get())) {
+                result.put(entry.event, entry.snapshot);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create the partitions for the coming hours, so that the processing
+     * doesn't have to, see Database.ensurePartition
+     */
+    private void createPartitions() {
+        Instant now = Instant.now();
+        try {
+            Database.createPartitions(now, now.plus(PARTITIONS_AHEAD));
+        } catch (SQLException e) {
+            LOG.warn("Couldn't create the partitions for the coming hours, trying again later", e);
+        }
+    }
+
+    private void logStatistics() {
+        Database.getPoolStatistics().forEach(statistics -> LOG.info("Database pool {}", statistics));
+        LOG.info("Reads reordered: {}, too late to reorder: {}, rewinds in memory: {} ({} team scoped), " +
+                        "rewinds from database: {}", reorderBuffer.getReordered(), reorderBuffer.getLate(),
+                metrics.memoryRewinds.get(), metrics.teamScopedRewinds.get(), metrics.databaseRewinds.get());
+        LOG.info("Outliers reported: {}, coalesced: {}, dropped: {}, failed to report: {}",
+                outlierReporter.getReported(), outlierReporter.getCoalesced(), outlierReporter.getDropped(),
+                outlierReporter.getFailed());
+        LOG.info("Duplicate reads dropped: {}, updates missing: {}", updateIndex.getDuplicates(),
+                updateIndex.getGaps());
+        LOG.info("Events deferred: {}, rescheduled before they were applied: {}, waiting: {}",
+                metrics.eventsDeferred.get(), metrics.deferredCancelled.get(), deferredTimers.size());
+        if (snapshotCompactor != null) {
+            LOG.info("Old snapshots deleted: {}, failed compactions: {}", snapshotCompactor.getDeleted(),
+                    snapshotCompactor.getFailed());
+        }
+        if (eventLog != null) {
+            LOG.info("Events logged: {}, recovered: {}, waiting for the database: {}, log segments: {}, " +
+                            "time syncing: {} ms", eventLog.getAppended(), eventLog.getReplayed(),
+                    eventLog.getPending(), eventLog.getSegments(),
+                    TimeUnit.NANOSECONDS.toMillis(eventLog.getSyncNanos()));
+        }
+    }
+
+    private void publishMetrics() {
+        try {
+            ObjectNode node = metrics.report(eventQueue.size(), reorderBuffer.size(), deferredTimers.size());
+            updateIndex.report(node.putObject("updates"));
+            String report = Serialization.getJsonMapper().writeValueAsString(node);
+            statusReporter.broadcast(new StatusMessage(StatusMessage.MessageType.PROCESSOR_METRICS, report));
+            if (metricsServer != null) {
+                metricsServer.setLatest(report);
+            }
+        } catch (JsonProcessingException e) {
+            LOG.error("Error serializing the metrics", e);
+        }
     }
 
     private void logProcessEvent(Event event) {
@@ -425,6 +1314,12 @@ public final class Processor implements Runnable {
      * Queue a tag update for processing.
      */
     private void queueEvent(Event event) {
+        if (event instanceof TagSeenEvent && !updateIndex.markSeen((TagSeenEvent) event)) {
+            LOG.debug("Dropping duplicate update {} of reader {}", ((TagSeenEvent) event).getUpdateCount(),
+                    ((TagSeenEvent) event).getReaderId());
+            return;
+        }
+        logEvent(event);
         try {
             eventQueue.put(event);
         } catch (InterruptedException ignored) {
@@ -432,10 +1327,36 @@ public final class Processor implements Runnable {
     }
 
     private void queueEvent(Event event, Consumer<Boolean> callback) {
+        boolean logged = logEvent(event);
         try {
-            eventCallbacks.put(event, callback);
+            if (!logged) {
+                eventCallbacks.put(event, callback);
+            }
             eventQueue.put(event);
         } catch (InterruptedException ignored) {
+            return;
+        }
+        if (logged) {
+            // It's on disk, and will be stored even if the processor stops before it gets to it
+            callback.accept(true);
+        }
+    }
+
+    /**
+     * Append the event to the write-ahead log, if there is one.
+     *
+     * @return Whether the event was logged
+     */
+    private boolean logEvent(Event event) {
+        if (eventLog == null) {
+            return false;
+        }
+        try {
+            eventLsns.put(event, eventLog.append(event));
+            return true;
+        } catch (IOException e) {
+            LOG.error("Couldn't append the event to the write-ahead log, waiting for the database instead", e);
+            return false;
         }
     }
 }
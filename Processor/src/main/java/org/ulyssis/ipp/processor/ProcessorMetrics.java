@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * = Metrics of the processing thread
+ *
+ * Keeps track of where the time to process a batch of events goes, how
+ * much work the rewinds cost, and how many snapshots are written and
+ * announced. The processing thread records into this, report() summarizes
+ * it (on another thread) as a JSON object.
+ *
+ * The time to process a batch is split into:
+ *
+ * - save: storing the new events, and the snapshots that are checkpoints,
+ * - load: going back in time, and loading events from the database to replay,
+ * - apply: applying the events (new and replayed) to the snapshot,
+ * - commit: committing the transaction.
+ *
+ * With the default batch size of 1, a batch is a single event.
+ */
+final class ProcessorMetrics {
+    final Histogram loadNanos = new Histogram();
+    final Histogram applyNanos = new Histogram();
+    final Histogram saveNanos = new Histogram();
+    final Histogram commitNanos = new Histogram();
+    final Histogram totalNanos = new Histogram();
+    final Histogram batchSizes = new Histogram();
+    /**
+     * The number of events that are replayed for every rewind
+     */
+    final Histogram replayedPerRewind = new Histogram();
+
+    final AtomicLong eventsProcessed = new AtomicLong();
+    final AtomicLong snapshotsWritten = new AtomicLong();
+    final AtomicLong newSnapshotBroadcasts = new AtomicLong();
+    final AtomicLong memoryRewinds = new AtomicLong();
+    final AtomicLong databaseRewinds = new AtomicLong();
+    final AtomicLong teamScopedRewinds = new AtomicLong();
+    /**
+     * The number of events that were deferred because they're in the future,
+     * and the number of those that were replaced before they were applied
+     */
+    final AtomicLong eventsDeferred = new AtomicLong();
+    final AtomicLong deferredCancelled = new AtomicLong();
+    /**
+     * The number of times a logged event is stored again, after storing it failed
+     */
+    final AtomicLong eventsRetried = new AtomicLong();
+
+    private volatile Instant latestEventTime = Instant.EPOCH;
+
+    /**
+     * The state at the previous report, to report what happened since then
+     */
+    private final class Previous {
+        final long nanos;
+        final Histogram.Counts load = loadNanos.counts();
+        final Histogram.Counts apply = applyNanos.counts();
+        final Histogram.Counts save = saveNanos.counts();
+        final Histogram.Counts commit = commitNanos.counts();
+        final Histogram.Counts total = totalNanos.counts();
+        final Histogram.Counts batches = batchSizes.counts();
+        final Histogram.Counts replayed = replayedPerRewind.counts();
+        final long events = eventsProcessed.get();
+        final long snapshots = snapshotsWritten.get();
+        final long broadcasts = newSnapshotBroadcasts.get();
+
+        Previous(long nanos) {
+            this.nanos = nanos;
+        }
+    }
+
+    private Previous previous = new Previous(System.nanoTime());
+
+    /**
+     * Set the time of the latest event that is processed, to see how far the processor is behind
+     */
+    void setLatestEventTime(Instant time) {
+        latestEventTime = time;
+    }
+
+    /**
+     * Summarize the metrics since the previous report.
+     *
+     * @param queueDepth
+     *        The number of events waiting to be processed
+     * @param reorderBufferDepth
+     *        The number of events waiting in the reorder buffer
+     * @param deferredDepth
+     *        The number of events in the future that are waiting to be applied
+     */
+    synchronized ObjectNode report(long queueDepth, int reorderBufferDepth, int deferredDepth) {
+        Previous now = new Previous(System.nanoTime());
+        double seconds = (now.nanos - previous.nanos) / 1E9;
+        ObjectNode node = Serialization.getJsonMapper().createObjectNode();
+        node.put("time", Instant.now().toEpochMilli());
+        node.put("intervalSeconds", seconds);
+        node.put("queueDepth", queueDepth);
+        node.put("reorderBufferDepth", reorderBufferDepth);
+        ObjectNode deferred = node.putObject("deferred");
+        deferred.put("waiting", deferredDepth);
+        deferred.put("deferred", eventsDeferred.get());
+        deferred.put("cancelled", deferredCancelled.get());
+        node.put("lagMillis", Math.max(0L, Duration.between(latestEventTime, Instant.now()).toMillis()));
+        node.put("eventsRetried", eventsRetried.get());
+        node.put("eventsProcessed", now.events);
+        node.put("eventsPerSecond", (now.events - previous.events) / seconds);
+        node.put("snapshotsWritten", now.snapshots);
+        node.put("snapshotsPerSecond", (now.snapshots - previous.snapshots) / seconds);
+        node.put("newSnapshotBroadcasts", now.broadcasts);
+        node.put("newSnapshotBroadcastsPerSecond", (now.broadcasts - previous.broadcasts) / seconds);
+        ObjectNode rewinds = node.putObject("rewinds");
+        rewinds.put("memory", memoryRewinds.get());
+        rewinds.put("teamScoped", teamScopedRewinds.get());
+        rewinds.put("database", databaseRewinds.get());
+        summarize(rewinds.putObject("replayedEvents"), now.replayed.since(previous.replayed), 1L);
+        summarize(node.putObject("batchSize"), now.batches.since(previous.batches), 1L);
+        ObjectNode latency = node.putObject("batchLatencyMicros");
+        long micro = TimeUnit.MICROSECONDS.toNanos(1L);
+        summarize(latency.putObject("load"), now.load.since(previous.load), micro);
+        summarize(latency.putObject("apply"), now.apply.since(previous.apply), micro);
+        summarize(latency.putObject("save"), now.save.since(previous.save), micro);
+        summarize(latency.putObject("commit"), now.commit.since(previous.commit), micro);
+        summarize(latency.putObject("total"), now.total.since(previous.total), micro);
+        previous = now;
+        return node;
+    }
+
+    private static void summarize(ObjectNode node, Histogram.Counts counts, long unit) {
+        node.put("count", counts.getCount());
+        if (counts.getCount() > 0L) {
+            node.put("mean", counts.getMean() / unit);
+            node.put("p50", counts.getPercentile(0.5) / unit);
+            node.put("p90", counts.getPercentile(0.9) / unit);
+            node.put("p99", counts.getPercentile(0.99) / unit);
+            node.put("max", counts.getMax() / unit);
+        }
+    }
+}
@@ -19,8 +19,10 @@ package org.ulyssis.ipp.processor;
 
 import org.kohsuke.args4j.Option;
 import org.ulyssis.ipp.config.Options;
+import org.ulyssis.ipp.snapshot.EventCursor;
 
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.Optional;
 
 public final class ProcessorOptions extends Options {
@@ -30,12 +32,188 @@ public final class ProcessorOptions extends Options {
 
     // TODO: Make it possible to pass in password covertly?
     @Option(name="--database", usage="The URI of the (PostgreSQL) database to use, in JDBC format",
-            metaVar="<uri>", required=true)
+            metaVar="<uri>", required=false)
     private URI databaseUri = null;
 
-    @Option(name="--cleardb", usage="Clear the database", required=false)
+    @Option(name="--store", usage="Store the events and snapshots in segment files in <dir>, instead of in a " +
+            "database", metaVar="<dir>", required=false)
+    private Path storeDirectory = null;
+
+    @Option(name="--cleardb", usage="Clear the database (or the store)", required=false)
     private boolean clearDb = false;
 
+    @Option(name="--db-pool-size", usage="The maximum number of read-write, and of read-only, connections to the " +
+            "database, defaults to " + Database.DEFAULT_MAX_POOL_SIZE, metaVar="<n>", required=false)
+    private int dbPoolSize = Database.DEFAULT_MAX_POOL_SIZE;
+
+    @Option(name="--db-acquire-timeout", usage="How long (in ms) to wait for a database connection when all of " +
+            "them are in use, defaults to " + Database.DEFAULT_ACQUIRE_TIMEOUT_MS, metaVar="<ms>", required=false)
+    private long dbAcquireTimeoutMillis = Database.DEFAULT_ACQUIRE_TIMEOUT_MS;
+
+    @Option(name="--batch-size", usage="The maximum number of events that are processed together in one " +
+            "transaction, defaults to 1 (no batching)", metaVar="<n>", required=false)
+    private int batchSize = 1;
+
+    @Option(name="--batch-wait", usage="How long to wait (in ms) for more events to arrive when filling a batch, " +
+            "defaults to 0 (only take the events that are already queued)", metaVar="<ms>", required=false)
+    private long batchWaitMillis = 0L;
+
+    @Option(name="--checkpoint-events", usage="Store a snapshot in the database every <n> events, 0 to only " +
+            "use --checkpoint-interval, defaults to 1 (every event)", metaVar="<n>", required=false)
+    private int checkpointEvents = 1;
+
+    @Option(name="--checkpoint-interval", usage="Store a snapshot in the database when <s> seconds (in event time) " +
+            "have passed since the last one, defaults to 0 (disabled)", metaVar="<s>", required=false)
+    private long checkpointInterval = 0L;
+
+    @Option(name="--per-team-snapshots", usage="Store snapshots per team, only writing the teams that changed " +
+            "instead of the whole snapshot", required=false)
+    private boolean perTeamSnapshots = false;
+
+    @Option(name="--partitioned", usage="When creating the tables, partition the events and snapshots by hour " +
+            "(PostgreSQL 11 or later only, other databases use the regular layout), requires a --db-pool-size " +
+            "of at least 2", required=false)
+    private boolean partitioned = false;
+
+    @Option(name="--rewind-window", usage="The number of recent events to keep in memory, together with their " +
+            "snapshots, so late events can be handled without going to the database, defaults to 1000",
+            metaVar="<n>", required=false)
+    private int rewindWindow = 1000;
+
+    @Option(name="--reorder-delay", usage="Hold events for <ms> milliseconds, and process them in time order, so " +
+            "reads that arrive slightly out of order don't cause a rewind, defaults to 0 (disabled)",
+            metaVar="<ms>", required=false)
+    private long reorderDelayMillis = 0L;
+
+    @Option(name="--rebuild-threads", usage="Rebuild the state from the whole event log on <n> threads when there " +
+            "is no snapshot to start from, only storing the end result, defaults to 0 (replay one event at a " +
+            "time, storing snapshots as usual)", metaVar="<n>", required=false)
+    private int rebuildThreads = 0;
+
+    @Option(name="--fetch-size", usage="The number of events to fetch from the database at once when replaying " +
+            "events, defaults to " + EventCursor.DEFAULT_FETCH_SIZE, metaVar="<n>", required=false)
+    private int fetchSize = EventCursor.DEFAULT_FETCH_SIZE;
+
+    @Option(name="--metrics-interval", usage="Publish the processor's metrics on the status channel every <s> " +
+            "seconds, defaults to 0 (disabled)", metaVar="<s>", required=false)
+    private long metricsInterval = 0L;
+
+    @Option(name="--metrics-port", usage="Serve the latest metrics at http://localhost:<port>/metrics, requires " +
+            "--metrics-interval, defaults to 0 (disabled)", metaVar="<port>", required=false)
+    private int metricsPort = 0;
+
+    @Option(name="--compact-interval", usage="Thin out the snapshots older than the retention window to one per " +
+            "<s> seconds (in event time), defaults to 0 (keep all snapshots)", metaVar="<s>", required=false)
+    private long compactInterval = 0L;
+
+    @Option(name="--compact-retention", usage="Keep all snapshots of the last <s> seconds (in event time) when " +
+            "thinning out snapshots, defaults to 1800", metaVar="<s>", required=false)
+    private long compactRetention = 1800L;
+
+    @Option(name="--wal", usage="Log incoming events to a write-ahead log in <dir> and accept them once they're " +
+            "synced to disk, instead of waiting for the database, defaults to no write-ahead log",
+            metaVar="<dir>", required=false)
+    private Path walDirectory = null;
+
+    @Option(name="--standby", usage="Coordinate with the other processors on the same Redis instance: process " +
+            "events while holding the lease in Redis, and follow the events in the database as a hot standby " +
+            "while another processor holds it, taking over when it expires (requires --database)", required=false)
+    private boolean standby = false;
+
+    @Option(name="--lease-ttl", usage="How long (in ms) the lease lasts without being renewed, which is how long " +
+            "it takes a standby to notice that the processor holding it is gone, defaults to 3000",
+            metaVar="<ms>", required=false)
+    private long leaseTtlMillis = 3000L;
+
+    @Option(name="--standby-poll", usage="How often (in ms) a standby checks for new events and tries to take " +
+            "the lease, defaults to 200", metaVar="<ms>", required=false)
+    private long standbyPollMillis = 200L;
+
+    private static final ExtraCondition condition = new ExtraCondition() {
+        @Override
+        public boolean evaluate(Options options) {
+            ProcessorOptions pOptions = (ProcessorOptions) options;
+            if ((pOptions.getDatabaseUri() == null) == (pOptions.storeDirectory == null)) {
+                message = "Exactly one of --database and --store must be given";
+                return false;
+            }
+            if (pOptions.storeDirectory != null && pOptions.walDirectory != null) {
+                message = "--wal requires --database";
+                return false;
+            }
+            if (pOptions.storeDirectory != null && (pOptions.usePerTeamSnapshots() || pOptions.usePartitionedTables())) {
+                message = "--per-team-snapshots and --partitioned require --database";
+                return false;
+            }
+            if (pOptions.isStandby() && (pOptions.storeDirectory != null || pOptions.walDirectory != null ||
+                    pOptions.shouldClearDb())) {
+                message = "--standby requires --database, and can't be combined with --wal or --cleardb";
+                return false;
+            }
+            if (pOptions.getLeaseTtlMillis() < 1L || pOptions.getStandbyPollMillis() < 1L) {
+                message = "The lease time to live and the standby poll interval must be at least 1 ms";
+                return false;
+            }
+            if (pOptions.getDbPoolSize() < 1 || pOptions.getDbAcquireTimeoutMillis() < 1L) {
+                message = "The database pool size and acquire timeout must be at least 1";
+                return false;
+            }
+            if (pOptions.usePartitionedTables() && pOptions.getDbPoolSize() < 2) {
+                message = "--partitioned requires a --db-pool-size of at least 2";
+                return false;
+            }
+            if (pOptions.getBatchSize() < 1) {
+                message = "The batch size must be at least 1";
+                return false;
+            }
+            if (pOptions.getBatchWaitMillis() < 0L) {
+                message = "The batch wait time can not be negative";
+                return false;
+            }
+            if (pOptions.getCheckpointEvents() < 0 || pOptions.getCheckpointInterval() < 0L) {
+                message = "The checkpoint frequency can not be negative";
+                return false;
+            }
+            if (pOptions.getReorderDelayMillis() < 0L) {
+                message = "The reorder delay can not be negative";
+                return false;
+            }
+            if (pOptions.getFetchSize() < 1) {
+                message = "The fetch size must be at least 1";
+                return false;
+            }
+            if (pOptions.getRebuildThreads() < 0) {
+                message = "The number of rebuild threads can not be negative";
+                return false;
+            }
+            if (pOptions.getRewindWindow() < 0) {
+                message = "The rewind window can not be negative";
+                return false;
+            }
+            if (pOptions.getMetricsInterval() < 0L) {
+                message = "The metrics interval can not be negative";
+                return false;
+            }
+            if (pOptions.getMetricsPort() < 0 || pOptions.getMetricsPort() > 65535) {
+                message = "The metrics port must be between 0 and 65535";
+                return false;
+            }
+            if (pOptions.getMetricsPort() != 0 && pOptions.getMetricsInterval() == 0L) {
+                message = "--metrics-port requires --metrics-interval";
+                return false;
+            }
+            if (pOptions.getCompactInterval() < 0L || pOptions.getCompactRetention() < 0L) {
+                message = "The compaction interval and retention can not be negative";
+                return false;
+            }
+            if (pOptions.getCheckpointEvents() == 0 && pOptions.getCheckpointInterval() == 0L) {
+                message = "Either --checkpoint-events or --checkpoint-interval must be enabled";
+                return false;
+            }
+            return true;
+        }
+    };
+
     private ProcessorOptions() {
     }
 
@@ -45,7 +223,7 @@ public final class ProcessorOptions extends Options {
     }
 
     public static Optional<ProcessorOptions> processorOptionsFromArgs(String[] args) {
-        Optional<Options> options = (new ProcessorOptions().doFromArgs(args));
+        Optional<Options> options = (new ProcessorOptions().doFromArgs(args, condition));
         if (options.isPresent()) {
             return Optional.of((ProcessorOptions) options.get());
         } else {
@@ -64,4 +242,88 @@ public final class ProcessorOptions extends Options {
     public URI getDatabaseUri() {
         return databaseUri;
     }
+
+    public int getDbPoolSize() {
+        return dbPoolSize;
+    }
+
+    public long getDbAcquireTimeoutMillis() {
+        return dbAcquireTimeoutMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchWaitMillis() {
+        return batchWaitMillis;
+    }
+
+    public int getCheckpointEvents() {
+        return checkpointEvents;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public boolean usePerTeamSnapshots() {
+        return perTeamSnapshots;
+    }
+
+    public boolean usePartitionedTables() {
+        return partitioned;
+    }
+
+    public int getRewindWindow() {
+        return rewindWindow;
+    }
+
+    public long getReorderDelayMillis() {
+        return reorderDelayMillis;
+    }
+
+    public int getRebuildThreads() {
+        return rebuildThreads;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public long getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public long getCompactInterval() {
+        return compactInterval;
+    }
+
+    public long getCompactRetention() {
+        return compactRetention;
+    }
+
+    public Optional<Path> getStoreDirectory() {
+        return Optional.ofNullable(storeDirectory);
+    }
+
+    public Optional<Path> getWalDirectory() {
+        return Optional.ofNullable(walDirectory);
+    }
+
+    public boolean isStandby() {
+        return standby;
+    }
+
+    public long getLeaseTtlMillis() {
+        return leaseTtlMillis;
+    }
+
+    public long getStandbyPollMillis() {
+        return standbyPollMillis;
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.utils.JedisHelper;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.Closeable;
+import java.net.URI;
+
+/**
+ * = A lease in Redis
+ *
+ * Makes sure that only one processor of a group processes events at a time.
+ * The lease is a key that holds the id of its owner and expires after the
+ * time to live: whoever sets it while it's free holds it until it expires,
+ * and the holder renews it well before that. Renewing and releasing only
+ * touch the key if it still holds our id, in a script, so that it's atomic.
+ *
+ * The holder assumes it has lost the lease once a time to live has passed
+ * since the last renewal, even if it couldn't reach Redis to find out.
+ */
+final class RedisLease implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(RedisLease.class);
+
+    static final String RENEW_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+    static final String RELEASE_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('del', KEYS[1]) else return 0 end";
+
+    private final URI uri;
+    private final String key;
+    private final String owner;
+    private final long ttlMillis;
+
+    private Jedis jedis = null;
+    /**
+     * Until when (System.currentTimeMillis) we hold the lease
+     */
+    private volatile long validUntil = 0L;
+
+    /**
+     * @param uri
+     *        The Redis instance to keep the lease in
+     * @param key
+     *        The key of the lease
+     * @param owner
+     *        The id of this processor, unique within the group
+     * @param ttlMillis
+     *        How long the lease lasts without being renewed
+     */
+    RedisLease(URI uri, String key, String owner, long ttlMillis) {
+        this.uri = uri;
+        this.key = key;
+        this.owner = owner;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Try to take the lease, if nobody holds it.
+     *
+     * @return Whether we hold the lease now
+     */
+    synchronized boolean tryAcquire() {
+        long start = System.currentTimeMillis();
+        try {
+            if ("OK".equals(jedis().set(key, owner, "NX", "PX", ttlMillis))) {
+                validUntil = start + ttlMillis;
+                return true;
+            }
+            return false;
+        } catch (JedisConnectionException e) {
+            LOG.warn("Couldn't reach Redis to acquire the lease", e);
+            disconnect();
+            return false;
+        }
+    }
+
+    /**
+     * Extend the lease by another time to live.
+     *
+     * @return Whether we still hold the lease
+     */
+    synchronized boolean renew() {
+        long start = System.currentTimeMillis();
+        try {
+            Object result = jedis().eval(RENEW_SCRIPT, 1, key, owner, Long.toString(ttlMillis));
+            if (Long.valueOf(1L).equals(result)) {
+                validUntil = start + ttlMillis;
+                return true;
+            }
+            LOG.error("The lease {} was taken over", key);
+            validUntil = 0L;
+            return false;
+        } catch (JedisConnectionException e) {
+            LOG.warn("Couldn't reach Redis to renew the lease", e);
+            disconnect();
+            return isHeld();
+        }
+    }
+
+    /**
+     * Give up the lease, so that a standby can take over right away.
+     */
+    synchronized void release() {
+        validUntil = 0L;
+        try {
+            jedis().eval(RELEASE_SCRIPT, 1, key, owner);
+        } catch (JedisConnectionException e) {
+            LOG.warn("Couldn't reach Redis to release the lease, it will expire instead", e);
+            disconnect();
+        }
+    }
+
+    /**
+     * Whether we hold the lease, as far as we know.
+     */
+    boolean isHeld() {
+        return isHeldFor(0L);
+    }
+
+    /**
+     * Whether we hold the lease, as far as we know, for at least the given
+     * time, without renewing it.
+     */
+    boolean isHeldFor(long millis) {
+        return System.currentTimeMillis() + millis < validUntil;
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    private Jedis jedis() {
+        if (jedis == null) {
+            jedis = JedisHelper.get(uri);
+        }
+        return jedis;
+    }
+
+    private void disconnect() {
+        if (jedis != null) {
+            try {
+                jedis.close();
+            } catch (JedisConnectionException ignored) {
+            }
+            jedis = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.ulyssis.ipp.snapshot.Event;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * = Reorder buffer for events
+ *
+ * The reader listeners each run on their own thread, so reads arrive at the
+ * processor slightly out of order. Every event that arrives after an event
+ * that happened later forces the processor to go back in time. To avoid
+ * this, events are held in this buffer for a fixed delay after they arrive,
+ * and are released in time order.
+ *
+ * An event is only released when its delay has passed and all events that
+ * happened before it have been released. All events go through the buffer,
+ * not just reads: a command that skips the buffer would overtake the reads
+ * that are still being held, and cause a rewind for each of them.
+ *
+ * The buffer holds at most a maximum number of events: when more arrive
+ * during a burst, the earliest ones are released without waiting for
+ * their delay.
+ *
+ * Only used from the processing thread, except for the statistics and size().
+ */
+final class ReorderBuffer {
+    private static final class Entry {
+        final Event event;
+        final long arrivalNanos;
+        final long sequence;
+
+        Entry(Event event, long arrivalNanos, long sequence) {
+            this.event = event;
+            this.arrivalNanos = arrivalNanos;
+            this.sequence = sequence;
+        }
+    }
+
+    private final long delayNanos;
+    private final int maxSize;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(
+            Comparator.comparing((Entry entry) -> entry.event.getTime()).thenComparingLong(entry -> entry.sequence));
+    private long sequence = 0L;
+    private Instant latestAdded = Instant.MIN;
+    private Instant latestReleased = Instant.MIN;
+    private volatile int size = 0;
+
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    /**
+     * @param delayMillis
+     *        How long to hold an event, 0 releases events immediately
+     * @param maxSize
+     *        The number of events to hold at most
+     */
+    ReorderBuffer(long delayMillis, int maxSize) {
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.maxSize = maxSize;
+    }
+
+    void add(Event event, long nowNanos) {
+        if (event.getTime().isBefore(latestAdded)) {
+            if (event.getTime().isAfter(latestReleased)) {
+                reordered.incrementAndGet();
+            } else {
+                late.incrementAndGet();
+            }
+        } else {
+            latestAdded = event.getTime();
+        }
+        queue.add(new Entry(event, nowNanos, sequence++));
+        size = queue.size();
+    }
+
+    /**
+     * Take the next event, if it can be released.
+     *
+     * @return The event, or null if no event can be released yet
+     */
+    Event poll(long nowNanos) {
+        Entry head = queue.peek();
+        if (head == null || (queue.size() <= maxSize && nowNanos - head.arrivalNanos < delayNanos)) {
+            return null;
+        }
+        queue.remove();
+        size = queue.size();
+        if (head.event.getTime().isAfter(latestReleased)) {
+            latestReleased = head.event.getTime();
+        }
+        return head.event;
+    }
+
+    /**
+     * The time until the next event can be released, Long.MAX_VALUE if the buffer is empty.
+     */
+    long nanosUntilNext(long nowNanos) {
+        Entry head = queue.peek();
+        if (head == null) {
+            return Long.MAX_VALUE;
+        }
+        if (queue.size() > maxSize) {
+            return 0L;
+        }
+        return Math.max(0L, head.arrivalNanos + delayNanos - nowNanos);
+    }
+
+    /**
+     * The number of events in the buffer
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The number of events that arrived out of order, and were put back in order by the buffer.
+     */
+    long getReordered() {
+        return reordered.get();
+    }
+
+    /**
+     * The number of events that arrived out of order, too late for the buffer to fix it.
+     */
+    long getLate() {
+        return late.get();
+    }
+}
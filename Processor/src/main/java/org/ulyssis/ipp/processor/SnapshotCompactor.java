@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.snapshot.Storage;
+import org.ulyssis.ipp.snapshot.StoreTransaction;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * = Thins out old snapshots
+ *
+ * With a checkpoint for every event, the snapshots table grows by a row
+ * for every read, which makes backups large, and the queries for the
+ * latest snapshot before a given time slower. Old snapshots are only
+ * needed as a starting point when going back in time, so one every few
+ * minutes is plenty.
+ *
+ * The compactor periodically keeps every snapshot in the retention window,
+ * and one per interval before it, see SnapshotStore.compact. It deletes a
+ * chunk of snapshots per transaction, holding the lock that the processing
+ * thread holds while processing a batch, so the processing thread only ever
+ * waits for one chunk. After deleting anything, the space is reclaimed (the
+ * tables are vacuumed, or the snapshot file is rewritten).
+ */
+final class SnapshotCompactor implements Runnable {
+    private static final Logger LOG = LogManager.getLogger(SnapshotCompactor.class);
+
+    /**
+     * The number of snapshots to delete in one transaction
+     */
+    static final int DEFAULT_CHUNK_SIZE = 100;
+    /**
+     * The time between compactions
+     */
+    static final long DEFAULT_PERIOD_MILLIS = 60000L;
+
+    private final Storage storage;
+    private final Lock lock;
+    private final Duration retention;
+    private final Duration interval;
+    private final int chunkSize;
+    private final long periodMillis;
+
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param storage
+     *        The storage to compact the snapshots of
+     * @param lock
+     *        The lock that is held while snapshots are stored
+     * @param retention
+     *        Keep all snapshots in this window, counting back from the latest snapshot
+     * @param interval
+     *        Keep one snapshot per interval before the retention window
+     */
+    SnapshotCompactor(Storage storage, Lock lock, Duration retention, Duration interval) {
+        this(storage, lock, retention, interval, DEFAULT_CHUNK_SIZE, DEFAULT_PERIOD_MILLIS);
+    }
+
+    SnapshotCompactor(Storage storage, Lock lock, Duration retention, Duration interval, int chunkSize,
+                      long periodMillis) {
+        this.storage = storage;
+        this.lock = lock;
+        this.retention = retention;
+        this.interval = interval;
+        this.chunkSize = chunkSize;
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.MILLISECONDS.sleep(periodMillis);
+                compact();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Delete the snapshots that aren't needed anymore, one chunk at a time.
+     *
+     * @return The number of snapshots that were deleted
+     */
+    int compact() {
+        int total = 0;
+        try (StoreTransaction tx = storage.begin()) {
+            int chunk;
+            do {
+                lock.lock();
+                try {
+                    chunk = storage.compact(tx, retention, interval, chunkSize);
+                    tx.commit();
+                } catch (IOException e) {
+                    tx.rollback();
+                    throw e;
+                } finally {
+                    lock.unlock();
+                }
+                total += chunk;
+                deleted.addAndGet(chunk);
+            } while (chunk == chunkSize && !Thread.currentThread().isInterrupted());
+            if (total > 0) {
+                storage.reclaimSpace(tx);
+                LOG.info("Deleted {} old snapshots", total);
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            LOG.error("Error when compacting the snapshots", e);
+        }
+        return total;
+    }
+
+    /**
+     * The number of snapshots that were deleted
+     */
+    long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * The number of compactions that failed
+     */
+    long getFailed() {
+        return failed.get();
+    }
+}
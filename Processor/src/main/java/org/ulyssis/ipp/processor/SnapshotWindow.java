@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.Snapshot;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * = A window of recently applied events
+ *
+ * Keeps the most recently applied events, in order, together with the
+ * snapshot after applying each of them, so that the processor can go back
+ * to the state before a late event without loading anything from the database.
+ *
+ * The window starts from a base snapshot: the state before the oldest event
+ * in the window. When the window is full, the oldest event is dropped and
+ * the snapshot after it becomes the new base.
+ *
+ * Not threadsafe, only used from the processing thread.
+ */
+final class SnapshotWindow {
+    static final class Entry {
+        final Event event;
+        final Snapshot snapshot;
+        final CheckpointPolicy.Mark mark;
+
+        Entry(Event event, Snapshot snapshot, CheckpointPolicy.Mark mark) {
+            this.event = event;
+            this.snapshot = snapshot;
+            this.mark = mark;
+        }
+    }
+
+    private final int maxSize;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private Snapshot base;
+    private CheckpointPolicy.Mark baseMark;
+
+    /**
+     * @param maxSize
+     *        The maximum number of events to keep, 0 disables the window
+     */
+    SnapshotWindow(int maxSize, Snapshot base, CheckpointPolicy.Mark baseMark) {
+        this.maxSize = maxSize;
+        this.base = base;
+        this.baseMark = baseMark;
+    }
+
+    /**
+     * Drop all events, and start over from the given snapshot.
+     */
+    void reset(Snapshot base, CheckpointPolicy.Mark baseMark) {
+        entries.clear();
+        this.base = base;
+        this.baseMark = baseMark;
+    }
+
+    /**
+     * Add an event that was applied to the latest snapshot in the window.
+     *
+     * @param snapshot
+     *        The snapshot after applying the event
+     * @param mark
+     *        The state of the checkpoint policy after applying the event
+     */
+    void add(Event event, Snapshot snapshot, CheckpointPolicy.Mark mark) {
+        if (maxSize == 0) {
+            reset(snapshot, mark);
+            return;
+        }
+        entries.addLast(new Entry(event, snapshot, mark));
+        while (entries.size() > maxSize) {
+            Entry oldest = entries.removeFirst();
+            base = oldest.snapshot;
+            baseMark = oldest.mark;
+        }
+    }
+
+    /**
+     * Whether all events at or after the given time are in the window.
+     */
+    boolean covers(Instant time) {
+        // If the base doesn't have an event, the window contains all events from the start
+        return !base.getEventId().isPresent() || base.getSnapshotTime().isBefore(time);
+    }
+
+    /**
+     * Remove the events at or after the given time from the window, so that
+     * getLatest() is the state before the given time.
+     *
+     * @return The removed events and the snapshots after them, in the order they were applied
+     */
+    List<Entry> rewind(Instant time) {
+        assert covers(time);
+        List<Entry> removed = new ArrayList<>();
+        while (!entries.isEmpty() && !entries.peekLast().event.getTime().isBefore(time)) {
+            removed.add(entries.removeLast());
+        }
+        Collections.reverse(removed);
+        return removed;
+    }
+
+    Snapshot getLatest() {
+        return entries.isEmpty() ? base : entries.peekLast().snapshot;
+    }
+
+    CheckpointPolicy.Mark getLatestMark() {
+        return entries.isEmpty() ? baseMark : entries.peekLast().mark;
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
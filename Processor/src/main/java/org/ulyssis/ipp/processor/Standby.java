@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.EventCursor;
+import org.ulyssis.ipp.snapshot.Snapshot;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_ONLY;
+
+/**
+ * = Follows the events that another processor stores
+ *
+ * A processor in standby keeps its snapshot up to date with the events that
+ * the processor holding the lease stores, so that it can take over without
+ * restoring from the database first. The events table is tailed by id: only
+ * one processor writes at a time, so the events are committed in the order
+ * of their ids.
+ *
+ * Events that come after the snapshot are applied in memory. When an event
+ * comes before it, or a unique event replaces another one, the snapshot is
+ * rebuilt from the last checkpoint before the earliest of them, like the
+ * processor does when it rewinds from the database. Events in the future
+ * are kept aside until they're due, like the processor defers them.
+ */
+final class Standby {
+    private static final Logger LOG = LogManager.getLogger(Standby.class);
+
+    private static final Comparator<Event> EVENT_ORDER =
+            Comparator.comparing(Event::getTime).thenComparing(event -> event.getId().get());
+
+    private final int fetchSize;
+
+    private Snapshot snapshot = new Snapshot(Instant.EPOCH);
+    /**
+     * The id of the last event that was tailed, -1 if there were none
+     */
+    private long lastId = -1L;
+    /**
+     * The events after the snapshot that aren't due yet
+     */
+    private final TreeSet<Event> future = new TreeSet<>(EVENT_ORDER);
+
+    /**
+     * The snapshot the last rebuild started from, and the highest event id
+     * it replayed: tailed events up to that id after that snapshot were
+     * applied (or put aside) already
+     */
+    private Snapshot rebuiltFrom = null;
+    private long rebuiltUpTo = -1L;
+
+    private long applied = 0L;
+    private long rebuilds = 0L;
+
+    Standby(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Follow the events in the database until the lease can be taken, and
+     * catch up one last time after taking it.
+     *
+     * @return Whether the standby is up to date, false if the database
+     *         couldn't be reached after taking the lease
+     */
+    boolean followUntilAcquired(RedisLease lease, long pollMillis) throws InterruptedException {
+        boolean upToDate = false;
+        while (true) {
+            upToDate = follow(upToDate);
+            if (lease.tryAcquire()) {
+                // The holder may have stored events since we last looked
+                return follow(upToDate);
+            }
+            Thread.sleep(pollMillis);
+        }
+    }
+
+    /**
+     * Catch up, loading the state first if it isn't up to date.
+     *
+     * @return Whether the standby is up to date
+     */
+    private boolean follow(boolean upToDate) {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_ONLY))) {
+            if (upToDate) {
+                catchUp(connection, Instant.now());
+            } else {
+                load(connection, Instant.now());
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException | IOException e) {
+            LOG.error("Couldn't follow the events in the database", e);
+            return false;
+        }
+    }
+
+    /**
+     * Load the state from the latest checkpoint, like the processor does when it starts.
+     */
+    void load(Connection connection, Instant now) throws SQLException, IOException {
+        lastId = Event.loadLatestId(connection);
+        rebuild(connection, Snapshot.loadLatestCheckpoint(connection).orElseGet(() -> new Snapshot(Instant.EPOCH)),
+                now);
+    }
+
+    /**
+     * Apply the events that were stored since the last call, and the ones
+     * that have become due.
+     *
+     * @return The number of events that were applied or replayed
+     */
+    long catchUp(Connection connection, Instant now) throws SQLException, IOException {
+        List<Event> due = new ArrayList<>();
+        Instant rewindTo = null;
+        try (EventCursor events = Event.cursorSince(connection, lastId, fetchSize)) {
+            while (events.next()) {
+                Event event = events.get();
+                lastId = event.getId().get();
+                if (event.isRemoved() || (event.getId().get() <= rebuiltUpTo && isAfter(event, rebuiltFrom))) {
+                    continue;
+                }
+                if (event.isUnique()) {
+                    Optional<Event> replaced = Event.loadReplaced(connection, event);
+                    if (replaced.isPresent()) {
+                        future.remove(replaced.get());
+                        rewindTo = earliest(rewindTo, replaced.get().getTime());
+                    }
+                }
+                if (event.getTime().isAfter(now)) {
+                    future.add(event);
+                } else {
+                    due.add(event);
+                }
+            }
+        }
+        while (!future.isEmpty() && !future.first().getTime().isAfter(now)) {
+            due.add(future.pollFirst());
+        }
+        if (due.isEmpty() && rewindTo == null) {
+            return 0L;
+        }
+        due.sort(EVENT_ORDER);
+        if (rewindTo == null && isAfter(due.get(0), snapshot)) {
+            for (Event event : due) {
+                snapshot = event.apply(snapshot);
+            }
+            applied += due.size();
+            return due.size();
+        }
+        if (!due.isEmpty()) {
+            rewindTo = earliest(rewindTo, due.get(0).getTime());
+        }
+        return rebuild(connection,
+                Snapshot.loadBefore(connection, rewindTo).orElseGet(() -> new Snapshot(Instant.EPOCH)), now);
+    }
+
+    /**
+     * Replay the events after the given checkpoint.
+     */
+    private long rebuild(Connection connection, Snapshot from, Instant now) throws SQLException, IOException {
+        Snapshot result = from;
+        long maxId = -1L;
+        future.clear();
+        try (EventCursor events = from.getEventId().isPresent() ?
+                Event.cursorAfter(connection, from.getSnapshotTime(), from.getEventId().get(), fetchSize) :
+                Event.cursorAll(connection, fetchSize)) {
+            while (events.next()) {
+                Event event = events.get();
+                maxId = Math.max(maxId, event.getId().get());
+                if (event.isRemoved()) {
+                    continue;
+                }
+                if (event.getTime().isAfter(now)) {
+                    future.add(event);
+                } else {
+                    result = event.apply(result);
+                }
+            }
+            snapshot = result;
+            rebuiltFrom = from;
+            rebuiltUpTo = maxId;
+            rebuilds++;
+            return events.getCount();
+        }
+    }
+
+    private static Instant earliest(Instant time, Instant other) {
+        return time == null || other.isBefore(time) ? other : time;
+    }
+
+    /**
+     * Whether the event comes after the event the snapshot is the result of.
+     */
+    private static boolean isAfter(Event event, Snapshot snapshot) {
+        return event.getTime().isAfter(snapshot.getSnapshotTime()) ||
+                (event.getTime().equals(snapshot.getSnapshotTime()) &&
+                        event.getId().get() > snapshot.getEventId().orElse(-1L));
+    }
+
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The events that are stored, but not due yet, in time order.
+     */
+    List<Event> getFuture() {
+        return new ArrayList<>(future);
+    }
+
+    /**
+     * Whether any events were stored at all.
+     */
+    boolean hasEvents() {
+        return lastId != -1L;
+    }
+
+    long getApplied() {
+        return applied;
+    }
+
+    long getRebuilds() {
+        return rebuilds;
+    }
+}
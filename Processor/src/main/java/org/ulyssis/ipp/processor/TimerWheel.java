@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * = Hierarchical timer wheel
+ *
+ * Holds items until a given time (in milliseconds), like a priority queue
+ * on their due time, but scheduling and cancelling an item are O(1), and
+ * advancing the time only looks at the buckets that are passed.
+ *
+ * The wheels are arrays of buckets. The lowest wheel has a bucket per tick,
+ * every next wheel has buckets that span a whole turn of the wheel below it:
+ * with 64 buckets of 10 ms, the second wheel has buckets of 640 ms, the
+ * third of 41 s, and so on. Wheels are added when an item is scheduled too
+ * far in the future for the existing ones. When the time passes the start
+ * of a bucket in a higher wheel, its items are moved down (to a lower wheel,
+ * or out of the wheel if they're due), so an item is never released late,
+ * and at most a tick after its due time if advance() is called every tick.
+ *
+ * Not thread safe, except for size().
+ */
+final class TimerWheel<T> {
+    /**
+     * A scheduled item, which can be cancelled
+     */
+    static final class Timer<T> {
+        final T item;
+        final long dueMillis;
+        private Timer<T> previous = null;
+        private Timer<T> next = null;
+        private Bucket<T> bucket = null;
+
+        private Timer(T item, long dueMillis) {
+            this.item = item;
+            this.dueMillis = dueMillis;
+        }
+
+        /**
+         * Whether the item is still waiting in the wheel
+         */
+        boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    /**
+     * A doubly linked list of timers
+     */
+    private static final class Bucket<T> {
+        Timer<T> head = null;
+
+        void add(Timer<T> timer) {
+            timer.bucket = this;
+            timer.previous = null;
+            timer.next = head;
+            if (head != null) {
+                head.previous = timer;
+            }
+            head = timer;
+        }
+
+        void remove(Timer<T> timer) {
+            if (timer.previous != null) {
+                timer.previous.next = timer.next;
+            } else {
+                head = timer.next;
+            }
+            if (timer.next != null) {
+                timer.next.previous = timer.previous;
+            }
+            timer.bucket = null;
+            timer.previous = null;
+            timer.next = null;
+        }
+    }
+
+    private static final class Wheel<T> {
+        final long tickMillis;
+        final Bucket<T>[] buckets;
+
+        @SuppressWarnings("unchecked")
+        Wheel(long tickMillis, int size) {
+            this.tickMillis = tickMillis;
+            this.buckets = (Bucket<T>[]) new Bucket<?>[size];
+            for (int i = 0; i < size; i++) {
+                buckets[i] = new Bucket<>();
+            }
+        }
+
+        Bucket<T> bucket(long index) {
+            return buckets[(int) Math.floorMod(index, (long) buckets.length)];
+        }
+    }
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final List<Wheel<T>> wheels = new ArrayList<>();
+    private long nowMillis;
+    private volatile int size = 0;
+
+    /**
+     * @param tickMillis
+     *        The span of a bucket in the lowest wheel
+     * @param wheelSize
+     *        The number of buckets in a wheel
+     * @param nowMillis
+     *        The current time
+     */
+    TimerWheel(long tickMillis, int wheelSize, long nowMillis) {
+        if (tickMillis < 1L || wheelSize < 2) {
+            throw new IllegalArgumentException("The tick must be at least 1 ms, and a wheel needs 2 buckets");
+        }
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.nowMillis = nowMillis;
+        wheels.add(new Wheel<>(tickMillis, wheelSize));
+    }
+
+    /**
+     * The index of the first bucket of the given wheel that items can be
+     * put in. For the lowest wheel, that's the bucket of the current time,
+     * for the other wheels, the bucket of the current time has been moved
+     * down already.
+     */
+    private long firstIndex(int level) {
+        long index = Math.floorDiv(nowMillis, wheels.get(level).tickMillis);
+        return level == 0 ? index : index + 1L;
+    }
+
+    /**
+     * Schedule an item. An item that is due already is released by the next advance().
+     *
+     * @return The timer, to cancel it
+     */
+    Timer<T> schedule(T item, long dueMillis) {
+        Timer<T> timer = new Timer<>(item, dueMillis);
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    private void place(Timer<T> timer) {
+        if (timer.dueMillis <= nowMillis) {
+            wheels.get(0).bucket(firstIndex(0)).add(timer);
+            return;
+        }
+        for (int level = 0; ; level++) {
+            if (level == wheels.size()) {
+                wheels.add(new Wheel<>(wheels.get(level - 1).tickMillis * wheelSize, wheelSize));
+            }
+            Wheel<T> wheel = wheels.get(level);
+            long index = Math.floorDiv(timer.dueMillis, wheel.tickMillis);
+            if (index - firstIndex(level) < wheelSize) {
+                wheel.bucket(index).add(timer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cancel a timer.
+     *
+     * @return Whether the item was still waiting, if not, it was released or cancelled before
+     */
+    boolean cancel(Timer<T> timer) {
+        if (timer.bucket == null) {
+            return false;
+        }
+        timer.bucket.remove(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Move the time forward, releasing the items that are due at the new
+     * time, in no particular order.
+     */
+    void advance(long nowMillis, Consumer<T> released) {
+        // The clock can go back a bit, the items that are due already are released anyway
+        nowMillis = Math.max(nowMillis, this.nowMillis);
+        long before = this.nowMillis;
+        this.nowMillis = nowMillis;
+        List<Timer<T>> moved = new ArrayList<>();
+        // From the top down, so the items that are moved down are looked at by the lower wheels
+        for (int level = wheels.size() - 1; level >= 0; level--) {
+            Wheel<T> wheel = wheels.get(level);
+            long from = Math.floorDiv(before, wheel.tickMillis) + (level == 0 ? 0L : 1L);
+            long to = Math.floorDiv(nowMillis, wheel.tickMillis);
+            // Every item is within one turn, so a turn is enough to look at all buckets
+            from = Math.max(from, to - wheelSize + 1L);
+            for (long index = from; index <= to; index++) {
+                Bucket<T> bucket = wheel.bucket(index);
+                Timer<T> timer = bucket.head;
+                while (timer != null) {
+                    Timer<T> next = timer.next;
+                    if (timer.dueMillis <= nowMillis) {
+                        bucket.remove(timer);
+                        size--;
+                        released.accept(timer.item);
+                    } else if (level > 0) {
+                        bucket.remove(timer);
+                        moved.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+            for (Timer<T> timer : moved) {
+                place(timer);
+            }
+            moved.clear();
+        }
+    }
+
+    /**
+     * The earliest time at which advance() can release or move items, or
+     * Long.MAX_VALUE if the wheel is empty.
+     */
+    long nextMillis() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long result = Long.MAX_VALUE;
+        for (int level = 0; level < wheels.size(); level++) {
+            Wheel<T> wheel = wheels.get(level);
+            long first = firstIndex(level);
+            for (long index = first; index < first + wheelSize; index++) {
+                Timer<T> timer = wheel.bucket(index).head;
+                if (timer == null) {
+                    continue;
+                }
+                if (level == 0 && index == first) {
+                    // The bucket of the current time, its items are released one by one
+                    for (; timer != null; timer = timer.next) {
+                        result = Math.min(result, timer.dueMillis);
+                    }
+                } else {
+                    result = Math.min(result, index * wheel.tickMillis);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of items that are waiting
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.snapshot.EventStore;
+import org.ulyssis.ipp.snapshot.StoreTransaction;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * = Index of the updates that have been seen, per reader
+ *
+ * Every read carries an update count, its position in the update list of
+ * its reader. When a reader listener reconnects, it fetches the updates
+ * after the last one it knows of, which can overlap with updates that have
+ * been queued already. Such a duplicate violates the unique index on
+ * ("readerId", "updateCount"), and rolls back the transaction it's in.
+ *
+ * For each reader, this keeps the highest update count that has been seen,
+ * and a bitmap of the counts below it that haven't been seen: the gaps. An
+ * update is a duplicate if its count isn't higher than the highest one and
+ * isn't a gap, so duplicates can be dropped before they reach the database.
+ * The bitmap only covers the counts from the oldest gap on.
+ *
+ * Threadsafe, every reader has its own lock.
+ */
+final class UpdateIndex {
+    private static final Logger LOG = LogManager.getLogger(UpdateIndex.class);
+
+    /**
+     * The maximum number of update counts covered by the bitmap of a reader.
+     * When a reader skips ahead further than this, the oldest gaps are
+     * forgotten, and updates in them are treated as duplicates.
+     */
+    private static final int MAX_RANGE = 1 << 24;
+
+    /**
+     * Only move the bitmap once this many leading bits are no longer needed
+     */
+    private static final int COMPACT_THRESHOLD = 1 << 12;
+
+    private static final class Reader {
+        boolean seeded = false;
+        long highest = -1L;
+        /**
+         * The update count that bit 0 of gaps stands for, everything before it has been seen
+         */
+        long base = 0L;
+        BitSet gaps = new BitSet();
+        int nbGaps = 0;
+
+        boolean markSeen(long updateCount) {
+            if (updateCount > highest) {
+                if (updateCount - base >= MAX_RANGE) {
+                    moveBase(updateCount - MAX_RANGE / 2);
+                }
+                long from = Math.max(highest + 1L, base);
+                if (updateCount > from) {
+                    gaps.set((int) (from - base), (int) (updateCount - base));
+                    nbGaps += (int) (updateCount - from);
+                }
+                highest = updateCount;
+                compact();
+                return true;
+            }
+            if (updateCount < base || !gaps.get((int) (updateCount - base))) {
+                return false;
+            }
+            gaps.clear((int) (updateCount - base));
+            nbGaps--;
+            compact();
+            return true;
+        }
+
+        void forget(long updateCount) {
+            if (updateCount > highest || highest - updateCount >= MAX_RANGE) {
+                return;
+            }
+            if (updateCount < base) {
+                int shift = (int) (base - updateCount);
+                BitSet moved = new BitSet();
+                for (int i = gaps.nextSetBit(0); i >= 0; i = gaps.nextSetBit(i + 1)) {
+                    moved.set(i + shift);
+                }
+                gaps = moved;
+                base = updateCount;
+            }
+            int bit = (int) (updateCount - base);
+            if (!gaps.get(bit)) {
+                gaps.set(bit);
+                nbGaps++;
+            }
+        }
+
+        private void compact() {
+            int first = gaps.nextSetBit(0);
+            if (first == -1) {
+                gaps.clear();
+                base = highest + 1L;
+            } else if (first >= COMPACT_THRESHOLD) {
+                moveBase(base + first);
+            }
+        }
+
+        private void moveBase(long newBase) {
+            int shift = (int) Math.min(newBase - base, Integer.MAX_VALUE);
+            if (shift <= 0) {
+                return;
+            }
+            int length = gaps.length();
+            int dropped = gaps.get(0, Math.min(shift, length)).cardinality();
+            if (dropped > 0 || newBase > highest + 1L) {
+                LOG.warn("Update counts jumped ahead, treating all updates before {} as seen", newBase);
+                nbGaps -= dropped;
+            }
+            gaps = shift < length ? gaps.get(shift, length) : new BitSet();
+            base = newBase;
+        }
+    }
+
+    private final ConcurrentMap<Integer, Reader> readers = new ConcurrentHashMap<>();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private Reader reader(int readerId) {
+        return readers.computeIfAbsent(readerId, id -> new Reader());
+    }
+
+    /**
+     * Load the update counts that have been stored for the given reader,
+     * unless that has been done already. Should be called before the first
+     * update of the reader comes in.
+     *
+     * @return The highest update count that has been seen for the reader
+     */
+    Optional<Long> seed(EventStore store, StoreTransaction tx, int readerId, int fetchSize) throws IOException {
+        Reader reader = reader(readerId);
+        synchronized (reader) {
+            if (!reader.seeded) {
+                store.loadUpdateCounts(tx, readerId, fetchSize, reader::markSeen);
+                reader.seeded = true;
+                LOG.info("Reader {}: last update {}, {} updates missing", readerId, reader.highest, reader.nbGaps);
+            }
+            return reader.highest == -1L ? Optional.empty() : Optional.of(reader.highest);
+        }
+    }
+
+    /**
+     * Mark the update of the given read as seen.
+     *
+     * @return false if it has been seen before, and the read should be dropped
+     */
+    boolean markSeen(TagSeenEvent event) {
+        Reader reader = reader(event.getReaderId());
+        boolean result;
+        synchronized (reader) {
+            result = reader.markSeen(event.getUpdateCount());
+        }
+        if (!result) {
+            duplicates.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Mark the update of the given read as not seen, because it couldn't be stored.
+     */
+    void forget(TagSeenEvent event) {
+        Reader reader = reader(event.getReaderId());
+        synchronized (reader) {
+            reader.forget(event.getUpdateCount());
+        }
+    }
+
+    /**
+     * The number of reads that were dropped because they were seen before
+     */
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * The total number of updates that are missing, over all readers
+     */
+    long getGaps() {
+        long result = 0L;
+        for (Reader reader : readers.values()) {
+            synchronized (reader) {
+                result += reader.nbGaps;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the duplicates, and the last update and number of missing updates
+     * of each reader, to the given node.
+     */
+    void report(ObjectNode node) {
+        node.put("duplicatesDropped", getDuplicates());
+        ObjectNode perReader = node.putObject("readers");
+        for (Map.Entry<Integer, Reader> entry : readers.entrySet()) {
+            Reader reader = entry.getValue();
+            ObjectNode readerNode = perReader.putObject(entry.getKey().toString());
+            synchronized (reader) {
+                readerNode.put("lastUpdate", reader.highest);
+                readerNode.put("missing", reader.nbGaps);
+            }
+        }
+    }
+}
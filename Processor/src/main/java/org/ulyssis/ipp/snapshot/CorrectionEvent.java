@@ -26,7 +26,7 @@ import java.time.Instant;
 import java.util.Optional;
 
 @JsonTypeName("Correction")
-public final class CorrectionEvent extends Event {
+public final class CorrectionEvent extends TeamEvent {
     private int teamNb;
     private int correction;
     private CorrectionType correctionType;
@@ -79,17 +79,20 @@ public final class CorrectionEvent extends Event {
     @SuppressWarnings("unused")
     public String getExplanation() { return explanation; }
 
-    protected Snapshot doApply(Snapshot snapshot) {
-        TeamStates oldTeamStates = snapshot.getTeamStates();
-        Optional<TeamState> oldTeamState = oldTeamStates.getStateForTeam(teamNb);
-        TeamState newTeamState;
-        if (oldTeamState.isPresent()) {
-            newTeamState = oldTeamState.get().addCorrection(correction);
-        } else {
-            newTeamState = new TeamState().addCorrection(correction);
-        }
+    @Override
+    public Optional<Integer> affectedTeam(Snapshot snapshot) {
+        return Optional.of(teamNb);
+    }
+
+    @Override
+    protected TeamState nextTeamState(Snapshot snapshot, TeamState teamState) {
+        return teamState.addCorrection(correction);
+    }
+
+    @Override
+    protected Snapshot withTeamState(Snapshot snapshot, int teamNb, TeamState teamState) {
         return Snapshot.builder(getTime(), snapshot)
-                .withTeamStates(snapshot.getTeamStates().setStateForTeam(teamNb, newTeamState))
+                .withTeamStates(snapshot.getTeamStates().setStateForTeam(teamNb, teamState))
                 .build();
     }
 
@@ -23,13 +23,16 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.processor.Database;
 import org.ulyssis.ipp.utils.Serialization;
 
 import java.io.IOException;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @JsonTypeInfo(use=JsonTypeInfo.Id.NAME, include=JsonTypeInfo.As.PROPERTY, property="type")
@@ -98,8 +101,11 @@ public abstract class Event {
     protected abstract Snapshot doApply(Snapshot before);
 
     public final Snapshot apply(Snapshot before) {
+        return finishApply(before, doApply(before));
+    }
+
+    final Snapshot finishApply(Snapshot before, Snapshot result) {
         assert !removed;
-        Snapshot result = doApply(before);
         if (result == before && before.getEventId().isPresent()) {
             // We need to copy it anyway
             result = Snapshot.builder(getTime(), before).build();
@@ -108,23 +114,41 @@ public abstract class Event {
         return result;
     }
 
+    static Event fromRow(ResultSet rs) throws SQLException, IOException {
+        String evString = rs.getString("data");
+        Event event = Serialization.getJsonMapper().readValue(evString, Event.class);
+        event.id = rs.getLong("id");
+        event.removed = rs.getBoolean("removed");
+        return event;
+    }
+
+    private static final String INSERT = "INSERT INTO \"events\" (\"time\",\"type\",\"data\",\"removed\") " +
+            "VALUES (?,?,?,?)";
+    private static final String SELECT_ALL = "SELECT \"id\", \"data\", \"removed\" FROM \"events\" " +
+            "ORDER BY \"time\" ASC, \"id\" ASC";
+    private static final String SELECT_AFTER = "SELECT \"id\",\"data\",\"removed\" FROM \"events\" " +
+            "WHERE \"time\" > ? OR (\"time\" = ? AND \"id\" > ?) ORDER BY \"time\" ASC, \"id\" ASC";
+
     // TODO: How to deal with deserialization problem?
     public static List<Event> loadAll(Connection connection) throws SQLException, IOException {
-        String statement = "SELECT \"id\", \"data\", \"removed\" FROM \"events\" ORDER BY \"time\" ASC, \"id\" ASC";
         List<Event> events = new ArrayList<>();
         try (Statement stmt = connection.createStatement();
-             ResultSet result = stmt.executeQuery(statement)) {
+             ResultSet result = stmt.executeQuery(SELECT_ALL)) {
             while (result.next()) {
-                String evString = result.getString("data");
-                Event event = Serialization.getJsonMapper().readValue(evString, Event.class);
-                event.id = result.getLong("id");
-                event.removed = result.getBoolean("removed");
-                events.add(event);
+                events.add(fromRow(result));
             }
         }
         return events;
     }
 
+    /**
+     * Like loadAll, but reads the events one by one, see EventCursor.
+     */
+    public static EventCursor cursorAll(Connection connection, int fetchSize) throws SQLException {
+        return new JdbcEventCursor(connection.prepareStatement(SELECT_ALL,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY), fetchSize);
+    }
+
     public static Optional<Event> loadUnique(Connection connection, Class<? extends Event> eventType) throws SQLException, IOException {
         String statement = "SELECT \"id\", \"data\" FROM \"events\" WHERE \"type\" = ? AND \"removed\" = false";
         try (PreparedStatement stmt = connection.prepareStatement(statement)) {
@@ -168,59 +192,240 @@ public abstract class Event {
             stmt.setTimestamp(1, Timestamp.from(time));
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                String evString = rs.getString("data");
-                Event event = Serialization.getJsonMapper().readValue(evString, Event.class);
-                event.id = rs.getLong("id");
-                event.removed = rs.getBoolean("removed");
-                events.add(event);
+                events.add(fromRow(rs));
             }
         }
         return events;
     }
 
     public static List<Event> loadAfter(Connection connection, Instant time, long id) throws SQLException, IOException {
-        String statement = "SELECT \"id\",\"data\",\"removed\" FROM \"events\" " +
-                "WHERE \"time\" > ? OR (\"time\" = ? AND \"id\" > ?) ORDER BY \"time\" ASC, \"id\" ASC";
         List<Event> events = new ArrayList<>();
-        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_AFTER)) {
             stmt.setTimestamp(1, Timestamp.from(time));
             stmt.setTimestamp(2, Timestamp.from(time));
             stmt.setLong(3, id);
             LOG.debug("Executing query: {}", stmt);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                String evString = rs.getString("data");
-                Event event = Serialization.getJsonMapper().readValue(evString, Event.class);
-                event.id = rs.getLong("id");
-                event.removed = rs.getBoolean("removed");
-                events.add(event);
+                events.add(fromRow(rs));
             }
         }
         LOG.debug("Loaded {} events", events.size());
         return events;
     }
 
+    /**
+     * Like loadAfter, but reads the events one by one, see EventCursor.
+     */
+    public static EventCursor cursorAfter(Connection connection, Instant time, long id, int fetchSize) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(SELECT_AFTER,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            stmt.setTimestamp(1, Timestamp.from(time));
+            stmt.setTimestamp(2, Timestamp.from(time));
+            stmt.setLong(3, id);
+        } catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+        return new JdbcEventCursor(stmt, fetchSize);
+    }
+
+    /**
+     * Load the events that come after the event with the given time and id,
+     * up to and including the event with the given time and id.
+     */
+    public static List<Event> loadRange(Connection connection, Instant afterTime, long afterId,
+                                        Instant untilTime, long untilId) throws SQLException, IOException {
+        String statement = "SELECT \"id\",\"data\",\"removed\" FROM \"events\" " +
+                "WHERE (\"time\" > ? OR (\"time\" = ? AND \"id\" > ?)) " +
+                "AND (\"time\" < ? OR (\"time\" = ? AND \"id\" <= ?)) ORDER BY \"time\" ASC, \"id\" ASC";
+        List<Event> events = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+            Timestamp after = Timestamp.from(afterTime);
+            Timestamp until = Timestamp.from(untilTime);
+            stmt.setTimestamp(1, after);
+            stmt.setTimestamp(2, after);
+            stmt.setLong(3, afterId);
+            stmt.setTimestamp(4, until);
+            stmt.setTimestamp(5, until);
+            stmt.setLong(6, untilId);
+            LOG.debug("Executing query: {}", stmt);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                events.add(fromRow(rs));
+            }
+        }
+        LOG.debug("Loaded {} events", events.size());
+        return events;
+    }
+
+    /**
+     * The events that were stored after the event with the given id, in the
+     * order of their ids, see EventCursor. With a single processor writing,
+     * that's the order in which they were committed.
+     */
+    public static EventCursor cursorSince(Connection connection, long id, int fetchSize) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(
+                "SELECT \"id\",\"data\",\"removed\" FROM \"events\" WHERE \"id\" > ? ORDER BY \"id\" ASC",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            stmt.setLong(1, id);
+        } catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+        return new JdbcEventCursor(stmt, fetchSize);
+    }
+
+    /**
+     * The id of the event that was stored last, or -1 if there are no events.
+     */
+    public static long loadLatestId(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT max(\"id\") FROM \"events\"")) {
+            rs.next();
+            long id = rs.getLong(1);
+            return rs.wasNull() ? -1L : id;
+        }
+    }
+
+    /**
+     * The unique event that the given (stored) unique event replaced: the
+     * last one of the same type that was stored before it.
+     */
+    public static Optional<Event> loadReplaced(Connection connection, Event event) throws SQLException, IOException {
+        String statement = "SELECT \"id\",\"data\",\"removed\" FROM \"events\" WHERE \"type\" = ? AND \"id\" < ? " +
+                "ORDER BY \"id\" DESC FETCH FIRST ROW ONLY";
+        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+            stmt.setString(1, event.getClass().getSimpleName());
+            stmt.setLong(2, event.id);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                return Optional.of(fromRow(rs));
+            } else {
+                return Optional.empty();
+            }
+        }
+    }
+
     public void save(Connection connection) throws SQLException {
         if (id != -1) return;
-        try (PreparedStatement statement = connection.prepareStatement(
-                    "INSERT INTO \"events\" (\"time\",\"type\",\"data\",\"removed\") " +
-                            "VALUES (?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
-            statement.setTimestamp(1, Timestamp.from(time));
-            String serialized;
-            try {
-                serialized = Serialization.getJsonMapper().writeValueAsString(this);
-            } catch (JsonProcessingException e) {
-                assert false;
-                throw new IllegalStateException(e); // TODO(Roel): is this appropriate?
-            }
-            statement.setString(2, this.getClass().getSimpleName());
-            statement.setString(3, serialized);
-            statement.setBoolean(4, removed);
+        Database.ensurePartition(connection, time);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+            bind(statement);
             statement.executeUpdate();
             ResultSet keys = statement.getGeneratedKeys();
             keys.next();
             this.id = keys.getLong(1);
         }
+        String details = detailsInsert();
+        if (details != null) {
+            try (PreparedStatement statement = connection.prepareStatement(details)) {
+                bindDetails(statement);
+                boolean result = statement.execute();
+                assert !result;
+            }
+        }
+    }
+
+    /**
+     * Save the given events, in order, like save does, but with a single
+     * batch of inserts for the events, and a single batch for the details
+     * of each kind of event, instead of one or two round trips per event.
+     *
+     * The events get their ids in the order they're given.
+     */
+    public static void saveAll(Connection connection, List<? extends Event> events) throws SQLException {
+        List<Event> toSave = new ArrayList<>(events.size());
+        for (Event event : events) {
+            if (event.id == -1) toSave.add(event);
+        }
+        if (toSave.size() <= 1) {
+            for (Event event : toSave) event.save(connection);
+            return;
+        }
+        for (Event event : toSave) {
+            Database.ensurePartition(connection, event.time);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+            for (Event event : toSave) {
+                event.bind(statement);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            ResultSet keys = statement.getGeneratedKeys();
+            for (Event event : toSave) {
+                if (!keys.next()) {
+                    throw new SQLException("Expected " + toSave.size() + " generated keys for the saved events");
+                }
+                event.id = keys.getLong(1);
+            }
+        }
+        Map<String, List<Event>> details = new LinkedHashMap<>();
+        for (Event event : toSave) {
+            String insert = event.detailsInsert();
+            if (insert != null) {
+                details.computeIfAbsent(insert, k -> new ArrayList<>()).add(event);
+            }
+        }
+        for (Map.Entry<String, List<Event>> entry : details.entrySet()) {
+            try (PreparedStatement statement = connection.prepareStatement(entry.getKey())) {
+                for (Event event : entry.getValue()) {
+                    event.bindDetails(statement);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private void bind(PreparedStatement statement) throws SQLException {
+        statement.setTimestamp(1, Timestamp.from(time));
+        String serialized;
+        try {
+            serialized = Serialization.getJsonMapper().writeValueAsString(this);
+        } catch (JsonProcessingException e) {
+            assert false;
+            throw new IllegalStateException(e); // TODO(Roel): is this appropriate?
+        }
+        statement.setString(2, this.getClass().getSimpleName());
+        statement.setString(3, serialized);
+        statement.setBoolean(4, removed);
+    }
+
+    /**
+     * The insert for the extra data of this kind of event, in another table,
+     * or null if there is none. The statement is executed right after the
+     * event has been saved, with the parameters set by bindDetails.
+     */
+    protected String detailsInsert() {
+        return null;
+    }
+
+    /**
+     * Set the parameters of the statement returned by detailsInsert, the id
+     * of this event has already been assigned.
+     */
+    protected void bindDetails(PreparedStatement statement) throws SQLException {
+    }
+
+    /**
+     * Set the id and removed state of an event that was stored by a store
+     * other than the database.
+     */
+    void setStored(long id, boolean removed) {
+        this.id = id;
+        this.removed = removed;
+    }
+
+    /**
+     * Forget the id that was assigned when saving this event, because
+     * the transaction in which it was saved has been rolled back.
+     */
+    public void resetId() {
+        this.id = -1;
+        this.removed = false;
     }
 
     public void setRemoved(Connection connection, boolean removed) throws SQLException {
@@ -228,13 +433,14 @@ public abstract class Event {
             assert false; // This is a programming error
             return;
         }
-        PreparedStatement statement =
+        try (PreparedStatement statement =
                 connection.prepareStatement(
-                        "UPDATE \"events\" SET \"removed\"=? WHERE \"id\"=?");
-        statement.setBoolean(1, removed);
-        statement.setLong(2, id);
-        boolean result = statement.execute();
-        assert(!result);
+                        "UPDATE \"events\" SET \"removed\"=? WHERE \"id\"=?")) {
+            statement.setBoolean(1, removed);
+            statement.setLong(2, id);
+            boolean result = statement.execute();
+            assert(!result);
+        }
         this.removed = true;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.IOException;
+
+/**
+ * = A cursor over stored events
+ *
+ * Reads events one by one, instead of loading them all in a list. How the
+ * events are read depends on the store, see JdbcEventCursor for the
+ * database, and SegmentStorage for segment files.
+ *
+ * Used like a ResultSet:
+ *
+ * [source,java]
+ * ----
+ * try (EventCursor cursor = Event.cursorAll(connection, fetchSize)) {
+ *     while (cursor.next()) {
+ *         Event event = cursor.get();
+ *     }
+ * }
+ * ----
+ */
+public abstract class EventCursor implements AutoCloseable {
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private Event current = null;
+    private long count = 0L;
+
+    /**
+     * Read the next event.
+     *
+     * @return The event, or null if there are no more events
+     */
+    protected abstract Event fetch() throws IOException;
+
+    /**
+     * Move to the next event.
+     *
+     * @return Whether there is a next event
+     */
+    public final boolean next() throws IOException {
+        current = fetch();
+        if (current != null) {
+            count++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * The current event, only valid after next() returned true.
+     */
+    public final Event get() {
+        if (current == null) throw new IllegalStateException("No current event");
+        return current;
+    }
+
+    /**
+     * The number of events read so far.
+     */
+    public final long getCount() {
+        return count;
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongConsumer;
+
+/**
+ * Where the processor stores its events, see Storage.
+ *
+ * Events are ordered by time, and then by id. The ids are assigned when the
+ * events are saved, in increasing order.
+ */
+public interface EventStore {
+    /**
+     * Save the given events, in order. Events that already have an id are skipped.
+     */
+    void save(StoreTransaction tx, List<? extends Event> events) throws IOException;
+
+    /**
+     * Load the event of the given type that hasn't been removed, for events
+     * that are unique.
+     */
+    Optional<Event> loadUnique(StoreTransaction tx, Class<? extends Event> eventType) throws IOException;
+
+    void setRemoved(StoreTransaction tx, Event event, boolean removed) throws IOException;
+
+    /**
+     * Open a cursor over all events.
+     */
+    EventCursor cursorAll(StoreTransaction tx, int fetchSize) throws IOException;
+
+    /**
+     * Open a cursor over the events after the event with the given time and id.
+     */
+    EventCursor cursorAfter(StoreTransaction tx, Instant time, long id, int fetchSize) throws IOException;
+
+    /**
+     * Pass the update counts of the stored reads of the given reader to the
+     * consumer, in ascending order.
+     */
+    void loadUpdateCounts(StoreTransaction tx, int readerId, int fetchSize, LongConsumer consumer) throws IOException;
+}
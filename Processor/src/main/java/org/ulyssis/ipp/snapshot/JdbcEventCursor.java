@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * = A cursor over events in the database
+ *
+ * The rows are fetched in chunks of the given fetch size, so that the
+ * driver doesn't buffer the whole result. With PostgreSQL, this only works
+ * inside a transaction (auto commit disabled), which is how the processor
+ * uses its connections.
+ */
+final class JdbcEventCursor extends EventCursor {
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+
+    /**
+     * Executes the given statement, which must select the id, data and removed columns.
+     */
+    JdbcEventCursor(PreparedStatement statement, int fetchSize) throws SQLException {
+        this.statement = statement;
+        try {
+            statement.setFetchSize(fetchSize);
+            this.resultSet = statement.executeQuery();
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected Event fetch() throws IOException {
+        try {
+            return resultSet.next() ? Event.fromRow(resultSet) : null;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            try {
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import org.ulyssis.ipp.processor.Database;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongConsumer;
+
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_ONLY;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * = Storage in the database
+ *
+ * Stores the events and snapshots in the database that is set with
+ * Database.setDatabaseURI, with the queries in Event and Snapshot. A
+ * transaction is a connection from the pool. SQLExceptions are passed on
+ * as the cause of an IOException.
+ */
+public final class JdbcStorage implements Storage {
+    /**
+     * A transaction on a connection from the pool.
+     */
+    public static final class Transaction implements StoreTransaction {
+        private final Connection connection;
+
+        /**
+         * @param connection
+         *        The connection to use, which is closed when the transaction is closed
+         */
+        public Transaction(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            call(this, Connection::commit);
+        }
+
+        @Override
+        public void rollback() throws IOException {
+            call(this, Connection::rollback);
+        }
+
+        @Override
+        public void close() throws IOException {
+            call(this, Connection::close);
+        }
+    }
+
+    private interface Query<T> {
+        T run(Connection connection) throws SQLException, IOException;
+    }
+
+    private interface Update {
+        void run(Connection connection) throws SQLException, IOException;
+    }
+
+    /**
+     * The connection of a transaction of a JdbcStorage.
+     */
+    public static Connection connection(StoreTransaction tx) {
+        return ((Transaction) tx).connection;
+    }
+
+    private static <T> T query(StoreTransaction tx, Query<T> query) throws IOException {
+        try {
+            return query.run(connection(tx));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void call(StoreTransaction tx, Update update) throws IOException {
+        try {
+            update.run(connection(tx));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void init(boolean clear) throws IOException {
+        try (StoreTransaction tx = begin()) {
+            call(tx, connection -> {
+                if (clear) {
+                    Database.clearDb(connection);
+                }
+                Database.initDb(connection);
+                connection.commit();
+            });
+        }
+    }
+
+    @Override
+    public StoreTransaction begin() throws IOException {
+        try {
+            return new Transaction(Database.createConnection(EnumSet.of(READ_WRITE)));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public StoreTransaction beginReadOnly() throws IOException {
+        try {
+            return new Transaction(Database.createConnection(EnumSet.of(READ_ONLY)));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void save(StoreTransaction tx, List<? extends Event> events) throws IOException {
+        call(tx, connection -> Event.saveAll(connection, events));
+    }
+
+    @Override
+    public Optional<Event> loadUnique(StoreTransaction tx, Class<? extends Event> eventType) throws IOException {
+        return query(tx, connection -> Event.loadUnique(connection, eventType));
+    }
+
+    @Override
+    public void setRemoved(StoreTransaction tx, Event event, boolean removed) throws IOException {
+        call(tx, connection -> event.setRemoved(connection, removed));
+    }
+
+    @Override
+    public EventCursor cursorAll(StoreTransaction tx, int fetchSize) throws IOException {
+        return query(tx, connection -> Event.cursorAll(connection, fetchSize));
+    }
+
+    @Override
+    public EventCursor cursorAfter(StoreTransaction tx, Instant time, long id, int fetchSize) throws IOException {
+        return query(tx, connection -> Event.cursorAfter(connection, time, id, fetchSize));
+    }
+
+    @Override
+    public void loadUpdateCounts(StoreTransaction tx, int readerId, int fetchSize,
+                                 LongConsumer consumer) throws IOException {
+        call(tx, connection -> TagSeenEvent.loadUpdateCounts(connection, readerId, fetchSize, consumer));
+    }
+
+    @Override
+    public void save(StoreTransaction tx, Snapshot snapshot) throws IOException {
+        call(tx, snapshot::save);
+    }
+
+    @Override
+    public Optional<Snapshot> loadLatestCheckpoint(StoreTransaction tx) throws IOException {
+        return query(tx, Snapshot::loadLatestCheckpoint);
+    }
+
+    @Override
+    public Optional<Snapshot> loadBefore(StoreTransaction tx, Instant time) throws IOException {
+        return query(tx, connection -> Snapshot.loadBefore(connection, time));
+    }
+
+    @Override
+    public void deleteAfter(StoreTransaction tx, Snapshot snapshot) throws IOException {
+        call(tx, connection -> Snapshot.deleteAfter(connection, snapshot));
+    }
+
+    @Override
+    public int compact(StoreTransaction tx, Duration retention, Duration interval, int maxDeleted) throws IOException {
+        return query(tx, connection -> Snapshot.compact(connection, retention, interval, maxDeleted));
+    }
+
+    @Override
+    public void reclaimSpace(StoreTransaction tx) throws IOException {
+        call(tx, connection -> Database.vacuum(connection, "snapshots", "teamStates"));
+    }
+
+    /**
+     * The connections are pooled by Database, there's nothing to close here.
+     */
+    @Override
+    public void close() {
+    }
+}
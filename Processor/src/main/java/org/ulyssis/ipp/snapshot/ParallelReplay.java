@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * = Parallel replay of events
+ *
+ * Replays a list of events on top of a snapshot, like applying them one by
+ * one would, but computes the states of the teams in parallel.
+ *
+ * The events are split at every event that isn't a TeamEvent. These are
+ * applied as usual. Between two of them, the tag map, start and end time and
+ * status can't change, so every team's chain of states only depends on the
+ * events of that team, and the chains are computed on a ForkJoinPool. The
+ * chains are then merged back into TeamStates, so that the resulting snapshot
+ * serializes to exactly the same JSON as when applying the events one by one.
+ *
+ * Only the final snapshot is computed, not the ones in between.
+ */
+public final class ParallelReplay {
+    /**
+     * Runs of fewer team events than this are applied one by one
+     */
+    private static final int MIN_PARALLEL_EVENTS = 256;
+
+    private static final class TeamChain {
+        final int teamNb;
+        final int[] indices;
+        final TeamState[] states;
+
+        TeamChain(int teamNb, int[] indices) {
+            this.teamNb = teamNb;
+            this.indices = indices;
+            this.states = new TeamState[indices.length];
+        }
+
+        /**
+         * The index in the chain of the last event at or before the given index in the run, or -1
+         */
+        int lastAtOrBefore(int index) {
+            int i = indices.length - 1;
+            while (i >= 0 && indices[i] > index) i--;
+            return i;
+        }
+    }
+
+    private ParallelReplay() {
+    }
+
+    /**
+     * Apply the given events, in order, to the given snapshot.
+     *
+     * @param before
+     *        The snapshot to start from
+     * @param events
+     *        The events to apply, without removed events
+     * @param pool
+     *        The pool to compute the team states on
+     * @return The snapshot after the last event
+     */
+    public static Snapshot replay(Snapshot before, List<Event> events, ForkJoinPool pool) {
+        Snapshot snapshot = before;
+        int start = 0;
+        while (start < events.size()) {
+            int end = start;
+            while (end < events.size() && events.get(end) instanceof TeamEvent) {
+                end++;
+            }
+            if (end - start >= MIN_PARALLEL_EVENTS) {
+                snapshot = replayTeamEvents(snapshot, events.subList(start, end), pool);
+                start = end;
+            } else {
+                snapshot = events.get(start).apply(snapshot);
+                start++;
+            }
+        }
+        return snapshot;
+    }
+
+    private static Snapshot replayTeamEvents(Snapshot before, List<Event> events, ForkJoinPool pool) {
+        Map<Integer, List<Integer>> indicesPerTeam = new HashMap<>();
+        int lastTagSeen = -1;
+        // Applying an event without a team doesn't create a new snapshot if there is no event id yet
+        Instant time = before.getSnapshotTime();
+        boolean hasEventId = before.getEventId().isPresent();
+        for (int i = 0; i < events.size(); i++) {
+            TeamEvent event = (TeamEvent) events.get(i);
+            Optional<Integer> teamNb = event.affectedTeam(before);
+            if (teamNb.isPresent()) {
+                indicesPerTeam.computeIfAbsent(teamNb.get(), nb -> new ArrayList<>()).add(i);
+                if (event instanceof TagSeenEvent) {
+                    lastTagSeen = i;
+                }
+            }
+            if (teamNb.isPresent() || hasEventId) {
+                time = event.getTime();
+            }
+            hasEventId = event.getId().isPresent();
+        }
+        List<Callable<TeamChain>> tasks = new ArrayList<>();
+        indicesPerTeam.forEach((teamNb, indices) -> tasks.add(() -> {
+            TeamChain chain = new TeamChain(teamNb, indices.stream().mapToInt(Integer::intValue).toArray());
+            TeamState state = before.getTeamStates().getStateForTeam(teamNb).orElseGet(TeamState::new);
+            for (int i = 0; i < chain.indices.length; i++) {
+                state = ((TeamEvent) events.get(chain.indices[i])).nextTeamState(before, state);
+                chain.states[i] = state;
+            }
+            return chain;
+        }));
+        List<TeamChain> chains = new ArrayList<>();
+        try {
+            for (Future<TeamChain> future : pool.invokeAll(tasks)) {
+                chains.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during parallel replay", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Error during parallel replay", e.getCause());
+        }
+        TeamStates teamStates = merge(before.getTeamStates(), chains, events.size() - 1);
+        Snapshot.Builder builder = Snapshot.builder(time, before).withTeamStates(teamStates);
+        if (before.getStatus().isPublic() && lastTagSeen != -1) {
+            // Reads update the public states to the team states at that point
+            builder.withPublicTeamStates(lastTagSeen == events.size() - 1 ? teamStates :
+                    merge(before.getTeamStates(), chains, lastTagSeen));
+        }
+        Snapshot result = builder.build();
+        result.eventId = events.get(events.size() - 1).getId().orElse(-1L);
+        return result;
+    }
+
+    /**
+     * The team states after the event at the given index in the run.
+     */
+    private static TeamStates merge(TeamStates before, List<TeamChain> chains, int index) {
+        TeamStates result = before;
+        for (TeamChain chain : chains) {
+            int last = chain.lastAtOrBefore(index);
+            if (last >= 0) {
+                result = result.setStateForTeam(chain.teamNb, chain.states[last]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,1078 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * = Storage in local segment files
+ *
+ * Stores the events and snapshots in a directory, without a database, so a
+ * processor can run on its own (on a Raspberry Pi at a checkpoint, say).
+ * Nothing is ever updated in place: every commit appends one frame to the
+ * event segments, and one to the snapshot file if it stored or deleted
+ * snapshots. A frame is
+ *
+ *   [int length][int CRC-32 of the commit number and the payload][long commit number][payload]
+ *
+ * like the frames of the write-ahead log, and its payload is a sequence of
+ * records: an event, a change of the removed flag of an event, a snapshot,
+ * or a deletion of snapshots.
+ *
+ * The event segments are named after the first commit in them, and a new
+ * segment is started when one is full. Only a sparse index is kept in
+ * memory: for every run of about BLOCK_EVENTS events in a segment, the
+ * range of the segment and the latest event time in it. Events mostly
+ * arrive in time order, so finding the events after a given time only reads
+ * the blocks at the end. The events that are found are sorted in memory,
+ * and read one by one as the cursor gets to them.
+ *
+ * The snapshots are checkpoints like in the database, and all of them are
+ * indexed in memory, by time, without their data. Compacting appends
+ * deletions, reclaimSpace rewrites the file with the snapshots that are left.
+ *
+ * The snapshot frame of a commit is synced before the event frame, and a
+ * snapshot only counts if the event frame of its commit made it to disk, so
+ * there are never checkpoints for events that were lost. Deletions always
+ * count, deleting snapshots doesn't lose anything. When opening the storage,
+ * the files end at the first frame that doesn't check out.
+ *
+ * Expects a single writer: the processing thread, or the compactor while
+ * it holds the processing lock. The changes of a transaction are visible
+ * to it right away, its events only to its own cursors. Other transactions
+ * see its removed flags and snapshots before it commits, which only matters
+ * for the update counts of readers, and those are read from the files.
+ */
+public final class SegmentStorage implements Storage {
+    private static final Logger LOG = LogManager.getLogger(SegmentStorage.class);
+
+    /**
+     * The size after which a new event segment is started
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    /**
+     * The number of events after which a new block of the sparse index is started
+     */
+    static final int BLOCK_EVENTS = 256;
+
+    private static final int HEADER_SIZE = 16;
+    private static final String PREFIX = "events-";
+    private static final String SUFFIX = ".seg";
+    private static final String SNAPSHOTS = "snapshots.seg";
+    private static final String SNAPSHOTS_REWRITE = "snapshots.seg.new";
+
+    private static final byte EVENT = 1;
+    private static final byte REMOVED = 2;
+    private static final byte SNAPSHOT = 3;
+    private static final byte DELETE_AFTER = 4;
+    private static final byte DELETE = 5;
+
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        long size;
+
+        Segment(Path path, FileChannel channel, long size) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An entry of the sparse index: a range of whole frames in a segment
+     */
+    private static final class Block {
+        final Segment segment;
+        final long start;
+        long end;
+        int events = 0;
+        Instant maxTime = Instant.MIN;
+
+        Block(Segment segment, long start) {
+            this.segment = segment;
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    /**
+     * A stored event, either in a segment, or (if it isn't committed) in memory
+     */
+    private static final class EventRef {
+        final Instant time;
+        final long id;
+        final Segment segment;
+        final long offset;
+        final int length;
+        final Event event;
+
+        EventRef(Instant time, long id, Segment segment, long offset, int length) {
+            this.time = time;
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.event = null;
+        }
+
+        EventRef(Event event) {
+            this.time = event.getTime();
+            this.id = event.getId().get();
+            this.segment = null;
+            this.offset = -1L;
+            this.length = 0;
+            this.event = event;
+        }
+    }
+
+    /**
+     * The fields of an event record, without the JSON of the event. An event
+     * record is
+     *
+     *   [long id][long epoch second][int nano][int reader id][long update count][boolean unique]
+     *   [short length][type][int length][JSON]
+     *
+     * after its kind, the reader id and update count are -1 for other events than reads.
+     */
+    private static final class EventHeader {
+        long id;
+        Instant time;
+        int readerId;
+        long updateCount;
+        boolean unique;
+        String type;
+        int jsonOffset;
+        int jsonLength;
+
+        /**
+         * Read the record that starts after the kind, leaving the buffer at the end of it.
+         */
+        static EventHeader read(ByteBuffer buffer) {
+            EventHeader header = new EventHeader();
+            header.id = buffer.getLong();
+            header.time = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            header.readerId = buffer.getInt();
+            header.updateCount = buffer.getLong();
+            header.unique = buffer.get() != 0;
+            header.type = readString(buffer);
+            header.jsonLength = buffer.getInt();
+            header.jsonOffset = buffer.position();
+            buffer.position(header.jsonOffset + header.jsonLength);
+            return header;
+        }
+    }
+
+    /**
+     * Skip a record that changes a removed flag, which is
+     *
+     *   [long id][boolean removed][short length][type]
+     *
+     * after its kind.
+     */
+    private static void skipRemoved(ByteBuffer buffer) {
+        buffer.position(buffer.position() + 8 + 1);
+        readString(buffer);
+    }
+
+    private static final Comparator<EventRef> EVENT_ORDER =
+            Comparator.<EventRef, Instant>comparing(ref -> ref.time).thenComparingLong(ref -> ref.id);
+
+    /**
+     * A stored snapshot, the snapshot itself is only kept until it's committed
+     */
+    private static final class SnapshotEntry {
+        final long id;
+        final long eventId;
+        final Instant time;
+        long commit;
+        long offset;
+        int length;
+        Snapshot pending;
+
+        SnapshotEntry(long id, long eventId, Instant time) {
+            this.id = id;
+            this.eventId = eventId;
+            this.time = time;
+        }
+    }
+
+    private static final Comparator<SnapshotEntry> SNAPSHOT_ORDER = Comparator
+            .<SnapshotEntry, Instant>comparing(entry -> entry.time)
+            .thenComparingLong(entry -> entry.eventId)
+            .thenComparingLong(entry -> entry.id);
+
+    private final class Transaction implements StoreTransaction {
+        final ByteArrayOutputStream eventBytes = new ByteArrayOutputStream();
+        final DataOutputStream eventOut = new DataOutputStream(eventBytes);
+        final ByteArrayOutputStream snapshotBytes = new ByteArrayOutputStream();
+        final DataOutputStream snapshotOut = new DataOutputStream(snapshotBytes);
+        /**
+         * The saved events, with the offsets of their records in the payload
+         */
+        final List<EventRef> events = new ArrayList<>();
+        final List<Integer> eventOffsets = new ArrayList<>();
+        final List<SnapshotEntry> snapshots = new ArrayList<>();
+        /**
+         * Undoes the changes to the indexes, in reverse order
+         */
+        final List<Runnable> undo = new ArrayList<>();
+        final boolean readOnly;
+
+        Transaction(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        void checkWritable() throws IOException {
+            if (readOnly) throw new IOException("Writing in a read-only transaction");
+        }
+
+        void reset() {
+            eventBytes.reset();
+            snapshotBytes.reset();
+            events.clear();
+            eventOffsets.clear();
+            snapshots.clear();
+            undo.clear();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            SegmentStorage.this.commit(this);
+        }
+
+        @Override
+        public void rollback() {
+            SegmentStorage.this.rollback(this);
+        }
+
+        @Override
+        public void close() {
+            rollback();
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ObjectMapper mapper = Serialization.getJsonMapper();
+
+    /**
+     * The event segments, the last one is appended to
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Block> blocks = new ArrayList<>();
+    private FileChannel snapshotChannel = null;
+    private long snapshotFileSize = 0L;
+    /**
+     * The number of bytes in the snapshot file that belong to snapshots that
+     * are left, the rest can be reclaimed
+     */
+    private long liveSnapshotBytes = 0L;
+
+    private long lastCommit = 0L;
+    private long nextEventId = 1L;
+    private long nextSnapshotId = 1L;
+    private final Set<Long> removedEvents = new HashSet<>();
+    /**
+     * The unique events, by id, and the one that isn't removed for every type, for loadUnique
+     */
+    private final Map<Long, EventRef> uniqueEvents = new HashMap<>();
+    private final Map<String, EventRef> uniqueByType = new HashMap<>();
+    private final TreeSet<SnapshotEntry> snapshots = new TreeSet<>(SNAPSHOT_ORDER);
+    private final Map<Long, SnapshotEntry> snapshotsById = new HashMap<>();
+
+    public SegmentStorage(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SegmentStorage(Path directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public synchronized void init(boolean clear) throws IOException {
+        close();
+        segments.clear();
+        blocks.clear();
+        removedEvents.clear();
+        uniqueEvents.clear();
+        uniqueByType.clear();
+        snapshots.clear();
+        snapshotsById.clear();
+        lastCommit = 0L;
+        nextEventId = 1L;
+        nextSnapshotId = 1L;
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring {} in the storage directory", name);
+                }
+            }
+        }
+        if (clear) {
+            for (Path path : files.values()) {
+                Files.delete(path);
+            }
+            files.clear();
+            Files.deleteIfExists(directory.resolve(SNAPSHOTS));
+        }
+        Files.deleteIfExists(directory.resolve(SNAPSHOTS_REWRITE));
+        boolean torn = false;
+        for (Path path : files.values()) {
+            if (torn) {
+                LOG.error("Segment {} comes after a torn frame, deleting it", path);
+                Files.delete(path);
+                continue;
+            }
+            Segment segment = openSegment(path);
+            segments.add(segment);
+            long end = scan(segment.channel, (commit, position, payload) -> {
+                indexEvents(segment, position, commit, payload, null);
+                lastCommit = commit;
+            });
+            if (end < segment.size) {
+                LOG.warn("The events end in a torn frame in {} at {}, truncating it", path, end);
+                segment.channel.truncate(end);
+                segment.channel.force(true);
+                segment.size = end;
+                torn = true;
+            }
+        }
+        openSnapshots();
+        long events = blocks.stream().mapToLong(block -> block.events).sum();
+        LOG.info("Opened the storage in {}: {} events in {} segments, {} snapshots", directory, events,
+                segments.size(), snapshots.size());
+    }
+
+    private interface FrameVisitor {
+        void visit(long commit, long position, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Visit the valid frames in the given file.
+     *
+     * @return The position after the last valid frame
+     */
+    private static long scan(FileChannel channel, FrameVisitor visitor) throws IOException {
+        long size = channel.size();
+        long position = 0L;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            long commit = header.getLong(8);
+            if (length < 0 || length > size - position - HEADER_SIZE || commit <= 0L) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(header.array(), 8, 8);
+            crc.update(payload.array());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            visitor.visit(commit, position, payload);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static long appendFrame(FileChannel channel, long position, long commit, byte[] payload) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(commit).array());
+        crc.update(payload);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.putLong(commit);
+        frame.put(payload);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame, position + frame.position());
+        }
+        return position + HEADER_SIZE + payload.length;
+    }
+
+    private Segment openSegment(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(path, channel, channel.size());
+    }
+
+    private void addSegment(long firstCommit) throws IOException {
+        segments.add(openSegment(directory.resolve(String.format("%s%020d%s", PREFIX, firstCommit, SUFFIX))));
+        syncDirectory();
+    }
+
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOG.debug("Couldn't sync the storage directory", e);
+        }
+    }
+
+    /**
+     * Add the events in the given frame to the sparse index, and apply
+     * the changes to the removed flags.
+     *
+     * @param saved
+     *        The events in the frame, when it was just written, or null when scanning
+     */
+    private void indexEvents(Segment segment, long position, long commit, ByteBuffer payload,
+                             List<EventRef> saved) {
+        Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || block.segment != segment || block.end != position || block.events >= BLOCK_EVENTS) {
+            block = new Block(segment, position);
+            blocks.add(block);
+        }
+        block.end = position + HEADER_SIZE + payload.limit();
+        int index = 0;
+        while (payload.hasRemaining()) {
+            int offset = payload.position();
+            byte kind = payload.get();
+            if (kind == EVENT) {
+                EventHeader header = EventHeader.read(payload);
+                block.events++;
+                if (header.time.isAfter(block.maxTime)) {
+                    block.maxTime = header.time;
+                }
+                nextEventId = Math.max(nextEventId, header.id + 1L);
+                EventRef ref = saved != null ? saved.get(index++) : new EventRef(header.time, header.id, segment,
+                        position + HEADER_SIZE + offset, payload.position() - offset);
+                if (header.unique) {
+                    uniqueEvents.put(header.id, ref);
+                    if (!removedEvents.contains(header.id)) {
+                        uniqueByType.put(header.type, ref);
+                    }
+                }
+            } else if (kind == REMOVED) {
+                long id = payload.getLong();
+                boolean removed = payload.get() != 0;
+                String type = readString(payload);
+                if (saved == null) {
+                    // When the frame was just written, this has been done already
+                    markRemoved(id, type, removed, null);
+                }
+            } else {
+                LOG.error("Unknown record {} in commit {}, skipping the rest of it", kind, commit);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Load the snapshot index from the snapshot file. Snapshots from commits
+     * whose events didn't make it to disk are dropped, by rewriting the file.
+     */
+    private void openSnapshots() throws IOException {
+        Path path = directory.resolve(SNAPSHOTS);
+        snapshotChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        liveSnapshotBytes = 0L;
+        boolean[] dropped = { false };
+        long[] latestCommit = { lastCommit };
+        long end = scan(snapshotChannel, (commit, position, payload) -> {
+            latestCommit[0] = Math.max(latestCommit[0], commit);
+            while (payload.hasRemaining()) {
+                int offset = payload.position();
+                byte kind = payload.get();
+                if (kind == SNAPSHOT) {
+                    SnapshotEntry entry = new SnapshotEntry(payload.getLong(), payload.getLong(),
+                            Instant.ofEpochSecond(payload.getLong(), payload.getInt()));
+                    int length = payload.getInt();
+                    payload.position(payload.position() + length);
+                    nextSnapshotId = Math.max(nextSnapshotId, entry.id + 1L);
+                    if (commit > lastCommit) {
+                        dropped[0] = true;
+                        continue;
+                    }
+                    entry.commit = commit;
+                    entry.offset = position + HEADER_SIZE + offset;
+                    entry.length = payload.position() - offset;
+                    addSnapshot(entry);
+                } else if (kind == DELETE_AFTER) {
+                    Instant time = Instant.ofEpochSecond(payload.getLong(), payload.getInt());
+                    long eventId = payload.getLong();
+                    for (SnapshotEntry entry : new ArrayList<>(snapshotsAfter(time, eventId))) {
+                        removeSnapshot(entry);
+                    }
+                } else if (kind == DELETE) {
+                    SnapshotEntry entry = snapshotsById.get(payload.getLong());
+                    if (entry != null) {
+                        removeSnapshot(entry);
+                    }
+                } else {
+                    LOG.error("Unknown record {} in commit {} of the snapshots, skipping the rest of it", kind, commit);
+                    break;
+                }
+            }
+        });
+        snapshotFileSize = snapshotChannel.size();
+        // Never reuse the commit number of a dropped snapshot frame
+        lastCommit = latestCommit[0];
+        if (end < snapshotFileSize || dropped[0]) {
+            LOG.warn("Dropping the snapshots after commit {} in {}", lastCommit, path);
+            snapshotFileSize = end;
+            rewriteSnapshots();
+        }
+    }
+
+    private void addSnapshot(SnapshotEntry entry) {
+        snapshots.add(entry);
+        snapshotsById.put(entry.id, entry);
+        liveSnapshotBytes += entry.length;
+    }
+
+    private void removeSnapshot(SnapshotEntry entry) {
+        snapshots.remove(entry);
+        snapshotsById.remove(entry.id);
+        liveSnapshotBytes -= entry.length;
+    }
+
+    private Set<SnapshotEntry> snapshotsAfter(Instant time, long eventId) {
+        SnapshotEntry probe = new SnapshotEntry(Long.MAX_VALUE, eventId, time);
+        return snapshots.tailSet(probe, false);
+    }
+
+    /**
+     * Write the snapshots that are left to a new file, and replace the
+     * snapshot file with it.
+     */
+    private void rewriteSnapshots() throws IOException {
+        Path path = directory.resolve(SNAPSHOTS);
+        Path rewrite = directory.resolve(SNAPSHOTS_REWRITE);
+        long size = 0L;
+        Map<SnapshotEntry, Long> offsets = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(rewrite, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (SnapshotEntry entry : snapshots) {
+                ByteBuffer record = ByteBuffer.allocate(entry.length);
+                readFully(snapshotChannel, record, entry.offset);
+                offsets.put(entry, size + HEADER_SIZE);
+                size = appendFrame(channel, size, entry.commit, record.array());
+            }
+            channel.force(true);
+        }
+        snapshotChannel.close();
+        Files.move(rewrite, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        snapshotChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        snapshotFileSize = size;
+        for (Map.Entry<SnapshotEntry, Long> offset : offsets.entrySet()) {
+            offset.getKey().offset = offset.getValue();
+        }
+        LOG.debug("Rewrote the snapshots, {} left in {} bytes", snapshots.size(), size);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Transaction transaction(StoreTransaction tx) {
+        return (Transaction) tx;
+    }
+
+    @Override
+    public synchronized StoreTransaction begin() throws IOException {
+        if (snapshotChannel == null) throw new IOException("The storage in " + directory + " isn't open");
+        return new Transaction(false);
+    }
+
+    @Override
+    public synchronized StoreTransaction beginReadOnly() throws IOException {
+        if (snapshotChannel == null) throw new IOException("The storage in " + directory + " isn't open");
+        return new Transaction(true);
+    }
+
+    private synchronized void commit(Transaction tx) throws IOException {
+        if (tx.eventBytes.size() == 0 && tx.snapshotBytes.size() == 0) {
+            tx.reset();
+            return;
+        }
+        long commit = lastCommit + 1L;
+        long snapshotSize = snapshotFileSize;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        long segmentEnd = segment != null ? segment.size : 0L;
+        try {
+            if (tx.snapshotBytes.size() > 0) {
+                snapshotFileSize = appendFrame(snapshotChannel, snapshotFileSize, commit, tx.snapshotBytes.toByteArray());
+                snapshotChannel.force(false);
+            }
+            // Even without events, a frame is needed for the snapshots of this commit to count
+            if (tx.eventBytes.size() > 0 || !tx.snapshots.isEmpty()) {
+                byte[] payload = tx.eventBytes.toByteArray();
+                if (segment == null || (segment.size > 0L && segment.size + HEADER_SIZE + payload.length > segmentSize)) {
+                    addSegment(commit);
+                    segment = segments.get(segments.size() - 1);
+                    segmentEnd = 0L;
+                }
+                long position = segment.size;
+                segment.size = appendFrame(segment.channel, position, commit, payload);
+                segment.channel.force(false);
+                List<EventRef> saved = new ArrayList<>();
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                for (int i = 0; i < tx.events.size(); i++) {
+                    EventRef ref = tx.events.get(i);
+                    int offset = tx.eventOffsets.get(i);
+                    buffer.position(offset + 1);
+                    EventHeader.read(buffer);
+                    saved.add(new EventRef(ref.time, ref.id, segment, position + HEADER_SIZE + offset,
+                            buffer.position() - offset));
+                }
+                indexEvents(segment, position, commit, ByteBuffer.wrap(payload), saved);
+            }
+        } catch (IOException e) {
+            // Whatever made it to disk doesn't count, undo it as well as we can, and
+            // don't use the commit number again, in case the snapshot frame stays
+            lastCommit = commit;
+            snapshotFileSize = snapshotSize;
+            snapshotChannel.truncate(snapshotSize);
+            if (segment != null) {
+                segment.size = segmentEnd;
+                segment.channel.truncate(segmentEnd);
+            }
+            throw e;
+        }
+        long snapshotStart = snapshotFileSize - tx.snapshotBytes.size();
+        for (SnapshotEntry entry : tx.snapshots) {
+            entry.commit = commit;
+            entry.offset += snapshotStart;
+            entry.pending = null;
+            if (snapshotsById.get(entry.id) == entry) {
+                liveSnapshotBytes += entry.length;
+            }
+        }
+        lastCommit = commit;
+        tx.reset();
+    }
+
+    private synchronized void rollback(Transaction tx) {
+        for (int i = tx.undo.size() - 1; i >= 0; i--) {
+            tx.undo.get(i).run();
+        }
+        tx.reset();
+    }
+
+    @Override
+    public synchronized void save(StoreTransaction st, List<? extends Event> events) throws IOException {
+        Transaction tx = transaction(st);
+        tx.checkWritable();
+        for (Event event : events) {
+            if (event.getId().isPresent()) continue;
+            byte[] json = mapper.writeValueAsBytes(event);
+            long id = nextEventId++;
+            String type = event.getClass().getSimpleName();
+            int offset = tx.eventBytes.size();
+            tx.eventOut.writeByte(EVENT);
+            tx.eventOut.writeLong(id);
+            tx.eventOut.writeLong(event.getTime().getEpochSecond());
+            tx.eventOut.writeInt(event.getTime().getNano());
+            if (event instanceof TagSeenEvent) {
+                tx.eventOut.writeInt(((TagSeenEvent) event).getReaderId());
+                tx.eventOut.writeLong(((TagSeenEvent) event).getUpdateCount());
+            } else {
+                tx.eventOut.writeInt(-1);
+                tx.eventOut.writeLong(-1L);
+            }
+            tx.eventOut.writeBoolean(event.isUnique());
+            writeString(tx.eventOut, type);
+            tx.eventOut.writeInt(json.length);
+            tx.eventOut.write(json);
+            event.setStored(id, false);
+            EventRef ref = new EventRef(event);
+            tx.events.add(ref);
+            tx.eventOffsets.add(offset);
+            if (event.isUnique()) {
+                uniqueEvents.put(id, ref);
+                EventRef before = uniqueByType.put(type, ref);
+                tx.undo.add(() -> {
+                    uniqueEvents.remove(id);
+                    restore(uniqueByType, type, before);
+                });
+            }
+        }
+    }
+
+    private static <K, V> void restore(Map<K, V> map, K key, V value) {
+        if (value != null) {
+            map.put(key, value);
+        } else {
+            map.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized Optional<Event> loadUnique(StoreTransaction tx, Class<? extends Event> eventType)
+            throws IOException {
+        EventRef ref = uniqueByType.get(eventType.getSimpleName());
+        return ref == null ? Optional.empty() : Optional.of(read(ref));
+    }
+
+    @Override
+    public synchronized void setRemoved(StoreTransaction st, Event event, boolean removed) throws IOException {
+        if (!event.isRemovable()) {
+            assert false; // This is a programming error
+            return;
+        }
+        Transaction tx = transaction(st);
+        tx.checkWritable();
+        long id = event.getId().get();
+        String type = event.getClass().getSimpleName();
+        tx.eventOut.writeByte(REMOVED);
+        tx.eventOut.writeLong(id);
+        tx.eventOut.writeBoolean(removed);
+        writeString(tx.eventOut, type);
+        markRemoved(id, type, removed, tx);
+        event.setStored(id, removed);
+    }
+
+    private void markRemoved(long id, String type, boolean removed, Transaction tx) {
+        boolean wasRemoved = removedEvents.contains(id);
+        EventRef before = uniqueByType.get(type);
+        if (removed) {
+            removedEvents.add(id);
+            if (before != null && before.id == id) {
+                uniqueByType.remove(type);
+            }
+        } else {
+            removedEvents.remove(id);
+            EventRef ref = uniqueEvents.get(id);
+            if (ref != null) {
+                uniqueByType.put(type, ref);
+            }
+        }
+        if (tx != null) {
+            tx.undo.add(() -> {
+                if (wasRemoved) {
+                    removedEvents.add(id);
+                } else {
+                    removedEvents.remove(id);
+                }
+                restore(uniqueByType, type, before);
+            });
+        }
+    }
+
+    @Override
+    public EventCursor cursorAll(StoreTransaction tx, int fetchSize) throws IOException {
+        return cursor(transaction(tx), Instant.MIN, Long.MIN_VALUE);
+    }
+
+    @Override
+    public EventCursor cursorAfter(StoreTransaction tx, Instant time, long id, int fetchSize) throws IOException {
+        return cursor(transaction(tx), time, id);
+    }
+
+    /**
+     * Find the events after the given time and id, in the blocks that have
+     * events at or after that time, and in the transaction. The events are
+     * only read when the cursor gets to them, so the fetch size is ignored.
+     */
+    private synchronized EventCursor cursor(Transaction tx, Instant time, long id) throws IOException {
+        List<EventRef> refs = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block.maxTime.isBefore(time)) continue;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (block.end - block.start));
+            readFully(block.segment.channel, buffer, block.start);
+            while (buffer.hasRemaining()) {
+                int length = buffer.getInt();
+                buffer.position(buffer.position() + HEADER_SIZE - 4);
+                int end = buffer.position() + length;
+                while (buffer.position() < end) {
+                    int offset = buffer.position();
+                    if (buffer.get() == EVENT) {
+                        EventHeader header = EventHeader.read(buffer);
+                        if (header.time.isAfter(time) || (header.time.equals(time) && header.id > id)) {
+                            refs.add(new EventRef(header.time, header.id, block.segment, block.start + offset,
+                                    buffer.position() - offset));
+                        }
+                    } else {
+                        skipRemoved(buffer);
+                    }
+                }
+            }
+        }
+        for (EventRef ref : tx.events) {
+            if (ref.time.isAfter(time) || (ref.time.equals(time) && ref.id > id)) {
+                refs.add(ref);
+            }
+        }
+        refs.sort(EVENT_ORDER);
+        Iterator<EventRef> iterator = refs.iterator();
+        return new EventCursor() {
+            @Override
+            protected Event fetch() throws IOException {
+                return iterator.hasNext() ? read(iterator.next()) : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Read the event that the given reference refers to.
+     */
+    private Event read(EventRef ref) throws IOException {
+        if (ref.event != null) {
+            return ref.event;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ref.length);
+        readFully(ref.segment.channel, buffer, ref.offset);
+        buffer.get();
+        EventHeader header = EventHeader.read(buffer);
+        Event event = mapper.readValue(buffer.array(), header.jsonOffset, header.jsonLength, Event.class);
+        if (event instanceof TagSeenEvent) {
+            // The update count isn't part of the JSON
+            TagSeenEvent read = (TagSeenEvent) event;
+            event = new TagSeenEvent(read.getTime(), read.getTag(), read.getReaderId(), header.updateCount);
+        }
+        boolean removed;
+        synchronized (this) {
+            removed = removedEvents.contains(ref.id);
+        }
+        event.setStored(ref.id, removed);
+        return event;
+    }
+
+    /**
+     * Reads the update counts from the segments, so the events of transactions
+     * that weren't committed aren't included.
+     */
+    @Override
+    public synchronized void loadUpdateCounts(StoreTransaction tx, int readerId, int fetchSize,
+                                              LongConsumer consumer) throws IOException {
+        List<Long> updateCounts = new ArrayList<>();
+        for (Segment segment : segments) {
+            scan(segment.channel, (commit, position, payload) -> {
+                while (payload.hasRemaining()) {
+                    if (payload.get() == EVENT) {
+                        EventHeader header = EventHeader.read(payload);
+                        if (header.readerId == readerId) {
+                            updateCounts.add(header.updateCount);
+                        }
+                    } else {
+                        skipRemoved(payload);
+                    }
+                }
+            });
+        }
+        Collections.sort(updateCounts);
+        updateCounts.forEach(consumer::accept);
+    }
+
+    @Override
+    public synchronized void save(StoreTransaction st, Snapshot snapshot) throws IOException {
+        if (snapshot.getId().isPresent()) return;
+        Transaction tx = transaction(st);
+        tx.checkWritable();
+        byte[] json = mapper.writeValueAsBytes(snapshot);
+        SnapshotEntry entry = new SnapshotEntry(nextSnapshotId++, snapshot.eventId, snapshot.getSnapshotTime());
+        entry.offset = tx.snapshotBytes.size();
+        tx.snapshotOut.writeByte(SNAPSHOT);
+        tx.snapshotOut.writeLong(entry.id);
+        tx.snapshotOut.writeLong(entry.eventId);
+        tx.snapshotOut.writeLong(entry.time.getEpochSecond());
+        tx.snapshotOut.writeInt(entry.time.getNano());
+        tx.snapshotOut.writeInt(json.length);
+        tx.snapshotOut.write(json);
+        entry.length = (int) (tx.snapshotBytes.size() - entry.offset);
+        entry.pending = snapshot;
+        snapshots.add(entry);
+        snapshotsById.put(entry.id, entry);
+        tx.snapshots.add(entry);
+        tx.undo.add(() -> {
+            snapshots.remove(entry);
+            snapshotsById.remove(entry.id);
+        });
+        snapshot.setStored(entry.id, entry.eventId);
+    }
+
+    @Override
+    public synchronized Optional<Snapshot> loadLatestCheckpoint(StoreTransaction tx) throws IOException {
+        return snapshots.isEmpty() ? Optional.empty() : Optional.of(read(snapshots.last()));
+    }
+
+    @Override
+    public synchronized Optional<Snapshot> loadBefore(StoreTransaction tx, Instant time) throws IOException {
+        SnapshotEntry entry = snapshots.lower(new SnapshotEntry(Long.MIN_VALUE, Long.MIN_VALUE, time));
+        return entry == null ? Optional.empty() : Optional.of(read(entry));
+    }
+
+    private Snapshot read(SnapshotEntry entry) throws IOException {
+        if (entry.pending != null) {
+            return entry.pending;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(snapshotChannel, buffer, entry.offset);
+        int offset = 1 + 8 + 8 + 8 + 4;
+        int length = buffer.getInt(offset);
+        Snapshot snapshot = mapper.readValue(buffer.array(), offset + 4, length, Snapshot.class);
+        snapshot.setStored(entry.id, entry.eventId);
+        return snapshot;
+    }
+
+    @Override
+    public synchronized void deleteAfter(StoreTransaction st, Snapshot snapshot) throws IOException {
+        Transaction tx = transaction(st);
+        tx.checkWritable();
+        long eventId = snapshot.getEventId().orElse(-1L);
+        tx.snapshotOut.writeByte(DELETE_AFTER);
+        tx.snapshotOut.writeLong(snapshot.getSnapshotTime().getEpochSecond());
+        tx.snapshotOut.writeInt(snapshot.getSnapshotTime().getNano());
+        tx.snapshotOut.writeLong(eventId);
+        for (SnapshotEntry entry : new ArrayList<>(snapshotsAfter(snapshot.getSnapshotTime(), eventId))) {
+            delete(tx, entry);
+        }
+    }
+
+    private void delete(Transaction tx, SnapshotEntry entry) {
+        snapshots.remove(entry);
+        snapshotsById.remove(entry.id);
+        if (entry.pending == null) {
+            liveSnapshotBytes -= entry.length;
+        }
+        tx.undo.add(() -> {
+            snapshots.add(entry);
+            snapshotsById.put(entry.id, entry);
+            if (entry.pending == null) {
+                liveSnapshotBytes += entry.length;
+            }
+        });
+    }
+
+    /**
+     * Like Snapshot.compact, there are no team rows to take care of here.
+     */
+    @Override
+    public synchronized int compact(StoreTransaction st, Duration retention, Duration interval, int maxDeleted)
+            throws IOException {
+        Transaction tx = transaction(st);
+        tx.checkWritable();
+        if (snapshots.isEmpty()) return 0;
+        Instant before = snapshots.last().time.minus(retention);
+        long intervalMillis = Math.max(1L, interval.toMillis());
+        List<SnapshotEntry> toDelete = new ArrayList<>();
+        long bucket = Long.MAX_VALUE;
+        for (SnapshotEntry entry : snapshots.headSet(new SnapshotEntry(Long.MIN_VALUE, Long.MIN_VALUE, before), false)
+                .descendingSet()) {
+            if (toDelete.size() >= maxDeleted) break;
+            long entryBucket = Math.floorDiv(entry.time.toEpochMilli(), intervalMillis);
+            if (entryBucket != bucket) {
+                // The latest snapshot in the interval, keep it
+                bucket = entryBucket;
+            } else {
+                toDelete.add(entry);
+            }
+        }
+        for (SnapshotEntry entry : toDelete) {
+            tx.snapshotOut.writeByte(DELETE);
+            tx.snapshotOut.writeLong(entry.id);
+            delete(tx, entry);
+        }
+        LOG.debug("Compacted {} snapshots before {}", toDelete.size(), before);
+        return toDelete.size();
+    }
+
+    /**
+     * Rewrite the snapshot file once most of it is deleted snapshots.
+     */
+    @Override
+    public synchronized void reclaimSpace(StoreTransaction tx) throws IOException {
+        if (liveSnapshotBytes * 2L < snapshotFileSize) {
+            rewriteSnapshots();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                LOG.error("Error while closing {}", segment.path, e);
+            }
+        }
+        if (snapshotChannel != null) {
+            try {
+                snapshotChannel.close();
+            } catch (IOException e) {
+                LOG.error("Error while closing the snapshots in {}", directory, e);
+            }
+            snapshotChannel = null;
+        }
+    }
+}
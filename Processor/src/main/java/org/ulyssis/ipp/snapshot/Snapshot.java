@@ -19,19 +19,41 @@ package org.ulyssis.ipp.snapshot;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.processor.Database;
 import org.ulyssis.ipp.updates.Status;
 import org.ulyssis.ipp.utils.Serialization;
 
 import java.io.IOException;
 import java.sql.*;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public final class Snapshot {
     private static final Logger LOG = LogManager.getLogger(Snapshot.class);
 
+    private static final String LAYOUT_FIELD = "layout";
+    private static final String PER_TEAM_LAYOUT = "perTeam";
+    private static final String PER_TEAM_PREFIX = "{\"" + LAYOUT_FIELD + "\":\"" + PER_TEAM_LAYOUT + "\"";
+    private static final String TEAMS_FIELD = "teams";
+
+    /**
+     * Snapshots with a lower id than this may have been deleted by compact,
+     * so they can't be used as the base of a snapshot that is stored per team.
+     */
+    private static final AtomicLong compactedBelow = new AtomicLong(-1L);
+
     public static class Builder {
         private Snapshot snapshot;
 
@@ -46,6 +68,7 @@ public final class Snapshot {
                 snapshot.statusMessage = other.statusMessage;
                 snapshot.status = other.status;
                 snapshot.updateFrequency = other.updateFrequency;
+                snapshot.storedBase = other.id != -1 ? other : other.storedBase;
             }
         }
 
@@ -100,6 +123,20 @@ public final class Snapshot {
     @JsonIgnore
     long eventId = -1;
 
+    /**
+     * The latest stored snapshot this snapshot was derived from. When storing
+     * per team, only the teams that changed since this snapshot are stored.
+     * Cleared when this snapshot is stored, so we don't keep a chain of them.
+     */
+    @JsonIgnore
+    private Snapshot storedBase = null;
+
+    /**
+     * Whether this snapshot was stored per team, and can be used as a base
+     */
+    @JsonIgnore
+    private boolean storedPerTeam = false;
+
     public Optional<Long> getId() {
         if (id != -1) return Optional.of(id);
         else return Optional.empty();
@@ -175,40 +212,107 @@ public final class Snapshot {
         return new Builder(time, other);
     }
 
+    /**
+     * Load the state right after the given event was applied.
+     *
+     * Not every state is stored in the database (see loadLatestCheckpoint),
+     * so this loads the closest checkpoint and replays the events after it.
+     */
     public static Optional<Snapshot> loadForEvent(Connection connection, Event event) throws SQLException, IOException {
-        String statement = "SELECT \"id\", \"data\" FROM \"snapshots\" WHERE \"event\" = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
-            stmt.setLong(1, event.getId().get());
-            LOG.debug("executing query: {}", stmt);
-            ResultSet rs = stmt.executeQuery();
+        return loadUpTo(connection, event.getTime(), event.getId().get());
+    }
+
+    /**
+     * Load the state after all events up to and including the given time were applied.
+     */
+    public static Optional<Snapshot> loadAt(Connection connection, Instant time) throws SQLException, IOException {
+        return loadUpTo(connection, time, Long.MAX_VALUE);
+    }
+
+    /**
+     * Load the latest state, by loading the latest checkpoint and replaying
+     * the events that came after it.
+     */
+    public static Optional<Snapshot> loadLatest(Connection connection) throws SQLException, IOException {
+        Optional<Snapshot> checkpoint = loadLatestCheckpoint(connection);
+        List<Event> events;
+        if (checkpoint.isPresent()) {
+            events = Event.loadAfter(connection, checkpoint.get().getSnapshotTime(), checkpoint.get().eventId);
+        } else {
+            events = Event.loadAll(connection);
+        }
+        return replay(checkpoint, events);
+    }
+
+    /**
+     * Load the latest snapshot that was stored in the database.
+     *
+     * The processor doesn't necessarily store a snapshot for every event,
+     * so this is not necessarily the latest state. Use loadLatest for that.
+     */
+    public static Optional<Snapshot> loadLatestCheckpoint(Connection connection) throws SQLException, IOException {
+        String statement = "SELECT \"id\", \"data\", \"event\" FROM \"snapshots\" ORDER BY \"time\" DESC, \"event\" DESC FETCH FIRST ROW ONLY";
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(statement)) {
             if (rs.next()) {
-                String data = rs.getString("data");
-                Snapshot result = Serialization.getJsonMapper().readValue(data, Snapshot.class);
-                result.id = rs.getLong("id");
-                result.eventId = event.getId().get();
-                return Optional.of(result);
+                return Optional.of(fromRow(connection, rs));
             } else {
                 return Optional.empty();
             }
         }
     }
 
-    public static Optional<Snapshot> loadLatest(Connection connection) throws SQLException, IOException {
-        String statement = "SELECT \"id\", \"data\", \"event\" FROM \"snapshots\" ORDER BY \"time\" DESC FETCH FIRST ROW ONLY";
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(statement)) {
+    private static Optional<Snapshot> loadUpTo(Connection connection, Instant time, long eventId) throws SQLException, IOException {
+        Optional<Snapshot> checkpoint = loadCheckpointUpTo(connection, time, eventId);
+        List<Event> events;
+        if (checkpoint.isPresent()) {
+            Snapshot s = checkpoint.get();
+            events = Event.loadRange(connection, s.getSnapshotTime(), s.eventId, time, eventId);
+        } else {
+            events = Event.loadAll(connection).stream()
+                    .filter(e -> e.getTime().isBefore(time) || (e.getTime().equals(time) && e.getId().get() <= eventId))
+                    .collect(Collectors.toList());
+        }
+        return replay(checkpoint, events);
+    }
+
+    private static Optional<Snapshot> loadCheckpointUpTo(Connection connection, Instant time, long eventId) throws SQLException, IOException {
+        String statement = "SELECT \"id\", \"data\", \"event\" FROM \"snapshots\" " +
+                "WHERE \"time\" < ? OR (\"time\" = ? AND \"event\" <= ?) ORDER BY \"time\" DESC, \"event\" DESC FETCH FIRST ROW ONLY";
+        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+            Timestamp timestamp = Timestamp.from(time);
+            stmt.setTimestamp(1, timestamp);
+            stmt.setTimestamp(2, timestamp);
+            stmt.setLong(3, eventId);
+            LOG.debug("Executing query: {}", stmt);
+            ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                String data = rs.getString("data");
-                Snapshot result = Serialization.getJsonMapper().readValue(data, Snapshot.class);
-                result.id = rs.getLong("id");
-                result.eventId = rs.getLong("event");
-                return Optional.of(result);
+                return Optional.of(fromRow(connection, rs));
             } else {
                 return Optional.empty();
             }
         }
     }
 
+    /**
+     * Apply the events to the checkpoint. Events in the future are stored,
+     * but the processor only applies them when they are due, so they are
+     * skipped here as well.
+     */
+    private static Optional<Snapshot> replay(Optional<Snapshot> checkpoint, List<Event> events) {
+        if (!checkpoint.isPresent() && events.isEmpty()) {
+            return Optional.empty();
+        }
+        Instant now = Instant.now();
+        Snapshot result = checkpoint.orElseGet(() -> new Snapshot(Instant.EPOCH));
+        for (Event event : events) {
+            if (!event.isRemoved() && !event.getTime().isAfter(now)) {
+                result = event.apply(result);
+            }
+        }
+        return Optional.of(result);
+    }
+
     public static Optional<Snapshot> loadBefore(Connection connection, Instant time) throws SQLException, IOException {
         String statement = "SELECT \"id\", \"data\", \"event\" FROM \"snapshots\" " +
                 "WHERE \"time\" < ? ORDER BY \"time\" DESC, \"event\" DESC FETCH FIRST ROW ONLY";
@@ -217,11 +321,7 @@ public final class Snapshot {
             LOG.debug("Executing query: {}", stmt);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                String data = rs.getString("data");
-                Snapshot result = Serialization.getJsonMapper().readValue(data, Snapshot.class);
-                result.id = rs.getLong("id");
-                result.eventId = rs.getLong("event");
-                return Optional.of(result);
+                return Optional.of(fromRow(connection, rs));
             } else {
                 return Optional.empty();
             }
@@ -230,12 +330,18 @@ public final class Snapshot {
 
     public void save(Connection connection) throws SQLException {
         if (id != -1) return;
+        boolean perTeam = Database.isPerTeamSnapshotStorage();
+        Database.ensurePartition(connection, snapshotTime);
         try (PreparedStatement statement = connection.prepareStatement(
                 "INSERT INTO \"snapshots\" (\"time\",\"data\",\"event\") VALUES (?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
             statement.setTimestamp(1, Timestamp.from(snapshotTime));
             String serialized;
             try {
-                serialized = Serialization.getJsonMapper().writeValueAsString(this);
+                if (perTeam) {
+                    serialized = Serialization.getJsonMapper().writeValueAsString(headerTree());
+                } else {
+                    serialized = Serialization.getJsonMapper().writeValueAsString(this);
+                }
             } catch (JsonProcessingException e) {
                 assert false; // TODO(Roel): Programming error
                 return;
@@ -247,11 +353,191 @@ public final class Snapshot {
             keys.next();
             this.id = keys.getLong(1);
         }
+        if (perTeam) {
+            saveTeams(connection);
+        }
+        this.storedPerTeam = perTeam;
+        this.storedBase = null;
+    }
+
+    /**
+     * Set the ids of a snapshot that was stored by a store other than the
+     * database, which always stores the whole snapshot.
+     */
+    void setStored(long id, long eventId) {
+        this.id = id;
+        this.eventId = eventId;
+        this.storedPerTeam = false;
+        this.storedBase = null;
+    }
+
+    /**
+     * The JSON that is stored in the snapshots table when storing per team:
+     * everything except for the team states and tags, which are stored in
+     * the teamStates table, and a list of the team numbers.
+     */
+    private ObjectNode headerTree() {
+        ObjectMapper mapper = Serialization.getJsonMapper();
+        ObjectNode node = mapper.createObjectNode();
+        node.put(LAYOUT_FIELD, PER_TEAM_LAYOUT);
+        node.set("snapshotTime", mapper.valueToTree(snapshotTime));
+        node.set("startTime", mapper.valueToTree(startTime));
+        node.set("endTime", mapper.valueToTree(endTime));
+        node.put("statusMessage", statusMessage);
+        node.set("status", mapper.valueToTree(status));
+        node.put("updateFrequency", updateFrequency);
+        ArrayNode teams = node.putArray(TEAMS_FIELD);
+        allTeams().forEach(teams::add);
+        return node;
+    }
+
+    private SortedSet<Integer> allTeams() {
+        SortedSet<Integer> teams = new TreeSet<>();
+        teams.addAll(teamStates.getTeamNbToState().keySet());
+        teams.addAll(publicTeamStates.getTeamNbToState().keySet());
+        teams.addAll(teamTagMap.getTeamToTags().keySet());
+        return teams;
+    }
+
+    /**
+     * Store a row for every team that changed since the stored base snapshot,
+     * or for every team if there is no (usable) base snapshot.
+     */
+    private void saveTeams(Connection connection) throws SQLException {
+        Snapshot base = storedBase != null && storedBase.storedPerTeam && storedBase.id >= compactedBelow.get() ?
+                storedBase : null;
+        Set<Integer> changedTeams = changedTeams(base);
+        if (changedTeams.isEmpty()) return;
+        Map<Integer, List<TagId>> tags = teamTagMap.getTeamToTags();
+        ObjectMapper mapper = Serialization.getJsonMapper();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO \"teamStates\" (\"snapshot\",\"teamNb\",\"data\") VALUES (?,?,?)")) {
+            for (int teamNb : changedTeams) {
+                ObjectNode row = mapper.createObjectNode();
+                teamStates.getStateForTeam(teamNb).ifPresent(state -> row.set("state", mapper.valueToTree(state)));
+                publicTeamStates.getStateForTeam(teamNb).ifPresent(state -> row.set("publicState", mapper.valueToTree(state)));
+                ArrayNode tagArray = row.putArray("tags");
+                tags.getOrDefault(teamNb, Collections.emptyList()).forEach(tag -> tagArray.add(tag.toString()));
+                statement.setLong(1, id);
+                statement.setInt(2, teamNb);
+                try {
+                    statement.setString(3, mapper.writeValueAsString(row));
+                } catch (JsonProcessingException e) {
+                    assert false; // Programming error
+                    throw new IllegalStateException(e);
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        LOG.debug("Stored {} team rows for snapshot {}", changedTeams.size(), id);
+    }
+
+    private Set<Integer> changedTeams(Snapshot base) {
+        if (base == null) {
+            return allTeams();
+        }
+        Set<Integer> result = new HashSet<>();
+        addChangedTeams(base.teamStates, teamStates, result);
+        addChangedTeams(base.publicTeamStates, publicTeamStates, result);
+        if (base.teamTagMap != teamTagMap) {
+            Map<Integer, List<TagId>> baseTags = base.teamTagMap.getTeamToTags();
+            Map<Integer, List<TagId>> tags = teamTagMap.getTeamToTags();
+            Set<Integer> teams = new HashSet<>(baseTags.keySet());
+            teams.addAll(tags.keySet());
+            for (int teamNb : teams) {
+                if (!Objects.equals(baseTags.get(teamNb), tags.get(teamNb))) {
+                    result.add(teamNb);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addChangedTeams(TeamStates before, TeamStates after, Set<Integer> result) {
+        if (before == after) return;
+        // TeamStates are immutable, and unchanged states are shared, so comparing references is enough
+        after.getTeamNbToState().forEach((teamNb, state) -> {
+            if (before.getStateForTeam(teamNb).orElse(null) != state) {
+                result.add(teamNb);
+            }
+        });
+        before.getTeamNbToState().keySet().stream()
+                .filter(teamNb -> !after.getStateForTeam(teamNb).isPresent())
+                .forEach(result::add);
+    }
+
+    /**
+     * Instants are stored as decimal numbers, which shouldn't be rounded to doubles
+     */
+    private static ObjectReader treeReader() {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+    }
+
+    private static Snapshot fromRow(Connection connection, ResultSet rs) throws SQLException, IOException {
+        long id = rs.getLong("id");
+        String data = rs.getString("data");
+        ObjectMapper mapper = Serialization.getJsonMapper();
+        Snapshot result;
+        boolean perTeam = data.startsWith(PER_TEAM_PREFIX);
+        if (perTeam) {
+            ObjectNode node = (ObjectNode) treeReader().readTree(data);
+            node.remove(LAYOUT_FIELD);
+            JsonNode teams = node.remove(TEAMS_FIELD);
+            loadTeams(connection, id, teams, node);
+            result = mapper.treeToValue(node, Snapshot.class);
+        } else {
+            result = mapper.readValue(data, Snapshot.class);
+        }
+        result.id = id;
+        result.eventId = rs.getLong("event");
+        result.storedPerTeam = perTeam;
+        return result;
+    }
+
+    /**
+     * Fill in the teamStates, publicTeamStates and teamTagMap of a snapshot
+     * that was stored per team, using the latest row for every team.
+     */
+    private static void loadTeams(Connection connection, long id, JsonNode teams, ObjectNode node) throws SQLException, IOException {
+        ObjectNode states = node.putObject("teamStates");
+        ObjectNode publicStates = node.putObject("publicTeamStates");
+        ObjectNode tags = node.putObject("teamTagMap");
+        String statement = "SELECT \"data\" FROM \"teamStates\" WHERE \"teamNb\" = ? AND \"snapshot\" <= ? " +
+                "ORDER BY \"snapshot\" DESC FETCH FIRST ROW ONLY";
+        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+            for (JsonNode team : teams) {
+                int teamNb = team.asInt();
+                stmt.setInt(1, teamNb);
+                stmt.setLong(2, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        LOG.error("No stored state for team {} in snapshot {}", teamNb, id);
+                        continue;
+                    }
+                    JsonNode row = treeReader().readTree(rs.getString("data"));
+                    String key = String.valueOf(teamNb);
+                    if (row.has("state")) states.set(key, row.get("state"));
+                    if (row.has("publicState")) publicStates.set(key, row.get("publicState"));
+                    if (row.get("tags").size() > 0) tags.set(key, row.get("tags"));
+                }
+            }
+        }
     }
 
     public static void deleteAfter(Connection connection, Snapshot snapshot) throws SQLException {
-        String statement =
-                "DELETE FROM \"snapshots\" WHERE \"time\" > ? OR (\"time\" = ? AND \"event\" > ?)";
+        String condition = "\"time\" > ? OR (\"time\" = ? AND \"event\" > ?)";
+        if (Database.isPartitioned()) {
+            try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM \"teamStates\" WHERE \"snapshot\" IN " +
+                    "(SELECT \"id\" FROM \"snapshots\" WHERE " + condition + ")")) {
+                Timestamp timestamp = Timestamp.from(snapshot.getSnapshotTime());
+                stmt.setTimestamp(1, timestamp);
+                stmt.setTimestamp(2, timestamp);
+                stmt.setLong(3, snapshot.getEventId().orElse(-1L));
+                stmt.executeUpdate();
+            }
+        }
+        String statement = "DELETE FROM \"snapshots\" WHERE " + condition;
         try (PreparedStatement stmt = connection.prepareStatement(statement)) {
             Timestamp timestamp = Timestamp.from(snapshot.getSnapshotTime());
             stmt.setTimestamp(1, timestamp);
@@ -262,4 +548,87 @@ public final class Snapshot {
             LOG.debug("deleteAfter affected {} rows", affectedRows);
         }
     }
+
+    /**
+     * Thin out the snapshots that are older than the retention window (counting
+     * back from the latest snapshot), keeping only the latest snapshot in every
+     * interval. Snapshots can always be reconstructed from the events, so this
+     * doesn't lose anything: loading a state at any time just replays more
+     * events from the snapshot before it.
+     *
+     * The team rows of a snapshot that was stored per team are also used by
+     * the snapshots after it, so before a snapshot is deleted, its rows for
+     * teams that the next snapshot (by id) doesn't have are moved to that
+     * snapshot.
+     *
+     * Must not run concurrently with storing snapshots.
+     *
+     * @param maxDeleted
+     *        The maximum number of snapshots to delete, to keep the transaction short
+     * @return The number of snapshots that were deleted
+     */
+    public static int compact(Connection connection, Duration retention, Duration interval, int maxDeleted)
+            throws SQLException {
+        Instant latest;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT max(\"time\") FROM \"snapshots\"")) {
+            Timestamp timestamp = rs.next() ? rs.getTimestamp(1) : null;
+            if (timestamp == null) return 0;
+            latest = timestamp.toInstant();
+        }
+        long intervalMillis = Math.max(1L, interval.toMillis());
+        List<Long> toDelete = new ArrayList<>();
+        String statement = "SELECT \"id\", \"time\" FROM \"snapshots\" WHERE \"time\" < ? " +
+                "ORDER BY \"time\" DESC, \"event\" DESC";
+        try (PreparedStatement stmt = connection.prepareStatement(statement)) {
+            stmt.setTimestamp(1, Timestamp.from(latest.minus(retention)));
+            ResultSet rs = stmt.executeQuery();
+            long bucket = Long.MAX_VALUE;
+            while (rs.next() && toDelete.size() < maxDeleted) {
+                long rowBucket = Math.floorDiv(rs.getTimestamp("time").toInstant().toEpochMilli(), intervalMillis);
+                if (rowBucket != bucket) {
+                    // The latest snapshot in the interval, keep it
+                    bucket = rowBucket;
+                } else {
+                    toDelete.add(rs.getLong("id"));
+                }
+            }
+        }
+        if (toDelete.isEmpty()) return 0;
+        toDelete.sort(Comparator.reverseOrder());
+        compactedBelow.accumulateAndGet(toDelete.get(0) + 1L, Math::max);
+        int deleted = 0;
+        try (PreparedStatement next = connection.prepareStatement(
+                     "SELECT min(\"id\") FROM \"snapshots\" WHERE \"id\" > ?");
+             PreparedStatement move = connection.prepareStatement(
+                     "UPDATE \"teamStates\" SET \"snapshot\" = ? WHERE \"snapshot\" = ? AND \"teamNb\" NOT IN " +
+                             "(SELECT \"teamNb\" FROM \"teamStates\" WHERE \"snapshot\" = ?)");
+             PreparedStatement deleteTeams = connection.prepareStatement(
+                     "DELETE FROM \"teamStates\" WHERE \"snapshot\" = ?");
+             PreparedStatement delete = connection.prepareStatement(
+                     "DELETE FROM \"snapshots\" WHERE \"id\" = ?")) {
+            // From the highest id down, so the rows of the latest deleted snapshot win
+            for (long id : toDelete) {
+                next.setLong(1, id);
+                long nextId;
+                try (ResultSet rs = next.executeQuery()) {
+                    rs.next();
+                    nextId = rs.getLong(1);
+                    if (rs.wasNull()) continue;
+                }
+                move.setLong(1, nextId);
+                move.setLong(2, id);
+                move.setLong(3, nextId);
+                move.executeUpdate();
+                if (Database.isPartitioned()) {
+                    deleteTeams.setLong(1, id);
+                    deleteTeams.executeUpdate();
+                }
+                delete.setLong(1, id);
+                deleted += delete.executeUpdate();
+            }
+        }
+        LOG.debug("Compacted {} snapshots before {}", deleted, latest.minus(retention));
+        return deleted;
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ulyssis.ipp.processor.Database;
+import org.ulyssis.ipp.utils.JedisHelper;
+import org.ulyssis.ipp.utils.Serialization;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * = The latest snapshot, cached in Redis
+ *
+ * The processor stores the latest snapshot in a hash in Redis, as deflated
+ * JSON, in the same MULTI/EXEC as its NEW_SNAPSHOT broadcast. Whoever gets
+ * the broadcast can read the snapshot from there, instead of loading it from
+ * the database. The version in that hash is the sequence number of the
+ * SnapshotDelta that is published with it, so a reader that missed a delta
+ * can start over from here. The processor counts the sequence numbers
+ * itself, and sets the version to the one of every snapshot it stores.
+ *
+ * When the processor starts, it stores the snapshot it starts from, so that
+ * the cache doesn't keep the state of a previous run (e.g. with --cleardb).
+ * It continues from the version in the hash then, but skips a sequence
+ * number: a reader's replica could be from the previous run, and the gap
+ * makes it start over from the cache.
+ *
+ * Readers keep the snapshot they read last, and only fetch and decode it
+ * again when the version changed. When there's no snapshot in Redis, or
+ * Redis can't be reached, the latest snapshot is loaded from the database.
+ *
+ * A cache is threadsafe, but it has a single connection to Redis, so it's
+ * best to have one per thread that reads snapshots often.
+ */
+public final class SnapshotCache implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(SnapshotCache.class);
+
+    /**
+     * The key of the hash
+     */
+    public static final String KEY = "snapshot:latest";
+
+    private static final byte[] KEY_BYTES = KEY.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VERSION = "version".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DATA = "data".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT = "event".getBytes(StandardCharsets.UTF_8);
+
+    private final URI redisUri;
+    private Jedis jedis = null;
+
+    private long version = -1L;
+    private Snapshot latest = null;
+
+    private long fetched = 0L;
+    private long loadedFromDatabase = 0L;
+
+    /**
+     * @param redisUri
+     *        The Redis instance of the processor
+     */
+    public SnapshotCache(URI redisUri) {
+        this.redisUri = redisUri;
+    }
+
+    /**
+     * Encode a snapshot to store it in the cache.
+     */
+    public static byte[] encode(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            Serialization.getJsonMapper().writeValue(out, snapshot);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    static Snapshot decode(byte[] data, long eventId) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+            Snapshot snapshot = Serialization.getJsonMapper().readValue(in, Snapshot.class);
+            snapshot.eventId = eventId;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Store an encoded snapshot as part of the given transaction, with the given version.
+     */
+    public static void store(Transaction transaction, byte[] encoded, Snapshot snapshot, long version) {
+        transaction.hset(KEY_BYTES, DATA, encoded);
+        transaction.hset(KEY_BYTES, EVENT,
+                Long.toString(snapshot.getEventId().orElse(-1L)).getBytes(StandardCharsets.UTF_8));
+        transaction.hset(KEY_BYTES, VERSION, Long.toString(version).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The version of the snapshot in Redis, 0 if there is none.
+     *
+     * @throws JedisConnectionException
+     *         When Redis can't be reached
+     */
+    public static long loadVersion(URI redisUri) {
+        try (Jedis jedis = JedisHelper.get(redisUri)) {
+            byte[] version = jedis.hget(KEY_BYTES, VERSION);
+            return version != null ? parseLong(version) : 0L;
+        }
+    }
+
+    /**
+     * Get the latest snapshot: the one we have if the version in Redis
+     * didn't change, the one in Redis if it did, or the latest one in the
+     * database if there's none in Redis.
+     */
+    public synchronized Optional<Snapshot> get() {
+        try {
+            byte[] currentVersion = jedis().hget(KEY_BYTES, VERSION);
+            if (currentVersion != null) {
+                if (latest != null && parseLong(currentVersion) == version) {
+                    return Optional.of(latest);
+                }
+                List<byte[]> fields = jedis().hmget(KEY_BYTES, VERSION, DATA, EVENT);
+                if (fields.get(0) != null && fields.get(1) != null && fields.get(2) != null) {
+                    latest = decode(fields.get(1), parseLong(fields.get(2)));
+                    version = parseLong(fields.get(0));
+                    fetched++;
+                    return Optional.of(latest);
+                }
+            }
+        } catch (JedisConnectionException e) {
+            LOG.warn("Couldn't read the latest snapshot from Redis, loading it from the database", e);
+            disconnect();
+        } catch (IOException | NumberFormatException e) {
+            LOG.error("Couldn't decode the latest snapshot in Redis, loading it from the database", e);
+        }
+        version = -1L;
+        latest = null;
+        return loadFromDatabase();
+    }
+
+    private Optional<Snapshot> loadFromDatabase() {
+        try (Connection connection = Database.createConnection(EnumSet.of(Database.ConnectionFlags.READ_ONLY))) {
+            Optional<Snapshot> snapshot = Snapshot.loadLatest(connection);
+            connection.commit();
+            loadedFromDatabase++;
+            return snapshot;
+        } catch (SQLException e) {
+            LOG.error("Couldn't load the latest snapshot from the database", e);
+        } catch (IOException e) {
+            LOG.error("Couldn't process the latest snapshot from the database", e);
+        }
+        return Optional.empty();
+    }
+
+    private static long parseLong(byte[] value) {
+        return Long.parseLong(new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The version of the snapshot we have, -1 if it isn't from Redis.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * The number of times a snapshot was fetched from Redis.
+     */
+    public synchronized long getFetched() {
+        return fetched;
+    }
+
+    /**
+     * The number of times the latest snapshot was loaded from the database.
+     */
+    public synchronized long getLoadedFromDatabase() {
+        return loadedFromDatabase;
+    }
+
+    private Jedis jedis() {
+        if (jedis == null) {
+            jedis = JedisHelper.get(redisUri);
+        }
+        return jedis;
+    }
+
+    private void disconnect() {
+        if (jedis != null) {
+            try {
+                jedis.close();
+            } catch (JedisConnectionException ignored) {
+            }
+            jedis = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.updates.Status;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * = What changed between two snapshots
+ *
+ * The processor publishes one of these on the delta channel for every
+ * snapshot it broadcasts, with the version of that snapshot in the cache
+ * (see SnapshotCache) as the sequence number. It holds the team states that
+ * changed (by identity: unchanged teams share their state between snapshots),
+ * the teams that are gone (after going back in time), the tags that were
+ * added to or removed from the tag map, and all of the (small) status
+ * fields. Applying it to the snapshot with the previous sequence number
+ * yields the new snapshot.
+ */
+public final class SnapshotDelta {
+    private final long sequence;
+    private final Instant snapshotTime;
+    private final long eventId;
+    private final Instant startTime;
+    private final Instant endTime;
+    private final String statusMessage;
+    private final Status status;
+    private final int updateFrequency;
+    private final Map<Integer, TeamState> teamStates;
+    private final List<Integer> removedTeams;
+    private final Map<Integer, TeamState> publicTeamStates;
+    private final List<Integer> removedPublicTeams;
+    private final Map<String, Integer> addedTags;
+    private final List<String> removedTags;
+
+    @JsonCreator
+    SnapshotDelta(@JsonProperty("sequence") long sequence,
+                  @JsonProperty("snapshotTime") Instant snapshotTime,
+                  @JsonProperty("eventId") long eventId,
+                  @JsonProperty("startTime") Instant startTime,
+                  @JsonProperty("endTime") Instant endTime,
+                  @JsonProperty("statusMessage") String statusMessage,
+                  @JsonProperty("status") Status status,
+                  @JsonProperty("updateFrequency") int updateFrequency,
+                  @JsonProperty("teamStates") Map<Integer, TeamState> teamStates,
+                  @JsonProperty("removedTeams") List<Integer> removedTeams,
+                  @JsonProperty("publicTeamStates") Map<Integer, TeamState> publicTeamStates,
+                  @JsonProperty("removedPublicTeams") List<Integer> removedPublicTeams,
+                  @JsonProperty("addedTags") Map<String, Integer> addedTags,
+                  @JsonProperty("removedTags") List<String> removedTags) {
+        this.sequence = sequence;
+        this.snapshotTime = snapshotTime;
+        this.eventId = eventId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.statusMessage = statusMessage;
+        this.status = status;
+        this.updateFrequency = updateFrequency;
+        this.teamStates = orEmpty(teamStates);
+        this.removedTeams = orEmpty(removedTeams);
+        this.publicTeamStates = orEmpty(publicTeamStates);
+        this.removedPublicTeams = orEmpty(removedPublicTeams);
+        this.addedTags = orEmpty(addedTags);
+        this.removedTags = orEmpty(removedTags);
+    }
+
+    private static <K, V> Map<K, V> orEmpty(Map<K, V> map) {
+        return map != null ? map : Collections.emptyMap();
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list != null ? list : Collections.emptyList();
+    }
+
+    /**
+     * The delta that turns before into after.
+     *
+     * @param sequence
+     *        The sequence number of after
+     */
+    public static SnapshotDelta between(Snapshot before, Snapshot after, long sequence) {
+        Map<Integer, TeamState> teamStates = new TreeMap<>();
+        List<Integer> removedTeams = new ArrayList<>();
+        diff(before.getTeamStates(), after.getTeamStates(), teamStates, removedTeams);
+        Map<Integer, TeamState> publicTeamStates = new TreeMap<>();
+        List<Integer> removedPublicTeams = new ArrayList<>();
+        diff(before.getPublicTeamStates(), after.getPublicTeamStates(), publicTeamStates, removedPublicTeams);
+        Map<String, Integer> addedTags = new TreeMap<>();
+        List<String> removedTags = new ArrayList<>();
+        if (before.getTeamTagMap() != after.getTeamTagMap()) {
+            Map<TagId, Integer> oldTags = before.getTeamTagMap().getTagToTeam();
+            Map<TagId, Integer> newTags = after.getTeamTagMap().getTagToTeam();
+            oldTags.forEach((tag, team) -> {
+                if (!team.equals(newTags.get(tag))) {
+                    removedTags.add(tag.toString());
+                }
+            });
+            newTags.forEach((tag, team) -> {
+                if (!team.equals(oldTags.get(tag))) {
+                    addedTags.put(tag.toString(), team);
+                }
+            });
+        }
+        return new SnapshotDelta(sequence, after.getSnapshotTime(), after.getEventId().orElse(-1L),
+                after.getStartTime(), after.getEndTime(), after.getStatusMessage(), after.getStatus(),
+                after.getUpdateFrequency(), teamStates, removedTeams, publicTeamStates, removedPublicTeams,
+                addedTags, removedTags);
+    }
+
+    private static void diff(TeamStates before, TeamStates after, Map<Integer, TeamState> changed,
+                             List<Integer> removed) {
+        if (before == after) {
+            return;
+        }
+        after.forEach((teamNb, state) -> {
+            Optional<TeamState> old = before.getStateForTeam(teamNb);
+            if (!old.isPresent() || old.get() != state) {
+                changed.put(teamNb, state);
+            }
+        });
+        before.forEach((teamNb, state) -> {
+            if (!after.getStateForTeam(teamNb).isPresent()) {
+                removed.add(teamNb);
+            }
+        });
+    }
+
+    /**
+     * Apply this delta to the snapshot with the previous sequence number.
+     */
+    public Snapshot applyTo(Snapshot before) {
+        TeamTagMap teamTagMap = before.getTeamTagMap();
+        for (String tag : removedTags) {
+            teamTagMap = teamTagMap.removeTag(new TagId(tag));
+        }
+        for (Map.Entry<String, Integer> entry : addedTags.entrySet()) {
+            teamTagMap = teamTagMap.addTagToTeam(new TagId(entry.getKey()), entry.getValue());
+        }
+        Snapshot result = Snapshot.builder(snapshotTime, before)
+                .withTeamStates(apply(before.getTeamStates(), teamStates, removedTeams))
+                .withPublicTeamStates(apply(before.getPublicTeamStates(), publicTeamStates, removedPublicTeams))
+                .withTeamTagMap(teamTagMap)
+                .withStartTime(startTime)
+                .withEndTime(endTime)
+                .withStatusMessage(statusMessage)
+                .withStatus(status)
+                .withUpdateFrequency(updateFrequency)
+                .build();
+        result.eventId = eventId;
+        return result;
+    }
+
+    private static TeamStates apply(TeamStates before, Map<Integer, TeamState> changed, List<Integer> removed) {
+        TeamStates result = before;
+        if (!removed.isEmpty()) {
+            // There's no removing from TeamStates, start over without them
+            TeamStates[] without = { new TeamStates() };
+            before.forEach((teamNb, state) -> {
+                if (!removed.contains(teamNb)) {
+                    without[0] = without[0].setStateForTeam(teamNb, state);
+                }
+            });
+            result = without[0];
+        }
+        for (Map.Entry<Integer, TeamState> entry : changed.entrySet()) {
+            result = result.setStateForTeam(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Instant getSnapshotTime() {
+        return snapshotTime;
+    }
+
+    public long getEventId() {
+        return eventId;
+    }
+
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    public Instant getEndTime() {
+        return endTime;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getUpdateFrequency() {
+        return updateFrequency;
+    }
+
+    public Map<Integer, TeamState> getTeamStates() {
+        return teamStates;
+    }
+
+    public List<Integer> getRemovedTeams() {
+        return removedTeams;
+    }
+
+    public Map<Integer, TeamState> getPublicTeamStates() {
+        return publicTeamStates;
+    }
+
+    public List<Integer> getRemovedPublicTeams() {
+        return removedPublicTeams;
+    }
+
+    public Map<String, Integer> getAddedTags() {
+        return addedTags;
+    }
+
+    public List<String> getRemovedTags() {
+        return removedTags;
+    }
+}
@@ -20,7 +20,6 @@ package org.ulyssis.ipp.snapshot;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.config.Config;
-import org.ulyssis.ipp.processor.Database;
 import org.ulyssis.ipp.status.StatusMessage;
 import org.ulyssis.ipp.utils.JedisHelper;
 import org.ulyssis.ipp.utils.Serialization;
@@ -30,9 +29,6 @@ import redis.clients.jedis.exceptions.JedisConnectionException;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.util.EnumSet;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -43,16 +39,52 @@ import java.util.function.Consumer;
 public class SnapshotListener implements Runnable {
     private static final Logger LOG = LogManager.getLogger(SnapshotListener.class);
 
+    /**
+     * How long to ignore missed deltas after the cache had no snapshot, and
+     * it was loaded from the database instead
+     */
+    static final long RESYNC_BACKOFF_MILLIS = 1000L;
+
     private final CopyOnWriteArraySet<Consumer<Snapshot>> listeners = new CopyOnWriteArraySet<>();
     private final ConcurrentHashMap<Consumer<Snapshot>, ExecutorService> executors = new ConcurrentHashMap<>();
     private final URI jedisURI;
     private final Jedis jedis;
     private final JedisHelper.BinaryCallBackPubSub snapshotSubscriber = new JedisHelper.BinaryCallBackPubSub();
+    /**
+     * Where the snapshots are read from, only fetching them when they changed
+     */
+    private final SnapshotCache cache;
+    /**
+     * Whether to keep a replica up to date with the deltas, instead of
+     * fetching every new snapshot
+     */
+    private final boolean useDeltas;
+
+    private Snapshot replica = null;
+    private long replicaSequence = -1L;
+    private long resyncs = 0L;
+    /**
+     * Until when (System.currentTimeMillis) not to resync on a missed delta
+     */
+    private long noResyncUntil = 0L;
 
     public SnapshotListener(URI uri) {
+        this(uri, false);
+    }
+
+    /**
+     * @param useDeltas
+     *        Listen to the delta channel instead of the status channel, and
+     *        apply every delta to a replica of the latest snapshot. When a
+     *        delta is missed (its sequence number doesn't follow the one of
+     *        the replica), the replica is replaced by the snapshot in the cache.
+     */
+    public SnapshotListener(URI uri, boolean useDeltas) {
         jedisURI = uri;
         jedis = JedisHelper.get(uri);
-        snapshotSubscriber.addOnMessageListener(onMessageListener);
+        cache = new SnapshotCache(uri);
+        this.useDeltas = useDeltas;
+        snapshotSubscriber.addOnMessageListener(useDeltas ? onDeltaListener : onMessageListener);
     }
 
     /**
@@ -60,7 +92,11 @@ public class SnapshotListener implements Runnable {
      * listeners will be activated if there is a snapshot.
      */
     public void trigger() {
-        getAndAnnounceSnapshot();
+        if (useDeltas) {
+            resync();
+        } else {
+            getAndAnnounceSnapshot();
+        }
     }
 
     private final BiConsumer<byte[], byte[]> onMessageListener = (channel, message) -> {
@@ -74,33 +110,93 @@ public class SnapshotListener implements Runnable {
         }
     };
 
-    private void getAndAnnounceSnapshot() {
-        try (Connection connection = Database.createConnection(EnumSet.of(Database.ConnectionFlags.READ_ONLY))) {
-            Optional<Snapshot> snapshot = Snapshot.loadLatest(connection);
-            connection.commit();
-            if (snapshot.isPresent()) {
-                listeners.parallelStream().forEach(l -> {
-                    ExecutorService service = executors.getOrDefault(l, null);
-                    if (service == null) {
-                        l.accept(snapshot.get());
-                    } else {
-                        service.submit(() -> l.accept(snapshot.get()));
-                    }
-                });
-            }
-        } catch (SQLException e) {
-            LOG.error("Triggering snapshot retrieve failed due to SQLException", e);
+    private final BiConsumer<byte[], byte[]> onDeltaListener = (channel, message) -> {
+        try {
+            onDelta(Serialization.getJsonMapper().readValue(message, SnapshotDelta.class));
         } catch (IOException e) {
-            LOG.error("Couldn't process snapshot", e);
+            LOG.error("Couldn't process snapshot delta", e);
+        }
+    };
+
+    /**
+     * Apply the delta to the replica if it's the next one, start over from
+     * the cache if one was missed.
+     */
+    synchronized void onDelta(SnapshotDelta delta) {
+        if (replica != null && delta.getSequence() == replicaSequence + 1L) {
+            replica = delta.applyTo(replica);
+            replicaSequence = delta.getSequence();
+            announce(replica);
+        } else if ((replica == null || delta.getSequence() > replicaSequence) &&
+                System.currentTimeMillis() >= noResyncUntil) {
+            LOG.info("Expected snapshot delta {}, got {}, resyncing", replicaSequence + 1L, delta.getSequence());
+            resync();
         }
     }
 
+    /**
+     * Replace the replica by the snapshot in the cache. The processor stores
+     * it in the same transaction as it publishes the delta, so it's at least
+     * as recent as the delta that was received.
+     *
+     * When the cache has no snapshot, the one from the database is announced,
+     * but it has no sequence number to apply the deltas to, so the replica is
+     * left unset. The deltas are ignored for a while then: resyncing on every
+     * one of them would load the snapshot from the database every time.
+     */
+    private synchronized void resync() {
+        resyncs++;
+        Optional<Snapshot> cached = cache.get();
+        if (cache.getVersion() == -1L) {
+            replica = null;
+            replicaSequence = -1L;
+            noResyncUntil = System.currentTimeMillis() + RESYNC_BACKOFF_MILLIS;
+            cached.ifPresent(this::announce);
+        } else if (cached.isPresent()) {
+            replica = cached.get();
+            replicaSequence = cache.getVersion();
+            noResyncUntil = 0L;
+            announce(replica);
+        }
+    }
+
+    private void getAndAnnounceSnapshot() {
+        cache.get().ifPresent(this::announce);
+    }
+
+    private void announce(Snapshot snapshot) {
+        listeners.parallelStream().forEach(l -> {
+            ExecutorService service = executors.getOrDefault(l, null);
+            if (service == null) {
+                l.accept(snapshot);
+            } else {
+                service.submit(() -> l.accept(snapshot));
+            }
+        });
+    }
+
+    /**
+     * The sequence number of the replica, -1 if there is none
+     */
+    public synchronized long getSequence() {
+        return replicaSequence;
+    }
+
+    /**
+     * The number of times the replica was replaced by the snapshot in the cache
+     */
+    public synchronized long getResyncs() {
+        return resyncs;
+    }
+
     @Override
     public void run() {
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    jedis.subscribe(snapshotSubscriber, JedisHelper.dbLocalChannel(Config.getCurrentConfig().getStatusChannel(), jedisURI).getBytes(StandardCharsets.UTF_8));
+                    String channel = useDeltas ?
+                            Config.getCurrentConfig().getDeltaChannel() : Config.getCurrentConfig().getStatusChannel();
+                    jedis.subscribe(snapshotSubscriber, JedisHelper.dbLocalChannel(channel, jedisURI).getBytes(StandardCharsets.UTF_8));
                 } catch (JedisConnectionException e) {
                     LOG.error("Connection broken, will attempt to reconnect in 3 seconds", e);
                     Thread.sleep(3000L);
@@ -112,6 +208,7 @@ public class SnapshotListener implements Runnable {
 
     public void stop() {
         snapshotSubscriber.unsubscribe();
+        cache.close();
         Thread.currentThread().interrupt();
     }
 
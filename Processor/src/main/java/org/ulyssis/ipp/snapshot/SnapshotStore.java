@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Where the processor stores its snapshot checkpoints, see Storage.
+ *
+ * Snapshots are ordered by time, and then by the id of the event they're the
+ * result of. They can always be rebuilt from the events, so deleting them
+ * doesn't lose anything.
+ */
+public interface SnapshotStore {
+    void save(StoreTransaction tx, Snapshot snapshot) throws IOException;
+
+    Optional<Snapshot> loadLatestCheckpoint(StoreTransaction tx) throws IOException;
+
+    /**
+     * Load the latest snapshot before the given time.
+     */
+    Optional<Snapshot> loadBefore(StoreTransaction tx, Instant time) throws IOException;
+
+    /**
+     * Delete the snapshots after the given snapshot.
+     */
+    void deleteAfter(StoreTransaction tx, Snapshot snapshot) throws IOException;
+
+    /**
+     * Thin out the snapshots that are older than the retention window, see Snapshot.compact.
+     *
+     * @return The number of snapshots that were deleted
+     */
+    int compact(StoreTransaction tx, Duration retention, Duration interval, int maxDeleted) throws IOException;
+
+    /**
+     * Reclaim the space of the snapshots that were deleted. The transaction
+     * must not have anything uncommitted.
+     */
+    void reclaimSpace(StoreTransaction tx) throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * = Storage for the events and snapshots of the processor
+ *
+ * The processor only goes through this interface to store its state, so it
+ * doesn't need to know whether the events end up in a database (JdbcStorage)
+ * or in local files (SegmentStorage). Everything that is done in one
+ * transaction is committed together, for the events as well as for the
+ * snapshots.
+ */
+public interface Storage extends EventStore, SnapshotStore, Closeable {
+    /**
+     * Prepare the storage for use, creating tables or files as needed.
+     *
+     * @param clear
+     *        Whether to delete everything that is stored first
+     */
+    void init(boolean clear) throws IOException;
+
+    StoreTransaction begin() throws IOException;
+
+    /**
+     * Begin a transaction that only reads.
+     */
+    StoreTransaction beginReadOnly() throws IOException;
+
+    @Override
+    void close();
+}
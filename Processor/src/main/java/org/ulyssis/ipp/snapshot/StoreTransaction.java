@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.io.IOException;
+
+/**
+ * A transaction of a Storage. What is stored through it only becomes durable,
+ * and visible to other transactions, when it is committed. Closing it rolls
+ * back anything that wasn't committed.
+ */
+public interface StoreTransaction extends AutoCloseable {
+    void commit() throws IOException;
+
+    void rollback() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -18,6 +18,7 @@
 package org.ulyssis.ipp.snapshot;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import org.apache.logging.log4j.LogManager;
@@ -27,12 +28,14 @@ import org.ulyssis.ipp.TagId;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.Optional;
+import java.util.function.LongConsumer;
 
 @JsonTypeName("TagSeen")
-public final class TagSeenEvent extends Event {
+public final class TagSeenEvent extends TeamEvent {
     private static final Logger LOG = LogManager.getLogger(TagSeenEvent.class);
 
     private TagId tag;
@@ -63,33 +66,38 @@ public final class TagSeenEvent extends Event {
         return readerId;
     }
 
-    protected Snapshot doApply(Snapshot snapshot) {
+    @JsonIgnore
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    @Override
+    public Optional<Integer> affectedTeam(Snapshot snapshot) {
         if (snapshot.getStartTime().isBefore(getTime()) &&
                 snapshot.getEndTime().isAfter(getTime())) {
-            Optional<Integer> teamNb = snapshot.getTeamTagMap().tagToTeam(tag);
-            if (teamNb.isPresent()) {
-                Optional<TeamState> teamState = snapshot.getTeamStates().getStateForTeam(teamNb.get());
-                TeamState newTeamState;
-                if (teamState.isPresent()) {
-                    newTeamState = teamState.get().addTagSeenEvent(snapshot, this);
-                } else {
-                    newTeamState = (new TeamState()).addTagSeenEvent(snapshot, this);
-                }
-                TeamStates newTeamStates = snapshot.getTeamStates().setStateForTeam(teamNb.get(), newTeamState);
-                Snapshot.Builder builder = Snapshot.builder(getTime(), snapshot)
-                        .withTeamStates(newTeamStates);
-                if (snapshot.getStatus().isPublic()) {
-                    builder.withPublicTeamStates(newTeamStates);
-                }
-                return builder.build();
-            } else {
-                return snapshot;
-            }
+            int teamNb = snapshot.getTeamTagMap().teamForTag(tag);
+            return teamNb == TeamTagMap.NO_TEAM ? Optional.empty() : Optional.of(teamNb);
         } else {
-            return snapshot;
+            return Optional.empty();
         }
     }
 
+    @Override
+    protected TeamState nextTeamState(Snapshot snapshot, TeamState teamState) {
+        return teamState.addTagSeenEvent(snapshot, this);
+    }
+
+    @Override
+    protected Snapshot withTeamState(Snapshot snapshot, int teamNb, TeamState teamState) {
+        TeamStates newTeamStates = snapshot.getTeamStates().setStateForTeam(teamNb, teamState);
+        Snapshot.Builder builder = Snapshot.builder(getTime(), snapshot)
+                .withTeamStates(newTeamStates);
+        if (snapshot.getStatus().isPublic()) {
+            builder.withPublicTeamStates(newTeamStates);
+        }
+        return builder.build();
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == null) return false;
@@ -104,19 +112,36 @@ public final class TagSeenEvent extends Event {
 
     @Override
     public int hashCode() {
-        return tag.toString().hashCode() ^ readerId ^ getTime().hashCode() ^ Long.hashCode(updateCount);
+        return tag.hashCode() ^ readerId ^ getTime().hashCode() ^ Long.hashCode(updateCount);
+    }
+
+    @Override
+    protected String detailsInsert() {
+        return "INSERT INTO \"tagSeenEvents\" (\"id\",\"readerId\",\"updateCount\") VALUES (?,?,?)";
     }
 
     @Override
-    public void save(Connection connection) throws SQLException {
-        super.save(connection);
-        String statement = "INSERT INTO \"tagSeenEvents\" (\"id\",\"readerId\",\"updateCount\") VALUES (?,?,?)";
+    protected void bindDetails(PreparedStatement stmt) throws SQLException {
+        stmt.setLong(1, getId().get());
+        stmt.setInt(2, readerId);
+        stmt.setLong(3, updateCount);
+    }
+
+    /**
+     * Pass the update counts of the stored reads of the given reader to the
+     * consumer, in ascending order.
+     */
+    public static void loadUpdateCounts(Connection connection, int readerId, int fetchSize,
+                                        LongConsumer consumer) throws SQLException {
+        String statement = "SELECT \"updateCount\" FROM \"tagSeenEvents\" WHERE \"readerId\" = ? " +
+                "ORDER BY \"updateCount\" ASC";
         try (PreparedStatement stmt = connection.prepareStatement(statement)) {
-            stmt.setLong(1, getId().get());
-            stmt.setInt(2, readerId);
-            stmt.setLong(3, updateCount);
-            boolean result = stmt.execute();
-            assert !result;
+            stmt.setInt(1, readerId);
+            stmt.setFetchSize(fetchSize);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                consumer.accept(rs.getLong(1));
+            }
         }
     }
 }
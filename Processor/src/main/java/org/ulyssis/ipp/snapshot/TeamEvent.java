@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * An event that only changes the state of a single team. The rest of the
+ * snapshot stays the same, except for the public team states, which may be
+ * updated from the team states.
+ */
+public abstract class TeamEvent extends Event {
+    protected TeamEvent(Instant time) {
+        super(time);
+    }
+
+    /**
+     * The team whose state changes when this event is applied to the given
+     * snapshot, or empty if applying this event doesn't change anything.
+     */
+    public abstract Optional<Integer> affectedTeam(Snapshot before);
+
+    /**
+     * Compute the new state of the affected team.
+     */
+    protected abstract TeamState nextTeamState(Snapshot before, TeamState teamState);
+
+    /**
+     * Create the snapshot after this event, given the new state of the affected team.
+     */
+    protected abstract Snapshot withTeamState(Snapshot before, int teamNb, TeamState teamState);
+
+    @Override
+    protected final Snapshot doApply(Snapshot before) {
+        Optional<Integer> teamNb = affectedTeam(before);
+        if (!teamNb.isPresent()) {
+            return before;
+        }
+        TeamState teamState = before.getTeamStates().getStateForTeam(teamNb.get()).orElseGet(TeamState::new);
+        return withTeamState(before, teamNb.get(), nextTeamState(before, teamState));
+    }
+
+    /**
+     * Apply this event to a snapshot, taking the new state of the affected team
+     * from the result of an earlier application of this event, instead of
+     * computing it again.
+     *
+     * Only valid if the state of the affected team before the event is the same
+     * in both snapshots.
+     */
+    public final Snapshot reapply(Snapshot before, Snapshot earlierResult) {
+        Optional<Integer> teamNb = affectedTeam(before);
+        if (!teamNb.isPresent()) {
+            return finishApply(before, before);
+        }
+        Optional<TeamState> teamState = earlierResult.getTeamStates().getStateForTeam(teamNb.get());
+        assert teamState.isPresent();
+        return finishApply(before, withTeamState(before, teamNb.get(), teamState.get()));
+    }
+}
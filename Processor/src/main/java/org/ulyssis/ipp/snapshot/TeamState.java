@@ -30,14 +30,12 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.config.Config;
-import org.ulyssis.ipp.config.ReaderConfig;
-import org.ulyssis.ipp.status.StatusMessage;
-import org.ulyssis.ipp.status.StatusReporter;
+import org.ulyssis.ipp.config.TrackGeometry;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @JsonSerialize(using=TeamState.Serializer.class)
 @JsonDeserialize(using=TeamState.Deserializer.class)
@@ -50,6 +48,12 @@ public final class TeamState {
 
     public static boolean enableOutlierDetection = true;
 
+    /**
+     * Called with every read that is marked as outlier. Reads are applied
+     * while processing events, so this should only hand the read off.
+     */
+    private static volatile Consumer<TagSeenEvent> outlierHandler = event -> {};
+
     static class Serializer extends JsonSerializer<TeamState> {
         @Override
         public void serialize(TeamState value, JsonGenerator jgen, SerializerProvider provider) throws IOException {
@@ -123,8 +127,17 @@ public final class TeamState {
         this.predictedSpeed = predictedSpeed;
     }
 
+    /**
+     * Set the handler for reads that are marked as outlier, by default they're only logged.
+     */
+    public static void setOutlierHandler(Consumer<TagSeenEvent> handler) {
+        outlierHandler = handler;
+    }
+
     // TODO: Refactor!
     public TeamState addTagSeenEvent(Snapshot snapshot, TagSeenEvent event) {
+        Config config = Config.getCurrentConfig();
+        TrackGeometry track = TrackGeometry.of(config);
         int newTagFragmentCount = tagFragmentCount;
         double newSpeed = Double.NaN;
         double newPredictedSpeed = Double.NaN;
@@ -132,42 +145,28 @@ public final class TeamState {
         if (lastTagSeenEvent.isPresent()) {
             TagSeenEvent lastEvent = lastTagSeenEvent.get();
             double secondsDiff = Duration.between(lastEvent.getTime(), event.getTime()).toMillis() / 1000.0;
-            double distanceInMeters = Config.getCurrentConfig().distanceBetweenTwoReaders(lastEvent.getReaderId(), event.getReaderId());
+            double distanceInMeters = track.distanceBetweenReaders(lastEvent.getReaderId(), event.getReaderId());
             double speedInMPerS = distanceInMeters / secondsDiff;
             double speedInKmPerH = speedInMPerS * 3.6;
-            if (enableOutlierDetection && speedInKmPerH > Config.getCurrentConfig().getOutlierSpeedKmPerH()) {
+            if (enableOutlierDetection && speedInKmPerH > config.getOutlierSpeedKmPerH()) {
                 LOG.info("Marking read as outlier because the measured speed is {} km/h, higher than the max value {} km/h. (Tag {}, reader {}, event {})",
-                        speedInKmPerH, Config.getCurrentConfig().getOutlierSpeedKmPerH(), event.getTag(), event.getReaderId(), event.getId());
-                // TODO: better way to do this side effect than just running a task from this method? Affects architecture around Event.doApply though
-                CompletableFuture.runAsync(() -> reportOutlier(event));
+                        speedInKmPerH, config.getOutlierSpeedKmPerH(), event.getTag(), event.getReaderId(), event.getId());
+                outlierHandler.accept(event);
             }
             lastEventId = lastEvent.getReaderId();
         }
         int diff = (event.getReaderId() - lastEventId);
         if (diff < 0) {
-            diff = Config.getCurrentConfig().getNbReaders() + diff;
+            diff = track.getNbReaders() + diff;
         } else if (diff == 0 && (lastTagSeenEvent.isPresent() || // TODO: Refactor this fustercluck of comparisons
                 (snapshot.getStartTime().isBefore(event.getTime()) &&
                         !Duration.between(snapshot.getStartTime(), event.getTime()).minusSeconds(MIN_TIME_BETWEEN_UPDATES).isNegative()))) {
-            diff = Config.getCurrentConfig().getNbReaders();
+            diff = track.getNbReaders();
         }
         newTagFragmentCount += diff;
-        List<ReaderConfig> readers = Config.getCurrentConfig().getReaders();
         double distance = 0;
         if (lastTagSeenEvent.isPresent()) {
-            for (int i = tagFragmentCount; i < newTagFragmentCount; i++) {
-                int j = i % Config.getCurrentConfig().getNbReaders();
-                int k = (i + 1) % Config.getCurrentConfig().getNbReaders();
-                if (k > j) {
-                    distance += readers.get(k).getPosition() - readers.get(j).getPosition();
-                } else if (j > k) {
-                    assert k == 0;
-                    distance += Config.getCurrentConfig().getTrackLength() - readers.get(j).getPosition();
-                } else {
-                    // This can happen when there is only one reader.
-                    distance += Config.getCurrentConfig().getTrackLength();
-                }
-            }
+            distance = track.distanceBetweenFragments(tagFragmentCount, newTagFragmentCount);
             double time = Duration.between(lastTagSeenEvent.get().getTime(), event.getTime()).toMillis() / 1000D;
             newSpeed = distance / time;
             if (Double.isNaN(predictedSpeed)) {
@@ -178,7 +177,7 @@ public final class TeamState {
         } else if (snapshot.getStartTime().isBefore(event.getTime()) &&
                 !Duration.between(snapshot.getStartTime(), event.getTime()).minusSeconds(MIN_TIME_BETWEEN_UPDATES).isNegative()) {
             double time = Duration.between(snapshot.getStartTime(), event.getTime()).toMillis() / 1000D;
-            distance = readers.get(event.getReaderId()).getPosition();
+            distance = track.getReaderPosition(event.getReaderId());
             newSpeed = distance / time;
             if (Double.isNaN(predictedSpeed)) {
                 newPredictedSpeed = newSpeed;
@@ -189,21 +188,6 @@ public final class TeamState {
         return new TeamState(Optional.of(event), newTagFragmentCount, newSpeed, newPredictedSpeed);
     }
 
-    private void reportOutlier(TagSeenEvent event) {
-        StatusReporter reporter = new StatusReporter(
-                StatusReporter.getRedisURI(),
-                Config.getCurrentConfig().getStatusChannel()
-        );
-
-        String tag = event.getTag().toString();
-        int reader = event.getReaderId();
-        long eventId = event.getId().get();
-        reporter.broadcast(new StatusMessage(
-                StatusMessage.MessageType.READ_OUTLIER,
-                "Tag " + tag + " at reader " + reader + " (event id " + eventId + ")")
-        );
-    }
-
     public TeamState addCorrection(int correction) {
         int newTagFragmentCount = tagFragmentCount + correction * Config.getCurrentConfig().getNbReaders();
         // TODO: Should we lower bound it to 0?
@@ -22,44 +22,181 @@ import com.fasterxml.jackson.annotation.JsonValue;
 import com.google.common.collect.ImmutableMap;
 
 import java.util.Optional;
+import java.util.function.BiConsumer;
 
+/**
+ * = The states of all teams
+ *
+ * An immutable map from team number to TeamState, stored as a persistent
+ * trie: every node has up to 32 children, picked by 5 bits of the team
+ * number, and only the nodes that are present are stored. Setting the
+ * state of a team copies the nodes on the path to that team (a handful of
+ * small arrays), and shares everything else with the original, instead of
+ * copying the whole map. This matters because this happens for every read.
+ *
+ * The teams are kept in order of their (non-negative) team number. The JSON
+ * representation is a map from team number to state.
+ */
 public final class TeamStates {
-    private final ImmutableMap<Integer, TeamState> teamNbToState;
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * A node in the trie. The bitmap says which of the 32 slots are present,
+     * and the children array only contains those, in order. The children are
+     * nodes, except on the lowest level (shift 0), where they're the states.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] children;
+
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(int key, int shift) {
+            int bit = 1 << ((key >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = children[index(bit)];
+            return shift == 0 ? child : ((Node) child).get(key, shift - BITS);
+        }
+
+        Node set(int key, int shift, TeamState state) {
+            int bit = 1 << ((key >>> shift) & MASK);
+            int index = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object[] newChildren = children.clone();
+                newChildren[index] = shift == 0 ? state : ((Node) children[index]).set(key, shift - BITS, state);
+                return new Node(bitmap, newChildren);
+            } else {
+                Object[] newChildren = new Object[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, index);
+                System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+                newChildren[index] = shift == 0 ? state : EMPTY.set(key, shift - BITS, state);
+                return new Node(bitmap | bit, newChildren);
+            }
+        }
+
+        void forEach(int prefix, int shift, BiConsumer<Integer, TeamState> action) {
+            int remaining = bitmap;
+            for (Object child : children) {
+                int slot = Integer.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                int key = prefix | (slot << shift);
+                if (shift == 0) {
+                    action.accept(fromKey(key), (TeamState) child);
+                } else {
+                    ((Node) child).forEach(key, shift - BITS, action);
+                }
+            }
+        }
+    }
+
+    private final Node root;
+    /**
+     * The shift of the root node, the trie can hold keys below 1 << (shift + BITS)
+     */
+    private final int shift;
+    private final int size;
+    private volatile ImmutableMap<Integer, TeamState> asMap = null;
 
     public TeamStates() {
-        teamNbToState = ImmutableMap.of();
+        this(Node.EMPTY, 0, 0);
+    }
+
+    private TeamStates(Node root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
     }
 
     @JsonCreator
-    private TeamStates(ImmutableMap<Integer, TeamState> teamNbToState) {
-        this.teamNbToState = teamNbToState;
+    TeamStates(ImmutableMap<Integer, TeamState> teamNbToState) {
+        TeamStates result = new TeamStates();
+        for (ImmutableMap.Entry<Integer, TeamState> entry : teamNbToState.entrySet()) {
+            result = result.setStateForTeam(entry.getKey(), entry.getValue());
+        }
+        this.root = result.root;
+        this.shift = result.shift;
+        this.size = result.size;
+    }
+
+    /**
+     * Team numbers are mapped onto non-negative keys (0, -1, 1, -2, 2, ...
+     * become 0, 1, 2, 3, 4, ...), so that the trie stays shallow.
+     */
+    private static int toKey(int teamNb) {
+        return (teamNb << 1) ^ (teamNb >> 31);
+    }
+
+    private static int fromKey(int key) {
+        return (key >>> 1) ^ -(key & 1);
+    }
+
+    private static boolean fits(int key, int shift) {
+        return shift + BITS >= Integer.SIZE || (key >>> (shift + BITS)) == 0;
     }
 
     public Optional<TeamState> getStateForTeam(int teamNb) {
-        if (teamNbToState.containsKey(teamNb)) {
-            return Optional.of(teamNbToState.get(teamNb));
-        } else {
+        int key = toKey(teamNb);
+        if (!fits(key, shift)) {
             return Optional.empty();
         }
+        return Optional.ofNullable((TeamState) root.get(key, shift));
     }
 
     public TeamStates setStateForTeam(int teamNb, TeamState state) {
-        ImmutableMap.Builder<Integer, TeamState> builder = ImmutableMap.builder();
-        teamNbToState.forEach((myTeamNb, myState) -> {
-            if (teamNb != myTeamNb) {
-                builder.put(myTeamNb, myState);
-            }
-        });
-        builder.put(teamNb, state);
-        return new TeamStates(builder.build());
+        int key = toKey(teamNb);
+        Node newRoot = root;
+        int newShift = shift;
+        while (!fits(key, newShift)) {
+            // Add a level on top, with the current root as its first child
+            newRoot = newRoot.bitmap == 0 ? Node.EMPTY : new Node(1, new Object[]{newRoot});
+            newShift += BITS;
+        }
+        boolean present = fits(key, shift) && root.get(key, shift) != null;
+        return new TeamStates(newRoot.set(key, newShift, state), newShift, present ? size : size + 1);
     }
 
     public int getNbLapsForTeam(int teamNb) {
         return getStateForTeam(teamNb).map(TeamState::getNbLaps).orElse(0);
     }
 
+    /**
+     * The number of teams that have a state.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Call the given action for every team, in order of team number.
+     */
+    public void forEach(BiConsumer<Integer, TeamState> action) {
+        root.forEach(0, shift, action);
+    }
+
+    /**
+     * The states as a map, in order of team number. Built on first use.
+     */
     @JsonValue
     public ImmutableMap<Integer, TeamState> getTeamNbToState() {
-        return teamNbToState;
+        ImmutableMap<Integer, TeamState> result = asMap;
+        if (result == null) {
+            ImmutableMap.Builder<Integer, TeamState> builder = ImmutableMap.builder();
+            forEach(builder::put);
+            result = builder.build();
+            asMap = result;
+        }
+        return result;
     }
 }
@@ -27,10 +27,8 @@ import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.io.BaseEncoding.DecodingException;
 
 import org.apache.logging.log4j.LogManager;
@@ -39,24 +37,54 @@ import org.ulyssis.ipp.processor.Processor;
 import org.ulyssis.ipp.TagId;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * = The assignment of tags to teams
+ *
+ * An immutable map from tag to team number. Every read looks up its tag in
+ * here, so the lookup (teamForTag) returns a plain int and doesn't allocate.
+ *
+ * The tags are kept in an open addressing hash table that is shared between
+ * a map and the maps derived from it. Entries are never taken out of the
+ * table, instead every entry records the versions in which it is present: a
+ * tag that is added gets the next version, a tag that is removed gets its
+ * removed version set. A map only sees the entries that are present in its
+ * own version, so adding or removing a tag only writes a single slot, as long
+ * as it's done on the newest map using the table. Deriving a second map from
+ * an older one (which happens when the processor goes back in time), or
+ * filling up the table, copies the tags that are present into a new table.
+ *
+ * The JSON representation is a map from team number to the tags of that
+ * team, with the teams in order and the tags in the order they were added.
+ * This team to tags view is computed once per map, and cached.
+ */
 @JsonSerialize(using = TeamTagMap.Serializer.class)
 @JsonDeserialize(using = TeamTagMap.Deserializer.class)
 public final class TeamTagMap {
     private static final Logger LOG = LogManager.getLogger(Processor.class);
 
+    /**
+     * Returned by teamForTag when the tag isn't assigned to a team
+     */
+    public static final int NO_TEAM = Integer.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 8;
+
     static class Serializer extends JsonSerializer<TeamTagMap> {
         @Override
         public void serialize(TeamTagMap teamTagMap, JsonGenerator jsonGenerator, SerializerProvider serializerProvider)
                 throws IOException {
             jsonGenerator.writeStartObject();
-            Multimap<Integer,TagId> teamToTags = HashMultimap.create(teamTagMap.getTagToTeam().size(), 1);
-            teamTagMap.getTagToTeam().forEach((tag, team) -> teamToTags.put(team, tag));
-            for (Map.Entry<Integer,Collection<TagId>> entry : teamToTags.asMap().entrySet()) {
+            for (Map.Entry<Integer,List<TagId>> entry : teamTagMap.getTeamToTags().entrySet()) {
                 jsonGenerator.writeFieldName(String.valueOf(entry.getKey()));
                 jsonGenerator.writeStartArray();
                 for (TagId tag : entry.getValue()) {
@@ -72,7 +100,7 @@ public final class TeamTagMap {
         @Override
         public TeamTagMap deserialize(JsonParser jsonParser, DeserializationContext deserializationContext)
                 throws IOException {
-            final Map<TagId,Integer> tagToTeam = new HashMap<>();
+            final Map<TagId,Integer> tagToTeam = new LinkedHashMap<>();
             ObjectCodec oc = jsonParser.getCodec();
             JsonNode node = oc.readTree(jsonParser);
             node.fields().forEachRemaining((entry) -> {
@@ -87,20 +115,137 @@ public final class TeamTagMap {
                     }
                 });
             });
-            return new TeamTagMap(ImmutableMap.<TagId,Integer>builder()
-                .putAll(tagToTeam).build());
+            Table table = new Table(capacityFor(tagToTeam.size()), tagToTeam.size());
+            int version = 0;
+            for (Map.Entry<TagId,Integer> entry : tagToTeam.entrySet()) {
+                table.place(new Entry(entry.getKey(), entry.getValue(), ++version));
+            }
+            return new TeamTagMap(table, version, version);
+        }
+    }
+
+    /**
+     * A tag that is assigned to a team from version added, up to (but not
+     * including) version removed.
+     *
+     * Removed is only written by the newest map of the table, and always set
+     * to a version that is newer than every existing map. Maps on other
+     * threads don't care whether they see that write or not.
+     */
+    private static final class Entry {
+        final TagId tag;
+        final int hash;
+        final int team;
+        final int added;
+        int removed = Integer.MAX_VALUE;
+
+        Entry(TagId tag, int team, int added) {
+            this.tag = tag;
+            this.hash = tag.hashCode();
+            this.team = team;
+            this.added = added;
+        }
+
+        boolean isPresentIn(int version) {
+            return added <= version && version < removed;
         }
     }
 
-    // NOTE: List<Byte> is used, because byte[] has no proper equals()
-    private final ImmutableMap<TagId,Integer> tagToTeam;
+    /**
+     * An open addressing hash table with linear probing. Slots are filled
+     * but never emptied, so a lookup can stop at the first empty slot, even
+     * while the newest map is adding to the table on another thread.
+     */
+    private static final class Table {
+        final Entry[] slots;
+        /**
+         * The version of the newest map using this table, the only one that may change it
+         */
+        final AtomicInteger latestVersion;
+        int used = 0;
+
+        Table(int capacity, int latestVersion) {
+            this.slots = new Entry[capacity];
+            this.latestVersion = new AtomicInteger(latestVersion);
+        }
+
+        void place(Entry entry) {
+            int mask = slots.length - 1;
+            int i = slotFor(entry.hash, mask);
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = entry;
+            used++;
+        }
+    }
+
+    private final Table table;
+    private final int version;
+    private final int size;
+    private volatile ImmutableMap<Integer,List<TagId>> teamToTags = null;
+    private volatile ImmutableMap<TagId,Integer> tagToTeam = null;
 
     public TeamTagMap() {
-        tagToTeam = ImmutableMap.of();
+        this(new Table(MIN_CAPACITY, 0), 0, 0);
     }
 
-    private TeamTagMap(ImmutableMap<TagId,Integer> tagToTeam) {
-        this.tagToTeam = tagToTeam;
+    private TeamTagMap(Table table, int version, int size) {
+        this.table = table;
+        this.version = version;
+        this.size = size;
+    }
+
+    /**
+     * A power of two, so that at most a quarter of the slots is used by the given number of tags
+     */
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(size * 4) << 1);
+    }
+
+    private static int slotFor(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private Entry find(TagId tag) {
+        int hash = tag.hashCode();
+        Entry[] slots = table.slots;
+        int mask = slots.length - 1;
+        for (int i = slotFor(hash, mask); ; i = (i + 1) & mask) {
+            Entry entry = slots[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.isPresentIn(version) && entry.tag.equals(tag)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Try to become the owner of the next version of the table. This fails
+     * if another map was already derived from this one, or if the table
+     * doesn't have enough free slots left.
+     */
+    private boolean claimNextVersion(int newSlots) {
+        return (table.used + newSlots) * 2 <= table.slots.length &&
+                table.latestVersion.compareAndSet(version, version + 1);
+    }
+
+    /**
+     * Copy the tags that are present in this map to a new table, leaving
+     * room for the given number of tags to be added.
+     */
+    private TeamTagMap copy(int extraTags, TagId without) {
+        Table newTable = new Table(capacityFor(size + extraTags), version);
+        int newSize = 0;
+        for (Entry entry : table.slots) {
+            if (entry != null && entry.isPresentIn(version) && !entry.tag.equals(without)) {
+                newTable.place(new Entry(entry.tag, entry.team, entry.added));
+                newSize++;
+            }
+        }
+        return new TeamTagMap(newTable, version, newSize);
     }
 
     public TeamTagMap addTagToTeam(String tag, int team) throws DecodingException {
@@ -108,20 +253,19 @@ public final class TeamTagMap {
     }
 
     public TeamTagMap addTagToTeam(TagId tag, int team) {
-        if (tagToTeam.containsKey(tag)) {
-            if (tagToTeam.get(tag) != team) {
+        Entry existing = find(tag);
+        if (existing != null) {
+            if (existing.team != team) {
                 LOG.error("The tag {} was already assigned to team {}, ignoring!",
-                        tag, tagToTeam.get(tag));
+                        tag, existing.team);
             }
             return this;
         }
-
-        return new TeamTagMap(
-                ImmutableMap.<TagId, Integer>builder()
-                        .putAll(tagToTeam)
-                        .put(tag, team)
-                        .build()
-        );
+        if (!claimNextVersion(1)) {
+            return copy(1, null).addTagToTeam(tag, team);
+        }
+        table.place(new Entry(tag, team, version + 1));
+        return new TeamTagMap(table, version + 1, size + 1);
     }
 
     public TeamTagMap removeTag(String tag) throws DecodingException {
@@ -129,10 +273,23 @@ public final class TeamTagMap {
     }
 
     public TeamTagMap removeTag(TagId tag) {
-        if (!tagToTeam.containsKey(tag)) {
+        Entry existing = find(tag);
+        if (existing == null) {
             return this;
         }
-        return new TeamTagMap(ImmutableMap.copyOf(Maps.filterKeys(tagToTeam, t -> !tag.equals(t))));
+        if (!claimNextVersion(0)) {
+            return copy(0, tag);
+        }
+        existing.removed = version + 1;
+        return new TeamTagMap(table, version + 1, size - 1);
+    }
+
+    /**
+     * The team the given tag is assigned to, or NO_TEAM.
+     */
+    public int teamForTag(TagId tag) {
+        Entry entry = find(tag);
+        return entry == null ? NO_TEAM : entry.team;
     }
 
     public Optional<Integer> tagToTeam(String tag) throws DecodingException {
@@ -140,14 +297,61 @@ public final class TeamTagMap {
     }
 
     public Optional<Integer> tagToTeam(TagId tag) {
-        if (tagToTeam.containsKey(tag)) {
-            return Optional.of(tagToTeam.get(tag));
-        } else {
-            return Optional.empty();
+        int team = teamForTag(tag);
+        return team == NO_TEAM ? Optional.empty() : Optional.of(team);
+    }
+
+    /**
+     * The number of tags that are assigned to a team
+     */
+    public int size() {
+        return size;
+    }
+
+    private List<Entry> entriesInOrder() {
+        List<Entry> result = new ArrayList<>(size);
+        for (Entry entry : table.slots) {
+            if (entry != null && entry.isPresentIn(version)) {
+                result.add(entry);
+            }
         }
+        result.sort(Comparator.comparingInt(entry -> entry.added));
+        return result;
     }
 
-    public Map<TagId, Integer> getTagToTeam() {
-        return tagToTeam;
+    /**
+     * The tags of every team that has tags, in order of team number. The tags
+     * of a team are in the order they were added.
+     */
+    public Map<Integer,List<TagId>> getTeamToTags() {
+        ImmutableMap<Integer,List<TagId>> result = teamToTags;
+        if (result == null) {
+            SortedMap<Integer,ImmutableList.Builder<TagId>> builders = new TreeMap<>();
+            for (Entry entry : entriesInOrder()) {
+                builders.computeIfAbsent(entry.team, team -> ImmutableList.builder()).add(entry.tag);
+            }
+            ImmutableMap.Builder<Integer,List<TagId>> builder = ImmutableMap.builder();
+            builders.forEach((team, tags) -> builder.put(team, tags.build()));
+            result = builder.build();
+            teamToTags = result;
+        }
+        return result;
+    }
+
+    /**
+     * The tags and their teams, in the order they were added. Use teamForTag
+     * for lookups, this builds a map.
+     */
+    public Map<TagId,Integer> getTagToTeam() {
+        ImmutableMap<TagId,Integer> result = tagToTeam;
+        if (result == null) {
+            ImmutableMap.Builder<TagId,Integer> builder = ImmutableMap.builder();
+            for (Entry entry : entriesInOrder()) {
+                builder.put(entry.tag, entry.team);
+            }
+            result = builder.build();
+            tagToTeam = result;
+        }
+        return result;
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.integrationtests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.processor.Database;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.Replays;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.snapshot.TeamState;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assume.assumeTrue;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * The partitioned layout only exists on PostgreSQL 11 or later, so these
+ * tests are skipped unless the database is PostgreSQL, e.g. with the
+ * postgresTest task. On older versions, the regular layout is used instead.
+ */
+public class TestPartitionedDatabase {
+    private static final String CONNECTION_URI = System.getProperty("testJDBCURI", "jdbc:h2:mem:ipp");
+    private static final Instant TIME = Instant.parse("2022-10-18T12:34:56Z");
+
+    private int majorVersion;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(CONNECTION_URI.startsWith("jdbc:postgresql"));
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setPartitionedStorage(true);
+        Database.setDatabaseURI(URI.create(CONNECTION_URI));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            majorVersion = connection.getMetaData().getDatabaseMajorVersion();
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            connection.commit();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (!CONNECTION_URI.startsWith("jdbc:postgresql")) return;
+        Database.setPoolLimits(Database.DEFAULT_MAX_POOL_SIZE, Database.DEFAULT_ACQUIRE_TIMEOUT_MS);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        } finally {
+            Database.setPartitionedStorage(false);
+            TeamState.enableOutlierDetection = true;
+            Config.setCurrentConfig(null);
+        }
+    }
+
+    private static int count(Connection connection, String query, String table) throws Exception {
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            if (table != null) stmt.setString(1, table);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static int partitionCount(Connection connection, String table) throws Exception {
+        return count(connection, "SELECT count(*) FROM pg_inherits JOIN pg_class " +
+                "ON pg_class.oid = pg_inherits.inhparent WHERE pg_class.relname = ?", table);
+    }
+
+    private static int partitionCount() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            int events = partitionCount(connection, "events");
+            assertThat(partitionCount(connection, "snapshots"), equalTo(events));
+            connection.commit();
+            return events;
+        }
+    }
+
+    private static TagSeenEvent read(List<Event> events, Instant time, long updateCount) {
+        TagSeenEvent last = (TagSeenEvent) events.stream().filter(event -> event instanceof TagSeenEvent)
+                .reduce((first, second) -> second).get();
+        return new TagSeenEvent(time, last.getTag(), last.getReaderId(), updateCount);
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        assertThat(Database.isPartitioned(), equalTo(majorVersion >= 11));
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+        assumeTrue(Database.isPartitioned());
+        List<Event> events = Replays.load("10u2022", 200);
+        // A read two hours later needs partitions of its own
+        Instant later = events.get(events.size() - 1).getTime().plus(2L, ChronoUnit.HOURS);
+        events.add(read(events, later, 100000L));
+        events.sort(Comparator.comparing(Event::getTime));
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Event.saveAll(connection, events);
+            for (Event event : events) {
+                snapshot = event.apply(snapshot);
+                snapshot.save(connection);
+            }
+            connection.commit();
+        }
+
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            // The partitions cover the hours of the times as they are stored, in the local time zone
+            long hours = events.stream()
+                    .map(event -> Timestamp.from(event.getTime()).toLocalDateTime().truncatedTo(ChronoUnit.HOURS))
+                    .distinct().count();
+            assertThat((long) partitionCount(connection, "events"), equalTo(hours));
+            assertThat((long) partitionCount(connection, "snapshots"), equalTo(hours));
+            assertThat(Event.loadAll(connection).size(), equalTo(events.size()));
+            Snapshot latest = Snapshot.loadLatest(connection).get();
+            assertThat(latest.getSnapshotTime(), equalTo(later));
+            assertThat(latest.getEventId().get(), equalTo(events.get(events.size() - 1).getId().get()));
+
+            // Deleting works across the partitions
+            Snapshot first = Snapshot.loadForEvent(connection, events.get(0)).get();
+            Snapshot.deleteAfter(connection, first);
+            connection.commit();
+            assertThat(count(connection, "SELECT count(*) FROM \"snapshots\"", null), equalTo(1));
+        }
+    }
+
+    /**
+     * The partitions are created by the transaction that inserts into them,
+     * so that transaction doesn't need, or wait for, a second connection.
+     */
+    @Test
+    public void testSingleConnection() throws Exception {
+        assumeTrue(Database.isPartitioned());
+        Database.setPoolLimits(1, 1000L);
+        List<Event> events = Replays.load("10u2022", 20);
+        long start = System.nanoTime();
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            for (int i = 0; i < 3; i++) {
+                read(events, TIME.plus(i, ChronoUnit.HOURS), i).save(connection);
+            }
+            connection.commit();
+        }
+        assertThat(System.nanoTime() - start, lessThan(1000000000L));
+        assertThat(partitionCount(), equalTo(3));
+    }
+
+    /**
+     * A partition that was created in a transaction that was rolled back is
+     * gone, and is created again when it's needed.
+     */
+    @Test
+    public void testRollback() throws Exception {
+        assumeTrue(Database.isPartitioned());
+        List<Event> events = Replays.load("10u2022", 20);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            read(events, TIME, 0L).save(connection);
+            connection.rollback();
+        }
+        assertThat(partitionCount(), equalTo(0));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            read(events, TIME, 0L).save(connection);
+            connection.commit();
+        }
+        Database.createPartitions(TIME, TIME);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            read(events, TIME.plusSeconds(1L), 1L).save(connection);
+            connection.commit();
+            assertThat(Event.loadAll(connection).size(), equalTo(2));
+        }
+        assertThat(partitionCount(), equalTo(1));
+    }
+
+    /**
+     * Creating the partitions ahead of time while a transaction that inserts
+     * events is running either succeeds, or gives up quickly if it needs a
+     * lock that the transaction holds (attaching a partition locks the whole
+     * table before PostgreSQL 12). Either way, the transaction can insert
+     * into the hours after that.
+     */
+    @Test
+    public void testCreateAheadDuringTransaction() throws Exception {
+        assumeTrue(Database.isPartitioned());
+        List<Event> events = Replays.load("10u2022", 20);
+        Database.createPartitions(TIME, TIME);
+        assertThat(partitionCount(), equalTo(1));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            read(events, TIME, 0L).save(connection);
+            long start = System.nanoTime();
+            try {
+                Database.createPartitions(TIME, TIME.plus(2L, ChronoUnit.HOURS));
+                assertThat(majorVersion >= 12, equalTo(true));
+            } catch (SQLException e) {
+                assertThat(majorVersion < 12, equalTo(true));
+            }
+            assertThat(System.nanoTime() - start, lessThan(5000000000L));
+            read(events, TIME.plus(1L, ChronoUnit.HOURS), 1L).save(connection);
+            read(events, TIME.plus(2L, ChronoUnit.HOURS), 2L).save(connection);
+            connection.commit();
+            assertThat(Event.loadAll(connection).size(), equalTo(3));
+        }
+        assertThat(partitionCount(), equalTo(3));
+        Database.createPartitions(TIME, TIME.plus(3L, ChronoUnit.HOURS));
+        assertThat(partitionCount(), equalTo(4));
+    }
+
+    @Test
+    public void testReinit() throws Exception {
+        assumeTrue(Database.isPartitioned());
+        // initDb on the existing partitioned tables keeps them, and one partition covers the whole hour
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.initDb(connection);
+            connection.commit();
+        }
+        assertThat(Database.isPartitioned(), equalTo(true));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.ensurePartition(connection, TIME);
+            Database.ensurePartition(connection, TIME.plusSeconds(60L));
+            connection.commit();
+        }
+        assertThat(partitionCount(), equalTo(1));
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * = A stand-in for Redis
+ *
+ * Just enough of Redis, over its protocol, for the lease and the snapshot
+ * cache: PING, SELECT, QUIT, GET, SET (with NX, XX and PX), DEL, HSET, HGET,
+ * HMGET, HINCRBY, MULTI, EXEC, PUBLISH (to nobody) and EVAL of the scripts
+ * of RedisLease, which it runs itself. Keys expire like they do in Redis.
+ * Strings are kept as ISO-8859-1, so that binary values survive.
+ */
+public final class RedisStandIn implements Closeable {
+    private static final class Value {
+        final String value;
+        final long expiresAt;
+
+        Value(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Socket> clients = new ArrayList<>();
+    private final Map<String, Value> values = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+
+    public RedisStandIn() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(this::accept);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public URI getUri() {
+        return URI.create("redis://127.0.0.1:" + serverSocket.getLocalPort());
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                synchronized (clients) {
+                    clients.add(socket);
+                }
+                Thread thread = new Thread(() -> serve(socket));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignored) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            List<String> command;
+            List<List<String>> queued = null;
+            while ((command = readCommand(in)) != null) {
+                String name = command.get(0).toUpperCase();
+                String reply;
+                if (name.equals("MULTI")) {
+                    queued = new ArrayList<>();
+                    reply = "+OK\r\n";
+                } else if (name.equals("EXEC")) {
+                    reply = exec(queued);
+                    queued = null;
+                } else if (queued != null) {
+                    queued.add(command);
+                    reply = "+QUEUED\r\n";
+                } else {
+                    reply = execute(command);
+                }
+                out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                if (command.get(0).equalsIgnoreCase("QUIT")) {
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+            // Disconnected
+        }
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        if (!header.startsWith("*")) {
+            throw new IOException("Expected an array, got " + header);
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String lengthLine = readLine(in);
+            if (lengthLine == null || !lengthLine.startsWith("$")) {
+                throw new IOException("Expected a bulk string, got " + lengthLine);
+            }
+            byte[] data = new byte[Integer.parseInt(lengthLine.substring(1))];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            readLine(in);
+            result.add(new String(data, StandardCharsets.ISO_8859_1));
+        }
+        return result;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+    private synchronized String exec(List<List<String>> commands) {
+        if (commands == null) {
+            return "-ERR EXEC without MULTI\r\n";
+        }
+        StringBuilder reply = new StringBuilder("*" + commands.size() + "\r\n");
+        for (List<String> command : commands) {
+            reply.append(execute(command));
+        }
+        return reply.toString();
+    }
+
+    private synchronized String execute(List<String> command) {
+        String name = command.get(0).toUpperCase();
+        switch (name) {
+            case "PING":
+                return "+PONG\r\n";
+            case "SELECT":
+            case "QUIT":
+                return "+OK\r\n";
+            case "GET":
+                return bulk(get(command.get(1)));
+            case "SET":
+                return set(command);
+            case "DEL":
+                return integer(get(command.get(1)) != null && values.remove(command.get(1)) != null ? 1L : 0L);
+            case "EVAL":
+                return eval(command);
+            case "HSET":
+                return integer(hashes.computeIfAbsent(command.get(1), key -> new HashMap<>())
+                        .put(command.get(2), command.get(3)) == null ? 1L : 0L);
+            case "HGET":
+                return bulk(hashes.getOrDefault(command.get(1), new HashMap<>()).get(command.get(2)));
+            case "HMGET": {
+                Map<String, String> hash = hashes.getOrDefault(command.get(1), new HashMap<>());
+                StringBuilder reply = new StringBuilder("*" + (command.size() - 2) + "\r\n");
+                for (int i = 2; i < command.size(); i++) {
+                    reply.append(bulk(hash.get(command.get(i))));
+                }
+                return reply.toString();
+            }
+            case "HINCRBY": {
+                Map<String, String> hash = hashes.computeIfAbsent(command.get(1), key -> new HashMap<>());
+                long value = Long.parseLong(hash.getOrDefault(command.get(2), "0")) + Long.parseLong(command.get(3));
+                hash.put(command.get(2), Long.toString(value));
+                return integer(value);
+            }
+            case "PUBLISH":
+                return integer(0L);
+            default:
+                return "-ERR unknown command '" + command.get(0) + "'\r\n";
+        }
+    }
+
+    private String get(String key) {
+        Value value = values.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.expiresAt != 0L && value.expiresAt <= System.currentTimeMillis()) {
+            values.remove(key);
+            return null;
+        }
+        return value.value;
+    }
+
+    private String set(List<String> command) {
+        String key = command.get(1);
+        boolean nx = false;
+        boolean xx = false;
+        long expiresAt = 0L;
+        for (int i = 3; i < command.size(); i++) {
+            String option = command.get(i).toUpperCase();
+            if (option.equals("NX")) {
+                nx = true;
+            } else if (option.equals("XX")) {
+                xx = true;
+            } else if (option.equals("PX")) {
+                expiresAt = System.currentTimeMillis() + Long.parseLong(command.get(++i));
+            } else {
+                return "-ERR syntax error\r\n";
+            }
+        }
+        boolean exists = get(key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            return "$-1\r\n";
+        }
+        values.put(key, new Value(command.get(2), expiresAt));
+        return "+OK\r\n";
+    }
+
+    private String eval(List<String> command) {
+        String script = command.get(1);
+        String key = command.get(3);
+        String owner = command.get(4);
+        if (!owner.equals(get(key))) {
+            return integer(0L);
+        }
+        if (script.equals(RedisLease.RENEW_SCRIPT)) {
+            values.put(key, new Value(owner, System.currentTimeMillis() + Long.parseLong(command.get(5))));
+            return integer(1L);
+        } else if (script.equals(RedisLease.RELEASE_SCRIPT)) {
+            values.remove(key);
+            return integer(1L);
+        }
+        return "-ERR unknown script\r\n";
+    }
+
+    private static String bulk(String value) {
+        if (value == null) {
+            return "$-1\r\n";
+        }
+        return "$" + value.length() + "\r\n" + value + "\r\n";
+    }
+
+    private static String integer(long value) {
+        return ":" + value + "\r\n";
+    }
+
+    /**
+     * Forget everything, like a Redis that was restarted.
+     */
+    public synchronized void flush() {
+        values.clear();
+        hashes.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.JdbcStorage;
+import org.ulyssis.ipp.snapshot.Replays;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.TeamState;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_ONLY;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * Replays the events of the 2022 10 hour run, like the processor would
+ * (one transaction per event), with different checkpoint policies.
+ */
+public class TestCheckpointPolicy {
+    private static final Logger LOG = LogManager.getLogger(TestCheckpointPolicy.class);
+
+    private static final JdbcStorage STORAGE = new JdbcStorage();
+
+    private List<Event> events;
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:checkpoints;DB_CLOSE_DELAY=-1"));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            connection.commit();
+        }
+        events = Replays.load("10u2022", Integer.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        TeamState.enableOutlierDetection = true;
+        Database.setPerTeamSnapshotStorage(false);
+        Config.setCurrentConfig(null);
+    }
+
+    private Snapshot replay(CheckpointPolicy policy, int middle, String[] middleJson) throws Exception {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        policy.reset(snapshot);
+        long start = System.nanoTime();
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+                event.save(connection);
+                snapshot = policy.apply(new JdbcStorage.Transaction(connection), snapshot, event);
+                connection.commit();
+            }
+            if (i == middle) {
+                middleJson[0] = Serialization.getJsonMapper().writeValueAsString(snapshot);
+            }
+        }
+        LOG.info("Replayed {} events in {} ms", events.size(), (System.nanoTime() - start) / 1000000L);
+        return snapshot;
+    }
+
+    private void checkPolicy(CheckpointPolicy policy, long maxRows) throws Exception {
+        int middle = events.size() / 2 + 7;
+        String[] middleJson = new String[1];
+        Snapshot last = replay(policy, middle, middleJson);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_ONLY))) {
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT count(*), sum(length(\"data\")) FROM \"snapshots\"");
+                rs.next();
+                LOG.info("{} snapshot rows, {} characters of JSON", rs.getLong(1), rs.getLong(2));
+                assertThat(rs.getLong(1), lessThanOrEqualTo(maxRows));
+            }
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT count(*), sum(length(\"data\")) FROM \"teamStates\"");
+                rs.next();
+                LOG.info("{} team rows, {} characters of JSON", rs.getLong(1), rs.getLong(2));
+            }
+            Snapshot latest = Snapshot.loadLatest(connection).get();
+            assertThat(toTree(latest), equalTo(toTree(last)));
+            Snapshot atMiddle = Snapshot.loadForEvent(connection, events.get(middle)).get();
+            assertThat(toTree(atMiddle), equalTo(toTree(middleJson[0])));
+            connection.commit();
+        }
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return toTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    private static JsonNode toTree(String json) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS).readTree(json);
+    }
+
+    @Test
+    public void testEveryEvent() throws Exception {
+        checkPolicy(new CheckpointPolicy(STORAGE, 1, Duration.ZERO), events.size());
+    }
+
+    @Test
+    public void testEveryHundredEvents() throws Exception {
+        checkPolicy(new CheckpointPolicy(STORAGE, 100, Duration.ZERO), events.size() / 100);
+    }
+
+    @Test
+    public void testEveryMinute() throws Exception {
+        checkPolicy(new CheckpointPolicy(STORAGE, 0, Duration.ofMinutes(1L)), 10L * 60L + 1L);
+    }
+
+    @Test
+    public void testPerTeamEveryEvent() throws Exception {
+        Database.setPerTeamSnapshotStorage(true);
+        checkPolicy(new CheckpointPolicy(STORAGE, 1, Duration.ZERO), events.size());
+    }
+
+    @Test
+    public void testPerTeamEveryHundredEvents() throws Exception {
+        Database.setPerTeamSnapshotStorage(true);
+        checkPolicy(new CheckpointPolicy(STORAGE, 100, Duration.ZERO), events.size() / 100);
+    }
+
+    /**
+     * Rewind to halfway, like the processor does for a late event, and make
+     * sure that replaying from there on top of the stored team rows yields
+     * the same state.
+     */
+    @Test
+    public void testPerTeamRewind() throws Exception {
+        Database.setPerTeamSnapshotStorage(true);
+        CheckpointPolicy policy = new CheckpointPolicy(STORAGE, 10, Duration.ZERO);
+        Snapshot last = replay(policy, 0, new String[1]);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Snapshot snapshot = Snapshot.loadBefore(connection, events.get(events.size() / 2).getTime()).get();
+            Snapshot.deleteAfter(connection, snapshot);
+            policy.reset(snapshot);
+            for (Event event : Event.loadAfter(connection, snapshot.getSnapshotTime(), snapshot.getEventId().get())) {
+                if (!event.isRemoved()) {
+                    snapshot = policy.apply(new JdbcStorage.Transaction(connection), snapshot, event);
+                }
+            }
+            connection.commit();
+            assertThat(toTree(snapshot), equalTo(toTree(last)));
+            assertThat(toTree(Snapshot.loadLatest(connection).get()), equalTo(toTree(last)));
+            connection.commit();
+        }
+    }
+}
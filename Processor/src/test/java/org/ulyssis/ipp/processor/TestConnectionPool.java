@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.AddTagEvent;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class TestConnectionPool {
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ConnectionPool("test", () -> {
+            Connection connection = DriverManager.getConnection(URL);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            connection.setAutoCommit(false);
+            return connection;
+        }, 2, 1000L, 1000L, 60000L);
+        try (Connection connection = pool.acquire()) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            connection.commit();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Connection connection = pool.acquire()) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        pool.close();
+    }
+
+    private static int countEvents(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM \"events\"");
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void insertEvent(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("INSERT INTO \"events\" (\"type\",\"time\",\"data\",\"removed\") " +
+                    "VALUES ('test', CURRENT_TIMESTAMP, '{}', false)");
+        }
+    }
+
+    @Test
+    public void testRollbackOnRelease() throws Exception {
+        try (Connection connection = pool.acquire()) {
+            insertEvent(connection);
+        }
+        try (Connection connection = pool.acquire()) {
+            assertThat(countEvents(connection), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testStateRestoredOnRelease() throws Exception {
+        try (Connection connection = pool.acquire()) {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            insertEvent(connection);
+        }
+        // The last connection that was returned is handed out first
+        try (Connection connection = pool.acquire()) {
+            assertThat(connection.getAutoCommit(), equalTo(false));
+            assertThat(connection.getTransactionIsolation(), equalTo(Connection.TRANSACTION_SERIALIZABLE));
+            // What was committed in auto-commit mode stays, what comes after it is rolled back again
+            insertEvent(connection);
+        }
+        try (Connection connection = pool.acquire()) {
+            assertThat(countEvents(connection), equalTo(1));
+        }
+        assertThat(pool.getStatistics().getCreated(), equalTo(1L));
+    }
+
+    private static PreparedStatement physical(PreparedStatement statement) throws SQLException {
+        return statement.unwrap(PreparedStatement.class);
+    }
+
+    @Test
+    public void testStatementsAreReused() throws Exception {
+        long hits = pool.getStatistics().getStatementCacheHits();
+        PreparedStatement first;
+        try (Connection connection = pool.acquire()) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT 1")) {
+                first = physical(statement);
+                assertThat(statement.getConnection(), sameInstance(connection));
+            }
+        }
+        try (Connection connection = pool.acquire();
+             PreparedStatement statement = connection.prepareStatement("SELECT 1")) {
+            assertThat(physical(statement), sameInstance(first));
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            assertThat(rs.getInt(1), equalTo(1));
+        }
+        assertThat(pool.getStatistics().getStatementCacheHits(), equalTo(hits + 1L));
+    }
+
+    @Test
+    public void testStatementInUseIsNotShared() throws Exception {
+        try (Connection connection = pool.acquire();
+             PreparedStatement a = connection.prepareStatement("SELECT ?");
+             PreparedStatement b = connection.prepareStatement("SELECT ?")) {
+            assertThat(physical(a), not(sameInstance(physical(b))));
+            a.setInt(1, 1);
+            b.setInt(1, 2);
+            ResultSet rs = a.executeQuery();
+            rs.next();
+            assertThat(rs.getInt(1), equalTo(1));
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void testClosedStatementCantBeUsed() throws Exception {
+        try (Connection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT 1");
+            statement.close();
+            assertThat(statement.isClosed(), equalTo(true));
+            statement.executeQuery();
+        }
+    }
+
+    @Test
+    public void testSaveAll() throws Exception {
+        List<Event> events = Arrays.asList(
+                new AddTagEvent(Instant.ofEpochSecond(1L), new TagId("abcd"), 0),
+                new TagSeenEvent(Instant.ofEpochSecond(2L), new TagId("abcd"), 0, 1L),
+                new TagSeenEvent(Instant.ofEpochSecond(3L), new TagId("abcd"), 1, 1L));
+        try (Connection connection = pool.acquire()) {
+            Event.saveAll(connection, events);
+            connection.commit();
+        }
+        assertThat(events.get(1).getId().get(), greaterThan(events.get(0).getId().get()));
+        assertThat(events.get(2).getId().get(), greaterThan(events.get(1).getId().get()));
+        try (Connection connection = pool.acquire()) {
+            for (Event event : events) {
+                Event loaded = Event.load(connection, event.getId().get()).get();
+                assertThat(loaded.getTime(), equalTo(event.getTime()));
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT \"readerId\" FROM \"tagSeenEvents\" WHERE \"id\"=?")) {
+                statement.setLong(1, events.get(2).getId().get());
+                ResultSet rs = statement.executeQuery();
+                assertThat(rs.next(), equalTo(true));
+                assertThat(rs.getInt(1), equalTo(1));
+            }
+        }
+    }
+}
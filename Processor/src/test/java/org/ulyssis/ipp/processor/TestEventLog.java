@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+public class TestEventLog {
+    private Path directory;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("wal");
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:wal;DB_CLOSE_DELAY=-1"));
+        connection = Database.createConnection(EnumSet.of(READ_WRITE));
+        Database.clearDb(connection);
+        Database.initDb(connection);
+        connection.commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.clearDb(connection);
+        connection.commit();
+        connection.close();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static TagSeenEvent read(long updateCount) {
+        return new TagSeenEvent(Instant.ofEpochSecond(updateCount), new TagId("abcd"), 0, updateCount);
+    }
+
+    private void commit(EventLog log, Long... lsns) throws Exception {
+        EventLog.Commit commit = log.prepareCommit(connection, new HashSet<>(Arrays.asList(lsns)));
+        connection.commit();
+        log.afterCommit(commit);
+    }
+
+    private static long countSegments(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            long result = 0L;
+            for (Path ignored : stream) {
+                result++;
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testRecoverUncommitted() throws Exception {
+        EventLog log = new EventLog(directory);
+        for (long i = 0L; i < 4L; i++) {
+            assertThat(log.append(read(i)), equalTo(i + 1L));
+        }
+        // Out of order, the reorder buffer can hold back an earlier event
+        commit(log, 2L);
+        commit(log, 1L);
+        commit(log, 4L);
+        log.close();
+        EventLog reopened = new EventLog(directory);
+        TreeMap<Long, Event> recovered = reopened.recover(connection);
+        assertThat(recovered.keySet(), contains(3L));
+        assertThat(recovered.get(3L), equalTo(read(2L)));
+        assertThat(reopened.append(read(4L)), equalTo(5L));
+        commit(reopened, 3L, 5L);
+        assertThat(new EventLog(directory).recover(connection).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        EventLog log = new EventLog(directory);
+        log.append(read(0L));
+        log.append(read(1L));
+        log.close();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+             RandomAccessFile file = new RandomAccessFile(stream.iterator().next().toFile(), "rw")) {
+            // Flip a byte of the payload of the second record
+            long payload = 16L + file.readInt() + 16L;
+            file.seek(payload);
+            int b = file.read();
+            file.seek(payload);
+            file.write(b ^ 0xff);
+        }
+        EventLog reopened = new EventLog(directory);
+        assertThat(reopened.recover(connection).keySet(), contains(1L));
+        assertThat(reopened.append(read(2L)), equalTo(2L));
+        reopened.close();
+        assertThat(new EventLog(directory).recover(connection).values(), contains(read(0L), read(2L)));
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        EventLog log = new EventLog(directory, 512);
+        for (long i = 0L; i < 20L; i++) {
+            log.append(read(i));
+        }
+        assertThat(log.getSegments() > 1, equalTo(true));
+        for (long lsn = 1L; lsn <= 19L; lsn++) {
+            commit(log, lsn);
+        }
+        log.dropped(20L);
+        commit(log);
+        assertThat(log.getSegments(), equalTo(1));
+        assertThat(countSegments(directory), equalTo(1L));
+        assertThat(log.getPending(), equalTo(0));
+        log.close();
+        EventLog reopened = new EventLog(directory, 512);
+        assertThat(reopened.recover(connection).isEmpty(), equalTo(true));
+        assertThat(reopened.append(read(20L)), equalTo(21L));
+    }
+
+    private long countEvents() throws Exception {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM \"events\"")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void testStoreFailsThenRetried() throws Exception {
+        EventLog log = new EventLog(directory);
+        TagSeenEvent event = read(0L);
+        long lsn = log.append(event);
+        // The database is briefly unavailable
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("ALTER TABLE \"events\" RENAME TO \"eventsAway\"");
+        }
+        try {
+            Event.saveAll(connection, Collections.singletonList(event));
+            fail("The events table is gone");
+        } catch (SQLException e) {
+            connection.rollback();
+            assertThat(Database.isPermanentFailure(e), equalTo(false));
+        }
+        assertThat(log.failed(lsn), equalTo(EventLog.RETRY_MIN_MILLIS));
+        assertThat(log.failed(lsn), equalTo(2L * EventLog.RETRY_MIN_MILLIS));
+        assertThat(log.getPending(), equalTo(1));
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("ALTER TABLE \"eventsAway\" RENAME TO \"events\"");
+        }
+
+        // The processor stops before it tries again, the event is still there
+        log.close();
+        EventLog reopened = new EventLog(directory);
+        assertThat(reopened.recover(connection).keySet(), contains(lsn));
+        event.resetId();
+        Event.saveAll(connection, Collections.singletonList(event));
+        commit(reopened, lsn);
+        assertThat(countEvents(), equalTo(1L));
+        assertThat(reopened.getPending(), equalTo(0));
+        assertThat(new EventLog(directory).recover(connection).isEmpty(), equalTo(true));
+
+        // The same read again can never be stored
+        TagSeenEvent duplicate = read(0L);
+        long duplicateLsn = reopened.append(duplicate);
+        try {
+            Event.saveAll(connection, Collections.singletonList(duplicate));
+            fail("The read was stored already");
+        } catch (SQLException e) {
+            connection.rollback();
+            assertThat(Database.isPermanentFailure(e), equalTo(true));
+        }
+        reopened.dropped(duplicateLsn);
+        commit(reopened);
+        assertThat(countEvents(), equalTo(1L));
+        assertThat(new EventLog(directory).recover(connection).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        EventLog log = new EventLog(directory);
+        log.append(read(0L));
+        commit(log, 1L);
+        log.append(read(1L));
+        Database.clearDb(connection);
+        Database.initDb(connection);
+        connection.commit();
+        log.reset();
+        assertThat(log.recover(connection).isEmpty(), equalTo(true));
+        assertThat(log.append(read(2L)), equalTo(1L));
+        assertThat(new EventLog(directory).recover(connection).keySet(), equalTo(Collections.singleton(1L)));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class TestHistogram {
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0L, 1L, 15L, 16L, 17L, 1000L, 123456789L, Long.MAX_VALUE}) {
+            long upperBound = Histogram.upperBound(Histogram.bucketFor(value));
+            assertThat(upperBound, greaterThanOrEqualTo(value));
+            assertThat(upperBound - value, lessThanOrEqualTo(value / 8));
+        }
+        for (int bucket = 1; bucket < Histogram.bucketFor(Long.MAX_VALUE); bucket++) {
+            assertThat(Histogram.bucketFor(Histogram.upperBound(bucket - 1) + 1), equalTo(bucket));
+            assertThat(Histogram.bucketFor(Histogram.upperBound(bucket)), equalTo(bucket));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Counts first = histogram.counts();
+        assertThat(first.getCount(), equalTo(1000L));
+        assertThat(first.getMean(), equalTo(500.5));
+        assertThat(first.getPercentile(0.5), allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(500L + 500L / 8)));
+        assertThat(first.getPercentile(0.99), allOf(greaterThanOrEqualTo(990L), lessThanOrEqualTo(990L + 990L / 8)));
+        assertThat(first.getMax(), allOf(greaterThanOrEqualTo(1000L), lessThanOrEqualTo(1000L + 1000L / 8)));
+        histogram.record(5L);
+        Histogram.Counts since = histogram.counts().since(first);
+        assertThat(since.getCount(), equalTo(1L));
+        assertThat(since.getPercentile(0.5), equalTo(5L));
+        assertThat(since.getMax(), equalTo(5L));
+        assertThat(Histogram.empty().getPercentile(0.5), equalTo(0L));
+    }
+}
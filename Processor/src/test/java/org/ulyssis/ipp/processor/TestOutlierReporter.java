@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.status.StatusMessage;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TestOutlierReporter {
+    private static TagSeenEvent read(String tag, int readerId) {
+        return new TagSeenEvent(Instant.EPOCH, new TagId(tag), readerId, 0L);
+    }
+
+    @Test
+    public void testCoalesceAndDrop() throws Exception {
+        List<StatusMessage> messages = new CopyOnWriteArrayList<>();
+        OutlierReporter reporter = new OutlierReporter(messages::add, 2, 200L);
+        for (int i = 0; i < 100; i++) {
+            reporter.report(read("abcd", i % 2));
+        }
+        reporter.report(read("bcde", 0));
+        reporter.report(read("cdef", 0));
+        assertThat(reporter.getCoalesced(), equalTo(99L));
+        assertThat(reporter.getDropped(), equalTo(1L));
+        assertThat(messages.size(), equalTo(0));
+
+        Thread thread = new Thread(reporter);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while (messages.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(messages.size(), equalTo(2));
+        assertThat(messages.get(0).getType(), equalTo(StatusMessage.MessageType.READ_OUTLIER));
+        assertThat(messages.get(0).getDetails(), containsString("Tag abcd at reader 1"));
+        assertThat(messages.get(0).getDetails(), containsString("100 outliers"));
+        assertThat(messages.get(1).getDetails(), containsString("Tag bcde"));
+        assertThat(reporter.getReported(), equalTo(2L));
+
+        // Once reported, the next outlier of the tag starts a new message
+        reporter.report(read("abcd", 0));
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while (messages.size() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(messages.size(), equalTo(3));
+        assertThat(reporter.getCoalesced(), equalTo(99L));
+        thread.interrupt();
+        thread.join();
+    }
+}
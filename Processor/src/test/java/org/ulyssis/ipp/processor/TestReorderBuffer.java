@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class TestReorderBuffer {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private static Event read(long second) {
+        return new TagSeenEvent(Instant.ofEpochSecond(second), new TagId("abcd"), 0, second);
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        ReorderBuffer buffer = new ReorderBuffer(10L, 100);
+        Event third = read(3L);
+        Event first = read(1L);
+        Event second = read(2L);
+        buffer.add(third, 0L);
+        buffer.add(first, MS);
+        buffer.add(second, 2L * MS);
+        assertThat(buffer.size(), equalTo(3));
+        assertThat(buffer.getReordered(), equalTo(2L));
+        // The first one in time arrived at 1 ms, it's held until 11 ms
+        assertThat(buffer.poll(5L * MS), nullValue());
+        assertThat(buffer.nanosUntilNext(5L * MS), equalTo(6L * MS));
+        assertThat(buffer.poll(11L * MS - 1L), nullValue());
+        assertThat(buffer.poll(11L * MS), sameInstance(first));
+        assertThat(buffer.poll(11L * MS), nullValue());
+        assertThat(buffer.poll(12L * MS), sameInstance(second));
+        // Due since 10 ms, but it had to wait for the ones before it
+        assertThat(buffer.poll(12L * MS), sameInstance(third));
+        assertThat(buffer.size(), equalTo(0));
+        assertThat(buffer.nanosUntilNext(12L * MS), equalTo(Long.MAX_VALUE));
+
+        // Before one that was released already, too late to put it in order
+        Event late = read(0L);
+        buffer.add(late, 20L * MS);
+        assertThat(buffer.getLate(), equalTo(1L));
+        assertThat(buffer.poll(30L * MS), sameInstance(late));
+    }
+
+    @Test
+    public void testNoDelay() {
+        ReorderBuffer buffer = new ReorderBuffer(0L, 100);
+        Event event = read(1L);
+        buffer.add(event, 0L);
+        assertThat(buffer.nanosUntilNext(0L), equalTo(0L));
+        assertThat(buffer.poll(0L), sameInstance(event));
+    }
+
+    @Test
+    public void testMaxSize() {
+        ReorderBuffer buffer = new ReorderBuffer(1000L, 2);
+        Event second = read(2L);
+        Event first = read(1L);
+        Event third = read(3L);
+        buffer.add(second, 0L);
+        buffer.add(first, 0L);
+        assertThat(buffer.poll(0L), nullValue());
+        buffer.add(third, 0L);
+        // One too many, the earliest one goes right away
+        assertThat(buffer.nanosUntilNext(0L), equalTo(0L));
+        assertThat(buffer.poll(0L), sameInstance(first));
+        assertThat(buffer.poll(0L), nullValue());
+        assertThat(buffer.size(), equalTo(2));
+        assertThat(buffer.nanosUntilNext(0L), equalTo(1000L * MS));
+        assertThat(buffer.poll(1000L * MS), sameInstance(second));
+        assertThat(buffer.poll(1000L * MS), sameInstance(third));
+    }
+}
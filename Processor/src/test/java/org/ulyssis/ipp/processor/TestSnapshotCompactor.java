@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.JdbcStorage;
+import org.ulyssis.ipp.snapshot.Replays;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.TeamState;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * Replays the events of the 2022 10 hour run with a snapshot for every
+ * event, and thins them out.
+ */
+public class TestSnapshotCompactor {
+    private static final Logger LOG = LogManager.getLogger(TestSnapshotCompactor.class);
+
+    private static final JdbcStorage STORAGE = new JdbcStorage();
+
+    private List<Event> events;
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:compactor;DB_CLOSE_DELAY=-1"));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            connection.commit();
+        }
+        events = Replays.load("10u2022", Integer.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        TeamState.enableOutlierDetection = true;
+        Database.setPerTeamSnapshotStorage(false);
+        Config.setCurrentConfig(null);
+    }
+
+    private Snapshot replay(CheckpointPolicy policy, int middle, String[] middleJson) throws Exception {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        policy.reset(snapshot);
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+                event.save(connection);
+                snapshot = policy.apply(new JdbcStorage.Transaction(connection), snapshot, event);
+                connection.commit();
+            }
+            if (i == middle) {
+                middleJson[0] = Serialization.getJsonMapper().writeValueAsString(snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return toTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    private static JsonNode toTree(String json) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS).readTree(json);
+    }
+
+    private long countSnapshots(Connection connection) throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM \"snapshots\"");
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Thin out the snapshots, make sure the states at the end and halfway
+     * are still right, and that rewinding to a time where snapshots were
+     * deleted, and replaying from there, yields the same state.
+     */
+    private void checkCompaction() throws Exception {
+        CheckpointPolicy policy = new CheckpointPolicy(STORAGE, 1, Duration.ZERO);
+        int middle = events.size() / 2 + 7;
+        String[] middleJson = new String[1];
+        Snapshot last = replay(policy, middle, middleJson);
+        SnapshotCompactor compactor = new SnapshotCompactor(STORAGE, new ReentrantLock(),
+                Duration.ofHours(1L), Duration.ofMinutes(10L));
+        int deleted = compactor.compact();
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            long left = countSnapshots(connection);
+            LOG.info("Deleted {} snapshots, {} left", deleted, left);
+            assertThat(left, lessThanOrEqualTo((long) events.size() / 5));
+            assertThat(toTree(Snapshot.loadLatest(connection).get()), equalTo(toTree(last)));
+            assertThat(toTree(Snapshot.loadForEvent(connection, events.get(middle)).get()),
+                    equalTo(toTree(middleJson[0])));
+            Snapshot snapshot = Snapshot.loadBefore(connection, events.get(events.size() / 4).getTime()).get();
+            Snapshot.deleteAfter(connection, snapshot);
+            policy.reset(snapshot);
+            for (Event event : Event.loadAfter(connection, snapshot.getSnapshotTime(), snapshot.getEventId().get())) {
+                if (!event.isRemoved()) {
+                    snapshot = policy.apply(new JdbcStorage.Transaction(connection), snapshot, event);
+                }
+            }
+            connection.commit();
+            assertThat(toTree(snapshot), equalTo(toTree(last)));
+            assertThat(toTree(Snapshot.loadLatest(connection).get()), equalTo(toTree(last)));
+            connection.commit();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        checkCompaction();
+    }
+
+    @Test
+    public void testPerTeamCompaction() throws Exception {
+        Database.setPerTeamSnapshotStorage(true);
+        checkCompaction();
+    }
+
+    /**
+     * Compact while this thread keeps taking the lock, like the processing
+     * thread does for every batch. The compactor mustn't start while a
+     * batch is being processed, and this thread mustn't wait for the whole
+     * compaction before it gets its turn.
+     */
+    @Test
+    public void testCompactionWithContendedLock() throws Exception {
+        Snapshot last = replay(new CheckpointPolicy(STORAGE, 1, Duration.ZERO), 0, new String[1]);
+        Thread processing = Thread.currentThread();
+        AtomicInteger chunks = new AtomicInteger();
+        ReentrantLock lock = new ReentrantLock(true) {
+            @Override
+            public void lock() {
+                super.lock();
+                if (Thread.currentThread() != processing) {
+                    chunks.incrementAndGet();
+                }
+            }
+        };
+        SnapshotCompactor compactor = new SnapshotCompactor(STORAGE, lock,
+                Duration.ofHours(1L), Duration.ofMinutes(10L), 10, SnapshotCompactor.DEFAULT_PERIOD_MILLIS);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> deleted;
+            lock.lock();
+            try {
+                deleted = executor.submit(compactor::compact);
+                while (!lock.hasQueuedThreads()) {
+                    Thread.sleep(1L);
+                }
+                Thread.sleep(50L);
+                assertThat(chunks.get(), equalTo(0));
+                assertThat(compactor.getDeleted(), equalTo(0L));
+            } finally {
+                lock.unlock();
+            }
+            int batches = 0;
+            int previous = 0;
+            while (!deleted.isDone()) {
+                lock.lock();
+                try {
+                    // The chunk that held the lock when this thread asked for it, and one more if
+                    // that chunk ended before this thread was queued
+                    int current = chunks.get();
+                    assertThat(current - previous, lessThanOrEqualTo(2));
+                    previous = current;
+                    batches++;
+                    Thread.sleep(1L);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            LOG.info("Deleted {} snapshots in {} chunks, {} batches in between", deleted.get(), chunks.get(), batches);
+            assertThat(chunks.get(), greaterThan(10));
+            assertThat(batches, greaterThan(chunks.get() / 2));
+            assertThat((long) deleted.get(), equalTo(compactor.getDeleted()));
+        } finally {
+            executor.shutdownNow();
+        }
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            assertThat(countSnapshots(connection), lessThanOrEqualTo((long) events.size() / 5));
+            assertThat(toTree(Snapshot.loadLatest(connection).get()), equalTo(toTree(last)));
+            connection.commit();
+        }
+    }
+}
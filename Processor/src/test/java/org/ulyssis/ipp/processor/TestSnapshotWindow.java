@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.Replays;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.snapshot.TeamState;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * Rewinds in memory, like the processor does for a late event, and checks
+ * that the result is what replaying all events from the start gives.
+ */
+public class TestSnapshotWindow {
+    private static final int EVENTS = 600;
+    private static final int WINDOW = 100;
+    private static final Comparator<Event> EVENT_ORDER =
+            Comparator.comparing(Event::getTime).thenComparing(event -> event.getId().get());
+
+    private List<Event> events;
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:window;DB_CLOSE_DELAY=-1"));
+        events = Replays.load("10u2022", EVENTS);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            // The events need ids, the window tells them apart by the id of the event of a snapshot
+            for (Event event : events) {
+                event.save(connection);
+            }
+            connection.commit();
+        }
+        events.sort(EVENT_ORDER);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        TeamState.enableOutlierDetection = true;
+        Config.setCurrentConfig(null);
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                .readTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    private static Snapshot replay(List<Event> events) {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        for (Event event : events) {
+            snapshot = event.apply(snapshot);
+        }
+        return snapshot;
+    }
+
+    private SnapshotWindow fill(int maxSize) {
+        SnapshotWindow window = new SnapshotWindow(maxSize, new Snapshot(Instant.EPOCH), null);
+        Snapshot snapshot = window.getLatest();
+        for (Event event : events) {
+            snapshot = event.apply(snapshot);
+            window.add(event, snapshot, null);
+        }
+        return window;
+    }
+
+    @Test
+    public void testRewind() throws Exception {
+        SnapshotWindow window = fill(WINDOW);
+        assertThat(window.size(), equalTo(WINDOW));
+        assertThat(toTree(window.getLatest()), equalTo(toTree(replay(events))));
+
+        // A read that arrives late, at the same time as an event well inside the window
+        TagSeenEvent seen = (TagSeenEvent) events.stream().filter(event -> event instanceof TagSeenEvent)
+                .reduce((first, second) -> second).get();
+        Event inside = events.get(EVENTS - WINDOW / 2);
+        TagSeenEvent late = new TagSeenEvent(inside.getTime(), seen.getTag(), seen.getReaderId(), 100000L);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            late.save(connection);
+            connection.commit();
+        }
+        assertThat(window.covers(late.getTime()), equalTo(true));
+        List<SnapshotWindow.Entry> rewound = window.rewind(late.getTime());
+        assertThat(rewound.get(0).event, sameInstance(events.get(EVENTS - rewound.size())));
+        assertThat(window.size(), equalTo(WINDOW - rewound.size()));
+        List<Event> toApply = new ArrayList<>();
+        rewound.forEach(entry -> toApply.add(entry.event));
+        toApply.add(late);
+        toApply.sort(EVENT_ORDER);
+        Snapshot snapshot = window.getLatest();
+        for (Event event : toApply) {
+            snapshot = event.apply(snapshot);
+            window.add(event, snapshot, null);
+        }
+
+        List<Event> all = new ArrayList<>(events);
+        all.add(late);
+        all.sort(EVENT_ORDER);
+        assertThat(toTree(snapshot), equalTo(toTree(replay(all))));
+        assertThat(window.size(), equalTo(WINDOW));
+    }
+
+    @Test
+    public void testCovers() throws Exception {
+        SnapshotWindow window = fill(WINDOW);
+        // The base is the state after the last event that was dropped from the window
+        Event outside = events.get(EVENTS - WINDOW - 1);
+        assertThat(window.covers(outside.getTime()), equalTo(false));
+        assertThat(window.covers(outside.getTime().plusNanos(1L)), equalTo(true));
+        assertThat(window.covers(events.get(EVENTS - 1).getTime()), equalTo(true));
+
+        Snapshot latest = window.getLatest();
+        window.reset(latest, null);
+        assertThat(window.size(), equalTo(0));
+        assertThat(window.getLatest(), sameInstance(latest));
+        assertThat(window.covers(events.get(EVENTS - 1).getTime()), equalTo(false));
+        assertThat(window.rewind(latest.getSnapshotTime().plusNanos(1L)).isEmpty(), equalTo(true));
+
+        // Without a window, only what comes after the latest snapshot is covered
+        window = fill(0);
+        assertThat(window.size(), equalTo(0));
+        assertThat(window.covers(events.get(EVENTS - 1).getTime()), equalTo(false));
+    }
+
+    @Test
+    public void testFromTheStart() throws Exception {
+        // Nothing was dropped yet, the window goes back to the start
+        SnapshotWindow window = fill(EVENTS);
+        assertThat(window.covers(Instant.EPOCH), equalTo(true));
+        List<SnapshotWindow.Entry> rewound = window.rewind(Instant.EPOCH);
+        assertThat(rewound.size(), equalTo(EVENTS));
+        assertThat(toTree(window.getLatest()), equalTo(toTree(new Snapshot(Instant.EPOCH))));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.snapshot.AddTagEvent;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.EventCursor;
+import org.ulyssis.ipp.snapshot.JdbcStorage;
+import org.ulyssis.ipp.snapshot.Replays;
+import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.StartEvent;
+import org.ulyssis.ipp.snapshot.StoreTransaction;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+import org.ulyssis.ipp.snapshot.TeamState;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_ONLY;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+/**
+ * Follows the start of the 2022 10 hour run as a standby, with late reads
+ * and a start time that is changed halfway, and takes over from a processor
+ * that goes away.
+ */
+public class TestStandby {
+    private static final Logger LOG = LogManager.getLogger(TestStandby.class);
+
+    private static final JdbcStorage STORAGE = new JdbcStorage();
+    private static final int EVENTS = 2000;
+    private static final int FETCH_SIZE = 100;
+    private static final long TTL_MILLIS = 600L;
+    private static final long POLL_MILLIS = 50L;
+
+    private List<Event> events;
+
+    /**
+     * The processor holding the lease: stores the events, and applies them
+     * with a checkpoint every ten events, going back to the checkpoint before
+     * a late event like the processor does when the window doesn't cover it
+     */
+    private final CheckpointPolicy policy = new CheckpointPolicy(STORAGE, 10, Duration.ZERO);
+    private Snapshot snapshot = new Snapshot(Instant.EPOCH);
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:standby;DB_CLOSE_DELAY=-1"));
+        STORAGE.init(true);
+        policy.reset(snapshot);
+        List<Event> all = Replays.load("10u2022", EVENTS);
+        events = new ArrayList<>(all);
+        // Every 50th read comes in after the five reads after it
+        for (int i = 50; i + 5 < events.size(); i += 50) {
+            if (events.get(i) instanceof TagSeenEvent) {
+                events.add(i + 5, events.remove(i));
+            }
+        }
+        Event start = all.stream().filter(event -> event instanceof StartEvent).findFirst().get();
+        events.add(EVENTS / 2, new StartEvent(start.getTime().plusSeconds(60L)));
+        events.add(EVENTS / 4, new AddTagEvent(Instant.now().plus(Duration.ofHours(1L)), new TagId("ABCDEF"), 1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        TeamState.enableOutlierDetection = true;
+        Config.setCurrentConfig(null);
+    }
+
+    /**
+     * Store and apply an event, in a transaction of its own.
+     */
+    private void process(Event event) throws Exception {
+        try (StoreTransaction tx = STORAGE.begin()) {
+            Instant now = Instant.now();
+            Instant rewindTo = null;
+            if (event.isUnique()) {
+                Optional<Event> other = STORAGE.loadUnique(tx, event.getClass());
+                if (other.isPresent()) {
+                    STORAGE.setRemoved(tx, other.get(), true);
+                    rewindTo = other.get().getTime();
+                }
+            }
+            STORAGE.save(tx, Collections.singletonList(event));
+            if (event.getTime().isAfter(now)) {
+                tx.commit();
+                return;
+            }
+            boolean inOrder = event.getTime().isAfter(snapshot.getSnapshotTime()) ||
+                    (event.getTime().equals(snapshot.getSnapshotTime()) &&
+                            event.getId().get() > snapshot.getEventId().orElse(-1L));
+            if (rewindTo == null && inOrder) {
+                snapshot = policy.apply(tx, snapshot, event);
+            } else {
+                if (rewindTo == null || event.getTime().isBefore(rewindTo)) {
+                    rewindTo = event.getTime();
+                }
+                Snapshot result = STORAGE.loadBefore(tx, rewindTo).orElseGet(() -> new Snapshot(Instant.EPOCH));
+                STORAGE.deleteAfter(tx, result);
+                policy.reset(result);
+                try (EventCursor cursor = result.getEventId().isPresent() ?
+                        STORAGE.cursorAfter(tx, result.getSnapshotTime(), result.getEventId().get(), FETCH_SIZE) :
+                        STORAGE.cursorAll(tx, FETCH_SIZE)) {
+                    while (cursor.next()) {
+                        if (!cursor.get().isRemoved() && !cursor.get().getTime().isAfter(now)) {
+                            result = policy.apply(tx, result, cursor.get());
+                        }
+                    }
+                }
+                snapshot = result;
+            }
+            tx.commit();
+        }
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                .readTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        Standby standby = new Standby(FETCH_SIZE);
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_ONLY))) {
+            standby.load(connection, Instant.now());
+            connection.commit();
+        }
+        for (int i = 0; i < events.size(); i++) {
+            process(events.get(i));
+            if (i % 100 == 0 || i == events.size() - 1) {
+                try (Connection connection = Database.createConnection(EnumSet.of(READ_ONLY))) {
+                    standby.catchUp(connection, Instant.now());
+                    connection.commit();
+                }
+                assertThat(toTree(standby.getSnapshot()), equalTo(toTree(snapshot)));
+            }
+        }
+        LOG.info("Events applied in standby: {}, rebuilds: {}", standby.getApplied(), standby.getRebuilds());
+        assertThat(standby.getApplied(), greaterThan(0L));
+        assertThat(standby.getRebuilds(), greaterThan(1L));
+        assertThat(standby.getFuture().size(), equalTo(1));
+        assertThat(standby.hasEvents(), equalTo(true));
+    }
+
+    /**
+     * The processor holding the lease stops renewing it halfway through the
+     * events, stops committing before it loses it, and the standby takes
+     * over, and is up to date when it does.
+     */
+    @Test
+    public void testFailover() throws Exception {
+        try (RedisStandIn redis = new RedisStandIn();
+             RedisLease primaryLease = new RedisLease(redis.getUri(), "processor:lease", "primary", TTL_MILLIS);
+             RedisLease standbyLease = new RedisLease(redis.getUri(), "processor:lease", "standby", TTL_MILLIS)) {
+            assertThat(primaryLease.tryAcquire(), equalTo(true));
+            assertThat(standbyLease.tryAcquire(), equalTo(false));
+            ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+            renewer.scheduleAtFixedRate(primaryLease::renew, TTL_MILLIS / 3L, TTL_MILLIS / 3L, TimeUnit.MILLISECONDS);
+
+            Standby standby = new Standby(FETCH_SIZE);
+            AtomicBoolean upToDate = new AtomicBoolean(false);
+            AtomicLong tookOver = new AtomicLong(0L);
+            Thread standbyThread = new Thread(() -> {
+                try {
+                    upToDate.set(standby.followUntilAcquired(standbyLease, POLL_MILLIS));
+                    tookOver.set(System.nanoTime());
+                } catch (InterruptedException ignored) {
+                }
+            });
+            standbyThread.start();
+            long deadline = System.currentTimeMillis() + 2L * TTL_MILLIS;
+            for (int i = 0; i < events.size(); i++) {
+                process(events.get(i));
+                if (i % 200 == 0) {
+                    // Take a bit longer than the lease, so it has to be renewed
+                    Thread.sleep(10L);
+                }
+            }
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertThat(standbyThread.isAlive(), equalTo(true));
+
+            renewer.shutdownNow();
+            long stopped = System.nanoTime();
+            // The processor doesn't commit anymore when there's less than a third of the lease left,
+            // by then, the standby can't have taken over yet
+            while (primaryLease.isHeldFor(TTL_MILLIS / 3L)) {
+                Thread.sleep(1L);
+            }
+            assertThat(primaryLease.isHeld(), equalTo(true));
+            assertThat(standbyLease.isHeld(), equalTo(false));
+            standbyThread.join(10000L);
+            assertThat(tookOver.get(), greaterThan(0L));
+            long failoverMillis = TimeUnit.NANOSECONDS.toMillis(tookOver.get() - stopped);
+            LOG.info("Took over {} ms after the lease stopped being renewed (lease {} ms, polling every {} ms)",
+                    failoverMillis, TTL_MILLIS, POLL_MILLIS);
+            assertThat(failoverMillis, lessThan(TTL_MILLIS + POLL_MILLIS + 1000L));
+            assertThat(upToDate.get(), equalTo(true));
+            assertThat(toTree(standby.getSnapshot()), equalTo(toTree(snapshot)));
+
+            assertThat(primaryLease.renew(), equalTo(false));
+            assertThat(primaryLease.isHeld(), equalTo(false));
+            assertThat(standbyLease.isHeld(), equalTo(true));
+            // Released on the way out, someone else can take it right away
+            standbyLease.release();
+            assertThat(primaryLease.tryAcquire(), equalTo(true));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class TestTimerWheel {
+    @Test
+    public void testRelease() {
+        TimerWheel<String> wheel = new TimerWheel<>(10L, 4, 1000L);
+        List<String> released = new ArrayList<>();
+        wheel.schedule("now", 990L);
+        assertThat(wheel.nextMillis(), equalTo(990L));
+        wheel.advance(1000L, released::add);
+        assertThat(released, contains("now"));
+        released.clear();
+        wheel.schedule("soon", 1005L);
+        // Beyond the first two wheels (40 ms and 160 ms)
+        wheel.schedule("later", 1500L);
+        TimerWheel.Timer<String> cancelled = wheel.schedule("cancelled", 1200L);
+        assertThat(wheel.size(), equalTo(3));
+        assertThat(wheel.nextMillis(), equalTo(1005L));
+        wheel.advance(1004L, released::add);
+        assertThat(released, empty());
+        wheel.advance(1005L, released::add);
+        assertThat(released, contains("soon"));
+        assertThat(wheel.cancel(cancelled), equalTo(true));
+        assertThat(wheel.cancel(cancelled), equalTo(false));
+        wheel.advance(1499L, released::add);
+        assertThat(released, contains("soon"));
+        assertThat(wheel.nextMillis(), equalTo(1500L));
+        wheel.advance(1500L, released::add);
+        assertThat(released, contains("soon", "later"));
+        assertThat(wheel.size(), equalTo(0));
+        assertThat(wheel.nextMillis(), equalTo(Long.MAX_VALUE));
+    }
+
+    /**
+     * Advance in random steps, small and large, and check that every item is
+     * released at the first advance at or after its due time.
+     */
+    @Test
+    public void testRandom() {
+        Random random = new Random(42L);
+        long now = 0L;
+        TimerWheel<Integer> wheel = new TimerWheel<>(10L, 8, now);
+        Map<Integer, TimerWheel.Timer<Integer>> pending = new HashMap<>();
+        int next = 0;
+        for (int step = 0; step < 5000; step++) {
+            for (int i = random.nextInt(4); i > 0; i--) {
+                long due = now + 1L + (long) Math.pow(10, random.nextDouble() * 7);
+                pending.put(next, wheel.schedule(next, due));
+                next++;
+            }
+            if (!pending.isEmpty() && random.nextInt(4) == 0) {
+                Integer item = pending.keySet().iterator().next();
+                assertThat(wheel.cancel(pending.remove(item)), equalTo(true));
+            }
+            long nextMillis = wheel.nextMillis();
+            for (TimerWheel.Timer<Integer> timer : pending.values()) {
+                assertThat(nextMillis, lessThanOrEqualTo(timer.dueMillis));
+            }
+            now += random.nextInt(10) == 0 ? random.nextInt(1000000) : random.nextInt(50);
+            final long time = now;
+            wheel.advance(now, item -> {
+                TimerWheel.Timer<Integer> timer = pending.remove(item);
+                assertThat(timer.dueMillis, lessThanOrEqualTo(time));
+                assertThat(timer.isPending(), equalTo(false));
+            });
+            for (TimerWheel.Timer<Integer> timer : pending.values()) {
+                assertThat(timer.dueMillis > now, equalTo(true));
+            }
+            assertThat(wheel.size(), equalTo(pending.size()));
+        }
+    }
+}
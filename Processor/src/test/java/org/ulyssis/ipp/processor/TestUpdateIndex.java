@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ *
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.processor;
+
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.snapshot.Event;
+import org.ulyssis.ipp.snapshot.JdbcStorage;
+import org.ulyssis.ipp.snapshot.TagSeenEvent;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+public class TestUpdateIndex {
+    private static TagSeenEvent read(int readerId, long updateCount) {
+        return new TagSeenEvent(Instant.EPOCH, new TagId("abcd"), readerId, updateCount);
+    }
+
+    @Test
+    public void testDuplicates() {
+        UpdateIndex index = new UpdateIndex();
+        assertThat(index.markSeen(read(0, 0L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 1L)), equalTo(true));
+        assertThat(index.markSeen(read(1, 1L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 1L)), equalTo(false));
+        assertThat(index.markSeen(read(0, 0L)), equalTo(false));
+        assertThat(index.getDuplicates(), equalTo(2L));
+        assertThat(index.getGaps(), equalTo(1L));
+    }
+
+    @Test
+    public void testGaps() {
+        UpdateIndex index = new UpdateIndex();
+        index.markSeen(read(0, 0L));
+        index.markSeen(read(0, 5L));
+        assertThat(index.getGaps(), equalTo(4L));
+        assertThat(index.markSeen(read(0, 3L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 3L)), equalTo(false));
+        assertThat(index.getGaps(), equalTo(3L));
+        for (long i = 1L; i < 5L; i++) {
+            index.markSeen(read(0, i));
+        }
+        assertThat(index.getGaps(), equalTo(0L));
+        assertThat(index.markSeen(read(0, 2L)), equalTo(false));
+    }
+
+    @Test
+    public void testForget() {
+        UpdateIndex index = new UpdateIndex();
+        for (long i = 0L; i < 10000L; i++) {
+            index.markSeen(read(0, i));
+        }
+        index.forget(read(0, 9999L));
+        index.forget(read(0, 10L));
+        assertThat(index.getGaps(), equalTo(2L));
+        assertThat(index.markSeen(read(0, 10L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 9999L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 11L)), equalTo(false));
+        assertThat(index.getGaps(), equalTo(0L));
+    }
+
+    @Test
+    public void testLongRunWithGaps() {
+        UpdateIndex index = new UpdateIndex();
+        for (long i = 0L; i < 100000L; i++) {
+            if (i % 1000L != 7L) {
+                index.markSeen(read(0, i));
+            }
+        }
+        assertThat(index.getGaps(), equalTo(100L));
+        assertThat(index.markSeen(read(0, 50007L)), equalTo(true));
+        assertThat(index.markSeen(read(0, 50008L)), equalTo(false));
+        assertThat(index.getGaps(), equalTo(99L));
+    }
+
+    @Test
+    public void testSeed() throws Exception {
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:updates;DB_CLOSE_DELAY=-1"));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            List<Event> events = new ArrayList<>();
+            for (long i = 0L; i < 20L; i++) {
+                if (i != 4L) {
+                    events.add(read(3, i));
+                }
+            }
+            Event.saveAll(connection, events);
+            UpdateIndex index = new UpdateIndex();
+            JdbcStorage storage = new JdbcStorage();
+            JdbcStorage.Transaction tx = new JdbcStorage.Transaction(connection);
+            assertThat(index.seed(storage, tx, 3, 100), equalTo(Optional.of(19L)));
+            assertThat(index.seed(storage, tx, 2, 100), equalTo(Optional.empty()));
+            assertThat(index.getGaps(), equalTo(1L));
+            assertThat(index.markSeen(read(3, 5L)), equalTo(false));
+            assertThat(index.markSeen(read(3, 4L)), equalTo(true));
+            assertThat(index.markSeen(read(3, 20L)), equalTo(true));
+            Database.clearDb(connection);
+            connection.commit();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The events of the runs in the replays directory, to test with.
+ */
+public final class Replays {
+    private Replays() {
+    }
+
+    /**
+     * Load the first events of a replay, relative to a module directory.
+     *
+     * The exported events don't contain update counts, so the reads are
+     * numbered per reader, like they are when they come from the readers.
+     *
+     * @param name
+     *        The name of the replay, e.g. 10u2022
+     * @param limit
+     *        The number of events to load at most
+     */
+    public static List<Event> load(String name, int limit) throws IOException {
+        List<Event> events = new ArrayList<>();
+        Map<Integer, Long> updateCounts = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get("..", "replays", name, "events.json"))) {
+            String line;
+            while ((line = reader.readLine()) != null && events.size() < limit) {
+                Event event = Serialization.getJsonMapper().readValue(line, Event.class);
+                if (event instanceof TagSeenEvent) {
+                    TagSeenEvent e = (TagSeenEvent) event;
+                    long updateCount = updateCounts.merge(e.getReaderId(), 1L, Long::sum);
+                    event = new TagSeenEvent(e.getTime(), e.getTag(), e.getReaderId(), updateCount);
+                }
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TestParallelReplay {
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        TeamState.enableOutlierDetection = false;
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        TeamState.enableOutlierDetection = true;
+        Config.setCurrentConfig(null);
+    }
+
+    private void checkReplay(String replay) throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", replay + ".json")).get());
+        List<Event> events = Replays.load(replay, Integer.MAX_VALUE);
+        Snapshot sequential = new Snapshot(Instant.EPOCH);
+        for (Event event : events) {
+            sequential = event.apply(sequential);
+        }
+        Snapshot parallel = ParallelReplay.replay(new Snapshot(Instant.EPOCH), events, pool);
+        assertThat(Serialization.getJsonMapper().writeValueAsString(parallel),
+                equalTo(Serialization.getJsonMapper().writeValueAsString(sequential)));
+        // Starting halfway
+        Snapshot halfway = new Snapshot(Instant.EPOCH);
+        for (Event event : events.subList(0, events.size() / 2)) {
+            halfway = event.apply(halfway);
+        }
+        parallel = ParallelReplay.replay(halfway, events.subList(events.size() / 2, events.size()), pool);
+        assertThat(Serialization.getJsonMapper().writeValueAsString(parallel),
+                equalTo(Serialization.getJsonMapper().writeValueAsString(sequential)));
+    }
+
+    @Test
+    public void test10u2022() throws Exception {
+        checkReplay("10u2022");
+    }
+
+    @Test
+    public void test24u2021() throws Exception {
+        checkReplay("24u2021");
+    }
+}
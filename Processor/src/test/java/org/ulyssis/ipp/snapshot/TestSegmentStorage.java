@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class TestSegmentStorage {
+    private Path directory;
+    private SegmentStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("store");
+        storage = open(1024L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private SegmentStorage open(long segmentSize) throws Exception {
+        SegmentStorage result = new SegmentStorage(directory, segmentSize);
+        result.init(false);
+        return result;
+    }
+
+    private void reopen() throws Exception {
+        storage.close();
+        storage = open(1024L);
+    }
+
+    private static TagSeenEvent read(long second, int readerId, long updateCount) {
+        return new TagSeenEvent(Instant.ofEpochSecond(second), new TagId("abcd"), readerId, updateCount);
+    }
+
+    private void save(Event... events) throws Exception {
+        try (StoreTransaction tx = storage.begin()) {
+            for (Event event : events) {
+                storage.save(tx, Collections.singletonList(event));
+            }
+            tx.commit();
+        }
+    }
+
+    private List<Long> ids(EventCursor cursor) throws Exception {
+        List<Long> result = new ArrayList<>();
+        try (EventCursor events = cursor) {
+            while (events.next()) {
+                result.add(events.get().getId().get());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testEventsInTimeOrder() throws Exception {
+        List<Event> events = new ArrayList<>();
+        for (long i = 0L; i < 100L; i++) {
+            // A late read every ten reads
+            events.add(read(i % 10L == 9L ? i - 5L : i, 0, i));
+        }
+        try (StoreTransaction tx = storage.begin()) {
+            storage.save(tx, events.subList(0, 50));
+            tx.commit();
+            storage.save(tx, events.subList(50, 100));
+            tx.commit();
+        }
+        for (long i = 0L; i < 100L; i++) {
+            assertThat(events.get((int) i).getId(), equalTo(Optional.of(i + 1L)));
+        }
+        reopen();
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            List<Long> all = ids(storage.cursorAll(tx, 10));
+            assertThat(all.size(), equalTo(100));
+            List<Event> sorted = new ArrayList<>(events);
+            sorted.sort(Comparator.comparing(Event::getTime).thenComparing(event -> event.getId().get()));
+            List<Long> expected = new ArrayList<>();
+            for (Event event : sorted) {
+                expected.add(event.getId().get());
+            }
+            assertThat(all, equalTo(expected));
+            // The late read of 89 is at 84, after the read of 84 itself
+            List<Long> after = ids(storage.cursorAfter(tx, Instant.ofEpochSecond(84L), 85L, 10));
+            assertThat(after, equalTo(expected.subList(expected.indexOf(85L) + 1, expected.size())));
+            assertThat(after.get(0), equalTo(90L));
+            EventCursor cursor = storage.cursorAfter(tx, Instant.ofEpochSecond(97L), 98L, 10);
+            assertThat(cursor.next(), equalTo(true));
+            assertThat(cursor.get(), equalTo(events.get(98)));
+            assertThat(cursor.get().getId(), equalTo(Optional.of(99L)));
+            assertThat(cursor.next(), equalTo(false));
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testNewSegments() throws Exception {
+        for (long i = 0L; i < 100L; i++) {
+            save(read(i, 0, i));
+        }
+        long segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "events-*")) {
+            segments = 0L;
+            for (Path ignored : stream) {
+                segments++;
+            }
+        }
+        assertThat(segments > 1L, equalTo(true));
+        reopen();
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAll(tx, 10)).size(), equalTo(100));
+        }
+        save(read(100L, 0, 100L));
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAfter(tx, Instant.ofEpochSecond(99L), 100L, 10)), contains(101L));
+        }
+    }
+
+    @Test
+    public void testUniqueAndRemoved() throws Exception {
+        StartEvent first = new StartEvent(Instant.ofEpochSecond(10L));
+        save(first, read(11L, 0, 0L));
+        StartEvent second = new StartEvent(Instant.ofEpochSecond(5L));
+        try (StoreTransaction tx = storage.begin()) {
+            Event other = storage.loadUnique(tx, StartEvent.class).get();
+            assertThat(other.getId(), equalTo(first.getId()));
+            storage.setRemoved(tx, other, true);
+            storage.save(tx, Collections.singletonList(second));
+            assertThat(storage.loadUnique(tx, StartEvent.class).get().getId(), equalTo(second.getId()));
+            tx.commit();
+        }
+        reopen();
+        try (StoreTransaction tx = storage.begin()) {
+            assertThat(storage.loadUnique(tx, StartEvent.class).get().getId(), equalTo(second.getId()));
+            List<Boolean> removed = new ArrayList<>();
+            try (EventCursor cursor = storage.cursorAll(tx, 10)) {
+                while (cursor.next()) {
+                    removed.add(cursor.get().isRemoved());
+                }
+            }
+            assertThat(removed, contains(false, true, false));
+            // Not committed, so nothing changes
+            storage.setRemoved(tx, storage.loadUnique(tx, StartEvent.class).get(), true);
+            assertThat(storage.loadUnique(tx, StartEvent.class), equalTo(Optional.empty()));
+            tx.rollback();
+            assertThat(storage.loadUnique(tx, StartEvent.class).get().getId(), equalTo(second.getId()));
+        }
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        save(read(0L, 0, 0L));
+        try (StoreTransaction tx = storage.begin()) {
+            AddTagEvent event = new AddTagEvent(Instant.ofEpochSecond(1L), new TagId("ab"), 0);
+            storage.save(tx, Collections.singletonList(event));
+            assertThat(ids(storage.cursorAll(tx, 10)).size(), equalTo(2));
+            storage.save(tx, event.apply(new Snapshot(Instant.EPOCH)));
+            assertThat(storage.loadLatestCheckpoint(tx).isPresent(), equalTo(true));
+        }
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAll(tx, 10)), contains(1L));
+            assertThat(storage.loadLatestCheckpoint(tx), equalTo(Optional.empty()));
+        }
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            AddTagEvent event = new AddTagEvent(Instant.ofEpochSecond(i), new TagId("ab" + i), i);
+            try (StoreTransaction tx = storage.begin()) {
+                storage.save(tx, Collections.singletonList(event));
+                snapshot = event.apply(snapshot);
+                storage.save(tx, snapshot);
+                tx.commit();
+            }
+            snapshots.add(snapshot);
+        }
+        reopen();
+        try (StoreTransaction tx = storage.begin()) {
+            Snapshot latest = storage.loadLatestCheckpoint(tx).get();
+            assertThat(latest.getEventId(), equalTo(Optional.of(20L)));
+            assertThat(latest.getTeamTagMap().tagToTeam("ab19"), equalTo(Optional.of(19)));
+            Snapshot before = storage.loadBefore(tx, Instant.ofEpochSecond(10L)).get();
+            assertThat(before.getEventId(), equalTo(Optional.of(10L)));
+            storage.deleteAfter(tx, before);
+            assertThat(storage.loadLatestCheckpoint(tx).get().getEventId(), equalTo(Optional.of(10L)));
+            tx.commit();
+        }
+        reopen();
+        try (StoreTransaction tx = storage.begin()) {
+            assertThat(storage.loadLatestCheckpoint(tx).get().getEventId(), equalTo(Optional.of(10L)));
+            // Everything before 5 seconds ago, one per 5 seconds: 0-4 keeps 4, 5 keeps 5
+            assertThat(storage.compact(tx, Duration.ofSeconds(4L), Duration.ofSeconds(5L), 100), equalTo(4));
+            tx.commit();
+            long size = Files.size(directory.resolve("snapshots.seg"));
+            storage.reclaimSpace(tx);
+            assertThat(Files.size(directory.resolve("snapshots.seg")), lessThan(size));
+            assertThat(storage.loadBefore(tx, Instant.ofEpochSecond(4L)), equalTo(Optional.empty()));
+            assertThat(storage.loadBefore(tx, Instant.ofEpochSecond(5L)).get().getEventId(),
+                    equalTo(Optional.of(5L)));
+        }
+        reopen();
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(storage.loadBefore(tx, Instant.ofEpochSecond(5L)).get().getTeamTagMap().tagToTeam("ab4"),
+                    equalTo(Optional.of(4)));
+            assertThat(storage.loadLatestCheckpoint(tx).get().getEventId(), equalTo(Optional.of(10L)));
+        }
+    }
+
+    /**
+     * A commit whose event frame didn't make it to disk: its snapshot doesn't count either.
+     */
+    @Test
+    public void testTornCommit() throws Exception {
+        AddTagEvent first = new AddTagEvent(Instant.ofEpochSecond(1L), new TagId("ab"), 0);
+        AddTagEvent second = new AddTagEvent(Instant.ofEpochSecond(2L), new TagId("cd"), 1);
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        for (AddTagEvent event : new AddTagEvent[] { first, second }) {
+            try (StoreTransaction tx = storage.begin()) {
+                storage.save(tx, Collections.singletonList(event));
+                snapshot = event.apply(snapshot);
+                storage.save(tx, snapshot);
+                tx.commit();
+            }
+        }
+        Path segment;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "events-*")) {
+            segment = stream.iterator().next();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3L);
+        }
+        reopen();
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAll(tx, 10)), contains(1L));
+            assertThat(storage.loadLatestCheckpoint(tx).get().getEventId(), equalTo(Optional.of(1L)));
+        }
+        AddTagEvent third = new AddTagEvent(Instant.ofEpochSecond(3L), new TagId("ef"), 2);
+        save(third);
+        assertThat(third.getId(), equalTo(Optional.of(2L)));
+        reopen();
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAll(tx, 10)), contains(1L, 2L));
+            assertThat(storage.loadLatestCheckpoint(tx).get().getEventId(), equalTo(Optional.of(1L)));
+        }
+    }
+
+    @Test
+    public void testUpdateCounts() throws Exception {
+        save(read(0L, 0, 0L), read(1L, 1, 0L), read(2L, 0, 2L), read(3L, 0, 1L));
+        try (StoreTransaction tx = storage.begin()) {
+            storage.save(tx, Collections.singletonList(read(4L, 0, 3L)));
+            List<Long> updateCounts = new ArrayList<>();
+            storage.loadUpdateCounts(tx, 0, 10, updateCounts::add);
+            // Only what is committed
+            assertThat(updateCounts, contains(0L, 1L, 2L));
+        }
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        save(read(0L, 0, 0L));
+        storage.close();
+        storage = new SegmentStorage(directory, 1024L);
+        storage.init(true);
+        try (StoreTransaction tx = storage.beginReadOnly()) {
+            assertThat(ids(storage.cursorAll(tx, 10)).isEmpty(), equalTo(true));
+        }
+    }
+}
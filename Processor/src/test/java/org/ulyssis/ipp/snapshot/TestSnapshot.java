@@ -188,4 +188,21 @@ public class TestSnapshot {
         MatcherAssert.assertThat(snapshot.getTeamStates().getStateForTeam(3).get()
                 .getSpeed(), Matchers.equalTo(speedShouldBe));
     }
+
+    @Test
+    public void testReapplyTagSeenEvent_ShouldCarryOverTeamState() throws Exception {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        snapshot = new AddTagEvent(Instant.EPOCH, new TagId("ABCD"), 0).doApply(snapshot);
+        snapshot = new AddTagEvent(Instant.EPOCH, new TagId("DCBA"), 1).doApply(snapshot);
+        snapshot = new StartEvent(Instant.EPOCH).doApply(snapshot);
+        TagSeenEvent team0 = new TagSeenEvent(Instant.EPOCH.plus(60, ChronoUnit.SECONDS), new TagId("ABCD"), 0, 0L);
+        TagSeenEvent team1 = new TagSeenEvent(Instant.EPOCH.plus(70, ChronoUnit.SECONDS), new TagId("DCBA"), 0, 0L);
+        TagSeenEvent lateTeam0 = new TagSeenEvent(Instant.EPOCH.plus(65, ChronoUnit.SECONDS), new TagId("ABCD"), 1, 1L);
+        Snapshot earlierResult = team1.apply(team0.apply(snapshot));
+        Snapshot beforeTeam1 = lateTeam0.apply(team0.apply(snapshot));
+        MatcherAssert.assertThat(objectMapper.writeValueAsString(team1.reapply(beforeTeam1, earlierResult)),
+                SameJSONAs.sameJSONAs(objectMapper.writeValueAsString(team1.apply(beforeTeam1))));
+        MatcherAssert.assertThat(team1.reapply(beforeTeam1, earlierResult).getTeamStates().getNbLapsForTeam(0),
+                Matchers.equalTo(1));
+    }
 }
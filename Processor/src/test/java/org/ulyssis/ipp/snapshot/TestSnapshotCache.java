@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.processor.Database;
+import org.ulyssis.ipp.processor.RedisStandIn;
+import org.ulyssis.ipp.status.StatusMessage;
+import org.ulyssis.ipp.status.StatusReporter;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+public class TestSnapshotCache {
+    private static final int EVENTS = 1000;
+
+    private final List<Event> events = new ArrayList<>();
+    private RedisStandIn redis;
+    private StatusReporter statusReporter;
+    private SnapshotCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:snapshotcache;DB_CLOSE_DELAY=-1"));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            connection.commit();
+        }
+        events.addAll(Replays.load("10u2022", EVENTS));
+        redis = new RedisStandIn();
+        statusReporter = new StatusReporter(redis.getUri(), "status");
+        cache = new SnapshotCache(redis.getUri());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        redis.close();
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            connection.commit();
+        }
+        TeamState.enableOutlierDetection = true;
+        Config.setCurrentConfig(null);
+    }
+
+    private Snapshot replay(int count) {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        for (int i = 0; i < count; i++) {
+            snapshot = events.get(i).apply(snapshot);
+        }
+        return snapshot;
+    }
+
+    private void publish(Snapshot snapshot) throws Exception {
+        byte[] encoded = SnapshotCache.encode(snapshot);
+        long version = SnapshotCache.loadVersion(redis.getUri()) + 1L;
+        statusReporter.broadcast(new StatusMessage(StatusMessage.MessageType.NEW_SNAPSHOT, "New snapshot!"),
+                transaction -> SnapshotCache.store(transaction, encoded, snapshot, version));
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                .readTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        Snapshot snapshot = replay(EVENTS);
+        snapshot.eventId = 1234L;
+        byte[] encoded = SnapshotCache.encode(snapshot);
+        assertThat(encoded.length, lessThan(Serialization.getJsonMapper().writeValueAsBytes(snapshot).length / 4));
+        Snapshot decoded = SnapshotCache.decode(encoded, 1234L);
+        assertThat(toTree(decoded), equalTo(toTree(snapshot)));
+        assertThat(decoded.getEventId().get(), equalTo(1234L));
+    }
+
+    @Test
+    public void testOnlyFetchedWhenChanged() throws Exception {
+        Snapshot first = replay(EVENTS / 2);
+        publish(first);
+        Snapshot fetched = cache.get().get();
+        assertThat(toTree(fetched), equalTo(toTree(first)));
+        assertThat(cache.get().get(), sameInstance(fetched));
+        assertThat(cache.getFetched(), equalTo(1L));
+        assertThat(cache.getVersion(), equalTo(1L));
+
+        Snapshot second = replay(EVENTS);
+        publish(second);
+        assertThat(toTree(cache.get().get()), equalTo(toTree(second)));
+        assertThat(cache.getFetched(), equalTo(2L));
+        assertThat(cache.getVersion(), equalTo(2L));
+        assertThat(cache.getLoadedFromDatabase(), equalTo(0L));
+    }
+
+    @Test
+    public void testDatabaseFallback() throws Exception {
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Event.saveAll(connection, events);
+            connection.commit();
+        }
+        Snapshot expected = replay(EVENTS);
+        assertThat(toTree(cache.get().get()), equalTo(toTree(expected)));
+        assertThat(cache.getLoadedFromDatabase(), equalTo(1L));
+        assertThat(cache.getVersion(), equalTo(-1L));
+
+        publish(expected);
+        assertThat(toTree(cache.get().get()), equalTo(toTree(expected)));
+        assertThat(cache.getFetched(), equalTo(1L));
+
+        // Redis lost its data
+        redis.flush();
+        assertThat(toTree(cache.get().get()), equalTo(toTree(expected)));
+        assertThat(cache.getLoadedFromDatabase(), equalTo(2L));
+    }
+
+    @Test
+    public void testDatabaseFallbackSkipsFutureEvents() throws Exception {
+        List<Event> stored = new ArrayList<>(events);
+        stored.add(new EndEvent(Instant.now().plus(Duration.ofHours(1L))));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Event.saveAll(connection, stored);
+            connection.commit();
+        }
+        // The end is scheduled, the processor doesn't apply it until it's due
+        Snapshot expected = replay(EVENTS);
+        assertThat(toTree(cache.get().get()), equalTo(toTree(expected)));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            assertThat(toTree(Snapshot.loadAt(connection, Instant.now().plus(Duration.ofDays(1L))).get()),
+                    equalTo(toTree(expected)));
+            connection.commit();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.snapshot;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ulyssis.ipp.TagId;
+import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.processor.Database;
+import org.ulyssis.ipp.processor.RedisStandIn;
+import org.ulyssis.ipp.status.StatusMessage;
+import org.ulyssis.ipp.status.StatusReporter;
+import org.ulyssis.ipp.utils.Serialization;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.ulyssis.ipp.processor.Database.ConnectionFlags.READ_WRITE;
+
+public class TestSnapshotDelta {
+    private static final int EVENTS = 600;
+
+    private final List<Event> events = new ArrayList<>();
+    private RedisStandIn redis;
+    private StatusReporter statusReporter;
+    private SnapshotListener listener;
+    private final List<Snapshot> announced = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Config.setCurrentConfig(Config.fromConfigurationFile(Paths.get("..", "configs", "10u2022.json")).get());
+        TeamState.enableOutlierDetection = false;
+        events.addAll(Replays.load("10u2022", EVENTS));
+        redis = new RedisStandIn();
+        statusReporter = new StatusReporter(redis.getUri(), "status");
+        listener = new SnapshotListener(redis.getUri(), true);
+        listener.addListener(announced::add);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Not stopping the listener, it never subscribed, and its connections are closed with Redis
+        redis.close();
+        TeamState.enableOutlierDetection = true;
+        Config.setCurrentConfig(null);
+    }
+
+    private Snapshot replay(int count) {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        for (int i = 0; i < count; i++) {
+            snapshot = events.get(i).apply(snapshot);
+        }
+        return snapshot;
+    }
+
+    private static JsonNode toTree(Snapshot snapshot) throws Exception {
+        return Serialization.getJsonMapper().reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                .readTree(Serialization.getJsonMapper().writeValueAsString(snapshot));
+    }
+
+    private static SnapshotDelta roundTrip(SnapshotDelta delta) throws Exception {
+        return Serialization.getJsonMapper().readValue(
+                Serialization.getJsonMapper().writeValueAsBytes(delta), SnapshotDelta.class);
+    }
+
+    /**
+     * Publish the snapshot like the processor does, and return its delta
+     */
+    private SnapshotDelta publish(Snapshot before, Snapshot after, long sequence) throws Exception {
+        byte[] encoded = SnapshotCache.encode(after);
+        SnapshotDelta delta = SnapshotDelta.between(before, after, sequence);
+        statusReporter.broadcast(new StatusMessage(StatusMessage.MessageType.NEW_SNAPSHOT, "New snapshot!"),
+                transaction -> SnapshotCache.store(transaction, encoded, after, sequence));
+        return roundTrip(delta);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Snapshot snapshot = new Snapshot(Instant.EPOCH);
+        Snapshot replica = snapshot;
+        for (int i = 0; i < EVENTS; i++) {
+            Snapshot next = events.get(i).apply(snapshot);
+            SnapshotDelta delta = roundTrip(SnapshotDelta.between(snapshot, next, i + 1));
+            assertThat(delta.getTeamStates().size() + delta.getAddedTags().size() <= 1, equalTo(true));
+            replica = delta.applyTo(replica);
+            snapshot = next;
+            if (i % 100 == 0) {
+                assertThat(toTree(replica), equalTo(toTree(snapshot)));
+            }
+        }
+        assertThat(toTree(replica), equalTo(toTree(snapshot)));
+    }
+
+    @Test
+    public void testTagsAndRemovedTeams() throws Exception {
+        Snapshot before = replay(EVENTS);
+        TagId tag = before.getTeamTagMap().getTagToTeam().keySet().iterator().next();
+        int team = before.getTeamTagMap().tagToTeam(tag).get();
+        Instant time = before.getSnapshotTime();
+        Snapshot moved = new AddTagEvent(time, tag, team + 1).apply(new RemoveTagEvent(time, tag, team).apply(before));
+        SnapshotDelta delta = roundTrip(SnapshotDelta.between(before, moved, 1L));
+        assertThat(delta.getRemovedTags(), equalTo(Collections.singletonList(tag.toString())));
+        assertThat(delta.getAddedTags().get(tag.toString()), equalTo(team + 1));
+        assertThat(delta.getTeamStates().isEmpty(), equalTo(true));
+        assertThat(toTree(delta.applyTo(before)), equalTo(toTree(moved)));
+
+        // Going back to before any team was seen, and before the tag was moved
+        Snapshot start = replay(20);
+        delta = roundTrip(SnapshotDelta.between(moved, start, 2L));
+        assertThat(delta.getRemovedTeams(), hasItem(1));
+        assertThat(delta.getRemovedTags(), hasItem(tag.toString()));
+        assertThat(delta.getAddedTags().get(tag.toString()), equalTo(team));
+        assertThat(toTree(delta.applyTo(moved)), equalTo(toTree(start)));
+    }
+
+    @Test
+    public void testResyncOnGap() throws Exception {
+        Snapshot first = replay(EVENTS / 4);
+        listener.onDelta(publish(new Snapshot(Instant.EPOCH), first, 1L));
+        assertThat(listener.getResyncs(), equalTo(1L));
+        assertThat(listener.getSequence(), equalTo(1L));
+        assertThat(toTree(announced.get(0)), equalTo(toTree(first)));
+
+        Snapshot second = replay(EVENTS / 2);
+        listener.onDelta(publish(first, second, 2L));
+        assertThat(listener.getResyncs(), equalTo(1L));
+        assertThat(toTree(announced.get(1)), equalTo(toTree(second)));
+
+        // Delta 3 gets lost
+        Snapshot third = replay(3 * EVENTS / 4);
+        publish(second, third, 3L);
+        Snapshot fourth = replay(EVENTS);
+        listener.onDelta(publish(third, fourth, 4L));
+        assertThat(listener.getResyncs(), equalTo(2L));
+        assertThat(listener.getSequence(), equalTo(4L));
+        assertThat(toTree(announced.get(2)), equalTo(toTree(fourth)));
+
+        // An old one is ignored
+        SnapshotDelta old = SnapshotDelta.between(second, third, 3L);
+        listener.onDelta(old);
+        assertThat(announced.size(), equalTo(3));
+        assertThat(listener.getResyncs(), equalTo(2L));
+    }
+
+    /**
+     * When the cache has no snapshot, the listener announces the one in the
+     * database, and doesn't load it again for every delta after that.
+     */
+    @Test
+    public void testDatabaseFallback() throws Exception {
+        Database.setDatabaseURI(URI.create("jdbc:h2:mem:snapshotdelta;DB_CLOSE_DELAY=-1"));
+        try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+            Database.clearDb(connection);
+            Database.initDb(connection);
+            Event.saveAll(connection, events.subList(0, EVENTS / 2));
+            connection.commit();
+        }
+        try {
+            // The snapshot isn't stored in the cache
+            Snapshot first = replay(EVENTS / 2);
+            listener.onDelta(roundTrip(SnapshotDelta.between(new Snapshot(Instant.EPOCH), first, 1L)));
+            assertThat(listener.getResyncs(), equalTo(1L));
+            assertThat(listener.getSequence(), equalTo(-1L));
+            assertThat(toTree(announced.get(0)), equalTo(toTree(first)));
+
+            Snapshot previous = first;
+            for (int i = 2; i <= 10; i++) {
+                Snapshot next = replay(EVENTS / 2 + i);
+                listener.onDelta(roundTrip(SnapshotDelta.between(previous, next, i)));
+                previous = next;
+            }
+            assertThat(listener.getResyncs(), equalTo(1L));
+            assertThat(announced.size(), equalTo(1));
+
+            // After a while, the next delta resyncs, and the cache has the snapshot again
+            Thread.sleep(SnapshotListener.RESYNC_BACKOFF_MILLIS);
+            Snapshot last = replay(EVENTS);
+            listener.onDelta(publish(previous, last, 11L));
+            assertThat(listener.getResyncs(), equalTo(2L));
+            assertThat(listener.getSequence(), equalTo(11L));
+            assertThat(toTree(announced.get(1)), equalTo(toTree(last)));
+        } finally {
+            try (Connection connection = Database.createConnection(EnumSet.of(READ_WRITE))) {
+                Database.clearDb(connection);
+                connection.commit();
+            }
+        }
+    }
+}
@@ -20,11 +20,17 @@ package org.ulyssis.ipp.snapshot;
 import org.junit.Test;
 import org.ulyssis.ipp.utils.Serialization;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class TestTeamStates {
     @Test
@@ -52,4 +58,43 @@ public class TestTeamStates {
         // TODO: This test doesn't work because of NaN
         // assertThat(teamStates.getStateForTeam(0), sameBeanAs(Optional.of(new TeamState())));
     }
+
+    @Test
+    public void testSetStateForTeam_ManyTeams() throws Exception {
+        Random random = new Random(1);
+        Map<Integer, TeamState> expected = new HashMap<>();
+        List<TeamStates> versions = new ArrayList<>();
+        List<Map<Integer, TeamState>> expectedVersions = new ArrayList<>();
+        TeamStates teamStates = new TeamStates();
+        for (int i = 0; i < 5000; i++) {
+            int teamNb = random.nextInt(10) == 0 ? random.nextInt(100000) - 50000 : random.nextInt(300);
+            TeamState state = new TeamState();
+            teamStates = teamStates.setStateForTeam(teamNb, state);
+            expected.put(teamNb, state);
+            if (i % 500 == 0) {
+                versions.add(teamStates);
+                expectedVersions.add(new HashMap<>(expected));
+            }
+        }
+        assertThat(teamStates.size(), equalTo(expected.size()));
+        assertThat(teamStates.getTeamNbToState(), equalTo(expected));
+        for (int teamNb = -1000; teamNb < 1000; teamNb++) {
+            assertThat(teamStates.getStateForTeam(teamNb).orElse(null), sameInstance(expected.get(teamNb)));
+        }
+        // Older versions are not affected by later updates
+        for (int i = 0; i < versions.size(); i++) {
+            assertThat(versions.get(i).getTeamNbToState(), equalTo(expectedVersions.get(i)));
+        }
+    }
+
+    @Test
+    public void testJsonSerialize_SortedByTeam() throws Exception {
+        TeamStates teamStates = new TeamStates()
+                .setStateForTeam(40, new TeamState())
+                .setStateForTeam(3, new TeamState())
+                .setStateForTeam(1000, new TeamState());
+        assertThat(Serialization.getJsonMapper().writeValueAsString(teamStates),
+                equalTo("{\"3\":{\"tagFragmentCount\":0},\"40\":{\"tagFragmentCount\":0}," +
+                        "\"1000\":{\"tagFragmentCount\":0}}"));
+    }
 }
@@ -21,10 +21,13 @@ import org.junit.Test;
 import org.ulyssis.ipp.utils.Serialization;
 import org.ulyssis.ipp.TagId;
 
+import java.util.Arrays;
 import java.util.Optional;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.collection.IsMapContaining.hasKey;
 import static org.hamcrest.collection.IsMapContaining.hasEntry;
 
 public class TestTeamTagMap {
@@ -83,4 +86,62 @@ public class TestTeamTagMap {
         ttm = ttm.addTagToTeam("abcd", 6);
         assertThat(ttm.tagToTeam("abcd").get(), equalTo(4));
     }
+
+    @Test
+    public void testTeamForTag() throws Exception {
+        TeamTagMap ttm = new TeamTagMap();
+        assertThat(ttm.teamForTag(new TagId("abcd")), equalTo(TeamTagMap.NO_TEAM));
+        ttm = ttm.addTagToTeam("abcd", 3);
+        assertThat(ttm.teamForTag(new TagId("ABCD")), equalTo(3));
+        ttm = ttm.removeTag("abcd");
+        assertThat(ttm.teamForTag(new TagId("abcd")), equalTo(TeamTagMap.NO_TEAM));
+        ttm = ttm.addTagToTeam("abcd", 5);
+        assertThat(ttm.teamForTag(new TagId("abcd")), equalTo(5));
+    }
+
+    /**
+     * Older maps share their table with the newer ones, make sure they don't
+     * see tags that were added or removed later, also when a second map is
+     * derived from an older one.
+     */
+    @Test
+    public void testOlderMapsDontChange() throws Exception {
+        TeamTagMap[] maps = new TeamTagMap[101];
+        maps[0] = new TeamTagMap();
+        for (int i = 1; i <= 100; i++) {
+            maps[i] = maps[i - 1].addTagToTeam(String.format("%04x", i), i % 7);
+            if (i % 10 == 0) {
+                maps[i] = maps[i].removeTag(String.format("%04x", i - 5));
+            }
+        }
+        TeamTagMap branch = maps[50].addTagToTeam("ffff", 1).removeTag(String.format("%04x", 1));
+        for (int i = 0; i <= 100; i++) {
+            for (int tag = 1; tag <= 100; tag++) {
+                boolean present = tag <= i && !(tag % 10 == 5 && tag + 5 <= i);
+                assertThat(maps[i].teamForTag(new TagId(String.format("%04x", tag))),
+                        equalTo(present ? tag % 7 : TeamTagMap.NO_TEAM));
+            }
+            assertThat(maps[i].teamForTag(new TagId("ffff")), equalTo(TeamTagMap.NO_TEAM));
+        }
+        assertThat(branch.teamForTag(new TagId("ffff")), equalTo(1));
+        assertThat(branch.teamForTag(new TagId(String.format("%04x", 1))), equalTo(TeamTagMap.NO_TEAM));
+        assertThat(branch.teamForTag(new TagId(String.format("%04x", 2))), equalTo(2));
+        assertThat(branch.teamForTag(new TagId(String.format("%04x", 51))), equalTo(TeamTagMap.NO_TEAM));
+        assertThat(branch.size(), equalTo(maps[50].size()));
+        assertThat(maps[51].teamForTag(new TagId(String.format("%04x", 1))), equalTo(1));
+    }
+
+    @Test
+    public void testTeamToTags() throws Exception {
+        TeamTagMap ttm = new TeamTagMap();
+        ttm = ttm.addTagToTeam("abcd", 4);
+        ttm = ttm.addTagToTeam("deff", 5);
+        ttm = ttm.addTagToTeam("0123", 4);
+        ttm = ttm.addTagToTeam("adcb", 4);
+        ttm = ttm.removeTag("0123");
+        assertThat(ttm.getTeamToTags().get(4), equalTo(Arrays.asList(new TagId("abcd"), new TagId("adcb"))));
+        assertThat(ttm.getTeamToTags().get(5), equalTo(Arrays.asList(new TagId("deff"))));
+        ttm = ttm.removeTag("deff");
+        assertThat(ttm.getTeamToTags(), not(hasKey(5)));
+    }
 }
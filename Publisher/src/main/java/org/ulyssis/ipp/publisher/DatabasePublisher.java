@@ -21,7 +21,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.config.Config;
 import org.ulyssis.ipp.processor.Database;
-import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.SnapshotCache;
 import org.ulyssis.ipp.status.StatusMessage;
 import org.ulyssis.ipp.utils.JedisHelper;
 import org.ulyssis.ipp.utils.Serialization;
@@ -30,11 +30,8 @@ import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.sql.Connection;
-import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.EnumSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
@@ -54,6 +51,10 @@ public final class DatabasePublisher extends Publisher implements Runnable {
     private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
     private final Semaphore semaphore = new Semaphore(0);
+    /**
+     * The latest snapshot, only fetched again when it changed
+     */
+    private final SnapshotCache cache;
 
     private Instant lastUpdateTime = Instant.EPOCH;
 
@@ -89,6 +90,7 @@ public final class DatabasePublisher extends Publisher implements Runnable {
         Database.setDatabaseURI(options.getDatabaseUri());
         pubSub = new JedisHelper.BinaryCallBackPubSub();
         pubSub.addOnMessageListener(this::updateCallback);
+        cache = new SnapshotCache(options.getRedisUri());
     }
 
     @Override
@@ -117,13 +119,7 @@ public final class DatabasePublisher extends Publisher implements Runnable {
                 while (!Thread.currentThread().isInterrupted()) {
                     semaphore.acquire();
                     semaphore.drainPermits();
-                    try (Connection connection = Database.createConnection(EnumSet.of(Database.ConnectionFlags.READ_ONLY))) {
-                        Snapshot.loadLatest(connection).ifPresent(snapshot -> outputScore(new Score(snapshot, true)));
-                    } catch (SQLException e) {
-                        LOG.error("Failed to fetch snapshot", e);
-                    } catch (IOException e) {
-                        LOG.error("Failed to process snapshot", e);
-                    }
+                    cache.get().ifPresent(snapshot -> outputScore(new Score(snapshot, true)));
                 }
             } catch (InterruptedException ignored) {}
             thread.interrupt();
@@ -131,6 +127,7 @@ public final class DatabasePublisher extends Publisher implements Runnable {
             thread.join();
         } catch (InterruptedException ignored) {}
         executorService.shutdownNow();
+        cache.close();
         cleanup();
     }
 }
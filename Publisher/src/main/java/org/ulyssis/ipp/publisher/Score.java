@@ -21,6 +21,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.ulyssis.ipp.config.Config;
+import org.ulyssis.ipp.config.TrackGeometry;
 import org.ulyssis.ipp.snapshot.Snapshot;
 import org.ulyssis.ipp.snapshot.TeamState;
 import org.ulyssis.ipp.snapshot.TeamStates;
@@ -136,9 +137,10 @@ public final class Score {
 
     public Score(Snapshot snapshot, boolean publicScore) {
         Config config = Config.getCurrentConfig();
+        TrackGeometry track = TrackGeometry.of(config);
         Instant now = Instant.now();
         this.time = now.toEpochMilli();
-        this.lap = config.getTrackLength();
+        this.lap = track.getTrackLength();
         this.update = snapshot.getUpdateFrequency();
         this.teams = new TreeSet<>();
         this.status = snapshot.getStatus();
@@ -158,13 +160,13 @@ public final class Score {
                     TagSeenEvent lastEvent = t.getLastTagSeenEvent().get();
                     Instant lastTime = t.getLastTagSeenEvent().get().getTime();
                     double elapsedSeconds = Duration.between(lastTime, now).toMillis() / 1000D;
-                    double previousReaderPosition = config.getReader(lastEvent.getReaderId()).getPosition();
+                    double previousReaderPosition = track.getReaderPosition(lastEvent.getReaderId());
                     double nonLimitedPosition = previousReaderPosition + elapsedSeconds * speed;
                     double position = nonLimitedPosition;
-                    if (position > config.getTrackLength()) position = config.getTrackLength();
+                    if (position > lap) position = lap;
                     teams.add(new Team(lap, team.getTeamNb(), team.getName(), t.getNbLaps(),
-                            doubleOrEmpty(this.status, position / config.getTrackLength()),
-                            nonLimitedPosition / config.getTrackLength(),
+                            doubleOrEmpty(this.status, position / lap),
+                            nonLimitedPosition / lap,
                             doubleOrEmpty(this.status, speed)));
                 }
             } else {
@@ -360,28 +360,23 @@ public final class LLRPReader implements LLRPEndpoint {
         // TODO: Use LLRPBitList sublist stuff?
         byte[] epcBytes = epc.encodeBinary().toByteArray();
         if (epcBytes[0] == ((byte)0x8d)) {
-            return new TagId(decodeEPC96(epcBytes));
+            return new TagId(epcBytes, 1, 12); // 96 bits is 12 bytes
         } else if (epcBytes[1] == ((byte)0xf1)) {
-            return new TagId(decodeEPCData(epcBytes));
+            return new TagId(epcBytes, 6, decodeEPCDataLength(epcBytes));
         } else {
             LOG.error("Couldn't decode EPCParameter {}: unknown format.", new TagId(epcBytes));
             return new TagId(epcBytes);
         }
     }
 
-    private static byte[] decodeEPC96(byte[] epc96) {
-        byte[] epc = new byte[12]; // 96 bits is 12 bytes
-        System.arraycopy(epc96, 1, epc, 0, 12);
-        return epc;
-    }
-
-    private static byte[] decodeEPCData(byte[] epcData) {
+    /**
+     * The number of bytes of the EPC in an EPCData parameter, the EPC starts at byte 6.
+     */
+    private static int decodeEPCDataLength(byte[] epcData) {
         int length = 0;
         length += Byte.toUnsignedInt(epcData[4]) << 8;
         length += Byte.toUnsignedInt(epcData[5]);
         // TODO: What if EPC length is not a multiple of 8? Does this occur?
-        byte[] epc = new byte[length / 8];
-        System.arraycopy(epcData, 6, epc, 0, length / 8);
-        return epc;
+        return length / 8;
     }
 }
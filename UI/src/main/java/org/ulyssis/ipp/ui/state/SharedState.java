@@ -21,9 +21,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.config.Config;
 import org.ulyssis.ipp.control.CommandDispatcher;
-import org.ulyssis.ipp.processor.Database;
 import org.ulyssis.ipp.publisher.Score;
 import org.ulyssis.ipp.snapshot.Snapshot;
+import org.ulyssis.ipp.snapshot.SnapshotCache;
 import org.ulyssis.ipp.status.StatusMessage;
 import org.ulyssis.ipp.utils.JedisHelper;
 import org.ulyssis.ipp.utils.Serialization;
@@ -34,9 +34,6 @@ import eu.webtoolkit.jwt.WApplication;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
@@ -69,6 +66,10 @@ public class SharedState {
     private final JedisHelper.BinaryCallBackPubSub statusSubscriber = new JedisHelper.BinaryCallBackPubSub();
     private final Jedis statusJedis;
     private final Thread statusThread;
+    /**
+     * The latest snapshot, only fetched again when it changed
+     */
+    private final SnapshotCache snapshotCache;
 
     private final ConcurrentMap<WApplication, Set<SnapshotScoreListener>> applicationToScoreListeners = new ConcurrentHashMap<>();
     private final ConcurrentMap<WApplication, Set<Consumer<StatusMessage>>> statusMessageListeners = new ConcurrentHashMap<>();
@@ -107,25 +108,15 @@ public class SharedState {
     	Set<WApplication> apps = new HashSet<>();
     	apps.addAll(statusMessageListeners.keySet());
     	apps.addAll(applicationToScoreListeners.keySet());
+    	// Fetched once for all applications, and only when it changed
+    	Optional<Snapshot> snapshotOptional = message.getType() == StatusMessage.MessageType.NEW_SNAPSHOT ?
+    			snapshotCache.get() : Optional.empty();
+    	snapshotOptional.ifPresent(s -> latestSnapshot = s);
+    	Snapshot snapshot = snapshotOptional.orElse(null);
+    	Score score = snapshotOptional.map(s -> new Score(s, false)).orElse(null);
     	apps.forEach(app -> {
             Set<Consumer<StatusMessage>> listeners = statusMessageListeners.get(app);
             Set<SnapshotScoreListener> snapshotListeners = applicationToScoreListeners.get(app);
-            Snapshot snapshot = null;
-            Score score = null;
-            if (message.getType() == StatusMessage.MessageType.NEW_SNAPSHOT) {
-                try (Connection connection = Database.createConnection(EnumSet.of(Database.ConnectionFlags.READ_ONLY))) {
-                    Optional<Snapshot> snapshotOptional = Snapshot.loadLatest(connection);
-                    if (snapshotOptional.isPresent()) {
-                        snapshot = snapshotOptional.get();
-                        latestSnapshot = snapshot;
-                        score = new Score(snapshot, false);
-                    }
-                } catch (SQLException e) {
-                    LOG.error("Failed to retrieve snapshot due to SQLException", e);
-                } catch (IOException e) {
-                    LOG.error("Failure processing snapshot", e);
-                }
-            }
             WApplication.UpdateLock lock = app.getUpdateLock();
             try {
                 if (listeners != null) {
@@ -148,16 +139,8 @@ public class SharedState {
         commandDispatcher = new CommandDispatcher(redisUri, Config.getCurrentConfig().getControlChannel(), Config.getCurrentConfig().getStatusChannel());
         dispatcherThread = new Thread(commandDispatcher);
         dispatcherThread.start();
-        try (Connection connection = Database.createConnection(EnumSet.of(Database.ConnectionFlags.READ_ONLY))) {
-            Optional<Snapshot> snapshot = Snapshot.loadLatest(connection);
-            if (snapshot.isPresent()) {
-                latestSnapshot = snapshot.get();
-            }
-        } catch (SQLException e) {
-            LOG.error("Couldn't get snapshot due to SQLException", e);
-        } catch (IOException e) {
-            LOG.error("Couldn't read snapshot", e);
-        }
+        snapshotCache = new SnapshotCache(redisUri);
+        snapshotCache.get().ifPresent(snapshot -> latestSnapshot = snapshot);
         statusJedis = JedisHelper.get(redisUri);
         statusSubscriber.addOnMessageListener(onMessageListener);
         statusThread = new Thread(() -> {
@@ -223,5 +206,6 @@ public class SharedState {
         	statusThread.join();
         } catch (InterruptedException ignored) {
         }
+        snapshotCache.close();
     }
 }
@@ -247,12 +247,8 @@ public class TeamPanel extends CollapsablePanel {
     private Set<TagId> oldTags = new HashSet<>();
     
     private void updateTags(Snapshot snapshot) {
-    	Set<TagId> newTags = new HashSet<>();
-    	snapshot.getTeamTagMap().getTagToTeam().forEach((tag, teamNb) -> {
-    		if (team.getTeamNb() == teamNb) {
-    			newTags.add(tag);
-    		}
-    	});
+    	Set<TagId> newTags = new HashSet<>(snapshot.getTeamTagMap().getTeamToTags()
+    			.getOrDefault(team.getTeamNb(), Collections.emptyList()));
     	if (!newTags.equals(oldTags)) {
     		oldTags = newTags;
     		tagsTable.clear();
@@ -34,15 +34,41 @@ import java.util.List;
 /**
  * = Represents a tag id (that is properly comparable and immutable)
  *
- * Mostly just wraps a string. Compares are case insensitive.
- * (Tag id AABBCC is the same as aabbcc)
+ * Compares are case insensitive. (Tag id AABBCC is the same as aabbcc)
  * This can be used for hex ids, or string ids
+ *
+ * Hex ids of up to 128 bits (32 hex digits), which is what the EPCs of our
+ * tags are, are stored packed in two longs, together with the number of
+ * digits. Comparing and hashing those doesn't allocate anything. Other ids
+ * are stored as a string, like before. toString() gives back the id as it
+ * was given, so the JSON form is the same for both.
  */
 @JsonSerialize(using=TagId.Serializer.class)
 @JsonDeserialize(using=TagId.Deserializer.class)
 public final class TagId {
+    private static final int MAX_PACKED_DIGITS = 32;
+    private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The number of hex digits for a packed id, -1 if this id is stored as a string
+     */
+    private final int digits;
+    private final long high;
+    private final long low;
+    private final boolean upperCase;
+    /**
+     * The id as it was given, if it's not packed, or if it's a hex id in mixed case
+     */
     private final String id;
+    /**
+     * The lower case id, only for ids that are not packed
+     */
     private final String lowerCaseId;
+    /**
+     * The hash code of the lower case id as a string, so that it doesn't
+     * depend on how the id is stored
+     */
     private final int hashCode;
 
     static class Serializer extends JsonSerializer<TagId> {
@@ -67,7 +93,47 @@ public final class TagId {
      *        converted to a lowercase hex form.
      */
     public TagId(byte[] id) {
-        this(BaseEncoding.base16().lowerCase().encode(id));
+        this(id, 0, id.length);
+    }
+
+    /**
+     * = Create a new TagId from part of the given byte array.
+     *
+     * @param bytes
+     *        The array that contains the tag id. The id
+     *        will be converted to a lowercase hex form.
+     * @param offset
+     *        The index of the first byte of the id
+     * @param length
+     *        The number of bytes in the id
+     */
+    public TagId(byte[] bytes, int offset, int length) {
+        if (length > 0 && length * 2 <= MAX_PACKED_DIGITS) {
+            long high = 0L;
+            long low = 0L;
+            int hashCode = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int b = bytes[i] & 0xFF;
+                high = (high << 8) | (low >>> 56);
+                low = (low << 8) | b;
+                hashCode = 31 * (31 * hashCode + LOWER_DIGITS[b >>> 4]) + LOWER_DIGITS[b & 0xF];
+            }
+            this.digits = length * 2;
+            this.high = high;
+            this.low = low;
+            this.upperCase = false;
+            this.id = null;
+            this.lowerCaseId = null;
+            this.hashCode = hashCode;
+        } else {
+            this.digits = -1;
+            this.high = 0L;
+            this.low = 0L;
+            this.upperCase = false;
+            this.id = BaseEncoding.base16().lowerCase().encode(bytes, offset, length);
+            this.lowerCaseId = this.id;
+            this.hashCode = this.id.hashCode();
+        }
     }
 
     /**
@@ -78,7 +144,7 @@ public final class TagId {
      *        converted to a lowercase hex form.
      */
     public TagId(List<Byte> id) {
-        this(BaseEncoding.base16().lowerCase().encode(Bytes.toArray(id)));
+        this(Bytes.toArray(id));
     }
 
     /**
@@ -91,9 +157,48 @@ public final class TagId {
      */
     public TagId(String id) throws NullPointerException {
         if (id == null) throw new NullPointerException("The tag id is not allowed to be null!");
-        this.id = id;
-        this.lowerCaseId = id.toLowerCase();
-        this.hashCode = this.lowerCaseId.hashCode();
+        long high = 0L;
+        long low = 0L;
+        int hashCode = 0;
+        boolean hasLower = false;
+        boolean hasUpper = false;
+        boolean packed = !id.isEmpty() && id.length() <= MAX_PACKED_DIGITS;
+        for (int i = 0; packed && i < id.length(); i++) {
+            char c = id.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+                hasLower = true;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+                hasUpper = true;
+            } else {
+                packed = false;
+                break;
+            }
+            high = (high << 4) | (low >>> 60);
+            low = (low << 4) | digit;
+            hashCode = 31 * hashCode + LOWER_DIGITS[digit];
+        }
+        if (packed) {
+            this.digits = id.length();
+            this.high = high;
+            this.low = low;
+            this.upperCase = hasUpper;
+            this.id = hasLower && hasUpper ? id : null;
+            this.lowerCaseId = null;
+            this.hashCode = hashCode;
+        } else {
+            this.digits = -1;
+            this.high = 0L;
+            this.low = 0L;
+            this.upperCase = false;
+            this.id = id;
+            this.lowerCaseId = id.toLowerCase();
+            this.hashCode = this.lowerCaseId.hashCode();
+        }
     }
 
     /**
@@ -103,7 +208,17 @@ public final class TagId {
      */
     @Override
     public String toString() {
-        return id;
+        if (id != null) {
+            return id;
+        }
+        char[] table = upperCase ? UPPER_DIGITS : LOWER_DIGITS;
+        char[] result = new char[digits];
+        for (int i = 0; i < digits; i++) {
+            int shift = 4 * (digits - 1 - i);
+            long word = shift < 64 ? low >>> shift : high >>> (shift - 64);
+            result[i] = table[(int) (word & 0xF)];
+        }
+        return new String(result);
     }
 
     @Override
@@ -111,7 +226,13 @@ public final class TagId {
         if (this == other) return true;
         if (other == null) return false;
         if (!(other instanceof TagId)) return false;
-        return this.lowerCaseId.equals(((TagId) other).lowerCaseId);
+        TagId otherTag = (TagId) other;
+        if (hashCode != otherTag.hashCode || digits != otherTag.digits) return false;
+        if (digits == -1) {
+            return this.lowerCaseId.equals(otherTag.lowerCaseId);
+        } else {
+            return high == otherTag.high && low == otherTag.low;
+        }
     }
 
     @Override
@@ -54,6 +54,7 @@ public class Config {
     private String updatesList = "updates";
     private String updatesSet = "updates";
     private String controlChannel = "control";
+    private String deltaChannel = "delta";
     private double outlierSpeedKmPerH = 34D; // approximately mean + 4 * std on 24 hour run of 2021 (speeds of almost 32 km/h were achieved between readers)
 
     /**
@@ -182,6 +183,19 @@ public class Config {
         return controlChannel;
     }
 
+    /**
+     * Gets the Redis channel name on which the processor publishes what
+     * changed in every new snapshot.
+     *
+     * Defaults to "delta".
+     *
+     * Generally, the db id will be added to the prefix, because
+     * pubsub channels are not database-specific in Redis.
+     */
+    public String getDeltaChannel() {
+        return deltaChannel;
+    }
+
     /**
      * The name of the list where readers push their updates on.
      *
@@ -229,12 +243,6 @@ public class Config {
      * the length of a full lap is returned.
      */
     public double distanceBetweenTwoReaders(int firstId, int secondId) {
-        double firstPos = readers.get(firstId).getPosition();
-        double secondPos = readers.get(secondId).getPosition();
-        if (firstId < secondId) {
-            return secondPos - firstPos;
-        } else {
-            return trackLength - firstPos + secondPos;
-        }
+        return TrackGeometry.of(this).distanceBetweenReaders(firstId, secondId);
     }
 }
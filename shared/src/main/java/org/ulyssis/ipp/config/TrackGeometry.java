@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.config;
+
+import java.util.List;
+
+/**
+ * The layout of the track: where the readers are, and the distances
+ * between them, precomputed from the configuration.
+ *
+ * The track is divided into fragments, one for every reader: fragment i
+ * runs from reader i to reader i + 1, and the last one from the last reader
+ * to the finish. A team that has run fragments 0 up to (not including) n has
+ * a fragment count of n, so fragment i of the team's run is fragment
+ * i % getNbReaders() of the track.
+ *
+ * Every read needs the distance run since the previous read, so these
+ * are looked up in tables instead of adding up the fragments each time.
+ * The distances within a lap are summed in the order the fragments are
+ * run, like a team would, so the result is the same as adding them up
+ * on the fly.
+ *
+ * Immutable, get it with TrackGeometry.of(config). The geometry of the
+ * last configuration that was asked for is kept, so normally this is only
+ * computed once.
+ */
+public final class TrackGeometry {
+    private static volatile TrackGeometry latest = null;
+
+    private final Config config;
+    private final int nbReaders;
+    private final double trackLength;
+    private final double[] positions;
+    /**
+     * The distance of the first count fragments starting at fragment start,
+     * for count 0 up to and including nbReaders, at start * (nbReaders + 1) + count
+     */
+    private final double[] fragmentDistances;
+    /**
+     * The distance from reader first to reader second, at first * nbReaders + second
+     */
+    private final double[] readerDistances;
+
+    /**
+     * The geometry of the track in the given configuration.
+     */
+    public static TrackGeometry of(Config config) {
+        TrackGeometry result = latest;
+        if (result == null || result.config != config) {
+            result = new TrackGeometry(config, config.getTrackLength(), config.getReaders());
+            latest = result;
+        }
+        return result;
+    }
+
+    private TrackGeometry(Config config, double trackLength, List<ReaderConfig> readers) {
+        this.config = config;
+        this.nbReaders = readers.size();
+        this.trackLength = trackLength;
+        this.positions = new double[nbReaders];
+        for (int i = 0; i < nbReaders; i++) {
+            positions[i] = readers.get(i).getPosition();
+        }
+        this.fragmentDistances = new double[nbReaders * (nbReaders + 1)];
+        for (int start = 0; start < nbReaders; start++) {
+            double distance = 0;
+            for (int count = 1; count <= nbReaders; count++) {
+                distance += fragmentLength((start + count - 1) % nbReaders);
+                fragmentDistances[start * (nbReaders + 1) + count] = distance;
+            }
+        }
+        this.readerDistances = new double[nbReaders * nbReaders];
+        for (int first = 0; first < nbReaders; first++) {
+            for (int second = 0; second < nbReaders; second++) {
+                if (first < second) {
+                    readerDistances[first * nbReaders + second] = positions[second] - positions[first];
+                } else {
+                    readerDistances[first * nbReaders + second] = trackLength - positions[first] + positions[second];
+                }
+            }
+        }
+    }
+
+    /**
+     * The length of fragment i of the track.
+     */
+    public double fragmentLength(int i) {
+        int next = (i + 1) % nbReaders;
+        if (next > i) {
+            return positions[next] - positions[i];
+        } else if (i > next) {
+            return trackLength - positions[i];
+        } else {
+            // This can happen when there is only one reader.
+            return trackLength;
+        }
+    }
+
+    /**
+     * The distance run between reaching fragment count from and fragment
+     * count to, with 0 <= from <= to.
+     */
+    public double distanceBetweenFragments(int from, int to) {
+        int count = to - from;
+        int start = from % nbReaders;
+        if (count <= nbReaders) {
+            return fragmentDistances[start * (nbReaders + 1) + count];
+        }
+        return (count / nbReaders) * fragmentDistances[start * (nbReaders + 1) + nbReaders] +
+                fragmentDistances[start * (nbReaders + 1) + count % nbReaders];
+    }
+
+    /**
+     * Distance between two readers in the direction of the course. If the two
+     * given readers are the same, the length of a full lap is returned.
+     */
+    public double distanceBetweenReaders(int firstId, int secondId) {
+        return readerDistances[firstId * nbReaders + secondId];
+    }
+
+    public double getReaderPosition(int readerId) {
+        return positions[readerId];
+    }
+
+    public int getNbReaders() {
+        return nbReaders;
+    }
+
+    public double getTrackLength() {
+        return trackLength;
+    }
+}
@@ -78,6 +78,11 @@ public final class StatusMessage {
          * Signals that a read has been rejected
          */
         READ_OUTLIER,
+        /**
+         * The processor's metrics, sent periodically. The details field contains
+         * a JSON object with the metrics.
+         */
+        PROCESSOR_METRICS,
         /**
          * Signals a miscellaneous error. The details field will contain more information
          * about the error.
@@ -23,9 +23,11 @@ import org.apache.logging.log4j.Logger;
 import org.ulyssis.ipp.utils.JedisHelper;
 import org.ulyssis.ipp.utils.Serialization;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.net.URI;
+import java.util.function.Consumer;
 
 /**
  * Responsible for sending status messages to the status channel.
@@ -85,4 +87,35 @@ public final class StatusReporter {
             return false;
         }
     }
+
+    /**
+     * Broadcast a status message, in one MULTI/EXEC transaction with the
+     * commands that the given callback adds to it, so that whoever gets the
+     * message sees what those commands did.
+     *
+     * @param message
+     *        The message to broadcast
+     * @param withMessage
+     *        Adds the commands to the transaction, before the message is published
+     * @return True if the broadcast was successful, false if the broadcast was unsuccessful.
+     *         Failure to broadcast will be logged.
+     */
+    public synchronized boolean broadcast(StatusMessage message, Consumer<Transaction> withMessage) {
+        if (jedis == null)
+            return false;
+        try {
+            byte[] bytes = Serialization.getJsonMapper().writeValueAsBytes(message);
+            Transaction transaction = jedis.multi();
+            withMessage.accept(transaction);
+            transaction.publish(statusChannel.getBytes(), bytes);
+            transaction.exec();
+            return true;
+        } catch (JsonProcessingException e) {
+            LOG.error("Error processing message {}", message.getDetails(), e);
+            return false;
+        } catch (JedisConnectionException e) {
+            LOG.error("Couldn't connect to Redis when sending: {}", message.getDetails(), e);
+            return false;
+        }
+    }
 }
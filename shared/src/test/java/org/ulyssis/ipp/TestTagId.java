@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp;
+
+import org.junit.Test;
+import org.ulyssis.ipp.utils.Serialization;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class TestTagId {
+    @Test
+    public void testToString_KeepsOriginal() throws Exception {
+        for (String id : new String[]{"001020220001", "ABCD0123", "AbCd", "e280689400004012",
+                "0123456789abcdef0123456789abcdef", "0123456789abcdef0123456789abcdef0", "not hex", ""}) {
+            assertThat(new TagId(id).toString(), equalTo(id));
+            assertThat(Serialization.getJsonMapper().writeValueAsString(new TagId(id)),
+                    equalTo("\"" + id + "\""));
+            assertThat(Serialization.getJsonMapper().readValue("\"" + id + "\"", TagId.class), equalTo(new TagId(id)));
+        }
+    }
+
+    @Test
+    public void testEquals_CaseInsensitive() throws Exception {
+        assertThat(new TagId("ABCD0123"), equalTo(new TagId("abcd0123")));
+        assertThat(new TagId("AbCd0123"), equalTo(new TagId("abcd0123")));
+        assertThat(new TagId("ABCD0123").hashCode(), equalTo(new TagId("abcd0123").hashCode()));
+        assertThat(new TagId("Not Hex"), equalTo(new TagId("not hex")));
+        assertThat(new TagId("0abc"), not(equalTo(new TagId("abc"))));
+        assertThat(new TagId("abcd0123"), not(equalTo(new TagId("abcd0124"))));
+    }
+
+    @Test
+    public void testHashCode_SameAsLowerCaseString() throws Exception {
+        for (String id : new String[]{"001020220001", "ABCD0123", "0123456789abcdef0123456789abcdef", "not hex"}) {
+            assertThat(new TagId(id).hashCode(), equalTo(id.toLowerCase().hashCode()));
+        }
+    }
+
+    @Test
+    public void testFromBytes() throws Exception {
+        byte[] bytes = {(byte) 0x8d, (byte) 0xe2, (byte) 0x80, 0x11, 0x70, 0x00, 0x00, 0x02, 0x0a, (byte) 0xff, 0x01, 0x23, 0x45, 0x67};
+        assertThat(new TagId(bytes, 1, 12), equalTo(new TagId("E28011700000020AFF012345")));
+        assertThat(new TagId(bytes, 1, 12).toString(), equalTo("e28011700000020aff012345"));
+        assertThat(new TagId(new byte[]{0x01, (byte) 0xab}), equalTo(new TagId("01AB")));
+        byte[] long20 = new byte[20];
+        long20[19] = 1;
+        assertThat(new TagId(long20).toString(), equalTo("0000000000000000000000000000000000000001"));
+        assertThat(new TagId(long20), equalTo(new TagId("0000000000000000000000000000000000000001")));
+    }
+}
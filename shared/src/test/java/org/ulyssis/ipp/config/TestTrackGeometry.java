@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014-2015 ULYSSIS VZW
+ *
+ * This file is part of i++.
+ * 
+ * i++ is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Affero General Public License
+ * as published by the Free Software Foundation. No other versions apply.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package org.ulyssis.ipp.config;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestTrackGeometry {
+    /**
+     * Add up the fragments one by one, like TeamState used to.
+     */
+    private static double addUpFragments(Config config, int from, int to) {
+        double distance = 0;
+        for (int i = from; i < to; i++) {
+            int j = i % config.getNbReaders();
+            int k = (i + 1) % config.getNbReaders();
+            if (k > j) {
+                distance += config.getReader(k).getPosition() - config.getReader(j).getPosition();
+            } else if (j > k) {
+                distance += config.getTrackLength() - config.getReader(j).getPosition();
+            } else {
+                distance += config.getTrackLength();
+            }
+        }
+        return distance;
+    }
+
+    @Test
+    public void testDistanceBetweenFragments() {
+        Config config = Config.fromConfigurationFile(Paths.get("src/test/resources/test1.json")).get();
+        TrackGeometry track = TrackGeometry.of(config);
+        assertEquals(3, track.getNbReaders());
+        assertEquals(220D, track.fragmentLength(0), 0D);
+        for (int from = 0; from < 10; from++) {
+            for (int to = from; to < from + 10; to++) {
+                assertEquals(addUpFragments(config, from, to), track.distanceBetweenFragments(from, to), 1E-9);
+            }
+        }
+        // Within a lap, the result is exactly the same
+        assertEquals(addUpFragments(config, 5, 8), track.distanceBetweenFragments(5, 8), 0D);
+    }
+
+    @Test
+    public void testDistanceBetweenReaders() {
+        Config config = Config.fromConfigurationFile(Paths.get("src/test/resources/test1.json")).get();
+        TrackGeometry track = TrackGeometry.of(config);
+        assertEquals(220D, track.distanceBetweenReaders(0, 1), 0D);
+        assertEquals(config.getTrackLength(), track.distanceBetweenReaders(1, 1), 0D);
+        assertEquals(config.getTrackLength() - config.getReader(2).getPosition(), track.distanceBetweenReaders(2, 0), 0D);
+        assertEquals(track.distanceBetweenReaders(2, 1), config.distanceBetweenTwoReaders(2, 1), 0D);
+    }
+
+    @Test
+    public void testOneReader() {
+        Config config = Config.fromConfigurationString(
+                "{\"trackLength\":400,\"readers\":[{\"uri\":\"redis://10.0.0.1\",\"position\":0}]}").get();
+        TrackGeometry track = TrackGeometry.of(config);
+        assertEquals(400D, track.distanceBetweenFragments(3, 4), 0D);
+        assertEquals(1200D, track.distanceBetweenFragments(3, 6), 0D);
+        assertEquals(400D, track.distanceBetweenReaders(0, 0), 0D);
+        assertSame(track, TrackGeometry.of(config));
+    }
+}